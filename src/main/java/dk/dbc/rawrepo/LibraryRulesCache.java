@@ -0,0 +1,194 @@
+package dk.dbc.rawrepo;
+
+import dk.dbc.vipcore.exception.VipCoreException;
+import dk.dbc.vipcore.libraryrules.VipCoreLibraryRulesConnector;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Application wide snapshot of the VipCore library rules used by the record beans and the dump.
+ * <p>
+ * Previously every pooled bean instance created its own RelationHintsVipCore, and feature checks went straight to the
+ * connector. Now all values are kept here and shared. The first lookup of a value goes to VipCore. After that the
+ * cached value is always returned. When a value is older than the refresh interval a background reload is started,
+ * so request threads don't wait for VipCore. If the reload fails the old value is kept. A value is only reloaded
+ * synchronously if it is older than the max stale age, i.e. VipCore has been failing for a long time.
+ */
+@ApplicationScoped
+public class LibraryRulesCache {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(LibraryRulesCache.class);
+
+    @Inject
+    VipCoreLibraryRulesConnector vipCoreLibraryRulesConnector;
+
+    @Resource(lookup = "java:comp/DefaultManagedExecutorService")
+    Executor executor;
+
+    @Inject
+    @ConfigProperty(name = "LIBRARY_RULES_REFRESH_SECONDS", defaultValue = "600")
+    long refreshSeconds;
+
+    @Inject
+    @ConfigProperty(name = "LIBRARY_RULES_MAX_STALE_SECONDS", defaultValue = "28800")
+    long maxStaleSeconds;
+
+    private RelationHintsVipCore vipCoreRelationHints;
+    private RelationHintsVipCore cachedRelationHints;
+
+    private Values<Integer, Boolean, RawRepoException> usesCommonAgency;
+    private Values<Integer, List<Integer>, RawRepoException> agencyPriority;
+    private final Map<VipCoreLibraryRulesConnector.Rule, Values<Integer, Boolean, VipCoreException>> features = new ConcurrentHashMap<>();
+    // Incremented whenever a reloaded value differs from the value it replaces
+    private final AtomicLong generation = new AtomicLong();
+
+    // Constructor used for mocking
+    LibraryRulesCache(VipCoreLibraryRulesConnector vipCoreLibraryRulesConnector) {
+        this.vipCoreLibraryRulesConnector = vipCoreLibraryRulesConnector;
+        this.executor = Runnable::run;
+        this.refreshSeconds = 600;
+        this.maxStaleSeconds = 28800;
+        init();
+    }
+
+    // Default constructor - required as there is another constructor
+    public LibraryRulesCache() {
+
+    }
+
+    @PostConstruct
+    public void init() {
+        vipCoreRelationHints = new RelationHintsVipCore(vipCoreLibraryRulesConnector);
+        cachedRelationHints = new CachedRelationHints(vipCoreLibraryRulesConnector);
+        usesCommonAgency = new Values<>("usesCommonAgency", vipCoreRelationHints::usesCommonAgency);
+        agencyPriority = new Values<>("agencyPriority",
+                agencyId -> Collections.unmodifiableList(vipCoreRelationHints.getAgencyPriority(agencyId)));
+    }
+
+    /**
+     * @return Relation hints backed by this cache which can be given to the RawRepoDAO builder
+     */
+    public RelationHintsVipCore getRelationHints() {
+        return cachedRelationHints;
+    }
+
+    public boolean usesCommonAgency(int agencyId) throws RawRepoException {
+        return usesCommonAgency.get(agencyId);
+    }
+
+    public List<Integer> getAgencyPriority(int agencyId) throws RawRepoException {
+        return agencyPriority.get(agencyId);
+    }
+
+    /**
+     * @return A number which changes whenever one of the cached library rules has changed, so results which were built
+     * with the old rules can be recognized
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    public boolean hasFeature(int agencyId, VipCoreLibraryRulesConnector.Rule feature) throws VipCoreException {
+        return features.computeIfAbsent(feature,
+                rule -> new Values<>(rule.name(), id -> vipCoreLibraryRulesConnector.hasFeature(id, rule)))
+                .get(agencyId);
+    }
+
+    @FunctionalInterface
+    private interface Loader<K, V, E extends Exception> {
+        V load(K key) throws E;
+    }
+
+    private static final class Value<V> {
+        private final V value;
+        private final long loaded = System.currentTimeMillis();
+
+        private Value(V value) {
+            this.value = value;
+        }
+
+        private long age() {
+            return System.currentTimeMillis() - loaded;
+        }
+    }
+
+    private final class Values<K, V, E extends Exception> {
+        private final String name;
+        private final Loader<K, V, E> loader;
+        private final Map<K, Value<V>> values = new ConcurrentHashMap<>();
+        private final Set<K> refreshing = ConcurrentHashMap.newKeySet();
+
+        private Values(String name, Loader<K, V, E> loader) {
+            this.name = name;
+            this.loader = loader;
+        }
+
+        private V get(K key) throws E {
+            final Value<V> value = values.get(key);
+
+            if (value == null || value.age() > maxStaleSeconds * 1000) {
+                return load(key);
+            }
+
+            if (value.age() > refreshSeconds * 1000 && refreshing.add(key)) {
+                try {
+                    executor.execute(() -> refresh(key));
+                } catch (RejectedExecutionException ex) {
+                    refreshing.remove(key);
+                    LOGGER.warn("Could not schedule refresh of {} for {}", name, key);
+                }
+            }
+
+            return value.value;
+        }
+
+        private V load(K key) throws E {
+            final V loaded = loader.load(key);
+            final Value<V> previous = values.put(key, new Value<>(loaded));
+            if (previous != null && !previous.value.equals(loaded)) {
+                generation.incrementAndGet();
+            }
+
+            return loaded;
+        }
+
+        private void refresh(K key) {
+            try {
+                load(key);
+            } catch (Exception ex) {
+                LOGGER.warn("Refresh of {} for {} failed - keeping the old value", name, key, ex);
+            } finally {
+                refreshing.remove(key);
+            }
+        }
+    }
+
+    private class CachedRelationHints extends RelationHintsVipCore {
+        private CachedRelationHints(VipCoreLibraryRulesConnector vipCoreLibraryRulesConnector) {
+            super(vipCoreLibraryRulesConnector);
+        }
+
+        @Override
+        public boolean usesCommonAgency(int agencyId) throws RawRepoException {
+            return LibraryRulesCache.this.usesCommonAgency(agencyId);
+        }
+
+        @Override
+        public List<Integer> getAgencyPriority(int agencyId) throws RawRepoException {
+            return LibraryRulesCache.this.getAgencyPriority(agencyId);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package dk.dbc.rawrepo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded map which removes the least recently used entries when there are more than the max number of entries or
+ * the total weight of the entries is above the max weight. Used by the application wide caches, so all methods are
+ * synchronized.
+ *
+ * @param <K> Type of the keys
+ * @param <V> Type of the values
+ */
+class LruCache<K, V> {
+
+    @FunctionalInterface
+    interface Weigher<V> {
+        long weigh(V value);
+    }
+
+    private final Map<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxEntries;
+    private final long maxWeight;
+    private final Weigher<V> weigher;
+    private long weight;
+
+    /**
+     * @param maxEntries The max number of entries. Nothing is added if it is 0 or less
+     */
+    LruCache(int maxEntries) {
+        this(maxEntries, Long.MAX_VALUE, value -> 0);
+    }
+
+    /**
+     * @param maxEntries The max number of entries. Nothing is added if it is 0 or less
+     * @param maxWeight  The max total weight of the entries
+     * @param weigher    Finds the weight of a value
+     */
+    LruCache(int maxEntries, long maxWeight, Weigher<V> weigher) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @return The value or null if the key isn't cached. The entry becomes the most recently used
+     */
+    synchronized V get(K key) {
+        return entries.get(key);
+    }
+
+    synchronized void put(K key, V value) {
+        if (maxEntries <= 0) {
+            return;
+        }
+
+        final V previous = entries.put(key, value);
+        if (previous != null) {
+            weight -= weigher.weigh(previous);
+        }
+        weight += weigher.weigh(value);
+
+        final Iterator<V> iterator = entries.values().iterator();
+        while ((entries.size() > maxEntries || weight > maxWeight) && iterator.hasNext()) {
+            weight -= weigher.weigh(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes the entry if the key still has the given value
+     */
+    synchronized void remove(K key, V value) {
+        if (entries.remove(key, value)) {
+            weight -= weigher.weigh(value);
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long weight() {
+        return weight;
+    }
+}
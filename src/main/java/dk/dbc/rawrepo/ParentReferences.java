@@ -0,0 +1,172 @@
+package dk.dbc.rawrepo;
+
+import dk.dbc.common.records.ExpandCommonMarcRecord;
+import dk.dbc.marc.reader.MarcReaderException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The parent references found in the content of a record, i.e. the head/section/volume references in 014, the littolk
+ * references in 016 and 018 and the authority references.
+ * <p>
+ * Deleted records don't have relations, so their parents must be found from the content. The content is read with
+ * StAX and only the subfields of the relevant fields are kept, so no MarcRecord is built. The authority references are
+ * kept apart as they only count for agencies which use enrichments.
+ */
+public final class ParentReferences {
+    private static final List<String> AUTHORITY_FIELDS = ExpandCommonMarcRecord.AUTHORITY_FIELD_LIST;
+
+    private static final ThreadLocal<XMLInputFactory> xmlInputFactory = ThreadLocal.withInitial(() -> {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    });
+
+    private final Set<RecordId> parents;
+    private final Set<RecordId> authorityParents;
+
+    private ParentReferences(Set<RecordId> parents, Set<RecordId> authorityParents) {
+        this.parents = Collections.unmodifiableSet(parents);
+        this.authorityParents = Collections.unmodifiableSet(authorityParents);
+    }
+
+    public boolean hasAuthorityParents() {
+        return !authorityParents.isEmpty();
+    }
+
+    /**
+     * @param usesEnrichments Whether the agency of the record uses enrichments and thereby authority records
+     * @return A new set with the parents
+     */
+    public Set<RecordId> getParents(boolean usesEnrichments) {
+        final Set<RecordId> result = new HashSet<>(parents);
+        if (usesEnrichments) {
+            result.addAll(authorityParents);
+        }
+
+        return result;
+    }
+
+    /**
+     * Finds the parent references in MarcXchange content. Same as looping through the fields of the MarcRecord, when a
+     * subfield occurs more than once in a field the last one is used.
+     *
+     * @param content  The content of the record
+     * @param agencyId The agency of the record
+     * @return The references
+     * @throws MarcReaderException If the content couldn't be read
+     */
+    public static ParentReferences scan(byte[] content, int agencyId) throws MarcReaderException {
+        final Set<RecordId> parents = new HashSet<>();
+        final Set<RecordId> authorityParents = new HashSet<>();
+        final Map<String, String> subfields = new HashMap<>();
+        final StringBuilder text = new StringBuilder();
+        String tag = null;
+        String code = null;
+
+        XMLStreamReader reader = null;
+        try {
+            reader = xmlInputFactory.get().createXMLStreamReader(new ByteArrayInputStream(content));
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        if ("datafield".equals(reader.getLocalName())) {
+                            final String fieldTag = reader.getAttributeValue(null, "tag");
+                            tag = isReferenceField(fieldTag, agencyId) ? fieldTag : null;
+                            subfields.clear();
+                        } else if (tag != null && "subfield".equals(reader.getLocalName())) {
+                            code = reader.getAttributeValue(null, "code");
+                            text.setLength(0);
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (code != null) {
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (code != null && "subfield".equals(reader.getLocalName())) {
+                            subfields.put(code, text.toString());
+                            code = null;
+                        } else if (tag != null && "datafield".equals(reader.getLocalName())) {
+                            addReferences(tag, subfields, agencyId, parents, authorityParents);
+                            tag = null;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new MarcReaderException("Unable to read MarcXchange record", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ignored) {
+                    // Nothing to do - the reader is backed by a byte array
+                }
+            }
+        }
+
+        return new ParentReferences(parents, authorityParents);
+    }
+
+    private static boolean isReferenceField(String tag, int agencyId) {
+        return "014".equals(tag) ||
+                (870974 == agencyId && ("016".equals(tag) || "018".equals(tag))) ||
+                AUTHORITY_FIELDS.contains(tag);
+    }
+
+    private static void addReferences(String tag, Map<String, String> subfields, int agencyId, Set<RecordId> parents, Set<RecordId> authorityParents) {
+        // head/section/volume structure
+        if ("014".equals(tag)) {
+            final String valueA = subfields.get("a");
+            final String valueX = subfields.get("x");
+
+            if (valueA != null) {
+                if (valueX == null || "DEB".equals(valueX)) {
+                    parents.add(new RecordId(valueA, agencyId));
+                } else if ("ANM".equals(valueX)) {
+                    parents.add(new RecordId(valueA, 870970));
+                }
+            }
+        }
+
+        // Handling for littolk records
+        if (870974 == agencyId && ("016".equals(tag) || "018".equals(tag))) {
+            final String valueA = subfields.get("a");
+            final String value5 = subfields.get("5");
+
+            if (valueA != null) {
+                if (value5 != null) {
+                    parents.add(new RecordId(valueA, Integer.parseInt(value5)));
+                } else {
+                    parents.add(new RecordId(valueA, agencyId));
+                }
+            }
+        }
+
+        if (AUTHORITY_FIELDS.contains(tag)) {
+            final String value5 = subfields.get("5");
+            final String value6 = subfields.get("6");
+
+            if (value5 != null && value6 != null) {
+                authorityParents.add(new RecordId(value6, Integer.parseInt(value5)));
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package dk.dbc.rawrepo;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.time.Instant;
+
+/**
+ * Bounded LRU cache of the parent references found in the content of deleted records.
+ * <p>
+ * The content of a record only changes when the record is saved, which also changes the modified timestamp, so each
+ * entry remembers the modified timestamp of the content the references were found in. The entry is only used while
+ * the record still has that timestamp, which is checked by the same query that would otherwise read the content, see
+ * RawRepoBean.fetchContentIfModified.
+ */
+@ApplicationScoped
+public class ParentReferencesCache {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(ParentReferencesCache.class);
+
+    @Inject
+    @ConfigProperty(name = "PARENT_REFERENCES_CACHE_MAX_ENTRIES", defaultValue = "100000")
+    int maxEntries;
+
+    // Nothing is cached until the max number of entries is known
+    private LruCache<RecordId, Entry> entries = new LruCache<>(0);
+
+    @PostConstruct
+    public void init() {
+        entries = new LruCache<>(maxEntries);
+        LOGGER.info("Parent references cache with max {} entries", maxEntries);
+    }
+
+    /**
+     * @param recordId The record
+     * @return The references and the modified timestamp of the content they were found in, or null if the record
+     * isn't cached
+     */
+    public Entry get(RecordId recordId) {
+        return entries.get(recordId);
+    }
+
+    /**
+     * @param recordId   The record
+     * @param modified   The modified timestamp of the content the references were found in
+     * @param references The references
+     */
+    public void put(RecordId recordId, Instant modified, ParentReferences references) {
+        if (modified == null) {
+            return;
+        }
+
+        entries.put(recordId, new Entry(modified, references));
+    }
+
+    public static final class Entry {
+        private final Instant modified;
+        private final ParentReferences references;
+
+        private Entry(Instant modified, ParentReferences references) {
+            this.modified = modified;
+            this.references = references;
+        }
+
+        public Instant getModified() {
+            return modified;
+        }
+
+        public ParentReferences getReferences() {
+            return references;
+        }
+    }
+}
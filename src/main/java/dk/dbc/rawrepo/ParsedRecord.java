@@ -0,0 +1,144 @@
+package dk.dbc.rawrepo;
+
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.reader.MarcReaderException;
+import dk.dbc.rawrepo.service.RecordObjectMapper;
+
+import java.time.Instant;
+import java.util.Set;
+
+/**
+ * Record which keeps the parsed MarcRecord next to the content bytes.
+ * <p>
+ * The DataIO record collections need the MarcRecord both when searching for control records and when the response is
+ * created, so the content is parsed the first time the MarcRecord is needed and the result is kept. Everything except
+ * the content is delegated to the wrapped record.
+ */
+public class ParsedRecord implements Record {
+    private final Record record;
+    private MarcRecord marcRecord;
+
+    private ParsedRecord(Record record) {
+        this.record = record;
+    }
+
+    /**
+     * @param record The record to wrap
+     * @return The record itself if it already is a ParsedRecord, otherwise a new ParsedRecord wrapping the record
+     */
+    public static ParsedRecord of(Record record) {
+        if (record instanceof ParsedRecord) {
+            return (ParsedRecord) record;
+        }
+
+        return new ParsedRecord(record);
+    }
+
+    public MarcRecord getMarcRecord() throws MarcReaderException {
+        if (marcRecord == null) {
+            marcRecord = RecordObjectMapper.contentToMarcRecord(record.getContent());
+        }
+
+        return marcRecord;
+    }
+
+    @Override
+    public RecordId getId() {
+        return record.getId();
+    }
+
+    @Override
+    public byte[] getContent() {
+        return record.getContent();
+    }
+
+    @Override
+    public void setContent(byte[] content) {
+        record.setContent(content);
+        this.marcRecord = null;
+    }
+
+    @Override
+    public String getMimeType() {
+        return record.getMimeType();
+    }
+
+    @Override
+    public void setMimeType(String mimeType) {
+        record.setMimeType(mimeType);
+    }
+
+    @Override
+    public Instant getCreated() {
+        return record.getCreated();
+    }
+
+    @Override
+    public void setCreated(Instant created) {
+        record.setCreated(created);
+    }
+
+    @Override
+    public Instant getModified() {
+        return record.getModified();
+    }
+
+    @Override
+    public void setModified(Instant modified) {
+        record.setModified(modified);
+    }
+
+    @Override
+    public String getTrackingId() {
+        return record.getTrackingId();
+    }
+
+    @Override
+    public void setTrackingId(String trackingId) {
+        record.setTrackingId(trackingId);
+    }
+
+    @Override
+    public boolean isOriginal() {
+        return record.isOriginal();
+    }
+
+    public void setOriginal(boolean original) {
+        record.setOriginal(original);
+    }
+
+    @Override
+    public boolean isDeleted() {
+        return record.isDeleted();
+    }
+
+    @Override
+    public void setDeleted(boolean deleted) {
+        record.setDeleted(deleted);
+    }
+
+    @Override
+    public boolean isEnriched() {
+        return record.isEnriched();
+    }
+
+    @Override
+    public void setEnriched(boolean enriched) {
+        record.setEnriched(enriched);
+    }
+
+    @Override
+    public String getEnrichmentTrail() {
+        return record.getEnrichmentTrail();
+    }
+
+    @Override
+    public Set<RecordId> getReferences() {
+        return record.getReferences();
+    }
+
+    @Override
+    public void setReferences(Set<RecordId> references) {
+        record.setReferences(references);
+    }
+}
@@ -0,0 +1,279 @@
+package dk.dbc.rawrepo;
+
+import dk.dbc.marc.reader.MarcReaderException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Removes the private (DBC) fields directly from MarcXchange content.
+ * <p>
+ * The content is scanned for field start tags and everything else is copied as is, so the record is neither parsed
+ * into a MarcRecord nor serialized again. The result contains the same fields as RecordBeanUtils.removePrivateFields,
+ * i.e. only the datafields with a tag starting with a digit are kept. The markup is ASCII, so the scan works on the
+ * raw bytes of any ASCII compatible encoding, e.g. UTF-8.
+ */
+public class PrivateFieldFilter {
+    private static final byte[] DATAFIELD = "datafield".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTROLFIELD = "controlfield".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TAG = "tag".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COMMENT_START = "<!--".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COMMENT_END = "-->".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CDATA_START = "<![CDATA[".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CDATA_END = "]]>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PI_END = "?>".getBytes(StandardCharsets.US_ASCII);
+
+    private PrivateFieldFilter() {
+
+    }
+
+    public static byte[] removePrivateFields(byte[] content) throws MarcReaderException {
+        byte[] result = null;
+        int resultLength = 0;
+        int copyFrom = 0;
+        int pos = 0;
+
+        while (true) {
+            final int start = indexOf(content, (byte) '<', pos);
+            if (start < 0) {
+                break;
+            }
+            if (start + 1 >= content.length) {
+                throw malformed(start);
+            }
+
+            final byte next = content[start + 1];
+            if (next == '/') {
+                pos = start + 2;
+            } else if (next == '!' || next == '?') {
+                pos = skipMarkup(content, start);
+            } else {
+                final int nameEnd = nameEnd(content, start + 1);
+                final int tagEnd = tagEnd(content, nameEnd);
+                final boolean selfClosing = content[tagEnd - 1] == '/';
+
+                if (isPrivateField(content, start + 1, nameEnd, tagEnd)) {
+                    // The indentation in front of the field goes with it
+                    int cut = start;
+                    while (cut > copyFrom && isWhitespace(content[cut - 1])) {
+                        cut--;
+                    }
+                    if (result == null) {
+                        result = new byte[content.length];
+                    }
+                    System.arraycopy(content, copyFrom, result, resultLength, cut - copyFrom);
+                    resultLength += cut - copyFrom;
+
+                    pos = selfClosing ? tagEnd + 1 : elementEnd(content, tagEnd + 1, start + 1, nameEnd);
+                    copyFrom = pos;
+                } else {
+                    pos = tagEnd + 1;
+                }
+            }
+        }
+
+        if (result == null) {
+            // Nothing was removed
+            return content;
+        }
+        System.arraycopy(content, copyFrom, result, resultLength, content.length - copyFrom);
+        resultLength += content.length - copyFrom;
+
+        return Arrays.copyOf(result, resultLength);
+    }
+
+    private static boolean isPrivateField(byte[] content, int nameStart, int nameEnd, int tagEnd) throws MarcReaderException {
+        final int localNameStart = localNameStart(content, nameStart, nameEnd);
+
+        if (regionEquals(content, localNameStart, nameEnd, CONTROLFIELD)) {
+            // Only datafields are kept, same as when the MarcRecord is filtered
+            return true;
+        }
+        if (!regionEquals(content, localNameStart, nameEnd, DATAFIELD)) {
+            return false;
+        }
+
+        final int valueStart = attributeValueStart(content, nameEnd, tagEnd, TAG);
+        if (valueStart < 0) {
+            return true;
+        }
+        final byte first = content[valueStart];
+
+        return first < '0' || first > '9';
+    }
+
+    /**
+     * @return The index of the first character of the value of the attribute or -1 if the attribute is not found
+     */
+    private static int attributeValueStart(byte[] content, int from, int tagEnd, byte[] attributeName) throws MarcReaderException {
+        int pos = from;
+        while (pos < tagEnd) {
+            while (pos < tagEnd && isWhitespace(content[pos])) {
+                pos++;
+            }
+            final int attributeNameStart = pos;
+            while (pos < tagEnd && content[pos] != '=' && !isWhitespace(content[pos])) {
+                pos++;
+            }
+            final int attributeNameEnd = pos;
+            while (pos < tagEnd && (content[pos] == '=' || isWhitespace(content[pos]))) {
+                pos++;
+            }
+            if (pos >= tagEnd || (content[pos] != '"' && content[pos] != '\'')) {
+                return -1;
+            }
+            final byte quote = content[pos];
+            final int valueStart = pos + 1;
+            final int valueEnd = indexOf(content, quote, valueStart);
+            if (valueEnd < 0 || valueEnd > tagEnd) {
+                throw malformed(pos);
+            }
+            if (regionEquals(content, attributeNameStart, attributeNameEnd, attributeName)) {
+                return valueStart < valueEnd ? valueStart : -1;
+            }
+            pos = valueEnd + 1;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return The index after the end tag matching the start tag with the name found at nameStart - nameEnd
+     */
+    private static int elementEnd(byte[] content, int from, int nameStart, int nameEnd) throws MarcReaderException {
+        int pos = from;
+        while (true) {
+            final int start = indexOf(content, (byte) '<', pos);
+            if (start < 0 || start + 1 >= content.length) {
+                throw malformed(nameStart);
+            }
+            if (content[start + 1] == '!' || content[start + 1] == '?') {
+                pos = skipMarkup(content, start);
+            } else if (content[start + 1] == '/') {
+                final int endNameEnd = nameEnd(content, start + 2);
+                final int endTagEnd = tagEnd(content, endNameEnd);
+                if (endNameEnd - start - 2 == nameEnd - nameStart
+                        && regionMatches(content, start + 2, content, nameStart, nameEnd - nameStart)) {
+                    return endTagEnd + 1;
+                }
+                pos = endTagEnd + 1;
+            } else {
+                pos = start + 1;
+            }
+        }
+    }
+
+    /**
+     * Skips comments, CDATA sections, processing instructions and declarations
+     *
+     * @return The index after the markup starting at start
+     */
+    private static int skipMarkup(byte[] content, int start) throws MarcReaderException {
+        final int end;
+        final int endLength;
+        if (regionMatches(content, start, COMMENT_START, 0, COMMENT_START.length)) {
+            end = indexOf(content, COMMENT_END, start + COMMENT_START.length);
+            endLength = COMMENT_END.length;
+        } else if (regionMatches(content, start, CDATA_START, 0, CDATA_START.length)) {
+            end = indexOf(content, CDATA_END, start + CDATA_START.length);
+            endLength = CDATA_END.length;
+        } else if (content[start + 1] == '?') {
+            end = indexOf(content, PI_END, start + 2);
+            endLength = PI_END.length;
+        } else {
+            end = indexOf(content, (byte) '>', start + 2);
+            endLength = 1;
+        }
+        if (end < 0) {
+            throw malformed(start);
+        }
+
+        return end + endLength;
+    }
+
+    private static int nameEnd(byte[] content, int from) {
+        int pos = from;
+        while (pos < content.length && content[pos] != '>' && content[pos] != '/' && !isWhitespace(content[pos])) {
+            pos++;
+        }
+
+        return pos;
+    }
+
+    private static int localNameStart(byte[] content, int nameStart, int nameEnd) {
+        for (int i = nameEnd - 1; i >= nameStart; i--) {
+            if (content[i] == ':') {
+                return i + 1;
+            }
+        }
+
+        return nameStart;
+    }
+
+    /**
+     * @return The index of the '>' ending the tag. Quoted attribute values may contain '>'
+     */
+    private static int tagEnd(byte[] content, int from) throws MarcReaderException {
+        int pos = from;
+        while (pos < content.length) {
+            final byte b = content[pos];
+            if (b == '>') {
+                return pos;
+            }
+            if (b == '"' || b == '\'') {
+                pos = indexOf(content, b, pos + 1);
+                if (pos < 0) {
+                    break;
+                }
+            }
+            pos++;
+        }
+
+        throw malformed(from);
+    }
+
+    private static int indexOf(byte[] content, byte b, int from) {
+        for (int i = from; i < content.length; i++) {
+            if (content[i] == b) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static int indexOf(byte[] content, byte[] bytes, int from) {
+        for (int i = from; i <= content.length - bytes.length; i++) {
+            if (regionMatches(content, i, bytes, 0, bytes.length)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean regionEquals(byte[] content, int start, int end, byte[] bytes) {
+        return end - start == bytes.length && regionMatches(content, start, bytes, 0, bytes.length);
+    }
+
+    private static boolean regionMatches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        if (aOffset + length > a.length || bOffset + length > b.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static MarcReaderException malformed(int position) {
+        return new MarcReaderException("Unable to read MarcXchange record - malformed markup at position " + position);
+    }
+}
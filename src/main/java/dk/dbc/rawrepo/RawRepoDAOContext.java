@@ -0,0 +1,338 @@
+package dk.dbc.rawrepo;
+
+import dk.dbc.rawrepo.dao.RawRepoBean;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.sql.DataSource;
+import javax.transaction.TransactionScoped;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the connection and RawRepoDAO shared by RecordBean, RecordSimpleBean and RecordRelationsBean.
+ * <p>
+ * The REST resources are stateless EJBs, so a request runs in a single container managed transaction which the record
+ * beans join. Resolving one merged or expanded record calls back and forth between the beans many times, and without
+ * this context each call would check out its own connection and build its own DAO.
+ * <p>
+ * The context is bound to the transaction rather than the HTTP request, because the bulk and dump worker threads
+ * don't have a request context but do call the beans within a transaction.
+ * <p>
+ * The context also remembers the state of the records looked up during the transaction, as the same record is checked
+ * for being active several times while resolving a merged record. Likewise the versions of a record are remembered, so
+ * the ETag and the record cache share one lookup, which also answers the state lookups of the record. The queries
+ * themselves are in RawRepoBean.
+ */
+@TransactionScoped
+public class RawRepoDAOContext implements Serializable {
+    private static final long serialVersionUID = 7409874581094276461L;
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(RawRepoDAOContext.class);
+
+    // A transaction can live for a while, e.g. a bulk request, so record states are only reused for a short time
+    private static final long RECORD_STATE_TTL_MILLIS = 2000;
+
+    @Resource(lookup = "jdbc/rawrepo")
+    private transient DataSource dataSource;
+
+    @EJB
+    private RawRepoBean rawRepoBean;
+
+    private transient Connection connection;
+    private transient RawRepoDAO dao;
+    private transient Map<RecordId, RecordStateEntry> recordStates;
+    // Bibliographic record ids for which the states of all agencies have been loaded, so missing records are known
+    private transient Map<String, Long> loadedRecordStates;
+    private transient Map<String, RecordVersionsEntry> recordVersions;
+    private transient Map<RecordId, Set<RecordId>> parentRelations;
+    // Bibliographic record ids for which the parent relations of all agencies have been loaded
+    private transient Map<String, Long> loadedParentRelations;
+
+    @FunctionalInterface
+    public interface DAOFactory {
+        RawRepoDAO create(Connection conn) throws RawRepoException;
+    }
+
+    // Constructor used for mocking
+    RawRepoDAOContext(DataSource dataSource) {
+        this(dataSource, new RawRepoBean(dataSource));
+    }
+
+    // Constructor used for mocking
+    RawRepoDAOContext(DataSource dataSource, RawRepoBean rawRepoBean) {
+        this.dataSource = dataSource;
+        this.rawRepoBean = rawRepoBean;
+    }
+
+    // Default constructor - required as there is another constructor
+    public RawRepoDAOContext() {
+
+    }
+
+    /**
+     * Returns the DAO for the current transaction. The connection is opened and the DAO is created by the first caller.
+     *
+     * @param factory Creates the DAO if this is the first call in the transaction
+     * @return The shared DAO
+     * @throws SQLException     If a connection couldn't be opened
+     * @throws RawRepoException If the DAO couldn't be created
+     */
+    public RawRepoDAO getDAO(DAOFactory factory) throws SQLException, RawRepoException {
+        if (dao == null) {
+            dao = factory.create(getConnection());
+        }
+
+        return dao;
+    }
+
+    /**
+     * Finds out whether a record is active, deleted or doesn't exist using a single primary key lookup.
+     *
+     * @param bibliographicRecordId Id of the record
+     * @param agencyId              Agency of the record
+     * @return The state of the record
+     * @throws RawRepoException If the lookup failed
+     */
+    public RecordState getRecordState(String bibliographicRecordId, int agencyId) throws RawRepoException {
+        if (recordStates == null) {
+            recordStates = new HashMap<>();
+        }
+
+        final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
+        final long now = System.currentTimeMillis();
+        final RecordStateEntry entry = recordStates.get(recordId);
+        if (entry != null && now - entry.timestamp < RECORD_STATE_TTL_MILLIS) {
+            return entry.state;
+        }
+        if (loadedRecordStates != null) {
+            // The record wasn't there when the states of all agencies were loaded
+            final Long loaded = loadedRecordStates.get(bibliographicRecordId);
+            if (loaded != null && now - loaded < RECORD_STATE_TTL_MILLIS && (entry == null || entry.timestamp < loaded)) {
+                return RecordState.NOT_FOUND;
+            }
+        }
+
+        final RecordState state = rawRepoBean.getRecordState(bibliographicRecordId, agencyId);
+        recordStates.put(recordId, new RecordStateEntry(state, now));
+
+        return state;
+    }
+
+    /**
+     * Looks up the state of the records for all agencies of a number of bibliographic record ids in one query, so the
+     * following calls to getRecordState for those ids don't go to the database, not even for agencies which don't have
+     * the record.
+     *
+     * @param bibliographicRecordIds Ids of the records
+     * @throws RawRepoException If the lookup failed
+     */
+    public void loadRecordStates(Collection<String> bibliographicRecordIds) throws RawRepoException {
+        if (recordStates == null) {
+            recordStates = new HashMap<>();
+        }
+        if (loadedRecordStates == null) {
+            loadedRecordStates = new HashMap<>();
+        }
+
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<RecordId, RecordState> entry : rawRepoBean.getRecordStates(bibliographicRecordIds).entrySet()) {
+            recordStates.put(entry.getKey(), new RecordStateEntry(entry.getValue(), now));
+        }
+        for (String bibliographicRecordId : bibliographicRecordIds) {
+            loadedRecordStates.put(bibliographicRecordId, now);
+        }
+    }
+
+    /**
+     * Fetches the rows of all agencies for a number of bibliographic record ids in one query. The states of the rows are
+     * remembered the same way as by loadRecordStates, so the rows don't have to be looked up again to check them.
+     *
+     * @param bibliographicRecordIds Ids of the records
+     * @return Map of record id to record. Agencies which don't have the record are left out
+     * @throws RawRepoException If the lookup failed
+     */
+    public Map<RecordId, Record> loadRecords(Collection<String> bibliographicRecordIds) throws RawRepoException {
+        if (recordStates == null) {
+            recordStates = new HashMap<>();
+        }
+        if (loadedRecordStates == null) {
+            loadedRecordStates = new HashMap<>();
+        }
+
+        final long now = System.currentTimeMillis();
+        final Map<RecordId, Record> records = rawRepoBean.fetchRecordsForAllAgencies(bibliographicRecordIds);
+        for (Record record : records.values()) {
+            recordStates.put(record.getId(), new RecordStateEntry(record.isDeleted() ? RecordState.DELETED : RecordState.ACTIVE, now));
+        }
+        for (String bibliographicRecordId : bibliographicRecordIds) {
+            loadedRecordStates.put(bibliographicRecordId, now);
+        }
+
+        return records;
+    }
+
+    /**
+     * Describes the current version of every row a merged or expanded record can be built from, see
+     * RawRepoBean.getRecordVersions. The states of the record for all agencies are remembered as well, so the following
+     * calls to getRecordState for the record don't go to the database.
+     *
+     * @param bibliographicRecordId   Id of the record
+     * @param includeAuthorityParents True if the authority parents should be included
+     * @return One line per row with id, deleted, modified and tracking id, or null if the record doesn't exist
+     * @throws RawRepoException If the lookup failed
+     */
+    public String getRecordVersions(String bibliographicRecordId, boolean includeAuthorityParents) throws RawRepoException {
+        if (recordVersions == null) {
+            recordVersions = new HashMap<>();
+        }
+        if (recordStates == null) {
+            recordStates = new HashMap<>();
+        }
+        if (loadedRecordStates == null) {
+            loadedRecordStates = new HashMap<>();
+        }
+
+        final String key = bibliographicRecordId + ":" + includeAuthorityParents;
+        final long now = System.currentTimeMillis();
+        final RecordVersionsEntry entry = recordVersions.get(key);
+        if (entry != null && now - entry.timestamp < RECORD_STATE_TTL_MILLIS) {
+            return entry.versions;
+        }
+
+        final RawRepoBean.RecordVersions versions = rawRepoBean.getRecordVersions(bibliographicRecordId, includeAuthorityParents);
+        for (Map.Entry<RecordId, RecordState> state : versions.getStates().entrySet()) {
+            recordStates.put(state.getKey(), new RecordStateEntry(state.getValue(), now));
+        }
+        loadedRecordStates.put(bibliographicRecordId, now);
+        recordVersions.put(key, new RecordVersionsEntry(versions.getVersions(), now));
+
+        return versions.getVersions();
+    }
+
+    /**
+     * Loads the parent relations of a record and of all its ancestors, e.g. volume -> section -> head, with one
+     * recursive query. The states of all the records in the hierarchy are loaded as well, so walking the hierarchy with
+     * getRecordState and getParentRelations doesn't go to the database again. Nothing is done if the record was loaded
+     * recently.
+     *
+     * @param bibliographicRecordId Id of the record
+     * @throws RawRepoException If the lookup failed
+     */
+    public void loadAncestorRelations(String bibliographicRecordId) throws RawRepoException {
+        loadAncestorRelations(Collections.singleton(bibliographicRecordId));
+    }
+
+    /**
+     * Same as loadAncestorRelations for a single record, but the hierarchies of all the records are loaded with the
+     * same two queries.
+     *
+     * @param bibliographicRecordIds Ids of the records
+     * @throws RawRepoException If the lookup failed
+     */
+    public void loadAncestorRelations(Collection<String> bibliographicRecordIds) throws RawRepoException {
+        if (parentRelations == null) {
+            parentRelations = new HashMap<>();
+            loadedParentRelations = new HashMap<>();
+        }
+
+        final long now = System.currentTimeMillis();
+        final List<String> missing = new ArrayList<>();
+        for (String bibliographicRecordId : bibliographicRecordIds) {
+            final Long loaded = loadedParentRelations.get(bibliographicRecordId);
+            if (loaded == null || now - loaded >= RECORD_STATE_TTL_MILLIS) {
+                missing.add(bibliographicRecordId);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        final Map<String, Map<RecordId, Set<RecordId>>> relations = rawRepoBean.getAncestorRelations(missing);
+        final Set<String> ancestors = relations.keySet();
+
+        // Records without parents have no rows, so the old relations are removed for every record in the hierarchy
+        parentRelations.keySet().removeIf(recordId -> ancestors.contains(recordId.getBibliographicRecordId()));
+        for (Map<RecordId, Set<RecordId>> ancestorRelations : relations.values()) {
+            parentRelations.putAll(ancestorRelations);
+        }
+        for (String ancestor : ancestors) {
+            loadedParentRelations.put(ancestor, now);
+        }
+
+        loadRecordStates(ancestors);
+    }
+
+    /**
+     * @param recordId The record
+     * @return The parent relations of the record if they were recently loaded by loadAncestorRelations, otherwise null
+     */
+    public Set<RecordId> getParentRelations(RecordId recordId) {
+        if (parentRelations == null) {
+            return null;
+        }
+
+        final Long loaded = loadedParentRelations.get(recordId.getBibliographicRecordId());
+        if (loaded == null || System.currentTimeMillis() - loaded >= RECORD_STATE_TTL_MILLIS) {
+            return null;
+        }
+
+        return parentRelations.getOrDefault(recordId, Collections.emptySet());
+    }
+
+    private Connection getConnection() throws SQLException {
+        if (connection == null) {
+            connection = dataSource.getConnection();
+        }
+
+        return connection;
+    }
+
+    @PreDestroy
+    public void close() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException ex) {
+                LOGGER.warn("Failed to close connection", ex);
+            }
+        }
+        connection = null;
+        dao = null;
+        recordStates = null;
+        loadedRecordStates = null;
+        recordVersions = null;
+        parentRelations = null;
+        loadedParentRelations = null;
+    }
+
+    private static class RecordStateEntry {
+        private final RecordState state;
+        private final long timestamp;
+
+        private RecordStateEntry(RecordState state, long timestamp) {
+            this.state = state;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class RecordVersionsEntry {
+        private final String versions;
+        private final long timestamp;
+
+        private RecordVersionsEntry(String versions, long timestamp) {
+            this.versions = versions;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -2,55 +2,65 @@ package dk.dbc.rawrepo;
 
 import dk.dbc.common.records.ExpandCommonMarcRecord;
 import dk.dbc.common.records.MarcRecordExpandException;
-import dk.dbc.marc.binding.MarcRecord;
 import dk.dbc.marc.reader.MarcReaderException;
 import dk.dbc.marcxmerge.MarcXMerger;
 import dk.dbc.marcxmerge.MarcXMergerException;
 import dk.dbc.marcxmerge.MarcXMimeTypeMerger;
+import dk.dbc.rawrepo.dao.RawRepoBean;
 import dk.dbc.rawrepo.exception.InternalServerException;
 import dk.dbc.rawrepo.exception.RecordNotFoundException;
-import dk.dbc.rawrepo.exception.RecordServiceRuntimeException;
 import dk.dbc.rawrepo.pool.CustomMarcXMergerPool;
 import dk.dbc.rawrepo.pool.DefaultMarcXMergerPool;
 import dk.dbc.rawrepo.pool.ObjectPool;
-import dk.dbc.rawrepo.service.RecordObjectMapper;
 import dk.dbc.util.StopwatchInterceptor;
 import dk.dbc.util.Timed;
 import dk.dbc.vipcore.exception.VipCoreException;
-import dk.dbc.vipcore.libraryrules.VipCoreLibraryRulesConnector;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
 import javax.annotation.PostConstruct;
-import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.interceptor.Interceptors;
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
-import static dk.dbc.rawrepo.RecordBeanUtils.removePrivateFields;
 
 @Interceptors(StopwatchInterceptor.class)
 @Stateless
 public class RecordBean {
     private static final XLogger LOGGER = XLoggerFactory.getXLogger(RecordBean.class);
 
-    @Resource(lookup = "jdbc/rawrepo")
-    private DataSource dataSource;
+    // Only these agencies can have authority parents
+    private static final List<Integer> EXPANDABLE_AGENCIES = Arrays.asList(190002, 190004, 870970, 870971, 870974);
+
+    // Part of the record version tags, so tags from before a restart or redeploy don't match
+    private static final String DEPLOYMENT_ID = UUID.randomUUID().toString();
+
+    @Inject
+    LibraryRulesCache libraryRulesCache;
 
     @Inject
-    private VipCoreLibraryRulesConnector vipCoreLibraryRulesConnector;
+    RawRepoDAOContext daoContext;
 
     @EJB
     RecordSimpleBean recordSimpleBean;
@@ -58,6 +68,12 @@ public class RecordBean {
     @EJB
     RecordRelationsBean recordRelationsBean;
 
+    @EJB
+    RawRepoBean rawRepoBean;
+
+    @Inject
+    RecordResultCache recordResultCache;
+
     private final ObjectPool<MarcXMerger> customMarcXMergerPool = new CustomMarcXMergerPool();
     private final ObjectPool<MarcXMerger> defaultMarcXMergerPool = new DefaultMarcXMergerPool();
 
@@ -65,7 +81,8 @@ public class RecordBean {
 
     // Constructor used for mocking
     RecordBean(DataSource dataSource) {
-        this.dataSource = dataSource;
+        this.daoContext = new RawRepoDAOContext(dataSource);
+        this.recordResultCache = new RecordResultCache();
     }
 
     // Default constructor - required as there is another constructor
@@ -79,13 +96,13 @@ public class RecordBean {
         return rawRepoBuilder.build();
     }
 
+    private RawRepoDAO getDAO() throws SQLException, RawRepoException {
+        return daoContext.getDAO(this::createDAO);
+    }
+
     @PostConstruct
     public void init() {
-        try {
-            relationHints = new RelationHintsVipCore(vipCoreLibraryRulesConnector);
-        } catch (Exception ex) {
-            throw new RecordServiceRuntimeException(ex);
-        }
+        relationHints = libraryRulesCache.getRelationHints();
     }
 
     private ObjectPool<MarcXMerger> getMergerPool(boolean useParentAgency) {
@@ -98,27 +115,23 @@ public class RecordBean {
 
     @Timed
     public Record getRawRepoRecordRaw(String bibliographicRecordId, int agencyId, boolean allowDeleted) throws InternalServerException, RecordNotFoundException {
-        try (Connection conn = dataSource.getConnection()) {
-            try {
-                final RawRepoDAO dao = createDAO(conn);
+        try {
+            final RawRepoDAO dao = getDAO();
+            // The state is usually known already from the lookup of the ETag
+            final RecordState state = daoContext.getRecordState(bibliographicRecordId, agencyId);
 
-                if (allowDeleted) {
-                    if (!dao.recordExistsMaybeDeleted(bibliographicRecordId, agencyId)) {
-                        throw new RecordNotFoundException("Posten '" + bibliographicRecordId + ":" + agencyId + "' blev ikke fundet");
-                    }
-                } else {
-                    if (!dao.recordExists(bibliographicRecordId, agencyId)) {
-                        throw new RecordNotFoundException("Posten '" + bibliographicRecordId + ":" + agencyId + "' blev ikke fundet eller er slettet");
-                    }
+            if (allowDeleted) {
+                if (state == RecordState.NOT_FOUND) {
+                    throw new RecordNotFoundException("Posten '" + bibliographicRecordId + ":" + agencyId + "' blev ikke fundet");
+                }
+            } else {
+                if (state != RecordState.ACTIVE) {
+                    throw new RecordNotFoundException("Posten '" + bibliographicRecordId + ":" + agencyId + "' blev ikke fundet eller er slettet");
                 }
-
-                return dao.fetchRecord(bibliographicRecordId, agencyId);
-            } catch (RawRepoException ex) {
-                conn.rollback();
-                LOGGER.error(ex.getMessage(), ex);
-                throw new InternalServerException(ex.getMessage(), ex);
             }
-        } catch (SQLException ex) {
+
+            return dao.fetchRecord(bibliographicRecordId, agencyId);
+        } catch (RawRepoException | SQLException ex) {
             LOGGER.error(ex.getMessage(), ex);
             throw new InternalServerException(ex.getMessage(), ex);
         }
@@ -143,6 +156,209 @@ public class RecordBean {
         return getRawRepoRecord(bibliographicRecordId, agencyId, allowDeleted, excludeDBCFields, useParentAgency, true, keepAutFields);
     }
 
+    /**
+     * Merges or expands a number of records with a fixed number of queries, however many records there are. The rows
+     * of all agencies for the records are fetched in one query and the sibling relations of the active rows in another.
+     * The agency of each record and its chain of enrichments are then found in memory, the same way as for a single
+     * record, and the chain is merged. When expanding, the authority parents of the active records and the content of
+     * all the authority records are fetched with one query each. Deleted records have no relations, so the authority
+     * parents of those are still found one record at a time from the content.
+     * <p>
+     * The records are built from the rows fetched here, so the result cache isn't used. Validating a cache entry would
+     * cost a query per record.
+     *
+     * @param recordIds        The records to merge
+     * @param allowDeleted     Allow deleted records
+     * @param excludeDBCFields Remove the DBC fields from the records
+     * @param useParentAgency  Use the merge rules of the parent agency
+     * @param doExpand         Expand the records
+     * @param keepAutFields    Keep the authority fields when expanding
+     * @return Map of record id to the merged record. Records which don't exist are left out
+     * @throws InternalServerException When a record couldn't be merged
+     */
+    @Timed
+    public Map<RecordId, Record> getRawRepoRecordsMerged(Collection<RecordId> recordIds,
+                                                         boolean allowDeleted,
+                                                         boolean excludeDBCFields,
+                                                         boolean useParentAgency,
+                                                         boolean doExpand,
+                                                         boolean keepAutFields) throws InternalServerException {
+        final Map<RecordId, Record> result = new LinkedHashMap<>();
+        final Set<String> bibliographicRecordIds = new HashSet<>();
+        for (RecordId recordId : recordIds) {
+            bibliographicRecordIds.add(recordId.getBibliographicRecordId());
+        }
+
+        final ObjectPool<MarcXMerger> mergePool = getMergerPool(useParentAgency);
+        final MarcXMerger merger = mergePool.checkOut();
+        try {
+            final Map<String, Map<Integer, Record>> rows = new HashMap<>();
+            final List<RecordId> activeRecordIds = new ArrayList<>();
+            for (Record row : daoContext.loadRecords(bibliographicRecordIds).values()) {
+                rows.computeIfAbsent(row.getId().getBibliographicRecordId(), k -> new HashMap<>()).put(row.getId().getAgencyId(), row);
+                if (!row.isDeleted()) {
+                    activeRecordIds.add(row.getId());
+                }
+            }
+            final Map<RecordId, Set<RecordId>> siblingsFromMe = getRelations(activeRecordIds, RelationsType.SIBLINGS_FROM_ME);
+
+            final Map<RecordId, List<Record>> chains = new HashMap<>();
+            for (RecordId recordId : recordIds) {
+                final String bibliographicRecordId = recordId.getBibliographicRecordId();
+                final Map<Integer, Record> recordRows = rows.getOrDefault(bibliographicRecordId, Collections.emptyMap());
+                final Integer agencyId = findMostRelevantAgencyId(recordRows, recordId.getAgencyId(), allowDeleted);
+                if (agencyId == null) {
+                    LOGGER.info("Didn't find {}:{}", bibliographicRecordId, recordId.getAgencyId());
+                    continue;
+                }
+
+                final List<Record> chain = RecordSimpleBean.recordChain(recordRows, bibliographicRecordId, agencyId, relationHints,
+                        id -> siblingsFromMe.getOrDefault(id, Collections.emptySet()));
+                chains.put(recordId, chain);
+                result.put(recordId, mergeChain(chain, recordId.getAgencyId(), merger));
+            }
+
+            if (doExpand) {
+                expandRecords(result, chains, keepAutFields);
+            }
+
+            if (excludeDBCFields) {
+                for (Record record : result.values()) {
+                    final Instant modified = record.getModified();
+                    record.setContent(PrivateFieldFilter.removePrivateFields(record.getContent()));
+                    record.setModified(modified);
+                }
+            }
+
+            return result;
+        } catch (RawRepoException | SQLException | RecordNotFoundException | MarcXMergerException |
+                 MarcReaderException | MarcRecordExpandException | VipCoreException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+            throw new InternalServerException(ex.getMessage(), ex);
+        } finally {
+            mergePool.checkIn(merger);
+        }
+    }
+
+    /**
+     * Finds the agency to use for a record among the rows of all agencies, the same way as RawRepoDAO.agencyFor via
+     * findMostRelevantAgencyId: the requested agency if it has the record, otherwise the first common agency of the
+     * requested agency which has it. If deleted records aren't allowed an active record is preferred, but a deleted
+     * record is used if there is no active one.
+     *
+     * @param rows             The rows of all agencies for the bibliographic record id
+     * @param originalAgencyId The requested agency
+     * @param allowDeleted     Allow deleted records
+     * @return The agency or null if the record wasn't found
+     * @throws RawRepoException When the library rules couldn't be looked up
+     * @throws VipCoreException When the library rules couldn't be looked up
+     */
+    private Integer findMostRelevantAgencyId(Map<Integer, Record> rows, int originalAgencyId, boolean allowDeleted) throws RawRepoException, VipCoreException {
+        final List<Integer> agencyIds = new ArrayList<>();
+        agencyIds.add(originalAgencyId);
+        if (relationHints.usesCommonAgency(originalAgencyId)) {
+            agencyIds.addAll(relationHints.get(originalAgencyId));
+        }
+
+        if (!allowDeleted) {
+            for (Integer agencyId : agencyIds) {
+                final Record row = rows.get(agencyId);
+                if (row != null && !row.isDeleted()) {
+                    return agencyId;
+                }
+            }
+        }
+        for (Integer agencyId : agencyIds) {
+            if (rows.containsKey(agencyId)) {
+                return agencyId;
+            }
+        }
+
+        return null;
+    }
+
+    // Expands the merged records the same way as expandRecord, with the relations and authority records of all of them
+    // fetched together
+    private void expandRecords(Map<RecordId, Record> records, Map<RecordId, List<Record>> chains, boolean keepAutField) throws
+            RawRepoException, InternalServerException, MarcReaderException, MarcRecordExpandException {
+        final Map<RecordId, RecordId> expandableRecordIds = new HashMap<>();
+        final List<RecordId> activeExpandableRecordIds = new ArrayList<>();
+        for (Map.Entry<RecordId, List<Record>> entry : chains.entrySet()) {
+            final List<Record> chain = entry.getValue();
+            // The requested record or the record it is an enrichment of, i.e. the next one in the chain
+            for (int i = chain.size() - 1; i >= 0 && i >= chain.size() - 2; i--) {
+                final Record candidate = chain.get(i);
+                if (EXPANDABLE_AGENCIES.contains(candidate.getId().getAgencyId())) {
+                    expandableRecordIds.put(entry.getKey(), candidate.getId());
+                    if (!candidate.isDeleted()) {
+                        activeExpandableRecordIds.add(candidate.getId());
+                    }
+                    break;
+                }
+            }
+        }
+
+        final Map<RecordId, Set<RecordId>> parents = getRelations(activeExpandableRecordIds, RelationsType.PARENTS);
+        final Map<RecordId, Set<String>> autParentIds = new HashMap<>();
+        final Set<String> allAutParentIds = new HashSet<>();
+        final Iterator<Map.Entry<RecordId, RecordId>> iterator = expandableRecordIds.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<RecordId, RecordId> entry = iterator.next();
+            final RecordId expandableRecordId = entry.getValue();
+            if (autParentIds.containsKey(expandableRecordId)) {
+                continue;
+            }
+
+            final Set<RecordId> autParents;
+            if (activeExpandableRecordIds.contains(expandableRecordId)) {
+                autParents = parents.getOrDefault(expandableRecordId, Collections.emptySet());
+            } else {
+                try {
+                    autParents = recordRelationsBean.getRelationsParents(expandableRecordId.getBibliographicRecordId(), expandableRecordId.getAgencyId());
+                } catch (RecordNotFoundException ex) {
+                    LOGGER.info("Didn't find {}:{}", entry.getKey().getBibliographicRecordId(), entry.getKey().getAgencyId());
+                    records.remove(entry.getKey());
+                    iterator.remove();
+                    continue;
+                }
+            }
+            final Set<String> ids = new HashSet<>();
+            for (RecordId parentId : autParents) {
+                if (parentId.getAgencyId() == 870979) {
+                    ids.add(parentId.getBibliographicRecordId());
+                }
+            }
+            autParentIds.put(expandableRecordId, ids);
+            allAutParentIds.addAll(ids);
+        }
+
+        final Map<String, byte[]> allAutRecords = allAutParentIds.isEmpty()
+                ? Collections.emptyMap()
+                : rawRepoBean.fetchRecordContents(allAutParentIds, 870979);
+        for (Map.Entry<RecordId, RecordId> entry : expandableRecordIds.entrySet()) {
+            final Map<String, byte[]> autRecords = new HashMap<>();
+            for (String autParentId : autParentIds.getOrDefault(entry.getValue(), Collections.emptySet())) {
+                if (allAutRecords.containsKey(autParentId)) {
+                    autRecords.put(autParentId, allAutRecords.get(autParentId));
+                }
+            }
+            final Record record = records.get(entry.getKey());
+            record.setContent(ExpandCommonMarcRecord.expandRecord(record.getContent(), autRecords, keepAutField));
+        }
+    }
+
+    private Map<RecordId, Set<RecordId>> getRelations(Collection<RecordId> recordIds, RelationsType type) throws RawRepoException {
+        final Map<RecordId, Set<RecordId>> relations = new HashMap<>();
+        try {
+            rawRepoBean.streamRelations(recordIds, type, relations::put);
+        } catch (IOException ex) {
+            // The consumer only puts the relations in the map
+            throw new RawRepoException(ex.getMessage(), ex);
+        }
+
+        return relations;
+    }
+
     private Record getRawRepoRecord(String bibliographicRecordId,
                                     int originalAgencyId,
                                     boolean allowDeleted,
@@ -150,44 +366,109 @@ public class RecordBean {
                                     boolean useParentAgency,
                                     boolean doExpand,
                                     boolean keepAutFields) throws InternalServerException, RecordNotFoundException {
-        try (Connection conn = dataSource.getConnection()) {
-            try {
-                final ObjectPool<MarcXMerger> mergePool = getMergerPool(useParentAgency);
-                final MarcXMerger merger = mergePool.checkOut();
-                final int correctedAgencyId = findMostRelevantAgencyId(bibliographicRecordId, originalAgencyId, allowDeleted);
+        final RecordResultCache.Key cacheKey = new RecordResultCache.Key(bibliographicRecordId, originalAgencyId,
+                allowDeleted, excludeDBCFields, useParentAgency, doExpand, keepAutFields);
+        try {
+            String versions = null;
+            long rulesGeneration = 0;
+            if (recordResultCache.isEnabled()) {
+                // Read before the record is built, so a row changed while building invalidates the entry
+                versions = daoContext.getRecordVersions(bibliographicRecordId, doExpand);
+                rulesGeneration = libraryRulesCache.getGeneration();
+                final Record cachedRecord = recordResultCache.get(cacheKey, versions, rulesGeneration);
+                if (cachedRecord != null) {
+                    return cachedRecord;
+                }
+            }
 
-                final Record rawRecord = fetchRecord(bibliographicRecordId, originalAgencyId, correctedAgencyId, merger, doExpand, keepAutFields);
+            final ObjectPool<MarcXMerger> mergePool = getMergerPool(useParentAgency);
+            final MarcXMerger merger = mergePool.checkOut();
+            final int correctedAgencyId = findMostRelevantAgencyId(bibliographicRecordId, originalAgencyId, allowDeleted);
 
-                mergePool.checkIn(merger);
+            final Record rawRecord = fetchRecord(bibliographicRecordId, originalAgencyId, correctedAgencyId, merger, doExpand, keepAutFields);
 
-                if (excludeDBCFields) {
-                    MarcRecord marcRecord = RecordObjectMapper.contentToMarcRecord(rawRecord.getContent());
+            mergePool.checkIn(merger);
 
-                    marcRecord = removePrivateFields(marcRecord);
+            if (excludeDBCFields) {
+                final Instant modified = rawRecord.getModified();
+                rawRecord.setContent(PrivateFieldFilter.removePrivateFields(rawRecord.getContent()));
+                rawRecord.setModified(modified);
+            }
 
-                    final Instant modified = rawRecord.getModified();
-                    rawRecord.setContent(RecordObjectMapper.marcToContent(marcRecord));
-                    // Modified is set to now() when content is changed, so we need to change it back to the original value
-                    rawRecord.setModified(modified);
-                }
+            if (recordResultCache.isEnabled()) {
+                recordResultCache.put(cacheKey, rawRecord, versions, rulesGeneration);
+            }
+
+            return rawRecord;
+        } catch (RawRepoExceptionRecordNotFound ex) {
+            return null;
+        } catch (RawRepoException | MarcReaderException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+            throw new InternalServerException(ex.getMessage(), ex);
+        }
+    }
 
-                return rawRecord;
-            } catch (RawRepoExceptionRecordNotFound ex) {
+    /**
+     * Creates a tag which changes whenever a record response could change, without fetching or merging any content.
+     * <p>
+     * The tag is a hash of the given variant, i.e. the request parameters, the library rules generation and the
+     * metadata of every row the record can be built from. The lookup also loads the state of the record for all agencies
+     * in the transaction, so fetching the record afterwards doesn't have to look it up again.
+     * <p>
+     * The rules generation starts over when the application is deployed, so the tag includes an id of the deployment as
+     * well. The authority parents of a deleted record are found in its content instead of in the relations, so they
+     * aren't part of the metadata. An expanded record is therefore not tagged if the record is deleted for any agency.
+     *
+     * @param bibliographicRecordId   Id of the record
+     * @param includeAuthorityParents True if the record is expanded
+     * @param variant                 Description of the request parameters which affect the response
+     * @return The tag or null if the record doesn't exist or can't be tagged
+     * @throws InternalServerException If the metadata couldn't be read
+     */
+    @Timed
+    public String getRecordVersionTag(String bibliographicRecordId, boolean includeAuthorityParents, String variant) throws InternalServerException {
+        try {
+            final String versions = daoContext.getRecordVersions(bibliographicRecordId, includeAuthorityParents);
+            if (versions == null) {
                 return null;
-            } catch (RawRepoException ex) {
-                conn.rollback();
-                LOGGER.error(ex.getMessage(), ex);
-                throw new InternalServerException(ex.getMessage(), ex);
-            } catch (MarcReaderException ex) {
-                LOGGER.error(ex.getMessage(), ex);
-                throw new InternalServerException(ex.getMessage(), ex);
             }
-        } catch (SQLException ex) {
+            if (includeAuthorityParents && hasDeletedVersion(bibliographicRecordId, versions)) {
+                return null;
+            }
+
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(DEPLOYMENT_ID.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            digest.update(Long.toString(libraryRulesCache.getGeneration()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            digest.update(variant.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            final byte[] hash = digest.digest(versions.getBytes(StandardCharsets.UTF_8));
+
+            final StringBuilder tag = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) {
+                tag.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+            }
+
+            return tag.toString();
+        } catch (RawRepoException | NoSuchAlgorithmException ex) {
             LOGGER.error(ex.getMessage(), ex);
             throw new InternalServerException(ex.getMessage(), ex);
         }
     }
 
+    // The lines of the versions are id:agency:deleted:modified:tracking id
+    private static boolean hasDeletedVersion(String bibliographicRecordId, String versions) {
+        for (String line : versions.split("\n")) {
+            final String[] fields = line.split(":", 4);
+            if (fields.length == 4 && bibliographicRecordId.equals(fields[0]) && Boolean.parseBoolean(fields[2])) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     public Record getDataIORawRepoRecord(String bibliographicRecordId,
                                          int originalAgencyId,
                                          boolean useParentAgency,
@@ -236,8 +517,8 @@ public class RecordBean {
     }
 
     private int findMostRelevantAgencyId(String bibliographicRecordId, int originalAgencyId, boolean allowDeleted) throws RecordNotFoundException, RawRepoException {
-        try (Connection conn = dataSource.getConnection()) {
-            final RawRepoDAO dao = createDAO(conn);
+        try {
+            final RawRepoDAO dao = getDAO();
 
             try {
                 return dao.agencyFor(bibliographicRecordId, originalAgencyId, allowDeleted);
@@ -277,53 +558,18 @@ public class RecordBean {
      * @throws RecordNotFoundException When the record is not found
      */
     private Record fetchRecord(String bibliographicRecordId, int originalAgencyId, int agencyId, MarcXMerger merger, boolean doExpand, boolean keepAutField) throws InternalServerException, RawRepoException, RecordNotFoundException {
-        try (Connection conn = dataSource.getConnection()) {
-            final RawRepoDAO dao = createDAO(conn);
-
+        try {
             if (recordSimpleBean.recordIsActive(bibliographicRecordId, agencyId)) {
+                final RawRepoDAO dao = getDAO();
+
                 if (doExpand) {
                     return dao.fetchMergedRecordExpanded(bibliographicRecordId, agencyId, merger, false, keepAutField);
                 } else {
                     return dao.fetchMergedRecord(bibliographicRecordId, agencyId, merger, false);
                 }
             } else {
-                final LinkedList<Record> records = new LinkedList<>();
-
-                for (; ; ) {
-                    final Record record = recordSimpleBean.fetchRecord(bibliographicRecordId, agencyId);
-                    records.addFirst(record);
-
-                    final Set<RecordId> siblings = recordRelationsBean.getRelationsSiblingsFromMe(bibliographicRecordId, agencyId);
-
-                    if (siblings.isEmpty()) {
-                        break;
-                    }
-                    agencyId = siblings.iterator().next().getAgencyId();
-                }
-                final Iterator<Record> iterator = records.iterator();
-                Record record = iterator.next();
-                if (iterator.hasNext()) { // Record will be merged
-                    byte[] content = record.getContent();
-                    final StringBuilder enrichmentTrail = new StringBuilder(record.getEnrichmentTrail());
-
-                    while (iterator.hasNext()) {
-                        final Record next = iterator.next();
-                        if (!MarcXMimeTypeMerger.canMerge(record.getMimeType(), next.getMimeType())) {
-                            LOGGER.error("Cannot merge: " + record.getMimeType() + " and " + next.getMimeType());
-                            throw new MarcXMergerException("Cannot merge enrichment");
-                        }
-
-                        content = merger.merge(content, next.getContent(), next.getId().getAgencyId() == originalAgencyId);
-                        enrichmentTrail.append(',').append(next.getId().getAgencyId());
-
-                        record = RecordImpl.fromCache(bibliographicRecordId, next.getId().getAgencyId(), true,
-                                MarcXMimeTypeMerger.mergedMimetype(record.getMimeType(), next.getMimeType()), content,
-                                record.getCreated().isAfter(next.getCreated()) ? record.getCreated() : next.getCreated(),
-                                record.getModified().isAfter(next.getModified()) ? record.getModified() : next.getModified(),
-                                record.getModified().isAfter(next.getModified()) ? record.getTrackingId() : next.getTrackingId(),
-                                enrichmentTrail.toString());
-                    }
-                }
+                final List<Record> records = recordSimpleBean.fetchRecordChain(bibliographicRecordId, agencyId);
+                final Record record = mergeChain(records, originalAgencyId, merger);
 
                 if (doExpand) {
                     expandRecord(record, keepAutField);
@@ -338,28 +584,69 @@ public class RecordBean {
         }
     }
 
+    /**
+     * Merges a chain of records the same way as RawRepoDAO.fetchMergedRecord, i.e. from the common record down to the
+     * requested record. A chain of a single record is copied, so the caller can change the result without changing the
+     * fetched row.
+     *
+     * @param records          The chain, see RecordSimpleBean.fetchRecordChain
+     * @param originalAgencyId The agency the record was requested for
+     * @param merger           Merge object
+     * @return The merged record with the id of the last record in the chain
+     * @throws MarcXMergerException When the records couldn't be merged
+     */
+    private static Record mergeChain(List<Record> records, int originalAgencyId, MarcXMerger merger) throws MarcXMergerException {
+        final Iterator<Record> iterator = records.iterator();
+        Record record = iterator.next();
+        byte[] content = record.getContent();
+        final StringBuilder enrichmentTrail = new StringBuilder(record.getEnrichmentTrail());
+
+        while (iterator.hasNext()) {
+            final Record next = iterator.next();
+            if (!MarcXMimeTypeMerger.canMerge(record.getMimeType(), next.getMimeType())) {
+                LOGGER.error("Cannot merge: " + record.getMimeType() + " and " + next.getMimeType());
+                throw new MarcXMergerException("Cannot merge enrichment");
+            }
+
+            content = merger.merge(content, next.getContent(), next.getId().getAgencyId() == originalAgencyId);
+            enrichmentTrail.append(',').append(next.getId().getAgencyId());
+
+            record = RecordImpl.fromCache(next.getId().getBibliographicRecordId(), next.getId().getAgencyId(), next.isDeleted(),
+                    MarcXMimeTypeMerger.mergedMimetype(record.getMimeType(), next.getMimeType()), content,
+                    record.getCreated().isAfter(next.getCreated()) ? record.getCreated() : next.getCreated(),
+                    record.getModified().isAfter(next.getModified()) ? record.getModified() : next.getModified(),
+                    record.getModified().isAfter(next.getModified()) ? record.getTrackingId() : next.getTrackingId(),
+                    enrichmentTrail.toString());
+        }
+
+        if (records.size() == 1) {
+            record = RecordImpl.fromCache(record.getId().getBibliographicRecordId(), record.getId().getAgencyId(), record.isDeleted(),
+                    record.getMimeType(), content, record.getCreated(), record.getModified(), record.getTrackingId(),
+                    enrichmentTrail.toString());
+        }
+
+        return record;
+    }
+
     void expandRecord(Record record, boolean keepAutField) throws
             RawRepoException, RecordNotFoundException, InternalServerException, VipCoreException {
         final RecordId recordId = record.getId();
         final String bibliographicRecordId = recordId.getBibliographicRecordId();
         final int agencyId = recordId.getAgencyId();
 
-        try (Connection conn = dataSource.getConnection()) {
+        try {
             if (recordSimpleBean.recordIsActive(bibliographicRecordId, agencyId)) {
-                final RawRepoDAO dao = createDAO(conn);
+                final RawRepoDAO dao = getDAO();
 
                 dao.expandRecord(record, keepAutField);
             } else {
                 RecordId expandableRecordId = null;
 
-                // Only these agencies can have authority parents
-                final List<Integer> expandableAgencies = Arrays.asList(190002, 190004, 870970, 870971, 870974);
-
-                if (expandableAgencies.contains(recordId.agencyId)) {
+                if (EXPANDABLE_AGENCIES.contains(recordId.agencyId)) {
                     expandableRecordId = recordId;
                 } else {
                     final Set<RecordId> relationsSiblings = recordRelationsBean.getRelationsSiblingsFromMe(bibliographicRecordId, agencyId);
-                    for (int expandableAgencyId : expandableAgencies) {
+                    for (int expandableAgencyId : EXPANDABLE_AGENCIES) {
                         final RecordId potentialExpandableRecordId = new RecordId(bibliographicRecordId, expandableAgencyId);
                         if (relationsSiblings.contains(potentialExpandableRecordId)) {
                             expandableRecordId = potentialExpandableRecordId;
@@ -370,14 +657,16 @@ public class RecordBean {
 
                 if (expandableRecordId != null) {
                     final Set<RecordId> autParents = recordRelationsBean.getRelationsParents(expandableRecordId.bibliographicRecordId, expandableRecordId.agencyId);
-                    final Map<String, byte[]> autRecords = new HashMap<>();
+                    final Set<String> autParentIds = new HashSet<>();
 
                     for (RecordId parentId : autParents) {
-                        if ("870979".equals(Integer.toString(parentId.getAgencyId()))) {
-                            autRecords.put(parentId.getBibliographicRecordId(), recordSimpleBean.fetchRecord(parentId.getBibliographicRecordId(), parentId.getAgencyId()).getContent());
+                        if (parentId.getAgencyId() == 870979) {
+                            autParentIds.add(parentId.getBibliographicRecordId());
                         }
                     }
 
+                    final Map<String, byte[]> autRecords = rawRepoBean.fetchRecordContents(autParentIds, 870979);
+
                     record.setContent(ExpandCommonMarcRecord.expandRecord(record.getContent(), autRecords, keepAutField));
                 }
             }
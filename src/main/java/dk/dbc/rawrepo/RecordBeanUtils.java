@@ -17,7 +17,8 @@ public class RecordBeanUtils {
         final List<DataField> fields = new ArrayList<>();
 
         for (DataField field : marcRecord.getFields(DataField.class)) {
-            if (field.getTag().matches("^[0-9].*")) {
+            final String tag = field.getTag();
+            if (!tag.isEmpty() && tag.charAt(0) >= '0' && tag.charAt(0) <= '9') {
                 fields.add(field);
             }
         }
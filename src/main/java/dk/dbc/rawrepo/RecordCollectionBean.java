@@ -2,7 +2,6 @@ package dk.dbc.rawrepo;
 
 import dk.dbc.marc.binding.MarcRecord;
 import dk.dbc.marc.reader.MarcReaderException;
-import dk.dbc.marc.reader.MarcXchangeV1Reader;
 import dk.dbc.marcxmerge.MarcXChangeMimeType;
 import dk.dbc.marcxmerge.MarcXMergerException;
 import dk.dbc.rawrepo.exception.InternalServerException;
@@ -16,12 +15,11 @@ import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.sql.DataSource;
-import java.io.ByteArrayInputStream;
-import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -67,11 +65,7 @@ public class RecordCollectionBean {
         final Map<String, Record> result = new HashMap<>();
         try (Connection conn = dataSource.getConnection()) {
             try {
-                if (expand) {
-                    fetchRecordCollectionExpanded(collection, bibliographicRecordId, originalAgencyId, allowDeleted, excludeDBCFields, useParentAgency, keepAutFields, excludeAutRecords);
-                } else {
-                    fetchRecordCollection(collection, bibliographicRecordId, originalAgencyId, allowDeleted, excludeDBCFields, useParentAgency, excludeAutRecords);
-                }
+                fetchRecordCollection(collection, bibliographicRecordId, originalAgencyId, allowDeleted, excludeDBCFields, useParentAgency, expand, keepAutFields, excludeAutRecords);
 
                 for (Map.Entry<String, Record> entry : collection.entrySet()) {
                     final Record rawRecord = entry.getValue();
@@ -146,41 +140,46 @@ public class RecordCollectionBean {
         }
     }
 
+    /**
+     * Finds the records in the hierarchy above the record first and then merges or expands all of them together, so the
+     * rows, relations and authority records are fetched with the same few queries however big the hierarchy is, see
+     * RecordBean.getRawRepoRecordsMerged. The hierarchy of active records is found from the relations loaded by
+     * loadAncestorRelations, while the parents of deleted records are found from the content.
+     */
     private void fetchRecordCollection(Map<String, Record> collection,
                                        String bibliographicRecordId,
                                        int agencyId,
                                        boolean allowDeleted,
                                        boolean excludeDBCFields,
                                        boolean useParentAgency,
+                                       boolean expand,
+                                       boolean keepAutFields,
                                        boolean excludeAutRecords) throws RawRepoException, InternalServerException, RecordNotFoundException, VipCoreException {
-        if (!collection.containsKey(bibliographicRecordId)) {
-            final Record record = recordBean.getRawRepoRecordMerged(bibliographicRecordId, agencyId, allowDeleted, excludeDBCFields, useParentAgency);
-            collection.put(bibliographicRecordId, record);
+        final Set<String> hierarchy = new LinkedHashSet<>();
+        findRecordCollectionHierarchy(hierarchy, bibliographicRecordId, agencyId, excludeAutRecords);
 
-            final int mostCommonAgency = recordRelationsBean.findParentRelationAgency(bibliographicRecordId, agencyId);
-            final Set<RecordId> parents = recordRelationsBean.getRelationsParents(bibliographicRecordId, mostCommonAgency);
+        final List<RecordId> recordIds = new ArrayList<>(hierarchy.size());
+        for (String id : hierarchy) {
+            recordIds.add(new RecordId(id, agencyId));
+        }
+        final Map<RecordId, Record> records = recordBean.getRawRepoRecordsMerged(recordIds, allowDeleted, excludeDBCFields, useParentAgency, expand, keepAutFields);
 
-            for (RecordId parent : parents) {
-                // If this parent is an authority record and includeAut is false then skip parent
-                if (870979 == parent.agencyId && excludeAutRecords) {
-                    continue;
-                }
-                fetchRecordCollection(collection, parent.getBibliographicRecordId(), agencyId, allowDeleted, excludeDBCFields, useParentAgency, excludeAutRecords);
+        for (RecordId recordId : recordIds) {
+            final Record record = records.get(recordId);
+            if (record == null) {
+                throw new RecordNotFoundException(String.format("The Record %s:%s does not exist", recordId.getBibliographicRecordId(), recordId.getAgencyId()));
             }
+            collection.put(recordId.getBibliographicRecordId(), record);
         }
     }
 
-    private void fetchRecordCollectionExpanded(Map<String, Record> collection,
+    private void findRecordCollectionHierarchy(Set<String> hierarchy,
                                                String bibliographicRecordId,
                                                int agencyId,
-                                               boolean allowDeleted,
-                                               boolean excludeDBCFields,
-                                               boolean useParentAgency,
-                                               boolean keepAutFields,
                                                boolean excludeAutRecords) throws RawRepoException, InternalServerException, RecordNotFoundException, VipCoreException {
-        if (!collection.containsKey(bibliographicRecordId)) {
-            final Record record = recordBean.getRawRepoRecordExpanded(bibliographicRecordId, agencyId, allowDeleted, excludeDBCFields, useParentAgency, keepAutFields);
-            collection.put(bibliographicRecordId, record);
+        if (hierarchy.add(bibliographicRecordId)) {
+            // Only goes to the database for the requested record, or if the hierarchy continues from a deleted record
+            recordRelationsBean.loadAncestorRelations(bibliographicRecordId);
 
             final int mostCommonAgency = recordRelationsBean.findParentRelationAgency(bibliographicRecordId, agencyId);
             final Set<RecordId> parents = recordRelationsBean.getRelationsParents(bibliographicRecordId, mostCommonAgency);
@@ -190,12 +189,11 @@ public class RecordCollectionBean {
                 if (870979 == parent.agencyId && excludeAutRecords) {
                     continue;
                 }
-                fetchRecordCollectionExpanded(collection, parent.getBibliographicRecordId(), agencyId, allowDeleted, excludeDBCFields, useParentAgency, keepAutFields, excludeAutRecords);
+                findRecordCollectionHierarchy(hierarchy, parent.getBibliographicRecordId(), agencyId, excludeAutRecords);
             }
         }
     }
 
-
     private void fetchDataIORecordCollection(Map<String, Record> collection,
                                              String bibliographicRecordId,
                                              int agencyId,
@@ -205,6 +203,9 @@ public class RecordCollectionBean {
                                              boolean allowDeletedParent,
                                              boolean handleControlRecords) throws RecordNotFoundException, InternalServerException, RawRepoException, MarcReaderException, VipCoreException {
         if (!collection.containsKey(bibliographicRecordId)) {
+            // Loads the state of every agency's record in the hierarchy, so parentIsActive and the checks of whether
+            // records exist below are made in memory
+            recordRelationsBean.loadAncestorRelations(bibliographicRecordId);
             boolean newAllowDeletedParent = allowDeletedParent;
             Record record;
             if (isRoot) {
@@ -234,7 +235,9 @@ public class RecordCollectionBean {
                     }
                 }
             }
-            collection.put(bibliographicRecordId, record);
+            // The parsed record is kept so the content is only parsed once, also when it is searched for control records
+            final ParsedRecord parsedRecord = ParsedRecord.of(record);
+            collection.put(bibliographicRecordId, parsedRecord);
 
             final int mostCommonAgency = recordRelationsBean.findParentRelationAgency(bibliographicRecordId, agencyId);
             final Set<RecordId> parents = recordRelationsBean.getRelationsParents(bibliographicRecordId, mostCommonAgency);
@@ -255,14 +258,27 @@ public class RecordCollectionBean {
                 them. We must include the full hierarchy for the control records if it is a volume record.
              */
             if (handleControlRecords) {
-                final MarcXchangeV1Reader reader = new MarcXchangeV1Reader(new ByteArrayInputStream(record.getContent()), StandardCharsets.UTF_8);
-                final MarcRecord marcRecord = reader.read();
-                final List<String> controlRecordIds = new ArrayList<>();
+                final MarcRecord marcRecord = parsedRecord.getMarcRecord();
+                final Set<String> controlRecordIds = new LinkedHashSet<>();
                 controlRecordIds.addAll(marcRecord.getSubFieldValues("520", 'n'));
                 controlRecordIds.addAll(marcRecord.getSubFieldValues("526", 'n'));
+                controlRecordIds.removeAll(collection.keySet());
+
+                if (!controlRecordIds.isEmpty()) {
+                    // The existence of all the control records is looked up in one query instead of one per record
+                    recordSimpleBean.loadRecordStates(controlRecordIds);
+                    final Set<String> existingControlRecordIds = new LinkedHashSet<>();
+                    for (String value : controlRecordIds) {
+                        if (recordSimpleBean.recordExists(value, agencyId, false)) {
+                            existingControlRecordIds.add(value);
+                        }
+                    }
 
-                for (String value : controlRecordIds) {
-                    if (recordSimpleBean.recordExists(value, agencyId, false)) {
+                    if (!existingControlRecordIds.isEmpty()) {
+                        // The hierarchies of the control records are loaded together before they are fetched
+                        recordRelationsBean.loadAncestorRelations(existingControlRecordIds);
+                    }
+                    for (String value : existingControlRecordIds) {
                         fetchDataIORecordCollection(collection, value, agencyId, useParentAgency, expand, false, newAllowDeletedParent, handleControlRecords);
                     }
                 }
@@ -270,10 +286,9 @@ public class RecordCollectionBean {
         }
     }
 
-    private boolean isLocalRecord(String bibliographicRecordId) throws InternalServerException {
-        Set<Integer> agencies = recordRelationsBean.getAllAgenciesForBibliographicRecordId(bibliographicRecordId);
-
-        return !agencies.contains(870970);
+    private boolean isLocalRecord(String bibliographicRecordId) throws RawRepoException {
+        // The state is known from when the ancestor relations were loaded
+        return !recordSimpleBean.recordExists(bibliographicRecordId, 870970, true);
     }
 
 }
@@ -1,17 +1,21 @@
 package dk.dbc.rawrepo;
 
+import dk.dbc.rawrepo.dao.RawRepoBean;
 import dk.dbc.rawrepo.exception.InternalServerException;
-import dk.dbc.vipcore.libraryrules.VipCoreLibraryRulesConnector;
+import dk.dbc.util.Timed;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 
 @Stateless
@@ -19,13 +23,16 @@ public class RecordHistoryBean {
     private static final XLogger LOGGER = XLoggerFactory.getXLogger(RecordHistoryBean.class);
 
     @Inject
-    private VipCoreLibraryRulesConnector libraryRulesConnector;
+    LibraryRulesCache libraryRulesCache;
 
     RelationHintsVipCore relationHints;
 
     @Resource(lookup = "jdbc/rawrepo")
     private DataSource dataSource;
 
+    @EJB
+    RawRepoBean rawRepoBean;
+
     protected RawRepoDAO createDAO(Connection conn) throws RawRepoException {
         final RawRepoDAO.Builder rawRepoBuilder = RawRepoDAO.builder(conn);
         rawRepoBuilder.relationHints(relationHints);
@@ -35,6 +42,7 @@ public class RecordHistoryBean {
     // Constructor used for mocking
     RecordHistoryBean(DataSource dataSource) {
         this.dataSource = dataSource;
+        this.rawRepoBean = new RawRepoBean(dataSource);
     }
 
     // Default constructor - required as there is another constructor
@@ -44,11 +52,7 @@ public class RecordHistoryBean {
 
     @PostConstruct
     public void init() {
-        try {
-            relationHints = new RelationHintsVipCore(libraryRulesConnector);
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        }
+        relationHints = libraryRulesCache.getRelationHints();
     }
 
     public List<RecordMetaDataHistory> getRecordHistory(String bibliographicRecordId, int agencyId) throws
@@ -93,4 +97,66 @@ public class RecordHistoryBean {
         }
     }
 
+    /**
+     * Fetches a version of a record directly by its modified timestamp, without loading the history of the record.
+     *
+     * @param bibliographicRecordId Id of the record
+     * @param agencyId              Agency of the record
+     * @param modified              The modified timestamp of the version
+     * @return The version and whether it is archived, or null if there is no version with that timestamp
+     * @throws InternalServerException If the lookup failed
+     */
+    @Timed
+    public RawRepoBean.HistoricRecord getHistoricRecord(String bibliographicRecordId, int agencyId, Instant modified) throws InternalServerException {
+        try {
+            return rawRepoBean.fetchHistoricRecord(bibliographicRecordId, agencyId, modified);
+        } catch (RawRepoException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+            throw new InternalServerException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Reads a page of the versions of a number of records, see RawRepoBean.fetchHistory. Each call has a transaction
+     * of its own, so a StreamingOutput can read the pages between the writes without keeping a transaction open.
+     *
+     * @param recordIds      The records
+     * @param includeContent True if the content of the versions should be included
+     * @param after          The last version of the previous page, or null for the first page
+     * @param limit          The max number of versions in the page
+     * @return The versions of the page
+     * @throws InternalServerException If the history couldn't be read
+     */
+    @Timed
+    public List<RawRepoBean.HistoryEntry> getHistoryPage(Collection<RecordId> recordIds, boolean includeContent, RecordMetaDataHistory after, int limit) throws InternalServerException {
+        try {
+            return rawRepoBean.fetchHistory(recordIds, includeContent, after, limit);
+        } catch (RawRepoException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+            throw new InternalServerException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Reads a page of the versions of an agency's records which were modified in an interval.
+     *
+     * @param agencyId       The agency
+     * @param modifiedAfter  Lower bound (inclusive) on modified as 'yyyy-MM-dd HH:mm:ss', or null
+     * @param modifiedBefore Upper bound (exclusive) on modified as 'yyyy-MM-dd HH:mm:ss', or null
+     * @param includeContent True if the content of the versions should be included
+     * @param after          The last version of the previous page, or null for the first page
+     * @param limit          The max number of versions in the page
+     * @return The versions of the page
+     * @throws InternalServerException If the history couldn't be read
+     */
+    @Timed
+    public List<RawRepoBean.HistoryEntry> getHistoryPage(int agencyId, String modifiedAfter, String modifiedBefore, boolean includeContent, RecordMetaDataHistory after, int limit) throws InternalServerException {
+        try {
+            return rawRepoBean.fetchHistory(agencyId, modifiedAfter, modifiedBefore, includeContent, after, limit);
+        } catch (RawRepoException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+            throw new InternalServerException(ex.getMessage(), ex);
+        }
+    }
+
 }
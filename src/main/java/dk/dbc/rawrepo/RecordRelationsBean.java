@@ -1,33 +1,26 @@
 package dk.dbc.rawrepo;
 
-import dk.dbc.common.records.ExpandCommonMarcRecord;
-import dk.dbc.marc.binding.DataField;
-import dk.dbc.marc.binding.MarcRecord;
-import dk.dbc.marc.binding.SubField;
 import dk.dbc.marc.reader.MarcReaderException;
 import dk.dbc.rawrepo.dao.RawRepoBean;
 import dk.dbc.rawrepo.exception.InternalServerException;
 import dk.dbc.rawrepo.exception.RecordNotFoundException;
-import dk.dbc.rawrepo.exception.RecordServiceRuntimeException;
-import dk.dbc.rawrepo.service.RecordObjectMapper;
 import dk.dbc.vipcore.exception.VipCoreException;
 import dk.dbc.vipcore.libraryrules.VipCoreLibraryRulesConnector;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
 import javax.annotation.PostConstruct;
-import javax.annotation.Resource;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.sql.DataSource;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 @Stateless
 public class RecordRelationsBean {
@@ -35,13 +28,8 @@ public class RecordRelationsBean {
 
     RelationHintsVipCore relationHints;
 
-    private static final List<String> AUTHORITY_FIELDS = ExpandCommonMarcRecord.AUTHORITY_FIELD_LIST;
-
-    @Resource(lookup = "jdbc/rawrepo")
-    private DataSource dataSource;
-
     @Inject
-    VipCoreLibraryRulesConnector vipCoreLibraryRulesConnector;
+    LibraryRulesCache libraryRulesCache;
 
     @Inject
     RecordSimpleBean recordSimpleBean;
@@ -49,15 +37,30 @@ public class RecordRelationsBean {
     @Inject
     RawRepoBean rawRepoBean;
 
+    @Inject
+    RawRepoDAOContext daoContext;
+
+    @Inject
+    RelationIndex relationIndex;
+
+    @Inject
+    ParentReferencesCache parentReferencesCache;
+
     protected RawRepoDAO createDAO(Connection conn) throws RawRepoException {
         final RawRepoDAO.Builder rawRepoBuilder = RawRepoDAO.builder(conn);
         rawRepoBuilder.relationHints(relationHints);
         return rawRepoBuilder.build();
     }
 
+    private RawRepoDAO getDAO() throws SQLException, RawRepoException {
+        return daoContext.getDAO(this::createDAO);
+    }
+
     // Constructor used for mocking
     RecordRelationsBean(DataSource dataSource) {
-        this.dataSource = dataSource;
+        this.daoContext = new RawRepoDAOContext(dataSource);
+        this.relationIndex = new RelationIndex();
+        this.parentReferencesCache = new ParentReferencesCache();
     }
 
     // Default constructor - required as there is another constructor
@@ -68,11 +71,7 @@ public class RecordRelationsBean {
 
     @PostConstruct
     public void init() {
-        try {
-            relationHints = new RelationHintsVipCore(vipCoreLibraryRulesConnector);
-        } catch (Exception ex) {
-            throw new RecordServiceRuntimeException(ex);
-        }
+        relationHints = libraryRulesCache.getRelationHints();
     }
 
     public int findParentRelationAgency(String bibliographicRecordId, int originalAgencyId) throws RecordNotFoundException, RawRepoException, VipCoreException {
@@ -92,96 +91,69 @@ public class RecordRelationsBean {
         throw new RecordNotFoundException("Could not find (parent) relation agency for " + bibliographicRecordId + " from " + originalAgencyId);
     }
 
+    /**
+     * Loads the parent relations and record states of the whole hierarchy above the record in one go, so the following
+     * calls to findParentRelationAgency and getRelationsParents for records in the hierarchy are answered from memory.
+     * Deleted records don't have relations, so the parents of those are still found from the content.
+     *
+     * @param bibliographicRecordId Id of the record
+     * @throws InternalServerException If the relations couldn't be loaded
+     */
+    public void loadAncestorRelations(String bibliographicRecordId) throws InternalServerException {
+        try {
+            daoContext.loadAncestorRelations(bibliographicRecordId);
+        } catch (RawRepoException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+            throw new InternalServerException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Loads the hierarchies above a number of records with the same queries as for a single record.
+     *
+     * @param bibliographicRecordIds Ids of the records
+     * @throws InternalServerException If the relations couldn't be loaded
+     */
+    public void loadAncestorRelations(Collection<String> bibliographicRecordIds) throws InternalServerException {
+        try {
+            daoContext.loadAncestorRelations(bibliographicRecordIds);
+        } catch (RawRepoException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+            throw new InternalServerException(ex.getMessage(), ex);
+        }
+    }
+
     public Set<RecordId> getRelationsParents(String bibliographicRecordId, int agencyId) throws
             InternalServerException, RecordNotFoundException {
-        try (Connection conn = dataSource.getConnection()) {
+        try {
             if (recordSimpleBean.recordIsActive(bibliographicRecordId, agencyId)) {
-                try {
-                    final RawRepoDAO dao = createDAO(conn);
+                final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
 
-                    final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
+                final Set<RecordId> loadedParents = daoContext.getParentRelations(recordId);
+                if (loadedParents != null) {
+                    return new HashSet<>(loadedParents);
+                }
 
-                    return dao.getRelationsParents(recordId);
-                } catch (RawRepoException ex) {
-                    conn.rollback();
-                    LOGGER.error(ex.getMessage(), ex);
-                    throw new InternalServerException(ex.getMessage(), ex);
+                final Set<RecordId> indexedParents = filter(relationIndex.getRelationsFrom(recordId), recordId, false);
+                if (indexedParents != null) {
+                    return indexedParents;
                 }
+
+                final RawRepoDAO dao = getDAO();
+
+                return dao.getRelationsParents(recordId);
             } else {
                 final Set<RecordId> result = new HashSet<>();
 
                 // There is never a parent relation for DBC enrichments, so we might as well just skip those
                 if (agencyId != RecordBeanUtils.DBC_ENRICHMENT_AGENCY) {
-                    final Record record = recordSimpleBean.fetchRecord(bibliographicRecordId, agencyId);
-                    final MarcRecord marcRecord = RecordObjectMapper.contentToMarcRecord(record.getContent());
-                    final boolean usesEnrichments = vipCoreLibraryRulesConnector.hasFeature(agencyId, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS);
-
-                    for (DataField dataField : marcRecord.getFields(DataField.class)) {
-
-                        // head/section/volume structure
-                        if ("014".equals(dataField.getTag())) {
-                            String valueA = null;
-                            String valueX = null;
-
-                            for (SubField subField : dataField.getSubFields()) {
-                                if ('a' == subField.getCode()) {
-                                    valueA = subField.getData();
-                                } else if ('x' == subField.getCode()) {
-                                    valueX = subField.getData();
-                                }
-                            }
-
-                            if (valueA != null) {
-                                if (valueX == null || "DEB".equals(valueX)) {
-                                    result.add(new RecordId(valueA, agencyId));
-                                } else if ("ANM".equals(valueX)) {
-                                    result.add(new RecordId(valueA, 870970));
-                                }
-                            }
-                        }
+                    final ParentReferences references = getParentReferences(bibliographicRecordId, agencyId);
 
-                        // Handling for littolk records
-                        if (870974 == agencyId && ("016".equals(dataField.getTag()) || "018".equals(dataField.getTag()))) {
-                            String valueA = null;
-                            String value5 = null;
-
-                            for (SubField subField : dataField.getSubFields()) {
-                                if ('a' == subField.getCode()) {
-                                    valueA = subField.getData();
-                                } else if ('5' == subField.getCode()) {
-                                    value5 = subField.getData();
-                                }
-                            }
-
-                            if (valueA != null) {
-                                if (value5 != null) {
-                                    result.add(new RecordId(valueA, Integer.parseInt(value5)));
-                                } else {
-                                    result.add(new RecordId(valueA, agencyId));
-                                }
-                            }
-                        }
-
-                        // Handle authority fields
-                        // If there are authority references in the record but the agencies isn't using
-                        // enrichments and thereby not using authority records just skip the authority fields
-                        if (usesEnrichments && AUTHORITY_FIELDS.contains(dataField.getTag())) {
-                            String value5 = null;
-                            String value6 = null;
-
-                            for (SubField subField : dataField.getSubFields()) {
-                                if ('5' == subField.getCode()) {
-                                    value5 = subField.getData();
-                                } else if ('6' == subField.getCode()) {
-                                    value6 = subField.getData();
-                                }
-                            }
-
-                            if (value5 != null && value6 != null) {
-                                result.add(new RecordId(value6, Integer.parseInt(value5)));
-                            }
-                        }
-                    }
+                    // If there are authority references in the record but the agency isn't using enrichments and
+                    // thereby not using authority records the authority references are skipped
+                    final boolean usesEnrichments = references.hasAuthorityParents() &&
+                            libraryRulesCache.hasFeature(agencyId, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS);
+                    result.addAll(references.getParents(usesEnrichments));
                 }
                 return result;
             }
@@ -191,6 +163,29 @@ public class RecordRelationsBean {
         }
     }
 
+    /**
+     * Finds the parent references in the content of a deleted record. The references are cached together with the
+     * modified timestamp of the content they were found in, and the content is only read again when the record has
+     * been modified since.
+     */
+    private ParentReferences getParentReferences(String bibliographicRecordId, int agencyId) throws RawRepoException, MarcReaderException, RecordNotFoundException {
+        final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
+        final ParentReferencesCache.Entry cached = parentReferencesCache.get(recordId);
+        final RawRepoBean.ContentVersion current = rawRepoBean.fetchContentIfModified(bibliographicRecordId, agencyId,
+                cached == null ? null : cached.getModified());
+        if (current == null) {
+            throw new RecordNotFoundException(String.format("Record %s:%s doesn't exist", bibliographicRecordId, agencyId));
+        }
+        if (cached != null && current.getContent() == null) {
+            return cached.getReferences();
+        }
+
+        final ParentReferences references = ParentReferences.scan(current.getContent(), agencyId);
+        parentReferencesCache.put(recordId, current.getModified(), references);
+
+        return references;
+    }
+
     /**
      * This function traverses the parents and if there is a record of the given agency, and that record is active then
      * true is returned, otherwise false.
@@ -213,13 +208,11 @@ public class RecordRelationsBean {
         final int mostCommonAgency = findParentRelationAgency(bibliographicRecordId, agencyId);
         final Set<RecordId> parents = getRelationsParents(bibliographicRecordId, mostCommonAgency);
         for (RecordId parent : parents) {
-            // The parent will be a common record. In order to see if there is an enrichment for the original agency
-            // we have to look at all records with that bibliographic record id
-            Set<Integer> parentAgencies = getAllAgenciesForBibliographicRecordId(parent.getBibliographicRecordId());
-            for (int parentAgency : parentAgencies) {
-                if (parentAgency == agencyId) {
-                    return recordSimpleBean.recordIsActive(parent.getBibliographicRecordId(), parentAgency);
-                }
+            // The parent will be a common record, so we have to see if there is an enrichment for the original agency.
+            // The record states are looked up one by one, but when the ancestor relations have been loaded all states
+            // of the hierarchy are already known
+            if (recordSimpleBean.recordExists(parent.getBibliographicRecordId(), agencyId, true)) {
+                return recordSimpleBean.recordIsActive(parent.getBibliographicRecordId(), agencyId);
             }
             return parentIsActive(parent.getBibliographicRecordId(), agencyId);
         }
@@ -229,80 +222,222 @@ public class RecordRelationsBean {
 
     public Set<RecordId> getRelationsChildren(String bibliographicRecordId, int agencyId) throws
             InternalServerException {
-        Set<RecordId> result;
-        try (Connection conn = dataSource.getConnection()) {
-            try {
-                final RawRepoDAO dao = createDAO(conn);
+        try {
+            final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
 
-                final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
+            final Set<RecordId> indexedChildren = filter(relationIndex.getRelationsTo(recordId), recordId, false);
+            if (indexedChildren != null) {
+                return indexedChildren;
+            }
 
-                result = dao.getRelationsChildren(recordId);
+            final RawRepoDAO dao = getDAO();
 
-                return result;
-            } catch (RawRepoException ex) {
-                conn.rollback();
-                LOGGER.error(ex.getMessage(), ex);
-                throw new InternalServerException(ex.getMessage(), ex);
+            return dao.getRelationsChildren(recordId);
+        } catch (RawRepoException | SQLException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+            throw new InternalServerException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Hands the children of each of the records to the consumer while they are read from the database. Must be called
+     * within a transaction, e.g. from a StreamingOutput through the bean's proxy.
+     *
+     * @param recordIds The parent records
+     * @param consumer  Receiver of the children of each record. Records without children are left out
+     * @throws InternalServerException If the relations couldn't be read
+     * @throws IOException             If the consumer failed
+     */
+    public void streamRelationsChildren(Collection<RecordId> recordIds, RawRepoBean.RelationsConsumer consumer) throws InternalServerException, IOException {
+        streamRelations(recordIds, RelationsType.CHILDREN, consumer);
+    }
+
+    /**
+     * Same as streamRelationsChildren but for the siblings pointing to each of the records.
+     */
+    public void streamRelationsSiblingsToMe(Collection<RecordId> recordIds, RawRepoBean.RelationsConsumer consumer) throws InternalServerException, IOException {
+        streamRelations(recordIds, RelationsType.SIBLINGS_TO_ME, consumer);
+    }
+
+    /**
+     * Bulk version of getRelationsParents. The states of the records are looked up in one query and the parents of the
+     * active records are read with one query. The parents of deleted records are found from the content one record at
+     * a time in the same way as for a single record. The deleted records come after the active ones, and records which
+     * don't exist or don't have any parents are left out.
+     *
+     * @param recordIds The records to find the parents of
+     * @param consumer  Receiver of the parents of each record
+     * @throws InternalServerException If the relations couldn't be read
+     * @throws IOException             If the consumer failed
+     */
+    public void streamRelationsParents(Collection<RecordId> recordIds, RawRepoBean.RelationsConsumer consumer) throws InternalServerException, IOException {
+        try {
+            final List<RecordId> deleted = new ArrayList<>();
+            streamRelations(activeRecords(recordIds, deleted), RelationsType.PARENTS, consumer);
+
+            for (RecordId recordId : deleted) {
+                accept(consumer, recordId, getRelationsParents(recordId.getBibliographicRecordId(), recordId.getAgencyId()));
             }
-        } catch (SQLException ex) {
+        } catch (RawRepoException | RecordNotFoundException ex) {
             LOGGER.error(ex.getMessage(), ex);
             throw new InternalServerException(ex.getMessage(), ex);
         }
     }
 
-    public Map<RecordId, Set<RecordId>> getRelationsChildren(Set<RecordId> recordIds) throws InternalServerException {
-        return getRelations(recordIds, RelationsType.CHILDREN);
+    /**
+     * Bulk version of getRelationsSiblingsFromMe. Works the same way as streamRelationsParents.
+     */
+    public void streamRelationsSiblingsFromMe(Collection<RecordId> recordIds, RawRepoBean.RelationsConsumer consumer) throws InternalServerException, IOException {
+        try {
+            final List<RecordId> deleted = new ArrayList<>();
+            streamRelations(activeRecords(recordIds, deleted), RelationsType.SIBLINGS_FROM_ME, consumer);
+
+            for (RecordId recordId : deleted) {
+                accept(consumer, recordId, getRelationsSiblingsFromMe(recordId.getBibliographicRecordId(), recordId.getAgencyId()));
+            }
+        } catch (RawRepoException | RecordNotFoundException | VipCoreException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+            throw new InternalServerException(ex.getMessage(), ex);
+        }
     }
 
-    public Map<RecordId, Set<RecordId>> getRelationsSiblingsToMe(Set<RecordId> recordIds) throws InternalServerException {
-        return getRelations(recordIds, RelationsType.SIBLINGS_TO_ME);
+    /**
+     * Bulk version of getRelationsFrom. As for a single record the relations are read as they are, regardless of the
+     * state of the record.
+     */
+    public void streamRelationsFrom(Collection<RecordId> recordIds, RawRepoBean.RelationsConsumer consumer) throws InternalServerException, IOException {
+        streamRelations(recordIds, RelationsType.RELATIONS_FROM, consumer);
+    }
+
+    /**
+     * Hands all the records below the record, i.e. the children, their children and so on, to the consumer while they
+     * are read from the database. Must be called within a transaction, e.g. from a StreamingOutput through the bean's
+     * proxy.
+     *
+     * @param recordId       The record to start from
+     * @param maxDepth       How many levels to follow
+     * @param includeContent Whether the content of the records is included
+     * @param consumer       Receiver of the records
+     * @throws InternalServerException If the relations couldn't be read
+     * @throws IOException             If the consumer failed
+     */
+    public void streamDescendants(RecordId recordId, int maxDepth, boolean includeContent, RawRepoBean.HierarchyConsumer consumer) throws InternalServerException, IOException {
+        streamHierarchy(recordId, true, maxDepth, includeContent, consumer);
+    }
+
+    /**
+     * Same as streamDescendants but for the parents, their parents and so on.
+     */
+    public void streamAncestors(RecordId recordId, int maxDepth, boolean includeContent, RawRepoBean.HierarchyConsumer consumer) throws InternalServerException, IOException {
+        streamHierarchy(recordId, false, maxDepth, includeContent, consumer);
     }
 
-    private Map<RecordId, Set<RecordId>> getRelations(Set<RecordId> recordIds, RelationsType mode) throws InternalServerException {
-        final Map<RecordId, Set<RecordId>> result = new HashMap<>();
+    private void streamHierarchy(RecordId recordId, boolean descendants, int maxDepth, boolean includeContent, RawRepoBean.HierarchyConsumer consumer) throws InternalServerException, IOException {
         try {
-            // There is a limit on how many values there can be in a query which means we have to slice up the input
-            // The exact limit is not known but 1000 entries seems to be a reasonable amount
-            int index = 0;
-            final int sliceSize = 1000;
-            while (index < recordIds.size()) {
-                LOGGER.info("Index: {}", index);
-                final Set<RecordId> sliceSet = recordIds.stream()
-                        .skip(index)
-                        .limit(sliceSize)
-                        .collect(Collectors.toSet());
-
-                index += sliceSize;
-
-                final Map<RecordId, Set<RecordId>> slice = rawRepoBean.getRelations(sliceSet, mode);
-
-                result.putAll(slice);
+            rawRepoBean.streamHierarchy(recordId, descendants, maxDepth, includeContent, consumer);
+        } catch (RawRepoException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+            throw new InternalServerException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Looks up the states of the records in one query and splits them into active and deleted records. Records which
+     * don't exist are left out.
+     *
+     * @param recordIds The records
+     * @param deleted   The deleted records are added to this list
+     * @return The active records
+     * @throws RawRepoException If the states couldn't be looked up
+     */
+    private List<RecordId> activeRecords(Collection<RecordId> recordIds, List<RecordId> deleted) throws RawRepoException {
+        final Set<String> bibliographicRecordIds = new HashSet<>();
+        for (RecordId recordId : recordIds) {
+            bibliographicRecordIds.add(recordId.getBibliographicRecordId());
+        }
+        recordSimpleBean.loadRecordStates(bibliographicRecordIds);
+
+        final List<RecordId> active = new ArrayList<>();
+        for (RecordId recordId : recordIds) {
+            switch (recordSimpleBean.recordState(recordId.getBibliographicRecordId(), recordId.getAgencyId())) {
+                case ACTIVE:
+                    active.add(recordId);
+                    break;
+                case DELETED:
+                    deleted.add(recordId);
+                    break;
+                default:
+                    break;
             }
+        }
+
+        return active;
+    }
+
+    /**
+     * Answers from the relation index when it can be used, and reads the rest from the database with one query
+     */
+    private void streamRelations(Collection<RecordId> recordIds, RelationsType mode, RawRepoBean.RelationsConsumer consumer) throws InternalServerException, IOException {
+        final List<RecordId> notIndexed = new ArrayList<>();
+        for (RecordId recordId : recordIds) {
+            final Set<RecordId> indexed = getIndexedRelations(recordId, mode);
+            if (indexed == null) {
+                notIndexed.add(recordId);
+            } else {
+                accept(consumer, recordId, indexed);
+            }
+        }
 
-            return result;
+        try {
+            rawRepoBean.streamRelations(notIndexed, mode, consumer);
         } catch (RawRepoException e) {
             throw new InternalServerException(e.getMessage(), e);
         }
     }
 
+    private Set<RecordId> getIndexedRelations(RecordId recordId, RelationsType mode) {
+        switch (mode) {
+            case CHILDREN:
+                return filter(relationIndex.getRelationsTo(recordId), recordId, false);
+            case SIBLINGS_TO_ME:
+                return filter(relationIndex.getRelationsTo(recordId), recordId, true);
+            case PARENTS:
+                return filter(relationIndex.getRelationsFrom(recordId), recordId, false);
+            case SIBLINGS_FROM_ME:
+                return filter(relationIndex.getRelationsFrom(recordId), recordId, true);
+            default:
+                return relationIndex.getRelationsFrom(recordId);
+        }
+    }
+
+    // Records without relations are left out, same as when the relations are read from the database
+    private static void accept(RawRepoBean.RelationsConsumer consumer, RecordId recordId, Set<RecordId> relations) throws IOException {
+        if (!relations.isEmpty()) {
+            consumer.accept(recordId, relations);
+        }
+    }
+
     public Set<RecordId> getRelationsSiblingsFromMe(String bibliographicRecordId, int agencyId) throws
             InternalServerException, RawRepoException, RecordNotFoundException, VipCoreException {
-        try (Connection conn = dataSource.getConnection()) {
+        try {
+            final RawRepoDAO dao = getDAO();
+
             if (recordSimpleBean.recordIsActive(bibliographicRecordId, agencyId)) {
-                try {
-                    final RawRepoDAO dao = createDAO(conn);
+                final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
 
-                    final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
+                final Set<RecordId> indexedSiblings = filter(relationIndex.getRelationsFrom(recordId), recordId, true);
+                if (indexedSiblings != null) {
+                    return indexedSiblings;
+                }
 
+                try {
                     return dao.getRelationsSiblingsFromMe(recordId);
                 } catch (RawRepoException ex) {
-                    conn.rollback();
                     LOGGER.error(ex.getMessage(), ex);
                     throw new InternalServerException(ex.getMessage(), ex);
                 }
             } else {
                 final Set<RecordId> result = new HashSet<>();
-                final RawRepoDAO dao = createDAO(conn);
                 final List<Integer> potentialSiblingsFromMeAgencies = relationHints.getAgencyPriority(agencyId);
                 final Set<Integer> agenciesForRecord = dao.allAgenciesForBibliographicRecordId(bibliographicRecordId);
 
@@ -322,22 +457,25 @@ public class RecordRelationsBean {
 
     public Set<RecordId> getRelationsSiblingsToMe(String bibliographicRecordId, int agencyId) throws
             InternalServerException, RawRepoException, RecordNotFoundException {
-        try (Connection conn = dataSource.getConnection()) {
+        try {
+            final RawRepoDAO dao = getDAO();
+
             if (recordSimpleBean.recordIsActive(bibliographicRecordId, agencyId)) {
-                try {
-                    final RawRepoDAO dao = createDAO(conn);
+                final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
 
-                    final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
+                final Set<RecordId> indexedSiblings = filter(relationIndex.getRelationsTo(recordId), recordId, true);
+                if (indexedSiblings != null) {
+                    return indexedSiblings;
+                }
 
+                try {
                     return dao.getRelationsSiblingsToMe(recordId);
                 } catch (RawRepoException ex) {
-                    conn.rollback();
                     LOGGER.error(ex.getMessage(), ex);
                     throw new InternalServerException(ex.getMessage(), ex);
                 }
             } else {
                 final Set<RecordId> result = new HashSet<>();
-                final RawRepoDAO dao = createDAO(conn);
 
                 if (RecordBeanUtils.DBC_AGENCIES.contains(agencyId)) {
                     final Set<Integer> agenciesForRecord = dao.allAgenciesForBibliographicRecordId(bibliographicRecordId);
@@ -358,22 +496,18 @@ public class RecordRelationsBean {
     }
 
     public Set<RecordId> getRelationsFrom(String bibliographicRecordId, int agencyId) throws InternalServerException {
-        Set<RecordId> result;
-        try (Connection conn = dataSource.getConnection()) {
-            try {
-                final RawRepoDAO dao = createDAO(conn);
+        try {
+            final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
 
-                final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
+            final Set<RecordId> indexedRelations = relationIndex.getRelationsFrom(recordId);
+            if (indexedRelations != null) {
+                return indexedRelations;
+            }
 
-                result = dao.getRelationsFrom(recordId);
+            final RawRepoDAO dao = getDAO();
 
-                return result;
-            } catch (RawRepoException ex) {
-                conn.rollback();
-                LOGGER.error(ex.getMessage(), ex);
-                throw new InternalServerException(ex.getMessage(), ex);
-            }
-        } catch (SQLException ex) {
+            return dao.getRelationsFrom(recordId);
+        } catch (RawRepoException | SQLException ex) {
             LOGGER.error(ex.getMessage(), ex);
             throw new InternalServerException(ex.getMessage(), ex);
         }
@@ -381,24 +515,29 @@ public class RecordRelationsBean {
 
     public Set<Integer> getAllAgenciesForBibliographicRecordId(String bibliographicRecordId) throws
             InternalServerException {
-        Set<Integer> result;
-
-        try (Connection conn = dataSource.getConnection()) {
-            try {
-                final RawRepoDAO dao = createDAO(conn);
-
-                result = dao.allAgenciesForBibliographicRecordId(bibliographicRecordId);
+        try {
+            final RawRepoDAO dao = getDAO();
 
-                return result;
-            } catch (RawRepoException ex) {
-                conn.rollback();
-                LOGGER.error(ex.getMessage(), ex);
-                throw new InternalServerException(ex.getMessage(), ex);
-            }
-        } catch (SQLException ex) {
+            return dao.allAgenciesForBibliographicRecordId(bibliographicRecordId);
+        } catch (RawRepoException | SQLException ex) {
             LOGGER.error(ex.getMessage(), ex);
             throw new InternalServerException(ex.getMessage(), ex);
         }
     }
 
+    /**
+     * Splits relations from the index the same way as the queries in RawRepoDAO, i.e. relations to records with the
+     * same bibliographic record id are siblings and the rest are parents or children
+     *
+     * @return The relations of the requested kind or null if the index couldn't be used
+     */
+    private static Set<RecordId> filter(Set<RecordId> relations, RecordId recordId, boolean siblings) {
+        if (relations == null) {
+            return null;
+        }
+        relations.removeIf(relation -> relation.getBibliographicRecordId().equals(recordId.getBibliographicRecordId()) != siblings);
+
+        return relations;
+    }
+
 }
@@ -0,0 +1,193 @@
+package dk.dbc.rawrepo;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * Bounded LRU cache of finished merged and expanded records. The cache is disabled by default.
+ * <p>
+ * Each entry remembers the versions of every row the record could have been built from, as described by
+ * RawRepoBean.getRecordVersions: the record for all agencies and, for expanded records, the authority parents for all
+ * agencies. The versions are read before the record is built, so a row changed while the record is being built makes
+ * the entry invalid. A hit is only used if the versions are the same when the record is requested again, so an
+ * updated, created or deleted row invalidates the entry. The entry is also invalidated if the library rules, e.g. the
+ * agency priorities, have changed.
+ * <p>
+ * Deleted records are never cached as they are resolved without relations. Entries also expire after a maximum age.
+ */
+@ApplicationScoped
+public class RecordResultCache {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(RecordResultCache.class);
+
+    @Inject
+    @ConfigProperty(name = "RECORD_CACHE_ENABLED", defaultValue = "false")
+    boolean enabled;
+
+    @Inject
+    @ConfigProperty(name = "RECORD_CACHE_MAX_ENTRIES", defaultValue = "10000")
+    int maxEntries;
+
+    @Inject
+    @ConfigProperty(name = "RECORD_CACHE_MAX_BYTES", defaultValue = "268435456")
+    long maxBytes;
+
+    @Inject
+    @ConfigProperty(name = "RECORD_CACHE_MAX_AGE_SECONDS", defaultValue = "3600")
+    long maxAgeSeconds;
+
+    @Inject
+    MetricRegistry metricRegistry;
+
+    private LruCache<Key, Entry> entries;
+
+    private Counter hits;
+    private Counter misses;
+    private Counter invalidations;
+
+    @PostConstruct
+    public void init() {
+        entries = new LruCache<>(maxEntries, maxBytes, entry -> entry.size);
+        if (enabled) {
+            hits = metricRegistry.counter("record_cache_hits");
+            misses = metricRegistry.counter("record_cache_misses");
+            invalidations = metricRegistry.counter("record_cache_invalidations");
+            metricRegistry.register("record_cache_entries", (Gauge<Integer>) this::size);
+            metricRegistry.register("record_cache_bytes", (Gauge<Long>) this::byteSize);
+            LOGGER.info("Record cache enabled with max {} entries and {} bytes", maxEntries, maxBytes);
+        } else {
+            LOGGER.info("Record cache disabled");
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns a copy of the cached record if it is still valid
+     *
+     * @param key             The record and the flags used to build it
+     * @param versions        The current versions of the rows the record is built from
+     * @param rulesGeneration The current generation of the library rules
+     * @return The cached record or null if there is no valid entry
+     */
+    public Record get(Key key, String versions, long rulesGeneration) {
+        final Entry entry = entries.get(key);
+
+        if (entry == null) {
+            misses.inc();
+            return null;
+        }
+
+        if (entry.created.plusSeconds(maxAgeSeconds).isBefore(Instant.now()) ||
+                entry.rulesGeneration != rulesGeneration || !entry.versions.equals(versions)) {
+            invalidations.inc();
+            misses.inc();
+            entries.remove(key, entry);
+            return null;
+        }
+
+        hits.inc();
+        return entry.copyRecord();
+    }
+
+    /**
+     * Adds a record to the cache
+     *
+     * @param key             The record and the flags used to build it
+     * @param record          The finished record
+     * @param versions        The versions of the rows the record is built from, read before the record was built
+     * @param rulesGeneration The generation of the library rules, read before the record was built
+     */
+    public void put(Key key, Record record, String versions, long rulesGeneration) {
+        if (record.isDeleted() || versions == null) {
+            return;
+        }
+
+        entries.put(key, new Entry(record, versions, rulesGeneration));
+    }
+
+    private int size() {
+        return entries.size();
+    }
+
+    private long byteSize() {
+        return entries.weight();
+    }
+
+    public static final class Key {
+        private final String bibliographicRecordId;
+        private final int agencyId;
+        private final boolean allowDeleted;
+        private final boolean excludeDBCFields;
+        private final boolean useParentAgency;
+        private final boolean doExpand;
+        private final boolean keepAutFields;
+
+        public Key(String bibliographicRecordId, int agencyId, boolean allowDeleted, boolean excludeDBCFields,
+                   boolean useParentAgency, boolean doExpand, boolean keepAutFields) {
+            this.bibliographicRecordId = bibliographicRecordId;
+            this.agencyId = agencyId;
+            this.allowDeleted = allowDeleted;
+            this.excludeDBCFields = excludeDBCFields;
+            this.useParentAgency = useParentAgency;
+            this.doExpand = doExpand;
+            this.keepAutFields = keepAutFields;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Key key = (Key) o;
+            return agencyId == key.agencyId &&
+                    allowDeleted == key.allowDeleted &&
+                    excludeDBCFields == key.excludeDBCFields &&
+                    useParentAgency == key.useParentAgency &&
+                    doExpand == key.doExpand &&
+                    keepAutFields == key.keepAutFields &&
+                    bibliographicRecordId.equals(key.bibliographicRecordId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(bibliographicRecordId, agencyId, allowDeleted, excludeDBCFields, useParentAgency, doExpand, keepAutFields);
+        }
+    }
+
+    private static final class Entry {
+        private final Record record;
+        private final String versions;
+        private final long rulesGeneration;
+        private final Instant created = Instant.now();
+        private final long size;
+
+        private Entry(Record record, String versions, long rulesGeneration) {
+            this.record = copy(record);
+            this.versions = versions;
+            this.rulesGeneration = rulesGeneration;
+            // Rough estimate - the content dominates
+            this.size = record.getContent().length + 2L * versions.length() + 64L;
+        }
+
+        private Record copyRecord() {
+            return copy(record);
+        }
+
+        private static Record copy(Record record) {
+            return RecordImpl.fromCache(record.getId().getBibliographicRecordId(), record.getId().getAgencyId(),
+                    record.isDeleted(), record.getMimeType(), record.getContent().clone(),
+                    record.getCreated(), record.getModified(), record.getTrackingId(), record.getEnrichmentTrail());
+        }
+    }
+}
@@ -4,35 +4,44 @@ import dk.dbc.common.records.MarcRecordExpandException;
 import dk.dbc.marc.reader.MarcReaderException;
 import dk.dbc.marcxmerge.MarcXMerger;
 import dk.dbc.marcxmerge.MarcXMergerException;
+import dk.dbc.rawrepo.dao.RawRepoBean;
 import dk.dbc.rawrepo.exception.InternalServerException;
 import dk.dbc.rawrepo.exception.RecordNotFoundException;
-import dk.dbc.rawrepo.exception.RecordServiceRuntimeException;
 import dk.dbc.rawrepo.pool.CustomMarcXMergerPool;
 import dk.dbc.rawrepo.pool.DefaultMarcXMergerPool;
 import dk.dbc.rawrepo.pool.ObjectPool;
 import dk.dbc.util.Timed;
 import dk.dbc.vipcore.exception.VipCoreException;
-import dk.dbc.vipcore.libraryrules.VipCoreLibraryRulesConnector;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
 import javax.annotation.PostConstruct;
-import javax.annotation.Resource;
+import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 @Stateless
 public class RecordSimpleBean {
     private static final XLogger LOGGER = XLoggerFactory.getXLogger(RecordSimpleBean.class);
 
-    @Resource(lookup = "jdbc/rawrepo")
-    private DataSource dataSource;
+    @Inject
+    LibraryRulesCache libraryRulesCache;
 
     @Inject
-    private VipCoreLibraryRulesConnector vipCoreLibraryRulesConnector;
+    RawRepoDAOContext daoContext;
+
+    @EJB
+    RawRepoBean rawRepoBean;
 
     private final ObjectPool<MarcXMerger> customMarcXMergerPool = new CustomMarcXMergerPool();
     private final ObjectPool<MarcXMerger> defaultMarcXMergerPool = new DefaultMarcXMergerPool();
@@ -45,9 +54,14 @@ public class RecordSimpleBean {
         return rawRepoBuilder.build();
     }
 
+    private RawRepoDAO getDAO() throws SQLException, RawRepoException {
+        return daoContext.getDAO(this::createDAO);
+    }
+
     // Constructor used for mocking
     RecordSimpleBean(DataSource dataSource) {
-        this.dataSource = dataSource;
+        this.daoContext = new RawRepoDAOContext(dataSource);
+        this.rawRepoBean = new RawRepoBean(dataSource);
     }
 
     // Default constructor - required as there is another constructor
@@ -65,90 +79,203 @@ public class RecordSimpleBean {
 
     @PostConstruct
     public void init() {
-        try {
-            relationHints = new RelationHintsVipCore(vipCoreLibraryRulesConnector);
-        } catch (Exception ex) {
-            throw new RecordServiceRuntimeException(ex);
-        }
+        relationHints = libraryRulesCache.getRelationHints();
     }
 
-    public boolean recordIsActive(String bibliographicRecordId, int agencyId) throws RawRepoException, RecordNotFoundException {
-        try (Connection conn = dataSource.getConnection()) {
-            final RawRepoDAO dao = createDAO(conn);
+    @Timed
+    public RecordState recordState(String bibliographicRecordId, int agencyId) throws RawRepoException {
+        return daoContext.getRecordState(bibliographicRecordId, agencyId);
+    }
 
-            if (dao.recordExistsMaybeDeleted(bibliographicRecordId, agencyId)) {
-                return dao.recordExists(bibliographicRecordId, agencyId);
-            } else {
+    /**
+     * Looks up the state of all agencies' records for a number of bibliographic record ids in one query, so the
+     * following calls to recordState, recordExists and recordIsActive for those ids are answered from memory.
+     *
+     * @param bibliographicRecordIds Ids of the records
+     * @throws RawRepoException If the lookup failed
+     */
+    @Timed
+    public void loadRecordStates(Collection<String> bibliographicRecordIds) throws RawRepoException {
+        daoContext.loadRecordStates(bibliographicRecordIds);
+    }
+
+    public boolean recordIsActive(String bibliographicRecordId, int agencyId) throws RawRepoException, RecordNotFoundException {
+        switch (recordState(bibliographicRecordId, agencyId)) {
+            case ACTIVE:
+                return true;
+            case DELETED:
+                return false;
+            default:
                 throw new RecordNotFoundException(String.format("Record %s:%s doesn't exist", bibliographicRecordId, agencyId));
-            }
+        }
+    }
 
-        } catch (SQLException ex) {
+    @Timed
+    public boolean recordExists(String bibliographicRecordId, int agencyId, boolean maybeDeleted) throws RawRepoException {
+        final RecordState state = recordState(bibliographicRecordId, agencyId);
+
+        if (maybeDeleted) {
+            return state != RecordState.NOT_FOUND;
+        } else {
+            return state == RecordState.ACTIVE;
+        }
+    }
+
+    public Record fetchRecord(String bibliographicRecordId, int agencyId) throws InternalServerException {
+        try {
+            final RawRepoDAO dao = getDAO();
+
+            return dao.fetchRecord(bibliographicRecordId, agencyId);
+        } catch (RawRepoException | SQLException ex) {
             LOGGER.error(ex.getMessage(), ex);
-            throw new RawRepoException(ex.getMessage(), ex);
+            throw new InternalServerException(ex.getMessage(), ex);
         }
     }
 
+    /**
+     * Fetches a number of records in one query. The records are returned as they are stored, i.e. not merged.
+     *
+     * @param recordIds The records to fetch
+     * @return Map of record id to record. Records which don't exist are left out
+     * @throws InternalServerException When the records couldn't be fetched
+     */
     @Timed
-    public boolean recordExists(String bibliographicRecordId, int agencyId, boolean maybeDeleted) throws RawRepoException {
-        try (Connection conn = dataSource.getConnection()) {
-            try {
-                final RawRepoDAO dao = createDAO(conn);
+    public Map<RecordId, Record> fetchRecords(Collection<RecordId> recordIds) throws InternalServerException {
+        try {
+            return rawRepoBean.fetchRecords(recordIds);
+        } catch (RawRepoException ex) {
+            LOGGER.error(ex.getMessage(), ex);
+            throw new InternalServerException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Fetches and merges or expands a number of records. All records are handled in the same transaction, so the
+     * connection, DAO and record states are shared between them.
+     *
+     * @param recordIds       The records to fetch
+     * @param allowAll        Allow deleted records
+     * @param useParentAgency Use the merge rules of the parent agency
+     * @param expand          Expand the records instead of only merging them
+     * @return Map of record id to record. Records which don't exist are left out
+     * @throws InternalServerException When a record couldn't be fetched or merged
+     * @throws VipCoreException        When the library rules couldn't be looked up
+     */
+    @Timed
+    public Map<RecordId, Record> fetchRecordsMerged(Collection<RecordId> recordIds, boolean allowAll, boolean useParentAgency, boolean expand) throws InternalServerException, VipCoreException {
+        final Map<RecordId, Record> result = new HashMap<>();
 
-                if (maybeDeleted) {
-                    return dao.recordExistsMaybeDeleted(bibliographicRecordId, agencyId);
+        for (RecordId recordId : recordIds) {
+            try {
+                final Record record;
+                if (expand) {
+                    record = fetchRecordExpanded(recordId.getBibliographicRecordId(), recordId.getAgencyId(), allowAll, useParentAgency);
                 } else {
-                    return dao.recordExists(bibliographicRecordId, agencyId);
+                    record = fetchRecordMerged(recordId.getBibliographicRecordId(), recordId.getAgencyId(), allowAll, useParentAgency);
                 }
-            } catch (RawRepoException ex) {
-                conn.rollback();
-                LOGGER.error(ex.getMessage(), ex);
-                throw new RawRepoException(ex.getMessage(), ex);
+                result.put(recordId, record);
+            } catch (RecordNotFoundException ex) {
+                LOGGER.info("Didn't find {}:{}", recordId.getBibliographicRecordId(), recordId.getAgencyId());
             }
-        } catch (SQLException ex) {
+        }
+
+        return result;
+    }
+
+    /**
+     * Finds the records a deleted record would be merged from, i.e. the record itself and the records it is an enrichment
+     * of. All rows are fetched in one query. Deleted records have no relations, so from a deleted record the chain
+     * follows the agency priority among the agencies which have a record with the same id - the first agency in priority
+     * order is used. From an active record the chain follows the sibling relation in the database.
+     *
+     * @param bibliographicRecordId Id of the record
+     * @param agencyId              Agency of the record
+     * @return The records in the chain starting with the common record and ending with the requested record
+     * @throws InternalServerException When the records couldn't be fetched
+     * @throws RecordNotFoundException When the requested record doesn't exist
+     */
+    public List<Record> fetchRecordChain(String bibliographicRecordId, int agencyId) throws InternalServerException, RecordNotFoundException {
+        try {
+            final Map<Integer, Record> records = rawRepoBean.fetchRecordsForAllAgencies(bibliographicRecordId);
+
+            return recordChain(records, bibliographicRecordId, agencyId, relationHints, recordId -> getDAO().getRelationsSiblingsFromMe(recordId));
+        } catch (RawRepoException | SQLException ex) {
             LOGGER.error(ex.getMessage(), ex);
-            throw new RawRepoException(ex.getMessage(), ex);
+            throw new InternalServerException(ex.getMessage(), ex);
         }
     }
 
-    public Record fetchRecord(String bibliographicRecordId, int agencyId) throws InternalServerException {
-        final Record result;
-        try (Connection conn = dataSource.getConnection()) {
-            try {
-                final RawRepoDAO dao = createDAO(conn);
+    @FunctionalInterface
+    interface SiblingsFromMe {
+        Set<RecordId> get(RecordId recordId) throws RawRepoException, SQLException;
+    }
+
+    /**
+     * Finds the chain of a record among rows which have already been fetched, see fetchRecordChain.
+     *
+     * @param records               The rows of all agencies for the bibliographic record id
+     * @param bibliographicRecordId Id of the record
+     * @param agencyId              Agency of the record
+     * @param relationHints         The agency priorities used for deleted records
+     * @param siblingsFromMe        The sibling relations used for active records
+     * @return The records in the chain starting with the common record and ending with the requested record
+     * @throws RecordNotFoundException When the requested record isn't among the rows
+     * @throws RawRepoException        When the relations couldn't be looked up
+     * @throws SQLException            When the relations couldn't be looked up
+     */
+    static List<Record> recordChain(Map<Integer, Record> records,
+                                    String bibliographicRecordId,
+                                    int agencyId,
+                                    RelationHintsVipCore relationHints,
+                                    SiblingsFromMe siblingsFromMe) throws RecordNotFoundException, RawRepoException, SQLException {
+        final LinkedList<Record> chain = new LinkedList<>();
+        final Set<Integer> visited = new HashSet<>();
+        Integer currentAgencyId = agencyId;
 
-                result = dao.fetchRecord(bibliographicRecordId, agencyId);
+        if (!records.containsKey(agencyId)) {
+            throw new RecordNotFoundException(String.format("Record %s:%s doesn't exist", bibliographicRecordId, agencyId));
+        }
+
+        while (currentAgencyId != null) {
+            final Record record = records.get(currentAgencyId);
+            chain.addFirst(record);
+            visited.add(currentAgencyId);
 
-                return result;
-            } catch (RawRepoException ex) {
-                conn.rollback();
-                LOGGER.error(ex.getMessage(), ex);
-                throw new InternalServerException(ex.getMessage(), ex);
+            Integer nextAgencyId = null;
+            if (record.isDeleted()) {
+                for (Integer potentialAgencyId : relationHints.getAgencyPriority(currentAgencyId)) {
+                    if (!visited.contains(potentialAgencyId) && records.containsKey(potentialAgencyId)) {
+                        nextAgencyId = potentialAgencyId;
+                        break;
+                    }
+                }
+            } else {
+                for (RecordId sibling : siblingsFromMe.get(record.getId())) {
+                    if (!visited.contains(sibling.getAgencyId()) && records.containsKey(sibling.getAgencyId())) {
+                        nextAgencyId = sibling.getAgencyId();
+                        break;
+                    }
+                }
             }
-        } catch (SQLException ex) {
-            LOGGER.error(ex.getMessage(), ex);
-            throw new InternalServerException(ex.getMessage(), ex);
+            currentAgencyId = nextAgencyId;
         }
+
+        return chain;
     }
 
     public Record fetchRecordMerged(String bibliographicRecordId, int agencyId, boolean allowAll, boolean useParentAgency) throws InternalServerException, RecordNotFoundException, VipCoreException {
         Record result;
-        try (Connection conn = dataSource.getConnection()) {
-            try {
-                final RawRepoDAO dao = createDAO(conn);
-                final ObjectPool<MarcXMerger> mergePool = getMergerPool(useParentAgency);
-                final MarcXMerger merger = mergePool.checkOut();
-                result = dao.fetchMergedRecord(bibliographicRecordId, agencyId, merger, allowAll);
-                mergePool.checkIn(merger);
-
-                return result;
-            } catch (RawRepoExceptionRecordNotFound ex) {
-                throw new RecordNotFoundException(String.format("The Record %s:%s does not exist", bibliographicRecordId, agencyId));
-            } catch (RawRepoException | MarcXMergerException ex) {
-                conn.rollback();
-                LOGGER.error(ex.getMessage(), ex);
-                throw new InternalServerException(ex.getMessage(), ex);
-            }
-        } catch (SQLException ex) {
+        try {
+            final RawRepoDAO dao = getDAO();
+            final ObjectPool<MarcXMerger> mergePool = getMergerPool(useParentAgency);
+            final MarcXMerger merger = mergePool.checkOut();
+            result = dao.fetchMergedRecord(bibliographicRecordId, agencyId, merger, allowAll);
+            mergePool.checkIn(merger);
+
+            return result;
+        } catch (RawRepoExceptionRecordNotFound ex) {
+            throw new RecordNotFoundException(String.format("The Record %s:%s does not exist", bibliographicRecordId, agencyId));
+        } catch (SQLException | RawRepoException | MarcXMergerException ex) {
             LOGGER.error(ex.getMessage(), ex);
             throw new InternalServerException(ex.getMessage(), ex);
         }
@@ -156,24 +283,18 @@ public class RecordSimpleBean {
 
     public Record fetchRecordExpanded(String bibliographicRecordId, int agencyId, boolean allowAll, boolean useParentAgency) throws InternalServerException, RecordNotFoundException, VipCoreException {
         Record result;
-        try (Connection conn = dataSource.getConnection()) {
-            try {
-                final RawRepoDAO dao = createDAO(conn);
-                final ObjectPool<MarcXMerger> mergePool = getMergerPool(useParentAgency);
-                final MarcXMerger merger = mergePool.checkOut();
-                result = dao.fetchMergedRecordExpanded(bibliographicRecordId, agencyId, merger, allowAll);
-                mergePool.checkIn(merger);
-
-                return result;
-            } catch (RawRepoExceptionRecordNotFound ex) {
-                throw new RecordNotFoundException(String.format("The Record %s:%s does not exist", bibliographicRecordId, agencyId));
-            } catch (RawRepoException | MarcXMergerException |
-                     MarcReaderException | MarcRecordExpandException ex) {
-                conn.rollback();
-                LOGGER.error(ex.getMessage(), ex);
-                throw new InternalServerException(ex.getMessage(), ex);
-            }
-        } catch (SQLException ex) {
+        try {
+            final RawRepoDAO dao = getDAO();
+            final ObjectPool<MarcXMerger> mergePool = getMergerPool(useParentAgency);
+            final MarcXMerger merger = mergePool.checkOut();
+            result = dao.fetchMergedRecordExpanded(bibliographicRecordId, agencyId, merger, allowAll);
+            mergePool.checkIn(merger);
+
+            return result;
+        } catch (RawRepoExceptionRecordNotFound ex) {
+            throw new RecordNotFoundException(String.format("The Record %s:%s does not exist", bibliographicRecordId, agencyId));
+        } catch (SQLException | RawRepoException | MarcXMergerException |
+                 MarcReaderException | MarcRecordExpandException ex) {
             LOGGER.error(ex.getMessage(), ex);
             throw new InternalServerException(ex.getMessage(), ex);
         }
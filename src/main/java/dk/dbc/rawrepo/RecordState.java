@@ -0,0 +1,5 @@
+package dk.dbc.rawrepo;
+
+public enum RecordState {
+    NOT_FOUND, DELETED, ACTIVE
+}
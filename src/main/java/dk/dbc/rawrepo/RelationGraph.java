@@ -0,0 +1,205 @@
+package dk.dbc.rawrepo;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The relations table as adjacency arrays.
+ * <p>
+ * Every record id is given a number the first time it is seen and the relations from and to each record are kept as
+ * int arrays of those numbers, so a record id is only stored once no matter how many relations it is part of. Numbers
+ * are never reused, so records which lose all their relations stay in the graph until it is loaded again.
+ * <p>
+ * Lookups share a read lock while updates take the write lock.
+ */
+final class RelationGraph {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<RecordId, Integer> numbers = new HashMap<>();
+    private RecordId[] recordIds = new RecordId[INITIAL_CAPACITY];
+    private final Adjacency from = new Adjacency();
+    private final Adjacency to = new Adjacency();
+    private long relationCount;
+
+    /**
+     * Adds a single relation without checking if it is already there. Used while the graph is loaded from the
+     * relations table where each relation is unique.
+     */
+    void add(RecordId recordId, RecordId referRecordId) {
+        lock.writeLock().lock();
+        try {
+            final int node = number(recordId);
+            final int refer = number(referRecordId);
+            from.add(node, refer);
+            to.add(refer, node);
+            relationCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces all the relations from a record
+     *
+     * @param recordId       The record
+     * @param referRecordIds The records it now points to. An empty collection removes all relations from the record
+     */
+    void setRelationsFrom(RecordId recordId, Collection<RecordId> referRecordIds) {
+        lock.writeLock().lock();
+        try {
+            final Integer existing = numbers.get(recordId);
+            if (existing == null && referRecordIds.isEmpty()) {
+                return;
+            }
+            final int node = existing == null ? number(recordId) : existing;
+
+            final int[] old = from.get(node);
+            for (int refer : old) {
+                to.remove(refer, node);
+            }
+            relationCount -= old.length;
+            from.clear(node);
+
+            for (RecordId referRecordId : referRecordIds) {
+                final int refer = number(referRecordId);
+                from.add(node, refer);
+                to.add(refer, node);
+                relationCount++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return The records the record points to, i.e. the parents and siblings from the record
+     */
+    Set<RecordId> getRelationsFrom(RecordId recordId) {
+        return get(from, recordId);
+    }
+
+    /**
+     * @return The records pointing to the record, i.e. the children and siblings to the record
+     */
+    Set<RecordId> getRelationsTo(RecordId recordId) {
+        return get(to, recordId);
+    }
+
+    int recordCount() {
+        lock.readLock().lock();
+        try {
+            return numbers.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long relationCount() {
+        lock.readLock().lock();
+        try {
+            return relationCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Set<RecordId> get(Adjacency adjacency, RecordId recordId) {
+        lock.readLock().lock();
+        try {
+            final Integer node = numbers.get(recordId);
+            if (node == null) {
+                return new HashSet<>();
+            }
+            final int[] others = adjacency.get(node);
+            final Set<RecordId> result = new HashSet<>(others.length * 2);
+            for (int other : others) {
+                result.add(recordIds[other]);
+            }
+
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Must be called with the write lock held
+    private int number(RecordId recordId) {
+        final Integer existing = numbers.get(recordId);
+        if (existing != null) {
+            return existing;
+        }
+
+        final int node = numbers.size();
+        if (node == recordIds.length) {
+            recordIds = Arrays.copyOf(recordIds, node * 2);
+        }
+        recordIds[node] = recordId;
+        numbers.put(recordId, node);
+
+        return node;
+    }
+
+    /**
+     * Growable int arrays per node. The arrays are doubled when full, so loading a record with many relations doesn't
+     * copy the array for each relation.
+     */
+    private static final class Adjacency {
+        private static final int[] NONE = new int[0];
+
+        private int[][] nodes = new int[INITIAL_CAPACITY][];
+        private int[] counts = new int[INITIAL_CAPACITY];
+
+        private void add(int node, int other) {
+            if (node >= nodes.length) {
+                final int capacity = Math.max(nodes.length * 2, node + 1);
+                nodes = Arrays.copyOf(nodes, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+
+            int[] others = nodes[node];
+            if (others == null) {
+                others = new int[2];
+                nodes[node] = others;
+            } else if (counts[node] == others.length) {
+                others = Arrays.copyOf(others, others.length * 2);
+                nodes[node] = others;
+            }
+            others[counts[node]++] = other;
+        }
+
+        private void remove(int node, int other) {
+            final int[] others = nodes[node];
+            final int count = counts[node];
+            for (int i = 0; i < count; i++) {
+                if (others[i] == other) {
+                    // The order doesn't matter, so the last one is moved into the hole
+                    others[i] = others[count - 1];
+                    counts[node] = count - 1;
+                    return;
+                }
+            }
+        }
+
+        private void clear(int node) {
+            if (node < nodes.length) {
+                nodes[node] = null;
+                counts[node] = 0;
+            }
+        }
+
+        private int[] get(int node) {
+            if (node >= nodes.length || nodes[node] == null) {
+                return NONE;
+            }
+
+            return Arrays.copyOf(nodes[node], counts[node]);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package dk.dbc.rawrepo;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Optional in-memory copy of the relations table used to answer relation lookups without going to the database.
+ * <p>
+ * The whole table is loaded in the background when the application starts. After that the index is kept up to date by
+ * polling the records table for records modified since the last refresh and reloading the relations from those
+ * records. The refresh is started in the background by the first lookup after the refresh interval, in the same way as
+ * the library rules. The graph is loaded from scratch at a fixed interval which removes records that no longer have any
+ * relations.
+ * <p>
+ * The refresh relies on this invariant: the relations of a record are only changed in the same transaction as the
+ * record itself is saved, and that transaction sets modified to a time after it started. RawRepoDAO.saveRecord and
+ * setRelationsFrom are used this way by the updaters, which run on servers with synchronized clocks. A change of
+ * the relations alone, e.g. by hand in the database, is only seen by the index at the next full load.
+ * <p>
+ * Lookups return null until the index has been loaded, when it is disabled and when the last successful refresh is
+ * older than the max stale age. The caller must then ask the database instead.
+ */
+@ApplicationScoped
+public class RelationIndex {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(RelationIndex.class);
+
+    // The watermark is the time from which a refresh must look for modified records. It is the start of the oldest
+    // transaction which is still running, as a record it saves can have a modified timestamp from before the refresh
+    // but isn't visible until it commits, or the database time if there are no other transactions. Only transactions
+    // of the same database user, or every transaction with pg_read_all_stats, are visible
+    private static final String SELECT_WATERMARK = "SELECT LEAST(now(), (SELECT min(xact_start) FROM pg_stat_activity " +
+            "WHERE datname = current_database() AND xact_start IS NOT NULL))";
+    private static final String SELECT_ALL_RELATIONS = "SELECT bibliographicrecordid, agencyid, refer_bibliographicrecordid, refer_agencyid FROM relations";
+    private static final String SELECT_MODIFIED_RECORDS = "SELECT bibliographicrecordid, agencyid FROM records WHERE modified >= ?";
+    private static final String SELECT_RELATIONS_FROM = "SELECT relations.bibliographicrecordid, relations.agencyid, relations.refer_bibliographicrecordid, relations.refer_agencyid " +
+            "FROM relations JOIN unnest(?::text[], ?::int[]) AS ids(bibliographicrecordid, agencyid) " +
+            "ON relations.bibliographicrecordid = ids.bibliographicrecordid AND relations.agencyid = ids.agencyid";
+    private static final int FETCH_SIZE = 10000;
+
+    @Resource(lookup = "jdbc/rawrepo")
+    DataSource dataSource;
+
+    @Resource(lookup = "java:comp/DefaultManagedExecutorService")
+    Executor executor;
+
+    @Inject
+    @ConfigProperty(name = "RELATION_INDEX_ENABLED", defaultValue = "false")
+    boolean enabled;
+
+    @Inject
+    @ConfigProperty(name = "RELATION_INDEX_REFRESH_SECONDS", defaultValue = "10")
+    long refreshSeconds;
+
+    @Inject
+    @ConfigProperty(name = "RELATION_INDEX_MAX_STALE_SECONDS", defaultValue = "120")
+    long maxStaleSeconds;
+
+    @Inject
+    @ConfigProperty(name = "RELATION_INDEX_RELOAD_HOURS", defaultValue = "24")
+    long reloadHours;
+
+    @Inject
+    MetricRegistry metricRegistry;
+
+    private volatile RelationGraph graph;
+    private volatile long loaded;
+    private volatile long refreshed;
+    private volatile long attempted;
+    private final AtomicBoolean updating = new AtomicBoolean();
+    // Only used by the thread holding 'updating'
+    private Timestamp changedSince;
+
+    private Counter fallbacks;
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            fallbacks = metricRegistry.counter("relation_index_fallbacks");
+            metricRegistry.register("relation_index_records", (Gauge<Integer>) this::recordCount);
+            metricRegistry.register("relation_index_relations", (Gauge<Long>) this::relationCount);
+            metricRegistry.register("relation_index_age_seconds", (Gauge<Long>) this::ageSeconds);
+            LOGGER.info("Relation index enabled with refresh every {} seconds", refreshSeconds);
+            schedule();
+        } else {
+            LOGGER.info("Relation index disabled");
+        }
+    }
+
+    /**
+     * Creates the bean when the application starts, so the relations are loaded before the first request
+     */
+    public void onStartup(@Observes @Initialized(ApplicationScoped.class) Object event) {
+        LOGGER.debug("Relation index created");
+    }
+
+    /**
+     * @param recordId The record
+     * @return The records the record points to, or null if the database must be asked
+     */
+    public Set<RecordId> getRelationsFrom(RecordId recordId) {
+        final RelationGraph current = current();
+
+        return current == null ? null : current.getRelationsFrom(recordId);
+    }
+
+    /**
+     * @param recordId The record
+     * @return The records pointing to the record, or null if the database must be asked
+     */
+    public Set<RecordId> getRelationsTo(RecordId recordId) {
+        final RelationGraph current = current();
+
+        return current == null ? null : current.getRelationsTo(recordId);
+    }
+
+    private RelationGraph current() {
+        if (!enabled) {
+            return null;
+        }
+
+        final RelationGraph current = graph;
+        final long now = System.currentTimeMillis();
+        if (now - refreshed > refreshSeconds * 1000 && now - attempted > refreshSeconds * 1000) {
+            schedule();
+        }
+        if (current == null || now - refreshed > maxStaleSeconds * 1000) {
+            fallbacks.inc();
+            return null;
+        }
+
+        return current;
+    }
+
+    private void schedule() {
+        if (updating.compareAndSet(false, true)) {
+            attempted = System.currentTimeMillis();
+            try {
+                executor.execute(this::update);
+            } catch (RejectedExecutionException ex) {
+                updating.set(false);
+                LOGGER.warn("Could not schedule update of the relation index");
+            }
+        }
+    }
+
+    void update() {
+        try {
+            if (graph == null || System.currentTimeMillis() - loaded > reloadHours * 3600 * 1000) {
+                load();
+            } else {
+                refresh();
+            }
+        } catch (SQLException ex) {
+            LOGGER.warn("Update of the relation index failed - relations are read from the database until it succeeds", ex);
+        } finally {
+            updating.set(false);
+        }
+    }
+
+    private void load() throws SQLException {
+        final long started = System.currentTimeMillis();
+        final RelationGraph loading = new RelationGraph();
+
+        try (Connection connection = dataSource.getConnection()) {
+            final boolean autoCommit = connection.getAutoCommit();
+            // The driver only reads the result through a cursor within a transaction
+            connection.setAutoCommit(false);
+            try {
+                final Timestamp watermark = selectWatermark(connection);
+                try (PreparedStatement preparedStatement = connection.prepareStatement(SELECT_ALL_RELATIONS)) {
+                    preparedStatement.setFetchSize(FETCH_SIZE);
+                    try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                        while (resultSet.next()) {
+                            loading.add(new RecordId(resultSet.getString(1), resultSet.getInt(2)),
+                                    new RecordId(resultSet.getString(3), resultSet.getInt(4)));
+                        }
+                    }
+                }
+                connection.commit();
+                changedSince = watermark;
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+
+        graph = loading;
+        loaded = started;
+        refreshed = started;
+        LOGGER.info("Relation index loaded with {} relations between {} records in {} ms",
+                loading.relationCount(), loading.recordCount(), System.currentTimeMillis() - started);
+    }
+
+    private void refresh() throws SQLException {
+        final long started = System.currentTimeMillis();
+        final RelationGraph current = graph;
+
+        try (Connection connection = dataSource.getConnection()) {
+            final Timestamp watermark = selectWatermark(connection);
+
+            final Map<RecordId, Set<RecordId>> relations = new HashMap<>();
+            try (PreparedStatement preparedStatement = connection.prepareStatement(SELECT_MODIFIED_RECORDS)) {
+                preparedStatement.setTimestamp(1, changedSince);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        relations.put(new RecordId(resultSet.getString(1), resultSet.getInt(2)), new HashSet<>());
+                    }
+                }
+            }
+
+            if (!relations.isEmpty()) {
+                final String[] bibliographicRecordIds = new String[relations.size()];
+                final Integer[] agencyIds = new Integer[relations.size()];
+                int i = 0;
+                for (RecordId recordId : relations.keySet()) {
+                    bibliographicRecordIds[i] = recordId.getBibliographicRecordId();
+                    agencyIds[i] = recordId.getAgencyId();
+                    i++;
+                }
+
+                try (PreparedStatement preparedStatement = connection.prepareStatement(SELECT_RELATIONS_FROM)) {
+                    preparedStatement.setArray(1, connection.createArrayOf("text", bibliographicRecordIds));
+                    preparedStatement.setArray(2, connection.createArrayOf("integer", agencyIds));
+                    try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                        while (resultSet.next()) {
+                            relations.get(new RecordId(resultSet.getString(1), resultSet.getInt(2)))
+                                    .add(new RecordId(resultSet.getString(3), resultSet.getInt(4)));
+                        }
+                    }
+                }
+
+                for (Map.Entry<RecordId, Set<RecordId>> entry : relations.entrySet()) {
+                    current.setRelationsFrom(entry.getKey(), entry.getValue());
+                }
+            }
+
+            changedSince = watermark;
+            LOGGER.debug("Relation index refreshed with the relations from {} modified records", relations.size());
+        }
+
+        refreshed = started;
+    }
+
+    private static Timestamp selectWatermark(Connection connection) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(SELECT_WATERMARK);
+             ResultSet resultSet = preparedStatement.executeQuery()) {
+            resultSet.next();
+
+            return resultSet.getTimestamp(1);
+        }
+    }
+
+    private int recordCount() {
+        final RelationGraph current = graph;
+
+        return current == null ? 0 : current.recordCount();
+    }
+
+    private long relationCount() {
+        final RelationGraph current = graph;
+
+        return current == null ? 0 : current.relationCount();
+    }
+
+    private long ageSeconds() {
+        return refreshed == 0 ? -1 : (System.currentTimeMillis() - refreshed) / 1000;
+    }
+}
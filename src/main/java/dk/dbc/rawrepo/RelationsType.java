@@ -1,5 +1,5 @@
 package dk.dbc.rawrepo;
 
 public enum RelationsType {
-    CHILDREN, PARENTS, SIBLINGS_TO_ME, SIBLINGS_FROM_ME;
+    CHILDREN, PARENTS, SIBLINGS_TO_ME, SIBLINGS_FROM_ME, RELATIONS_FROM;
 }
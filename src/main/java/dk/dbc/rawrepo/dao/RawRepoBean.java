@@ -1,7 +1,11 @@
 package dk.dbc.rawrepo.dao;
 
 import dk.dbc.rawrepo.RawRepoException;
+import dk.dbc.rawrepo.Record;
 import dk.dbc.rawrepo.RecordId;
+import dk.dbc.rawrepo.RecordImpl;
+import dk.dbc.rawrepo.RecordMetaDataHistory;
+import dk.dbc.rawrepo.RecordState;
 import dk.dbc.rawrepo.RelationsType;
 import dk.dbc.rawrepo.dump.RecordItem;
 import dk.dbc.rawrepo.dump.RecordStatus;
@@ -14,12 +18,17 @@ import javax.annotation.Resource;
 import javax.ejb.Stateless;
 import javax.interceptor.Interceptors;
 import javax.sql.DataSource;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -33,14 +42,125 @@ public class RawRepoBean {
     private static final XLogger LOGGER = XLoggerFactory.getXLogger(RawRepoBean.class);
 
     private static final String QUERY_BIBLIOGRAPHICRECORDID_BY_AGENCY_ALL = "SELECT bibliographicrecordid, mimetype FROM records WHERE agencyid=?";
+    private static final int BIBLIOGRAPHICRECORDID_FETCH_SIZE = 10000;
     private static final String QUERY_AGENCIES = "SELECT DISTINCT(agencyid) FROM records";
     private static final String SET_SERVER_URL_CONFIGURATION = "INSERT INTO configurations (key, value) VALUES (?, ?) ON CONFLICT (key) DO NOTHING";
     private static final String SELECT_RELATIONS_PARENTS = "SELECT refer_bibliographicrecordid, refer_agencyid FROM relations WHERE bibliographicrecordid=? AND agencyid=? AND refer_bibliographicrecordid <> bibliographicrecordid";
     private static final String SELECT_CONTENT_FROM_RECORDS = "SELECT convert_from(decode(content, 'base64'), 'UTF-8') FROM records WHERE bibliographicrecordid=? AND agencyid=?";
+    // The requested record is selected first and the rows are ordered by it, so the relations of each record can be
+    // handed on as soon as they are read
+    private static final String SELECT_RELATIONS_TO = "SELECT relations.refer_bibliographicrecordid, relations.refer_agencyid, relations.bibliographicrecordid, relations.agencyid " +
+            "FROM relations JOIN unnest(?::text[], ?::int[]) AS ids(bibliographicrecordid, agencyid) " +
+            "ON relations.refer_bibliographicrecordid = ids.bibliographicrecordid AND relations.refer_agencyid = ids.agencyid " +
+            "%s ORDER BY relations.refer_bibliographicrecordid, relations.refer_agencyid";
+    private static final String SELECT_RELATIONS_FROM = "SELECT relations.bibliographicrecordid, relations.agencyid, relations.refer_bibliographicrecordid, relations.refer_agencyid " +
+            "FROM relations JOIN unnest(?::text[], ?::int[]) AS ids(bibliographicrecordid, agencyid) " +
+            "ON relations.bibliographicrecordid = ids.bibliographicrecordid AND relations.agencyid = ids.agencyid " +
+            "%s ORDER BY relations.bibliographicrecordid, relations.agencyid";
+    private static final String OTHER_BIBLIOGRAPHICRECORDID = "WHERE relations.bibliographicrecordid <> relations.refer_bibliographicrecordid";
+    private static final String SAME_BIBLIOGRAPHICRECORDID = "WHERE relations.bibliographicrecordid = relations.refer_bibliographicrecordid";
+    private static final int RELATIONS_FETCH_SIZE = 10000;
+    // One level of a hierarchy, i.e. the records one step below or above the records of the previous level, and the
+    // record each of them was reached from. A record reached from more than one record of the level is only returned
+    // once
+    private static final String CHILDREN_LEVEL = "SELECT DISTINCT ON (relations.bibliographicrecordid, relations.agencyid) " +
+            "relations.bibliographicrecordid, relations.agencyid, relations.refer_bibliographicrecordid AS from_bibliographicrecordid, relations.refer_agencyid AS from_agencyid " +
+            "FROM relations JOIN unnest(?::text[], ?::int[]) AS ids(bibliographicrecordid, agencyid) " +
+            "ON relations.refer_bibliographicrecordid = ids.bibliographicrecordid AND relations.refer_agencyid = ids.agencyid " +
+            "WHERE relations.bibliographicrecordid <> relations.refer_bibliographicrecordid " +
+            "ORDER BY relations.bibliographicrecordid, relations.agencyid, relations.refer_bibliographicrecordid, relations.refer_agencyid";
+    private static final String PARENTS_LEVEL = "SELECT DISTINCT ON (relations.refer_bibliographicrecordid, relations.refer_agencyid) " +
+            "relations.refer_bibliographicrecordid AS bibliographicrecordid, relations.refer_agencyid AS agencyid, relations.bibliographicrecordid AS from_bibliographicrecordid, relations.agencyid AS from_agencyid " +
+            "FROM relations JOIN unnest(?::text[], ?::int[]) AS ids(bibliographicrecordid, agencyid) " +
+            "ON relations.bibliographicrecordid = ids.bibliographicrecordid AND relations.agencyid = ids.agencyid " +
+            "WHERE relations.bibliographicrecordid <> relations.refer_bibliographicrecordid " +
+            "ORDER BY relations.refer_bibliographicrecordid, relations.refer_agencyid, relations.bibliographicrecordid, relations.agencyid";
+    private static final String SELECT_HIERARCHY_LEVEL = "SELECT found.bibliographicrecordid, found.agencyid, found.from_bibliographicrecordid, found.from_agencyid%s " +
+            "FROM (%s) AS found%s ORDER BY found.bibliographicrecordid, found.agencyid";
+    private static final String HIERARCHY_CONTENT = ", decode(records.content, 'base64')";
+    private static final String HIERARCHY_CONTENT_JOIN = " LEFT JOIN records ON records.bibliographicrecordid = found.bibliographicrecordid AND records.agencyid = found.agencyid";
+    private static final int HIERARCHY_CONTENT_FETCH_SIZE = 1000;
+    private static final String SELECT_CONTENTS_FROM_RECORDS = "SELECT bibliographicrecordid, decode(content, 'base64') FROM records WHERE bibliographicrecordid = ANY(?) AND agencyid=?";
+    // The content is only decoded if the record has been modified since the given timestamp
+    private static final String SELECT_CONTENT_IF_MODIFIED = "SELECT modified, CASE WHEN modified = ? THEN NULL ELSE decode(content, 'base64') END " +
+            "FROM records WHERE bibliographicrecordid=? AND agencyid=?";
+    private static final String SELECT_RECORD_DELETED = "SELECT deleted FROM records WHERE bibliographicrecordid=? AND agencyid=?";
+    private static final String SELECT_RECORDS_DELETED = "SELECT bibliographicrecordid, agencyid, deleted FROM records WHERE bibliographicrecordid = ANY(?)";
+    private static final String SELECT_RECORDS = "SELECT records.bibliographicrecordid, records.agencyid, deleted, mimetype, decode(content, 'base64'), created, modified, trackingid " +
+            "FROM records JOIN unnest(?::text[], ?::int[]) AS ids(bibliographicrecordid, agencyid) " +
+            "ON records.bibliographicrecordid = ids.bibliographicrecordid AND records.agencyid = ids.agencyid";
+    private static final String SELECT_RECORDS_ALL_AGENCIES = "SELECT agencyid, deleted, mimetype, decode(content, 'base64'), created, modified, trackingid " +
+            "FROM records WHERE bibliographicrecordid=?";
+    private static final String SELECT_RECORDS_ALL_AGENCIES_BATCH = "SELECT bibliographicrecordid, agencyid, deleted, mimetype, decode(content, 'base64'), created, modified, trackingid " +
+            "FROM records WHERE bibliographicrecordid = ANY(?)";
+    // The current row is a version as well, so both tables are searched. Both are indexed on id, agency and modified.
+    // If both tables have the timestamp the current row wins, as it isn't archived yet
+    private static final String SELECT_HISTORIC_RECORD = "SELECT false, deleted, mimetype, decode(content, 'base64'), created, modified, trackingid " +
+            "FROM records WHERE bibliographicrecordid=? AND agencyid=? AND modified=? " +
+            "UNION ALL " +
+            "SELECT true, deleted, mimetype, decode(content, 'base64'), created, modified, trackingid " +
+            "FROM records_archive WHERE bibliographicrecordid=? AND agencyid=? AND modified=? " +
+            "ORDER BY 1 LIMIT 1";
+    // The history of a record is the current row and the archived rows. The filter is added after the union, where
+    // PostgreSQL pushes it down into both tables
+    private static final String SELECT_HISTORY = "SELECT bibliographicrecordid, agencyid, deleted, mimetype, created, modified, trackingid%s FROM (" +
+            "SELECT bibliographicrecordid, agencyid, deleted, mimetype, created, modified, trackingid, content FROM records " +
+            "UNION ALL " +
+            "SELECT bibliographicrecordid, agencyid, deleted, mimetype, created, modified, trackingid, content FROM records_archive" +
+            ") AS history ";
+    private static final String HISTORY_CONTENT = ", decode(content, 'base64')";
+    private static final String HISTORY_ORDER = " ORDER BY bibliographicrecordid, agencyid, modified DESC LIMIT ?";
+    // Continues after the last version of the previous page in the order above
+    private static final String HISTORY_AFTER = "((bibliographicrecordid, agencyid) > (?, ?) OR (bibliographicrecordid = ? AND agencyid = ? AND modified < ?))";
+    // The authority parents are included for expanded records, with the rows of all agencies as an authority record can
+    // be enriched as well. UNION removes the duplicates when several agencies point to the same authority record
+    private static final String SELECT_RECORD_VERSIONS = "SELECT bibliographicrecordid, agencyid, deleted, modified, trackingid " +
+            "FROM records WHERE bibliographicrecordid=? " +
+            "UNION " +
+            "SELECT records.bibliographicrecordid, records.agencyid, records.deleted, records.modified, records.trackingid " +
+            "FROM relations JOIN records ON records.bibliographicrecordid = relations.refer_bibliographicrecordid " +
+            "WHERE ? AND relations.bibliographicrecordid=? AND relations.refer_agencyid=870979 " +
+            "ORDER BY 1, 2";
+    // Parent relations (volume -> section -> head and authority) of a record and all its ancestors. Sibling relations,
+    // i.e. enrichment -> common, have the same bibliographic record id in both ends and are left out. The left join keeps
+    // the ancestors without any parents, so it is known that they have been visited
+    private static final String SELECT_ANCESTOR_RELATIONS = "WITH RECURSIVE ancestors(bibliographicrecordid) AS (" +
+            "SELECT unnest(?::text[]) " +
+            "UNION " +
+            "SELECT relations.refer_bibliographicrecordid FROM relations JOIN ancestors ON relations.bibliographicrecordid = ancestors.bibliographicrecordid " +
+            "WHERE relations.refer_bibliographicrecordid <> relations.bibliographicrecordid) " +
+            "SELECT ancestors.bibliographicrecordid, relations.agencyid, relations.refer_bibliographicrecordid, relations.refer_agencyid " +
+            "FROM ancestors LEFT JOIN relations ON relations.bibliographicrecordid = ancestors.bibliographicrecordid " +
+            "AND relations.refer_bibliographicrecordid <> relations.bibliographicrecordid";
 
     @Resource(lookup = "jdbc/rawrepo")
     private DataSource dataSource;
 
+    // Constructor used for mocking
+    public RawRepoBean(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    // Default constructor - required as there is another constructor
+    public RawRepoBean() {
+
+    }
+
+    @FunctionalInterface
+    public interface RelationsConsumer {
+        void accept(RecordId recordId, Set<RecordId> relations) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface BibliographicRecordIdConsumer {
+        void accept(String bibliographicRecordId) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface HierarchyConsumer {
+        void accept(RecordId recordId, RecordId from, int depth, byte[] content) throws IOException;
+    }
+
     @Timed
     public Map<String, String> getBibliographicRecordIdForAgency(int agencyId, RecordStatus recordStatus) throws RawRepoException {
         try {
@@ -130,44 +250,8 @@ public class RawRepoBean {
         try {
             Map<String, String> ret = new HashMap<>();
 
-            String query = QUERY_BIBLIOGRAPHICRECORDID_BY_AGENCY_ALL;
-
-            if (recordStatus == RecordStatus.DELETED) {
-                query += " AND deleted = 't'";
-            }
-
-            if (recordStatus == RecordStatus.ACTIVE) {
-                query += " AND deleted = 'f'";
-            }
-
-            if (hasValue(createdBefore)) {
-                query += " AND created < ? ::timestamp AT TIME ZONE 'CET'";
-            }
-
-            if (hasValue(createdAfter)) {
-                query += " AND created >= ? ::timestamp AT TIME ZONE 'CET'";
-            }
-
-            if (hasValue(modifiedBefore)) {
-                query += " AND modified < ? ::timestamp AT TIME ZONE 'CET'";
-            }
-
-            if (hasValue(modifiedAfter)) {
-                query += " AND modified >= ? ::timestamp AT TIME ZONE 'CET'";
-            }
-
             try (Connection connection = dataSource.getConnection();
-                 PreparedStatement stmt = connection.prepareStatement(query)) {
-                int i = 0;
-                stmt.setInt(++i, agencyId);
-                if (hasValue(createdBefore))
-                    stmt.setTimestamp(++i, Timestamp.valueOf(createdBefore));
-                if (hasValue(createdAfter))
-                    stmt.setTimestamp(++i, Timestamp.valueOf(createdAfter));
-                if (hasValue(modifiedBefore))
-                    stmt.setTimestamp(++i, Timestamp.valueOf(modifiedBefore));
-                if (hasValue(modifiedAfter))
-                    stmt.setTimestamp(++i, Timestamp.valueOf(modifiedAfter));
+                 PreparedStatement stmt = prepareBibliographicRecordIdQuery(connection, agencyId, recordStatus, createdBefore, createdAfter, modifiedBefore, modifiedAfter, null, 0)) {
                 try (ResultSet resultSet = stmt.executeQuery()) {
                     while (resultSet.next()) {
                         String bibliographicRecordId = resultSet.getString(1);
@@ -184,6 +268,115 @@ public class RawRepoBean {
         }
     }
 
+    /**
+     * Same selection as getBibliographicRecordIdForAgencyInterval, but the ids are handed to the consumer while they are
+     * read through a cursor instead of being collected in a map. Must be called within a transaction, e.g. from a
+     * StreamingOutput through the bean's proxy.
+     *
+     * @param consumer Receiver of the bibliographic record ids
+     * @return The number of ids
+     * @throws RawRepoException If the lookup failed
+     * @throws IOException      If the consumer failed
+     */
+    public long streamBibliographicRecordIds(int agencyId, RecordStatus recordStatus, String createdBefore, String createdAfter, String modifiedBefore, String modifiedAfter, BibliographicRecordIdConsumer consumer) throws RawRepoException, IOException {
+        long count = 0;
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = prepareBibliographicRecordIdQuery(connection, agencyId, recordStatus, createdBefore, createdAfter, modifiedBefore, modifiedAfter, null, 0)) {
+            stmt.setFetchSize(BIBLIOGRAPHICRECORDID_FETCH_SIZE);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    consumer.accept(resultSet.getString(1));
+                    count++;
+                }
+            }
+        } catch (SQLException ex) {
+            throw new RawRepoException("Error getting bibliographicrecordids", ex);
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns a page of the bibliographic record ids of an agency ordered by id, i.e. the ids after the given id. Each
+     * page is a range scan on the (agencyid, bibliographicrecordid) index of the records table, so the cost of a page
+     * doesn't depend on how far into the list it is.
+     *
+     * @param after The last id of the previous page or null for the first page
+     * @param limit The max number of ids
+     * @return The ids ordered by bibliographic record id
+     * @throws RawRepoException If the lookup failed
+     */
+    @Timed
+    public List<String> getBibliographicRecordIdPage(int agencyId, RecordStatus recordStatus, String createdBefore, String createdAfter, String modifiedBefore, String modifiedAfter, String after, int limit) throws RawRepoException {
+        final List<String> result = new ArrayList<>();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = prepareBibliographicRecordIdQuery(connection, agencyId, recordStatus, createdBefore, createdAfter, modifiedBefore, modifiedAfter, after, limit)) {
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    result.add(resultSet.getString(1));
+                }
+            }
+        } catch (SQLException ex) {
+            throw new RawRepoException("Error getting bibliographicrecordids", ex);
+        }
+
+        return result;
+    }
+
+    private PreparedStatement prepareBibliographicRecordIdQuery(Connection connection, int agencyId, RecordStatus recordStatus, String createdBefore, String createdAfter, String modifiedBefore, String modifiedAfter, String after, int limit) throws SQLException {
+        String query = QUERY_BIBLIOGRAPHICRECORDID_BY_AGENCY_ALL;
+
+        if (recordStatus == RecordStatus.DELETED) {
+            query += " AND deleted = 't'";
+        }
+
+        if (recordStatus == RecordStatus.ACTIVE) {
+            query += " AND deleted = 'f'";
+        }
+
+        if (hasValue(createdBefore)) {
+            query += " AND created < ? ::timestamp AT TIME ZONE 'CET'";
+        }
+
+        if (hasValue(createdAfter)) {
+            query += " AND created >= ? ::timestamp AT TIME ZONE 'CET'";
+        }
+
+        if (hasValue(modifiedBefore)) {
+            query += " AND modified < ? ::timestamp AT TIME ZONE 'CET'";
+        }
+
+        if (hasValue(modifiedAfter)) {
+            query += " AND modified >= ? ::timestamp AT TIME ZONE 'CET'";
+        }
+
+        if (hasValue(after)) {
+            query += " AND bibliographicrecordid > ?";
+        }
+
+        if (limit > 0) {
+            query += " ORDER BY bibliographicrecordid LIMIT ?";
+        }
+
+        final PreparedStatement stmt = connection.prepareStatement(query);
+        int i = 0;
+        stmt.setInt(++i, agencyId);
+        if (hasValue(createdBefore))
+            stmt.setTimestamp(++i, Timestamp.valueOf(createdBefore));
+        if (hasValue(createdAfter))
+            stmt.setTimestamp(++i, Timestamp.valueOf(createdAfter));
+        if (hasValue(modifiedBefore))
+            stmt.setTimestamp(++i, Timestamp.valueOf(modifiedBefore));
+        if (hasValue(modifiedAfter))
+            stmt.setTimestamp(++i, Timestamp.valueOf(modifiedAfter));
+        if (hasValue(after))
+            stmt.setString(++i, after);
+        if (limit > 0)
+            stmt.setInt(++i, limit);
+
+        return stmt;
+    }
+
     @Timed
     public List<Integer> getAgencies() throws RawRepoException {
         try {
@@ -361,59 +554,577 @@ public class RawRepoBean {
         }
     }
 
-    public Map<RecordId, Set<RecordId>> getRelations(Set<RecordId> recordIds, RelationsType mode) throws RawRepoException {
-        final Map<RecordId, Set<RecordId>> result = new HashMap<>();
+    /**
+     * Fetches the content of several records from the same agency, e.g. the authority records needed to expand a record,
+     * in one query. Records which don't exist are logged and left out of the result.
+     *
+     * @param bibliographicRecordIds Ids of the records
+     * @param agencyId               Agency of the records
+     * @return Map of bibliographic record id to content
+     * @throws RawRepoException If the lookup failed
+     */
+    public Map<String, byte[]> fetchRecordContents(Set<String> bibliographicRecordIds, int agencyId) throws RawRepoException {
+        final Map<String, byte[]> res = new HashMap<>();
+
+        if (bibliographicRecordIds.isEmpty()) {
+            return res;
+        }
 
-        if (recordIds.isEmpty()) {
-            return result;
+        try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_CONTENTS_FROM_RECORDS)) {
+            stmt.setArray(1, connection.createArrayOf("text", bibliographicRecordIds.toArray()));
+            stmt.setInt(2, agencyId);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    res.put(resultSet.getString(1), resultSet.getBytes(2));
+                }
+            }
+
+            if (res.size() < bibliographicRecordIds.size()) {
+                for (String bibliographicRecordId : bibliographicRecordIds) {
+                    if (!res.containsKey(bibliographicRecordId)) {
+                        LOGGER.warn("Record {}:{} doesn't exist", bibliographicRecordId, agencyId);
+                    }
+                }
+            }
+
+            return res;
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error fetching record contents", ex);
         }
+    }
 
-        final List<String> placeHolders = new ArrayList<>();
-        for (int i = 0; i < recordIds.size(); i++) {
-            placeHolders.add("(?, ?)");
+    /**
+     * Finds out whether a record is active, deleted or doesn't exist using a single primary key lookup.
+     *
+     * @param bibliographicRecordId Id of the record
+     * @param agencyId              Agency of the record
+     * @return The state of the record
+     * @throws RawRepoException If the lookup failed
+     */
+    public RecordState getRecordState(String bibliographicRecordId, int agencyId) throws RawRepoException {
+        try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_RECORD_DELETED)) {
+            stmt.setString(1, bibliographicRecordId);
+            stmt.setInt(2, agencyId);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (resultSet.next()) {
+                    return resultSet.getBoolean(1) ? RecordState.DELETED : RecordState.ACTIVE;
+                }
+            }
+
+            return RecordState.NOT_FOUND;
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error fetching record state", ex);
         }
+    }
 
-        String query = "SELECT bibliographicrecordid, agencyid, refer_bibliographicrecordid, refer_agencyid " +
-                "FROM relations " +
-                "WHERE (refer_bibliographicrecordid, refer_agencyid) IN (" + String.join(",", placeHolders) + ") ";
+    /**
+     * Fetches the content of a record unless it is the version the caller already knows, so a cached value can be
+     * checked and refreshed with a single query.
+     *
+     * @param bibliographicRecordId Id of the record
+     * @param agencyId              Agency of the record
+     * @param knownModified         The modified timestamp of the version the caller knows, or null to always fetch the content
+     * @return The modified timestamp and, if the record has been modified since knownModified, the content. Null if the
+     * record doesn't exist
+     * @throws RawRepoException If the lookup failed
+     */
+    public ContentVersion fetchContentIfModified(String bibliographicRecordId, int agencyId, Instant knownModified) throws RawRepoException {
+        try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_CONTENT_IF_MODIFIED)) {
+            if (knownModified == null) {
+                stmt.setNull(1, Types.TIMESTAMP);
+            } else {
+                stmt.setTimestamp(1, Timestamp.from(knownModified));
+            }
+            stmt.setString(2, bibliographicRecordId);
+            stmt.setInt(3, agencyId);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (resultSet.next()) {
+                    return new ContentVersion(resultSet.getTimestamp(1).toInstant(), resultSet.getBytes(2));
+                }
+            }
 
-        if (mode == RelationsType.CHILDREN) {
-            query += "AND bibliographicrecordid != refer_bibliographicrecordid";
-        } else if (mode == RelationsType.SIBLINGS_TO_ME) {
-            query += "AND bibliographicrecordid = refer_bibliographicrecordid";
-        } else {
-            throw new UnsupportedOperationException(String.format("Relation type %s is not yet supported", mode));
+            return null;
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error fetching record content", ex);
         }
+    }
 
-        int pos = 0;
+    /**
+     * Looks up the state of the records for all agencies of a number of bibliographic record ids in one query.
+     *
+     * @param bibliographicRecordIds Ids of the records
+     * @return Map of record id to state. Agencies which don't have the record are left out
+     * @throws RawRepoException If the lookup failed
+     */
+    public Map<RecordId, RecordState> getRecordStates(Collection<String> bibliographicRecordIds) throws RawRepoException {
+        final Map<RecordId, RecordState> res = new HashMap<>();
+
+        try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_RECORDS_DELETED)) {
+            stmt.setArray(1, connection.createArrayOf("text", bibliographicRecordIds.toArray()));
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    res.put(new RecordId(resultSet.getString(1), resultSet.getInt(2)), resultSet.getBoolean(3) ? RecordState.DELETED : RecordState.ACTIVE);
+                }
+            }
 
-        try (Connection connection = dataSource.getConnection();
-             PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            return res;
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error fetching record states", ex);
+        }
+    }
 
-            for (RecordId id : recordIds) {
-                preparedStatement.setString(++pos, id.getBibliographicRecordId());
-                preparedStatement.setInt(++pos, id.getAgencyId());
+    /**
+     * Finds the parent relations of a number of records and of all their ancestors, e.g. volume -> section -> head, with
+     * one recursive query.
+     *
+     * @param bibliographicRecordIds Ids of the records
+     * @return Map of every bibliographic record id in the hierarchies to the parent relations of the records with that
+     * id. The map has an empty value for the ids without parents
+     * @throws RawRepoException If the lookup failed
+     */
+    public Map<String, Map<RecordId, Set<RecordId>>> getAncestorRelations(Collection<String> bibliographicRecordIds) throws RawRepoException {
+        final Map<String, Map<RecordId, Set<RecordId>>> res = new HashMap<>();
+
+        try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_ANCESTOR_RELATIONS)) {
+            stmt.setArray(1, connection.createArrayOf("text", bibliographicRecordIds.toArray()));
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    final String ancestor = resultSet.getString(1);
+                    final Map<RecordId, Set<RecordId>> relations = res.computeIfAbsent(ancestor, k -> new HashMap<>());
+                    final String parentBibliographicRecordId = resultSet.getString(3);
+                    if (parentBibliographicRecordId != null) {
+                        relations.computeIfAbsent(new RecordId(ancestor, resultSet.getInt(2)), k -> new HashSet<>())
+                                .add(new RecordId(parentBibliographicRecordId, resultSet.getInt(4)));
+                    }
+                }
             }
 
-            final ResultSet resultSet = preparedStatement.executeQuery();
-            while (resultSet.next()) {
-                final String bibliographicRecordId = resultSet.getString(1);
-                final int agencyId = resultSet.getInt(2);
-                final String referBibliographicRecordId = resultSet.getString(3);
-                final int referAgencyId = resultSet.getInt(4);
-
-                final RecordId parent = new RecordId(referBibliographicRecordId, referAgencyId);
-                if (!result.containsKey(parent)) {
-                    result.put(parent, new HashSet<>());
+            return res;
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error fetching ancestor relations", ex);
+        }
+    }
+
+    /**
+     * Fetches a number of records in one query, regardless of whether the records are deleted or not. Records which
+     * don't exist are left out of the result.
+     *
+     * @param recordIds The records to fetch
+     * @return Map of record id to record
+     * @throws RawRepoException If the lookup failed
+     */
+    public Map<RecordId, Record> fetchRecords(Collection<RecordId> recordIds) throws RawRepoException {
+        final Map<RecordId, Record> res = new HashMap<>();
+
+        try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_RECORDS)) {
+            setRecordIds(connection, stmt, recordIds);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    final Record record = toRecord(resultSet.getString(1), resultSet.getInt(2), resultSet, 3);
+                    res.put(record.getId(), record);
+                }
+            }
+
+            return res;
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error fetching records", ex);
+        }
+    }
+
+    /**
+     * Fetches the rows of all agencies for a bibliographic record id in one query, regardless of whether the records are
+     * deleted or not.
+     *
+     * @param bibliographicRecordId Id of the records
+     * @return Map of agency id to record
+     * @throws RawRepoException If the lookup failed
+     */
+    public Map<Integer, Record> fetchRecordsForAllAgencies(String bibliographicRecordId) throws RawRepoException {
+        final Map<Integer, Record> res = new HashMap<>();
+
+        try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_RECORDS_ALL_AGENCIES)) {
+            stmt.setString(1, bibliographicRecordId);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    final int agencyId = resultSet.getInt(1);
+                    res.put(agencyId, toRecord(bibliographicRecordId, agencyId, resultSet, 2));
+                }
+            }
+
+            return res;
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error fetching records for all agencies", ex);
+        }
+    }
+
+    /**
+     * Fetches the rows of all agencies for a number of bibliographic record ids in one query, regardless of whether the
+     * records are deleted or not.
+     *
+     * @param bibliographicRecordIds Ids of the records
+     * @return Map of record id to record
+     * @throws RawRepoException If the lookup failed
+     */
+    public Map<RecordId, Record> fetchRecordsForAllAgencies(Collection<String> bibliographicRecordIds) throws RawRepoException {
+        final Map<RecordId, Record> res = new HashMap<>();
+
+        try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_RECORDS_ALL_AGENCIES_BATCH)) {
+            stmt.setArray(1, connection.createArrayOf("text", bibliographicRecordIds.toArray()));
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    final Record record = toRecord(resultSet.getString(1), resultSet.getInt(2), resultSet, 3);
+                    res.put(record.getId(), record);
+                }
+            }
+
+            return res;
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error fetching records for all agencies", ex);
+        }
+    }
+
+    /**
+     * Fetches the version of a record which was modified at the given time, whether it is the current version or an
+     * archived one.
+     *
+     * @param bibliographicRecordId Id of the record
+     * @param agencyId              Agency of the record
+     * @param modified              The modified timestamp of the version
+     * @return The version or null if there is no version with that timestamp
+     * @throws RawRepoException If the lookup failed
+     */
+    public HistoricRecord fetchHistoricRecord(String bibliographicRecordId, int agencyId, Instant modified) throws RawRepoException {
+        final Timestamp timestamp = Timestamp.from(modified);
+        try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_HISTORIC_RECORD)) {
+            for (int offset = 0; offset <= 3; offset += 3) {
+                stmt.setString(offset + 1, bibliographicRecordId);
+                stmt.setInt(offset + 2, agencyId);
+                stmt.setTimestamp(offset + 3, timestamp);
+            }
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (resultSet.next()) {
+                    return new HistoricRecord(toRecord(bibliographicRecordId, agencyId, resultSet, 2), resultSet.getBoolean(1));
                 }
+            }
+
+            return null;
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error fetching historic record", ex);
+        }
+    }
+
+    /**
+     * Describes the current version of every row a merged or expanded record can be built from, i.e. the record for
+     * all agencies and optionally the authority parents for all agencies. Only the metadata is read, not the content.
+     * <p>
+     * The rows of all agencies are included, so the result changes whenever the enrichment chain could have changed.
+     * Relations are only changed together with the record, so a changed set of authority parents changes the result
+     * as well. The state of the record for all agencies is read by the same query and is returned as well.
+     *
+     * @param bibliographicRecordId   Id of the record
+     * @param includeAuthorityParents True if the authority parents should be included
+     * @return The versions and the states of the record for all agencies
+     * @throws RawRepoException If the lookup failed
+     */
+    public RecordVersions getRecordVersions(String bibliographicRecordId, boolean includeAuthorityParents) throws RawRepoException {
+        final StringBuilder versions = new StringBuilder();
+        final Map<RecordId, RecordState> states = new HashMap<>();
+
+        try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_RECORD_VERSIONS)) {
+            stmt.setString(1, bibliographicRecordId);
+            stmt.setBoolean(2, includeAuthorityParents);
+            stmt.setString(3, bibliographicRecordId);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    final String rowBibliographicRecordId = resultSet.getString(1);
+                    final int agencyId = resultSet.getInt(2);
+                    final boolean deleted = resultSet.getBoolean(3);
+                    if (bibliographicRecordId.equals(rowBibliographicRecordId)) {
+                        states.put(new RecordId(rowBibliographicRecordId, agencyId), deleted ? RecordState.DELETED : RecordState.ACTIVE);
+                    }
+                    versions.append(rowBibliographicRecordId).append(':')
+                            .append(agencyId).append(':')
+                            .append(deleted).append(':')
+                            .append(resultSet.getTimestamp(4).toInstant()).append(':')
+                            .append(resultSet.getString(5)).append('\n');
+                }
+            }
+
+            return new RecordVersions(states.isEmpty() ? null : versions.toString(), states);
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error fetching record versions", ex);
+        }
+    }
+
+    /**
+     * Reads a page of the versions of a number of records. The versions are ordered by record and newest first, and the
+     * page starts after the given version, so the whole history is read by passing the last version of each page until
+     * a page isn't full. Each page is a query of its own, so no cursor is kept open between the pages.
+     *
+     * @param recordIds      The records
+     * @param includeContent True if the content of the versions should be read as well
+     * @param after          The last version of the previous page, or null for the first page
+     * @param limit          The max number of versions in the page
+     * @return The versions of the page
+     * @throws RawRepoException If the lookup failed
+     */
+    public List<HistoryEntry> fetchHistory(Collection<RecordId> recordIds, boolean includeContent, RecordMetaDataHistory after, int limit) throws RawRepoException {
+        String query = String.format(SELECT_HISTORY, includeContent ? HISTORY_CONTENT : "") +
+                "JOIN unnest(?::text[], ?::int[]) AS ids(bibliographicrecordid, agencyid) USING (bibliographicrecordid, agencyid)";
+        if (after != null) {
+            query += " WHERE " + HISTORY_AFTER;
+        }
+        query += HISTORY_ORDER;
+
+        try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(query)) {
+            setRecordIds(connection, stmt, recordIds);
+            int i = 2;
+            if (after != null) {
+                i = setHistoryAfter(stmt, i, after);
+            }
+            stmt.setInt(++i, limit);
+
+            return readHistory(stmt, includeContent);
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error during fetchHistory", ex);
+        }
+    }
+
+    /**
+     * Same as fetchHistory for a list of records, but for all versions of an agency's records which were modified in
+     * the given interval.
+     *
+     * @param agencyId       The agency
+     * @param modifiedAfter  Lower bound (inclusive) on modified as 'yyyy-MM-dd HH:mm:ss' CET, or null
+     * @param modifiedBefore Upper bound (exclusive) on modified as 'yyyy-MM-dd HH:mm:ss' CET, or null
+     * @param includeContent True if the content of the versions should be read as well
+     * @param after          The last version of the previous page, or null for the first page
+     * @param limit          The max number of versions in the page
+     * @return The versions of the page
+     * @throws RawRepoException If the lookup failed
+     */
+    public List<HistoryEntry> fetchHistory(int agencyId, String modifiedAfter, String modifiedBefore, boolean includeContent, RecordMetaDataHistory after, int limit) throws RawRepoException {
+        String query = String.format(SELECT_HISTORY, includeContent ? HISTORY_CONTENT : "") + "WHERE agencyid=?";
+        if (modifiedAfter != null) {
+            query += " AND modified >= ? ::timestamp AT TIME ZONE 'CET'";
+        }
+        if (modifiedBefore != null) {
+            query += " AND modified < ? ::timestamp AT TIME ZONE 'CET'";
+        }
+        if (after != null) {
+            query += " AND " + HISTORY_AFTER;
+        }
+        query += HISTORY_ORDER;
+
+        try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(query)) {
+            int i = 0;
+            stmt.setInt(++i, agencyId);
+            if (modifiedAfter != null) {
+                stmt.setTimestamp(++i, Timestamp.valueOf(modifiedAfter));
+            }
+            if (modifiedBefore != null) {
+                stmt.setTimestamp(++i, Timestamp.valueOf(modifiedBefore));
+            }
+            if (after != null) {
+                i = setHistoryAfter(stmt, i, after);
+            }
+            stmt.setInt(++i, limit);
+
+            return readHistory(stmt, includeContent);
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error during fetchHistory", ex);
+        }
+    }
+
+    // Sets the parameters of HISTORY_AFTER following the parameter with the given index and returns the last index
+    private static int setHistoryAfter(PreparedStatement stmt, int i, RecordMetaDataHistory after) throws SQLException {
+        final RecordId recordId = after.getId();
+        stmt.setString(++i, recordId.getBibliographicRecordId());
+        stmt.setInt(++i, recordId.getAgencyId());
+        stmt.setString(++i, recordId.getBibliographicRecordId());
+        stmt.setInt(++i, recordId.getAgencyId());
+        stmt.setTimestamp(++i, Timestamp.from(after.getModified()));
+
+        return i;
+    }
 
-                result.get(parent).add(new RecordId(bibliographicRecordId, agencyId));
+    private static List<HistoryEntry> readHistory(PreparedStatement stmt, boolean includeContent) throws SQLException {
+        final List<HistoryEntry> res = new ArrayList<>();
+        try (ResultSet resultSet = stmt.executeQuery()) {
+            while (resultSet.next()) {
+                final RecordMetaDataHistory history = new RecordMetaDataHistory(
+                        new RecordId(resultSet.getString(1), resultSet.getInt(2)),
+                        resultSet.getBoolean(3),
+                        resultSet.getString(4),
+                        resultSet.getTimestamp(5).toInstant(),
+                        resultSet.getTimestamp(6).toInstant(),
+                        resultSet.getString(7));
+                res.add(new HistoryEntry(history, includeContent ? resultSet.getBytes(8) : null));
             }
+        }
+
+        return res;
+    }
+
+    // Reads deleted, mimetype, content, created, modified and tracking id starting at the given column
+    private static Record toRecord(String bibliographicRecordId, int agencyId, ResultSet resultSet, int column) throws SQLException {
+        return RecordImpl.fromCache(bibliographicRecordId, agencyId,
+                resultSet.getBoolean(column),
+                resultSet.getString(column + 1),
+                resultSet.getBytes(column + 2),
+                resultSet.getTimestamp(column + 3).toInstant(),
+                resultSet.getTimestamp(column + 4).toInstant(),
+                resultSet.getString(column + 5),
+                Integer.toString(agencyId));
+    }
+
+    // Sets the ids as the two array parameters joined with unnest
+    private static void setRecordIds(Connection connection, PreparedStatement stmt, Collection<RecordId> recordIds) throws SQLException {
+        final String[] bibliographicRecordIds = new String[recordIds.size()];
+        final Integer[] agencyIds = new Integer[recordIds.size()];
+        int i = 0;
+        for (RecordId recordId : recordIds) {
+            bibliographicRecordIds[i] = recordId.getBibliographicRecordId();
+            agencyIds[i] = recordId.getAgencyId();
+            i++;
+        }
+
+        stmt.setArray(1, connection.createArrayOf("text", bibliographicRecordIds));
+        stmt.setArray(2, connection.createArrayOf("integer", agencyIds));
+    }
+
+    /**
+     * Finds the relations of each of the given records with one query and hands them to the consumer one record at a
+     * time while the result is being read. The ids are joined as arrays, so there is no limit on the number of ids, and
+     * only the relations of a single record are kept in memory. Records without relations of the given type are left
+     * out.
+     * <p>
+     * The relations are read as they are in the relations table, so deleted records, which have no relations, must be
+     * handled by the caller.
+     *
+     * @param recordIds The records to find the relations of
+     * @param mode      The type of relations
+     * @param consumer  Receiver of the relations
+     * @throws RawRepoException If the lookup failed
+     * @throws IOException      If the consumer failed
+     */
+    public void streamRelations(Collection<RecordId> recordIds, RelationsType mode, RelationsConsumer consumer) throws RawRepoException, IOException {
+        if (recordIds.isEmpty()) {
+            return;
+        }
+
+        final String query;
+        switch (mode) {
+            case CHILDREN:
+                query = String.format(SELECT_RELATIONS_TO, OTHER_BIBLIOGRAPHICRECORDID);
+                break;
+            case SIBLINGS_TO_ME:
+                query = String.format(SELECT_RELATIONS_TO, SAME_BIBLIOGRAPHICRECORDID);
+                break;
+            case PARENTS:
+                query = String.format(SELECT_RELATIONS_FROM, OTHER_BIBLIOGRAPHICRECORDID);
+                break;
+            case SIBLINGS_FROM_ME:
+                query = String.format(SELECT_RELATIONS_FROM, SAME_BIBLIOGRAPHICRECORDID);
+                break;
+            case RELATIONS_FROM:
+                query = String.format(SELECT_RELATIONS_FROM, "");
+                break;
+            default:
+                throw new UnsupportedOperationException(String.format("Relation type %s is not yet supported", mode));
+        }
+
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            setRecordIds(connection, preparedStatement, recordIds);
+            // The bean runs in a transaction, so the driver reads the result through a cursor
+            preparedStatement.setFetchSize(RELATIONS_FETCH_SIZE);
 
-            return result;
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                RecordId current = null;
+                Set<RecordId> relations = new HashSet<>();
+                while (resultSet.next()) {
+                    final RecordId recordId = new RecordId(resultSet.getString(1), resultSet.getInt(2));
+                    if (!recordId.equals(current)) {
+                        if (current != null) {
+                            consumer.accept(current, relations);
+                            relations = new HashSet<>();
+                        }
+                        current = recordId;
+                    }
+                    relations.add(new RecordId(resultSet.getString(3), resultSet.getInt(4)));
+                }
+                if (current != null) {
+                    consumer.accept(current, relations);
+                }
+            }
         } catch (SQLException ex) {
             LOGGER.info("Caught exception: {}", ex.getMessage());
-            throw new RawRepoException("Error during getRelationsChildren", ex);
+            throw new RawRepoException("Error during streamRelations", ex);
+        }
+    }
+
+    /**
+     * Finds all records below or above a record one level at a time, with one query per level. Only parent and child
+     * relations are followed, i.e. relations between records with different bibliographic record ids, the same as the
+     * children and parents endpoints. The records are handed to the consumer ordered by depth while the result is
+     * being read.
+     * <p>
+     * The records which have been found are remembered, so a record which can be reached in more than one way is only
+     * returned once, at the lowest depth, and the next level is only looked up from the records which are new. A cycle
+     * in the relations therefore ends the search instead of repeating it until the max depth.
+     *
+     * @param recordId       The record to start from
+     * @param descendants    True to follow the children, false to follow the parents
+     * @param maxDepth       How many levels to follow
+     * @param includeContent Whether the content of the records is selected
+     * @param consumer       Receiver of the records. The content is null if it isn't included or the record doesn't exist
+     * @throws RawRepoException If the lookup failed
+     * @throws IOException      If the consumer failed
+     */
+    public void streamHierarchy(RecordId recordId, boolean descendants, int maxDepth, boolean includeContent, HierarchyConsumer consumer) throws RawRepoException, IOException {
+        final String query = String.format(SELECT_HIERARCHY_LEVEL, includeContent ? HIERARCHY_CONTENT : "",
+                descendants ? CHILDREN_LEVEL : PARENTS_LEVEL, includeContent ? HIERARCHY_CONTENT_JOIN : "");
+        final Set<RecordId> found = new HashSet<>();
+        found.add(recordId);
+        List<RecordId> level = Collections.singletonList(recordId);
+
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            // Rows with content are large, so fewer of them are fetched at a time
+            preparedStatement.setFetchSize(includeContent ? HIERARCHY_CONTENT_FETCH_SIZE : RELATIONS_FETCH_SIZE);
+            for (int depth = 1; depth <= maxDepth && !level.isEmpty(); depth++) {
+                setRecordIds(connection, preparedStatement, level);
+                final List<RecordId> next = new ArrayList<>();
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        final RecordId current = new RecordId(resultSet.getString(1), resultSet.getInt(2));
+                        if (found.add(current)) {
+                            next.add(current);
+                            consumer.accept(current,
+                                    new RecordId(resultSet.getString(3), resultSet.getInt(4)),
+                                    depth,
+                                    includeContent ? resultSet.getBytes(5) : null);
+                        }
+                    }
+                }
+                level = next;
+            }
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error during streamHierarchy", ex);
         }
     }
 
@@ -421,4 +1132,91 @@ public class RawRepoBean {
         return !(s == null || s.isEmpty());
     }
 
+    public static final class RecordVersions {
+        private final String versions;
+        private final Map<RecordId, RecordState> states;
+
+        public RecordVersions(String versions, Map<RecordId, RecordState> states) {
+            this.versions = versions;
+            this.states = states;
+        }
+
+        /**
+         * @return One line per row with id, deleted, modified and tracking id, or null if the record doesn't exist
+         */
+        public String getVersions() {
+            return versions;
+        }
+
+        /**
+         * @return The state of the record for every agency which has it
+         */
+        public Map<RecordId, RecordState> getStates() {
+            return states;
+        }
+    }
+
+    public static final class HistoricRecord {
+        private final Record record;
+        private final boolean archived;
+
+        public HistoricRecord(Record record, boolean archived) {
+            this.record = record;
+            this.archived = archived;
+        }
+
+        public Record getRecord() {
+            return record;
+        }
+
+        /**
+         * @return True if the version is from records_archive, i.e. it has been replaced by a newer version and never
+         * changes again. False if it is the current version, which can still be replaced
+         */
+        public boolean isArchived() {
+            return archived;
+        }
+    }
+
+    public static final class HistoryEntry {
+        private final RecordMetaDataHistory history;
+        private final byte[] content;
+
+        public HistoryEntry(RecordMetaDataHistory history, byte[] content) {
+            this.history = history;
+            this.content = content;
+        }
+
+        public RecordMetaDataHistory getHistory() {
+            return history;
+        }
+
+        /**
+         * @return Content of the version or null if the content wasn't requested
+         */
+        public byte[] getContent() {
+            return content;
+        }
+    }
+
+    public static final class ContentVersion {
+        private final Instant modified;
+        private final byte[] content;
+
+        public ContentVersion(Instant modified, byte[] content) {
+            this.modified = modified;
+            this.content = content;
+        }
+
+        public Instant getModified() {
+            return modified;
+        }
+
+        /**
+         * @return Content of the record or null if it hasn't been modified since the known timestamp
+         */
+        public byte[] getContent() {
+            return content;
+        }
+    }
 }
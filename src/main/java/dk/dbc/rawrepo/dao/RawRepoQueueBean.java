@@ -1,13 +1,12 @@
 package dk.dbc.rawrepo.dao;
 
+import dk.dbc.rawrepo.LibraryRulesCache;
 import dk.dbc.rawrepo.RelationHintsVipCore;
 import dk.dbc.rawrepo.dto.EnqueueResultDTO;
 import dk.dbc.rawrepo.dto.QueueRuleDTO;
 import dk.dbc.rawrepo.dto.QueueStatDTO;
 import dk.dbc.rawrepo.exception.QueueException;
-import dk.dbc.rawrepo.exception.RecordServiceRuntimeException;
 import dk.dbc.util.StopwatchInterceptor;
-import dk.dbc.vipcore.libraryrules.VipCoreLibraryRulesConnector;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
@@ -45,17 +44,13 @@ public class RawRepoQueueBean {
     private DataSource dataSource;
 
     @Inject
-    private VipCoreLibraryRulesConnector libraryRulesConnector;
+    LibraryRulesCache libraryRulesCache;
 
     RelationHintsVipCore relationHints;
 
     @PostConstruct
     public void init() {
-        try {
-            relationHints = new RelationHintsVipCore(libraryRulesConnector);
-        } catch (Exception ex) {
-            throw new RecordServiceRuntimeException(ex);
-        }
+        relationHints = libraryRulesCache.getRelationHints();
     }
 
     public List<QueueRuleDTO> getQueueRules() throws QueueException {
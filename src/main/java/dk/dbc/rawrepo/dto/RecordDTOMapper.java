@@ -7,11 +7,11 @@ import dk.dbc.marc.binding.MarcRecord;
 import dk.dbc.marc.binding.SubField;
 import dk.dbc.marc.reader.MarcReaderException;
 import dk.dbc.marc.writer.MarcWriterException;
+import dk.dbc.rawrepo.ParsedRecord;
 import dk.dbc.rawrepo.Record;
 import dk.dbc.rawrepo.RecordId;
 import dk.dbc.rawrepo.RecordMetaDataHistory;
 import dk.dbc.rawrepo.output.OutputStreamMarcJsonRecordWriter;
-import dk.dbc.rawrepo.service.RecordObjectMapper;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -37,7 +37,7 @@ public class RecordDTOMapper {
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
         final OutputStreamMarcJsonRecordWriter contentWriter =
                 new OutputStreamMarcJsonRecordWriter(baos, StandardCharsets.UTF_8.name());
-        contentWriter.write(RecordObjectMapper.contentToMarcRecord(record.getContent()));
+        contentWriter.write(ParsedRecord.of(record).getMarcRecord());
 
         dto.setContent(jsonBContext.getObjectMapper().reader().readTree(baos.toByteArray()));
 
@@ -76,7 +76,7 @@ public class RecordDTOMapper {
             }
 
             if (excludeAttributes != null && !excludeAttributes.contains("contentJSON")) {
-                final MarcRecord marcRecord = RecordObjectMapper.contentToMarcRecord(rawRecord.getContent());
+                final MarcRecord marcRecord = ParsedRecord.of(rawRecord).getMarcRecord();
                 dto.setContentJSON(contentToDTO(marcRecord));
             }
 
@@ -237,19 +237,22 @@ public class RecordDTOMapper {
         dtoCollection.setRecordRelationChildrenList(new ArrayList<>());
 
         for (Map.Entry<RecordId, Set<RecordId>> entry : object.entrySet()) {
-            final RecordRelationChildrenDTO dto = new RecordRelationChildrenDTO();
-            dto.setRecordIdDTO(recordIdToDTO(entry.getKey()));
-            dto.setChildren(new ArrayList<>());
+            dtoCollection.getRecordRelationChildrenList().add(recordRelationChildrenToDTO(entry.getKey(), entry.getValue()));
+        }
 
-            final Set<RecordId> children = entry.getValue();
-            for (RecordId recordId : children) {
-                dto.getChildren().add(recordIdToDTO(recordId));
-            }
+        return dtoCollection;
+    }
 
-            dtoCollection.getRecordRelationChildrenList().add(dto);
+    public static RecordRelationChildrenDTO recordRelationChildrenToDTO(RecordId recordId, Set<RecordId> children) {
+        final RecordRelationChildrenDTO dto = new RecordRelationChildrenDTO();
+        dto.setRecordIdDTO(recordIdToDTO(recordId));
+        dto.setChildren(new ArrayList<>());
+
+        for (RecordId child : children) {
+            dto.getChildren().add(recordIdToDTO(child));
         }
 
-        return dtoCollection;
+        return dto;
     }
 
 }
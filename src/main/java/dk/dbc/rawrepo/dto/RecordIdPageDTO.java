@@ -0,0 +1,35 @@
+package dk.dbc.rawrepo.dto;
+
+import java.util.List;
+
+/**
+ * A page of the record ids of an agency. next is the cursor for the following page, or null on the last page.
+ */
+public class RecordIdPageDTO {
+    private List<RecordIdDTO> recordIds;
+    private String next;
+
+    public List<RecordIdDTO> getRecordIds() {
+        return recordIds;
+    }
+
+    public void setRecordIds(List<RecordIdDTO> recordIds) {
+        this.recordIds = recordIds;
+    }
+
+    public String getNext() {
+        return next;
+    }
+
+    public void setNext(String next) {
+        this.next = next;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordIdPageDTO{" +
+                "recordIds=" + recordIds +
+                ", next='" + next + '\'' +
+                '}';
+    }
+}
@@ -1,8 +1,14 @@
 package dk.dbc.rawrepo.dto;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import dk.dbc.rawrepo.RecordId;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class RecordObjectMapper {
@@ -11,6 +17,41 @@ public class RecordObjectMapper {
         return new RecordId(dto.getBibliographicRecordId(), dto.getAgencyId());
     }
 
+    /**
+     * Reads the record ids of a RecordIdCollectionDTO document one id at a time, so neither the document nor the DTO is
+     * kept in memory. The order of the ids is kept.
+     *
+     * @param parser Parser positioned before the document. It must have a codec, i.e. be created by an ObjectMapper
+     * @return The record ids
+     * @throws IOException If the document couldn't be read or isn't a RecordIdCollectionDTO
+     */
+    public static List<RecordId> recordIdCollectionFromJson(JsonParser parser) throws IOException {
+        final List<RecordId> result = new ArrayList<>();
+
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected a RecordIdCollectionDTO object");
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String fieldName = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            if ("recordIds".equals(fieldName) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    result.add(recordIdDTOToObject(parser.readValueAs(RecordIdDTO.class)));
+                }
+                if (parser.currentToken() != JsonToken.END_ARRAY) {
+                    throw new JsonParseException(parser, "Expected a list of RecordIdDTO objects");
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (parser.currentToken() != JsonToken.END_OBJECT) {
+            throw new JsonParseException(parser, "Unexpected end of RecordIdCollectionDTO object");
+        }
+
+        return result;
+    }
+
     public static Set<RecordId> recordIdCollectionDTOToObject(RecordIdCollectionDTO dto) {
         final Set<RecordId> result = new HashSet<>();
 
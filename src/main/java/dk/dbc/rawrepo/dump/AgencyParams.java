@@ -1,8 +1,8 @@
 package dk.dbc.rawrepo.dump;
 
+import dk.dbc.rawrepo.LibraryRulesCache;
 import dk.dbc.rawrepo.dto.ParamsValidationItemDTO;
 import dk.dbc.vipcore.exception.VipCoreException;
-import dk.dbc.vipcore.libraryrules.VipCoreLibraryRulesConnector;
 
 import java.sql.Timestamp;
 import java.util.List;
@@ -88,7 +88,7 @@ public class AgencyParams extends Params {
                 '}';
     }
 
-    public List<ParamsValidationItemDTO> validate(VipCoreLibraryRulesConnector vipCoreLibraryRulesConnector) {
+    public List<ParamsValidationItemDTO> validate(LibraryRulesCache libraryRulesCache) {
         List<ParamsValidationItemDTO> result = validateParams();
         boolean hasFBSLibrary = false;
 
@@ -107,7 +107,7 @@ public class AgencyParams extends Params {
 
             for (int agencyId : this.agencies) {
                 try {
-                    AgencyType agencyType = AgencyType.getAgencyType(vipCoreLibraryRulesConnector, agencyId);
+                    AgencyType agencyType = AgencyType.getAgencyType(libraryRulesCache, agencyId);
 
                     if (agencyType == AgencyType.FBS) {
                         hasFBSLibrary = true;
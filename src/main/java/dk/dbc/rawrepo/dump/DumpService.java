@@ -3,6 +3,7 @@ package dk.dbc.rawrepo.dump;
 import dk.dbc.holdingitems.content.HoldingsItemsConnector;
 import dk.dbc.jsonb.JSONBContext;
 import dk.dbc.jsonb.JSONBException;
+import dk.dbc.rawrepo.LibraryRulesCache;
 import dk.dbc.rawrepo.RawRepoException;
 import dk.dbc.rawrepo.RecordRelationsBean;
 import dk.dbc.rawrepo.dao.RawRepoBean;
@@ -10,8 +11,8 @@ import dk.dbc.rawrepo.dto.ParamsValidationDTO;
 import dk.dbc.rawrepo.dto.ParamsValidationItemDTO;
 import dk.dbc.rawrepo.dto.RecordIdDTO;
 import dk.dbc.vipcore.exception.VipCoreException;
-import dk.dbc.vipcore.libraryrules.VipCoreLibraryRulesConnector;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,7 +63,7 @@ public class DumpService {
     private ManagedExecutorService executor;
 
     @Inject
-    private VipCoreLibraryRulesConnector vipCoreLibraryRulesConnector;
+    private LibraryRulesCache libraryRulesCache;
 
     @EJB
     private RawRepoBean rawRepoBean;
@@ -73,13 +74,16 @@ public class DumpService {
     @Inject
     private HoldingsItemsConnector holdingsItemsConnector;
 
+    @Inject
+    private MetricRegistry metricRegistry;
+
     @POST
     @Path("v1/dump/dryrun")
     @Consumes({MediaType.APPLICATION_JSON})
     @Produces({MediaType.TEXT_PLAIN})
     public Response dumpLibraryRecordsDryRun(AgencyParams params) {
         try {
-            final List<ParamsValidationItemDTO> paramsValidationItemList = params.validate(vipCoreLibraryRulesConnector);
+            final List<ParamsValidationItemDTO> paramsValidationItemList = params.validate(libraryRulesCache);
             if (paramsValidationItemList.size() > 0) {
                 final ParamsValidationDTO paramsValidation = new ParamsValidationDTO();
                 paramsValidation.setErrors(paramsValidationItemList);
@@ -95,7 +99,7 @@ public class DumpService {
             StreamingOutput output = out -> {
                 try {
                     for (Integer agencyId : params.getAgencies()) {
-                        final AgencyType agencyType = AgencyType.getAgencyType(vipCoreLibraryRulesConnector, agencyId);
+                        final AgencyType agencyType = AgencyType.getAgencyType(libraryRulesCache, agencyId);
                         final Map<String, String> record = getRecords(agencyId, params);
                         final Map<String, String> holdings = getHoldings(agencyId, agencyType, params, true);
 
@@ -129,7 +133,7 @@ public class DumpService {
         // The service is meant to be called from curl, so the error message should be easy to read.
         // Therefor the message is simple text instead of JSON or HTML
         try {
-            final List<ParamsValidationItemDTO> paramsValidationItemList = params.validate(vipCoreLibraryRulesConnector);
+            final List<ParamsValidationItemDTO> paramsValidationItemList = params.validate(libraryRulesCache);
             if (!paramsValidationItemList.isEmpty()) {
                 final ParamsValidationDTO paramsValidation = new ParamsValidationDTO();
                 paramsValidation.setErrors(paramsValidationItemList);
@@ -147,15 +151,18 @@ public class DumpService {
             StreamingOutput output = out -> {
                 try {
                     for (Integer agencyId : params.getAgencies()) {
-                        final RecordByteWriter recordByteWriter = new RecordByteWriter(out, params);
+                        final AgencyType agencyType = AgencyType.getAgencyType(libraryRulesCache, agencyId);
+                        final DumpStageMetrics metrics = new DumpStageMetrics(metricRegistry, agencyType.name(), params.getMode());
+                        final RecordByteWriter recordByteWriter = new RecordByteWriter(out, params, metrics);
                         recordByteWriter.writeHeader();
-                        final AgencyType agencyType = AgencyType.getAgencyType(vipCoreLibraryRulesConnector, agencyId);
+                        final long idEnumerationStart = System.nanoTime();
                         final Map<String, String> record = getRecords(agencyId, params);
                         final Map<String, String> holdings = getHoldings(agencyId, agencyType, params, false);
 
                         LOGGER.info("Opening connection and RecordResultSet...");
                         final BibliographicIdResultSet bibliographicIdResultSet = new
                                 BibliographicIdResultSet(params, agencyType, SLICE_SIZE, record, holdings);
+                        metrics.stop(DumpStageMetrics.Stage.ID_ENUMERATION, idEnumerationStart);
 
                         LOGGER.info("Found {} records", bibliographicIdResultSet.size());
                         List<Callable<Boolean>> threadList = new ArrayList<>();
@@ -166,15 +173,16 @@ public class DumpService {
                             loopCount++;
 
                             if (agencyType == AgencyType.DBC) {
-                                threadList.add(new MergerThreadDBC(rawRepoBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId, params.getMode()));
+                                threadList.add(new MergerThreadDBC(rawRepoBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId, params.getMode(), metrics));
                             } else if (agencyType == AgencyType.FBS) {
-                                threadList.add(new MergerThreadFBS(rawRepoBean, recordRelationsBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId, params.getMode()));
+                                threadList.add(new MergerThreadFBS(rawRepoBean, recordRelationsBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId, params.getMode(), metrics));
                             } else {
-                                threadList.add(new MergerThreadLocal(rawRepoBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId));
+                                threadList.add(new MergerThreadLocal(rawRepoBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId, metrics));
                             }
 
                             // Execute the threads when either the outstanding thread count has reached max or it is the last loop
                             if (loopCount % MAX_THREAD_COUNT == 0 || !bibliographicIdResultSet.hasNext()) {
+                                final long batchStart = System.nanoTime();
                                 final List<Future<Boolean>> futures = executor.invokeAll(threadList);
                                 for (Future<Boolean> f : futures) {
                                     try {
@@ -184,6 +192,7 @@ public class DumpService {
                                         throw new WebApplicationException(e.getMessage(), e);
                                     }
                                 }
+                                metrics.stop(DumpStageMetrics.Stage.BATCH, batchStart);
                                 threadList = new ArrayList<>(); // Reset list to clean up old done threads
                             }
                         } while (bibliographicIdResultSet.hasNext());
@@ -253,14 +262,17 @@ public class DumpService {
             StreamingOutput output = out -> {
                 try {
                     for (Integer agencyId : params.getAgencies()) {
-                        final RecordByteWriter recordByteWriter = new RecordByteWriter(out, params);
+                        final AgencyType agencyType = AgencyType.getAgencyType(libraryRulesCache, agencyId);
+                        final DumpStageMetrics metrics = new DumpStageMetrics(metricRegistry, agencyType.name(), params.getMode());
+                        final RecordByteWriter recordByteWriter = new RecordByteWriter(out, params, metrics);
                         recordByteWriter.writeHeader();
-                        final AgencyType agencyType = AgencyType.getAgencyType(vipCoreLibraryRulesConnector, agencyId);
+                        final long idEnumerationStart = System.nanoTime();
                         final Map<String, String> record = getRecords(agencyId, params);
 
                         LOGGER.info("Opening connection and RecordResultSet...");
                         final BibliographicIdResultSet bibliographicIdResultSet = new
                                 BibliographicIdResultSet(SLICE_SIZE, record);
+                        metrics.stop(DumpStageMetrics.Stage.ID_ENUMERATION, idEnumerationStart);
 
                         LOGGER.info("Found {} records", bibliographicIdResultSet.size());
                         List<Callable<Boolean>> threadList = new ArrayList<>();
@@ -271,15 +283,16 @@ public class DumpService {
                             loopCount++;
 
                             if (agencyType == AgencyType.DBC) {
-                                threadList.add(new MergerThreadDBC(rawRepoBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId, params.getMode()));
+                                threadList.add(new MergerThreadDBC(rawRepoBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId, params.getMode(), metrics));
                             } else if (agencyType == AgencyType.FBS) {
-                                threadList.add(new MergerThreadFBS(rawRepoBean, recordRelationsBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId, params.getMode()));
+                                threadList.add(new MergerThreadFBS(rawRepoBean, recordRelationsBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId, params.getMode(), metrics));
                             } else {
-                                threadList.add(new MergerThreadLocal(rawRepoBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId));
+                                threadList.add(new MergerThreadLocal(rawRepoBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId, metrics));
                             }
 
                             // Execute the threads when either the outstanding thread count has reached max or it is the last loop
                             if (loopCount % MAX_THREAD_COUNT == 0 || !bibliographicIdResultSet.hasNext()) {
+                                final long batchStart = System.nanoTime();
                                 final List<Future<Boolean>> futures = executor.invokeAll(threadList);
                                 for (Future<Boolean> f : futures) {
                                     try {
@@ -289,6 +302,7 @@ public class DumpService {
                                         throw new WebApplicationException(e.getMessage(), e);
                                     }
                                 }
+                                metrics.stop(DumpStageMetrics.Stage.BATCH, batchStart);
                                 threadList = new ArrayList<>(); // Reset list to clean up old done threads
                             }
                         } while (bibliographicIdResultSet.hasNext());
@@ -0,0 +1,317 @@
+package dk.dbc.rawrepo.dump;
+
+import dk.dbc.marc.reader.MarcReaderException;
+import dk.dbc.marc.writer.MarcWriterException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Transcodes a MarcXchange record directly to ISO2709 or DanMarc2 line format.
+ * <p>
+ * The XML is read with StAX and the target format is written straight from the event stream, so no MarcRecord object
+ * graph is built. Text, field and output buffers are kept between records which means an instance is NOT thread-safe.
+ * Use one instance per thread.
+ * <p>
+ * The output is meant to be byte for byte identical to Iso2709MarcRecordWriter and DanMarc2LineFormatWriter.
+ */
+public class MarcXchangeTranscoder {
+    private static final int LEADER_LENGTH = 24;
+    private static final String DEFAULT_LEADER = "00000     22000000 4500 ";
+    private static final byte SUBFIELD_DELIMITER = 0x1F;
+    private static final byte FIELD_TERMINATOR = 0x1E;
+    private static final byte RECORD_TERMINATOR = 0x1D;
+
+    private static final int LINE_WIDTH = 79;
+    private static final String LINE_INDENT = "    ";
+    private static final String LINE_RECORD_TERMINATOR = "$\n";
+
+    private static final ThreadLocal<XMLInputFactory> xmlInputFactory = ThreadLocal.withInitial(() -> {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    });
+
+    private enum Target {
+        ISO, LINE
+    }
+
+    private final CharsetEncoder encoder;
+    private final float maxBytesPerChar;
+
+    // Character content of the current leader, controlfield or subfield element
+    private final StringBuilder text = new StringBuilder(256);
+    private final StringBuilder leader = new StringBuilder(LEADER_LENGTH);
+    // Line format only - the current field as one unwrapped line and the full record
+    private final StringBuilder line = new StringBuilder(256);
+    private final StringBuilder lines = new StringBuilder(4096);
+    // ISO2709 only - directory and data area
+    private byte[] directory = new byte[1024];
+    private int directoryLength;
+    private byte[] data = new byte[8192];
+    private int dataLength;
+
+    private boolean collectText;
+    private String tag;
+    private String code;
+    private int fieldStart;
+
+    public MarcXchangeTranscoder(Charset charset) {
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.maxBytesPerChar = encoder.maxBytesPerChar();
+    }
+
+    public byte[] toIso2709(byte[] marcXchange) throws MarcReaderException, MarcWriterException {
+        leader.setLength(0);
+        directoryLength = 0;
+        dataLength = 0;
+
+        transcode(marcXchange, Target.ISO);
+
+        final int baseAddress = LEADER_LENGTH + directoryLength + 1;
+        final int recordLength = baseAddress + dataLength + 1;
+        final byte[] result = new byte[recordLength];
+
+        if (leader.length() == 0) {
+            leader.append(DEFAULT_LEADER);
+        }
+        for (int i = 0; i < LEADER_LENGTH; i++) {
+            result[i] = i < leader.length() ? (byte) leader.charAt(i) : (byte) ' ';
+        }
+        writeNumber(result, 0, 5, recordLength);
+        writeNumber(result, 12, 5, baseAddress);
+        System.arraycopy(directory, 0, result, LEADER_LENGTH, directoryLength);
+        result[baseAddress - 1] = FIELD_TERMINATOR;
+        System.arraycopy(data, 0, result, baseAddress, dataLength);
+        result[recordLength - 1] = RECORD_TERMINATOR;
+
+        return result;
+    }
+
+    public byte[] toLine(byte[] marcXchange) throws MarcReaderException, MarcWriterException {
+        lines.setLength(0);
+
+        transcode(marcXchange, Target.LINE);
+
+        lines.append(LINE_RECORD_TERMINATOR);
+        dataLength = 0;
+        encode(lines);
+
+        return Arrays.copyOf(data, dataLength);
+    }
+
+    private void transcode(byte[] marcXchange, Target target) throws MarcReaderException, MarcWriterException {
+        collectText = false;
+        XMLStreamReader reader = null;
+        try {
+            reader = xmlInputFactory.get().createXMLStreamReader(new ByteArrayInputStream(marcXchange));
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        startElement(reader, target);
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (collectText) {
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (endElement(reader.getLocalName(), target)) {
+                            return;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new MarcReaderException("Unable to read MarcXchange record", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ignored) {
+                    // Nothing to do - the reader is backed by a byte array
+                }
+            }
+        }
+    }
+
+    private void startElement(XMLStreamReader reader, Target target) throws MarcWriterException {
+        switch (reader.getLocalName()) {
+            case "leader":
+                startText();
+                break;
+            case "controlfield":
+                tag = reader.getAttributeValue(null, "tag");
+                startText();
+                break;
+            case "datafield":
+                tag = reader.getAttributeValue(null, "tag");
+                final char ind1 = indicator(reader.getAttributeValue(null, "ind1"));
+                final char ind2 = indicator(reader.getAttributeValue(null, "ind2"));
+                if (target == Target.ISO) {
+                    fieldStart = dataLength;
+                    ensureDataCapacity(2);
+                    data[dataLength++] = (byte) ind1;
+                    data[dataLength++] = (byte) ind2;
+                } else {
+                    line.setLength(0);
+                    line.append(tag).append(' ').append(ind1).append(ind2).append(' ');
+                }
+                break;
+            case "subfield":
+                code = reader.getAttributeValue(null, "code");
+                startText();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return true when the record has been completely read
+     */
+    private boolean endElement(String localName, Target target) throws MarcWriterException {
+        switch (localName) {
+            case "leader":
+                leader.setLength(0);
+                leader.append(text);
+                collectText = false;
+                break;
+            case "controlfield":
+                collectText = false;
+                if (target == Target.ISO) {
+                    fieldStart = dataLength;
+                    encode(text);
+                    endIsoField();
+                } else {
+                    line.setLength(0);
+                    line.append(tag).append(' ').append(text);
+                    appendWrapped(line);
+                }
+                break;
+            case "subfield":
+                collectText = false;
+                if (target == Target.ISO) {
+                    ensureDataCapacity(1);
+                    data[dataLength++] = SUBFIELD_DELIMITER;
+                    encode(code);
+                    encode(text);
+                } else {
+                    line.append('*').append(code);
+                    appendEscaped(line, text);
+                }
+                break;
+            case "datafield":
+                if (target == Target.ISO) {
+                    endIsoField();
+                } else {
+                    appendWrapped(line);
+                }
+                break;
+            case "record":
+                return true;
+            default:
+                break;
+        }
+
+        return false;
+    }
+
+    private void startText() {
+        text.setLength(0);
+        collectText = true;
+    }
+
+    private static char indicator(String value) {
+        return value == null || value.isEmpty() ? ' ' : value.charAt(0);
+    }
+
+    private void endIsoField() {
+        ensureDataCapacity(1);
+        data[dataLength++] = FIELD_TERMINATOR;
+
+        if (directoryLength + 12 > directory.length) {
+            directory = Arrays.copyOf(directory, directory.length * 2);
+        }
+        for (int i = 0; i < 3; i++) {
+            directory[directoryLength + i] = i < tag.length() ? (byte) tag.charAt(i) : (byte) ' ';
+        }
+        writeNumber(directory, directoryLength + 3, 4, dataLength - fieldStart);
+        writeNumber(directory, directoryLength + 7, 5, fieldStart);
+        directoryLength += 12;
+    }
+
+    // '*' starts a new subfield and '@' starts an escape sequence in line format so both must be escaped in values
+    private static void appendEscaped(StringBuilder target, CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '*' || c == '@') {
+                target.append('@');
+            }
+            target.append(c);
+        }
+    }
+
+    private void appendWrapped(CharSequence value) {
+        final int length = value.length();
+        int end = Math.min(length, LINE_WIDTH);
+        lines.append(value, 0, end).append('\n');
+        while (end < length) {
+            final int next = Math.min(length, end + LINE_WIDTH - LINE_INDENT.length());
+            lines.append(LINE_INDENT).append(value, end, next).append('\n');
+            end = next;
+        }
+    }
+
+    private static void writeNumber(byte[] target, int offset, int width, int value) {
+        int remaining = value;
+        for (int i = offset + width - 1; i >= offset; i--) {
+            target[i] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+    }
+
+    private void ensureDataCapacity(int additional) {
+        if (dataLength + additional > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + additional));
+        }
+    }
+
+    private void encode(CharSequence chars) throws MarcWriterException {
+        ensureDataCapacity((int) Math.ceil(chars.length() * maxBytesPerChar) + 1);
+
+        final ByteBuffer out = ByteBuffer.wrap(data, dataLength, data.length - dataLength);
+        encoder.reset();
+        try {
+            CoderResult result = encoder.encode(CharBuffer.wrap(chars), out, true);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+            result = encoder.flush(out);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+        } catch (CharacterCodingException e) {
+            throw new MarcWriterException("Unable to encode record content", e);
+        }
+        dataLength = out.position();
+    }
+}
@@ -12,6 +12,7 @@ import org.slf4j.Logger;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -23,10 +24,12 @@ public class MergerThreadCommons {
 
     }
 
-    static void getRecordItemsList(List<String> bibliographicRecordIdList, RawRepoBean bean, int agencyId, Logger logger, RecordByteWriter writer) throws RawRepoException, IOException, MarcReaderException, JSONBException, MarcWriterException, SAXException {
+    static void getRecordItemsList(List<String> bibliographicRecordIdList, RawRepoBean bean, int agencyId, Logger logger, RecordByteWriter writer, DumpStageMetrics metrics) throws RawRepoException, IOException, MarcReaderException, JSONBException, MarcWriterException, SAXException {
         byte[] result;
+        final long fetchStart = System.nanoTime();
         final List<RecordItem> recordItemList = bean.getDecodedContent(bibliographicRecordIdList, null, agencyId);
-        logger.info("Got {} RecordItems", recordItemList.size());
+        metrics.stop(DumpStageMetrics.Stage.FETCH, fetchStart);
+        logger.debug("Got {} RecordItems", recordItemList.size());
         for (RecordItem item : recordItemList) {
             if (item != null) {
                 result = item.getLocal();
@@ -35,25 +38,32 @@ public class MergerThreadCommons {
         }
     }
 
-    static byte[] getBytes(Map<String, byte[]> autRecords, byte[] result, RecordItem item, Mode mode, RawRepoBean bean, int agencyId) throws RawRepoException, MarcReaderException, MarcRecordExpandException {
+    static byte[] getBytes(Map<String, byte[]> autRecords, byte[] result, RecordItem item, Mode mode, RawRepoBean bean, int agencyId, DumpStageMetrics metrics) throws RawRepoException, MarcReaderException, MarcRecordExpandException {
         if (Mode.EXPANDED == mode) {
+            final long expandStart = System.nanoTime();
             final Set<RecordId> parents = bean.getRelationsParents(new RecordId(item.getBibliographicRecordId(), agencyId));
             result = getBytes(autRecords, result, bean, parents);
+            metrics.stop(DumpStageMetrics.Stage.EXPAND, expandStart);
         }
         return result;
     }
 
     static byte[] getBytes(Map<String, byte[]> autRecords, byte[] result, RawRepoBean bean, Set<RecordId> parents) throws RawRepoException, MarcReaderException, MarcRecordExpandException {
         boolean hasAutParents = false;
+        final Set<String> missingAutRecords = new HashSet<>();
         for (RecordId recordId : parents) {
             if (870979 == recordId.getAgencyId()) {
                 hasAutParents = true;
                 if (!autRecords.containsKey(recordId.getBibliographicRecordId())) {
-                    autRecords.put(recordId.getBibliographicRecordId(), bean.fetchRecordContent(recordId));
+                    missingAutRecords.add(recordId.getBibliographicRecordId());
                 }
             }
         }
 
+        if (!missingAutRecords.isEmpty()) {
+            autRecords.putAll(bean.fetchRecordContents(missingAutRecords, 870979));
+        }
+
         if (hasAutParents) {
             result = ExpandCommonMarcRecord.expandRecord(result, autRecords, false);
         }
@@ -27,18 +27,21 @@ public class MergerThreadDBC implements Callable<Boolean> {
     private final int agencyId;
     private final MarcXMerger merger;
     private final Mode mode;
+    private final DumpStageMetrics metrics;
 
-    MergerThreadDBC(RawRepoBean bean, Map<String, String> recordSet, RecordByteWriter writer, int agencyId, String modeAsString) {
+    MergerThreadDBC(RawRepoBean bean, Map<String, String> recordSet, RecordByteWriter writer, int agencyId, String modeAsString, DumpStageMetrics metrics) {
         this.bean = bean;
         this.recordSet = recordSet;
         this.writer = writer;
         this.agencyId = agencyId;
         this.mode = Mode.fromString(modeAsString);
         this.merger = new CustomMarcXMergerPool().checkOut();
+        this.metrics = metrics;
     }
 
     @Override
     public Boolean call() throws Exception {
+        metrics.sliceStarted();
         try {
             final List<String> bibliographicRecordIdList;
             final Map<String, byte[]> autRecords = new HashMap<>();
@@ -48,23 +51,29 @@ public class MergerThreadDBC implements Callable<Boolean> {
             if (!bibliographicRecordIdList.isEmpty()) {
                 byte[] result;
                 if (Mode.RAW == mode) {
-                    MergerThreadCommons.getRecordItemsList(bibliographicRecordIdList, bean, agencyId, LOGGER, writer);
+                    MergerThreadCommons.getRecordItemsList(bibliographicRecordIdList, bean, agencyId, LOGGER, writer, metrics);
                 } else {
                     // MERGED and EXPANDED are retrieved the same way. The difference is whether the records should be enriched with aut records or not
+                    final long fetchStart = System.nanoTime();
                     final List<RecordItem> recordItemList = bean.getDecodedContent(bibliographicRecordIdList, agencyId, 191919);
-                    LOGGER.info("Got {} RecordItems", recordItemList.size());
+                    metrics.stop(DumpStageMetrics.Stage.FETCH, fetchStart);
+                    LOGGER.debug("Got {} RecordItems", recordItemList.size());
                     for (RecordItem item : recordItemList) {
                         final byte[] common = item.getCommon();
                         final byte[] local = item.getLocal();
+                        final long mergeStart = System.nanoTime();
                         final byte[] merged = merger.merge(common, local, true);
+                        metrics.stop(DumpStageMetrics.Stage.MERGE, mergeStart);
 
-                        result = MergerThreadCommons.getBytes(autRecords, merged, item, mode, bean, agencyId);
+                        result = MergerThreadCommons.getBytes(autRecords, merged, item, mode, bean, agencyId, metrics);
                         writer.write(result);
                     }
                 }
             }
         } catch (MarcXMergerException | IOException | MarcReaderException | MarcWriterException | JSONBException ex) {
             LOGGER.info("Caught exception while merging record: ", ex);
+        } finally {
+            metrics.sliceDone();
         }
 
         return true;
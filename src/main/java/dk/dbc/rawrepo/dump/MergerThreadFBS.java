@@ -49,8 +49,9 @@ public class MergerThreadFBS implements Callable<Boolean> {
     private final Mode mode;
     private final MarcXMerger merger;
     private final RecordRelationsBean recordBean;
+    private final DumpStageMetrics metrics;
 
-    MergerThreadFBS(RawRepoBean rawRepoBean, RecordRelationsBean recordRelationsBean, Map<String, String> recordSet, RecordByteWriter writer, int agencyId, String modeAsString) {
+    MergerThreadFBS(RawRepoBean rawRepoBean, RecordRelationsBean recordRelationsBean, Map<String, String> recordSet, RecordByteWriter writer, int agencyId, String modeAsString, DumpStageMetrics metrics) {
         this.rawRepoBean = rawRepoBean;
         this.recordBean = recordRelationsBean;
         this.recordSet = recordSet;
@@ -58,10 +59,20 @@ public class MergerThreadFBS implements Callable<Boolean> {
         this.agencyId = agencyId;
         this.mode = Mode.fromString(modeAsString);
         this.merger = new DefaultMarcXMergerPool().checkOut();
+        this.metrics = metrics;
     }
 
     @Override
     public Boolean call() throws RawRepoException, MarcWriterException, JSONBException, IOException, MarcReaderException, MarcXMergerException, RecordNotFoundException, InternalServerException, SAXException, MarcRecordExpandException, VipCoreException {
+        metrics.sliceStarted();
+        try {
+            return mergeRecords();
+        } finally {
+            metrics.sliceDone();
+        }
+    }
+
+    private boolean mergeRecords() throws RawRepoException, MarcWriterException, JSONBException, IOException, MarcReaderException, MarcXMergerException, RecordNotFoundException, InternalServerException, SAXException, MarcRecordExpandException, VipCoreException {
         final Map<String, byte[]> autRecords = new HashMap<>();
 
         if (recordSet.size() > 0) {
@@ -83,7 +94,7 @@ public class MergerThreadFBS implements Callable<Boolean> {
                     .map(Map.Entry::getKey)
                     .collect(Collectors.toList());
 
-            LOGGER.info("Found the following records for agency {}: {} marcXchange records, {} enrichments and {} holdings", agencyId, marcXchangeBibliographicRecordIds.size(), enrichmentBibliographicRecordIds.size(), bibliographicRecordIdsWithHolding.size());
+            LOGGER.debug("Found the following records for agency {}: {} marcXchange records, {} enrichments and {} holdings", agencyId, marcXchangeBibliographicRecordIds.size(), enrichmentBibliographicRecordIds.size(), bibliographicRecordIdsWithHolding.size());
 
             // Handle local records
             // Only DBC records can have authority link, so we don't need to handle that here
@@ -91,7 +102,9 @@ public class MergerThreadFBS implements Callable<Boolean> {
             byte[] local;
             byte[] result;
             if (!marcXchangeBibliographicRecordIds.isEmpty()) {
+                final long fetchStart = System.nanoTime();
                 List<RecordItem> recordItemList = rawRepoBean.getDecodedContent(marcXchangeBibliographicRecordIds, null, agencyId);
+                metrics.stop(DumpStageMetrics.Stage.FETCH, fetchStart);
                 for (RecordItem item : recordItemList) {
                     if (item != null) {
                         local = item.getLocal();
@@ -112,18 +125,23 @@ public class MergerThreadFBS implements Callable<Boolean> {
             // Enrichments can be returned as raw records
             if (!enrichmentBibliographicRecordIds.isEmpty()) {
                 if (Mode.RAW == mode) {
-                    MergerThreadCommons.getRecordItemsList(enrichmentBibliographicRecordIds, rawRepoBean, agencyId, LOGGER, writer);
+                    MergerThreadCommons.getRecordItemsList(enrichmentBibliographicRecordIds, rawRepoBean, agencyId, LOGGER, writer, metrics);
                 } else {
+                    final long fetchStart = System.nanoTime();
                     List<RecordItem> recordItemList = rawRepoBean.getDecodedContent(enrichmentBibliographicRecordIds, 870970, agencyId);
+                    metrics.stop(DumpStageMetrics.Stage.FETCH, fetchStart);
                     RecordId expandableRecordId = null;
                     for (RecordItem item : recordItemList) {
                         if (item != null) {
                             final byte[] common = item.getCommon();
                             local = item.getLocal();
 
+                            final long mergeStart = System.nanoTime();
                             result = merger.merge(common, local, true);
+                            metrics.stop(DumpStageMetrics.Stage.MERGE, mergeStart);
 
                             if (Mode.EXPANDED == mode) {
+                                final long expandStart = System.nanoTime();
                                 if (EXPANDABLE_AGENCIES.contains(agencyId)) {
                                     expandableRecordId = new RecordId(item.getBibliographicRecordId(), agencyId);
                                 } else {
@@ -141,6 +159,7 @@ public class MergerThreadFBS implements Callable<Boolean> {
                                     final Set<RecordId> parents = rawRepoBean.getRelationsParents(expandableRecordId);
                                     result = MergerThreadCommons.getBytes(autRecords, result, rawRepoBean, parents);
                                 }
+                                metrics.stop(DumpStageMetrics.Stage.EXPAND, expandStart);
                             }
 
                             try {
@@ -157,12 +176,14 @@ public class MergerThreadFBS implements Callable<Boolean> {
 
             // Handle holdings
             if (!bibliographicRecordIdsWithHolding.isEmpty()) {
+                final long fetchStart = System.nanoTime();
                 List<RecordItem> recordItemList = rawRepoBean.getDecodedContent(bibliographicRecordIdsWithHolding, null, 870970);
+                metrics.stop(DumpStageMetrics.Stage.FETCH, fetchStart);
                 for (RecordItem item : recordItemList) {
                     if (item != null) {
                         local = item.getLocal();
 
-                        local = MergerThreadCommons.getBytes(autRecords, local, item, mode, rawRepoBean, agencyId);
+                        local = MergerThreadCommons.getBytes(autRecords, local, item, mode, rawRepoBean, agencyId, metrics);
 
                         MarcXchangeV1Reader reader = new MarcXchangeV1Reader(new ByteArrayInputStream(local), StandardCharsets.UTF_8);
                         MarcRecord record = reader.read();
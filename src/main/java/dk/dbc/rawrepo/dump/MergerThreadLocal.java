@@ -21,16 +21,19 @@ public class MergerThreadLocal implements Callable<Boolean> {
     private final Map<String, String> recordSet;
     private final RecordByteWriter writer;
     private final int agencyId;
+    private final DumpStageMetrics metrics;
 
-    MergerThreadLocal(RawRepoBean bean, Map<String, String> recordSet, RecordByteWriter writer, int agencyId) {
+    MergerThreadLocal(RawRepoBean bean, Map<String, String> recordSet, RecordByteWriter writer, int agencyId, DumpStageMetrics metrics) {
         this.bean = bean;
         this.recordSet = recordSet;
         this.writer = writer;
         this.agencyId = agencyId;
+        this.metrics = metrics;
     }
 
     @Override
     public Boolean call() throws Exception {
+        metrics.sliceStarted();
         try {
             List<String> bibliographicRecordIdList;
             byte[] result;
@@ -38,8 +41,10 @@ public class MergerThreadLocal implements Callable<Boolean> {
             bibliographicRecordIdList = new ArrayList<>(recordSet.keySet());
 
             if (!bibliographicRecordIdList.isEmpty()) {
+                final long fetchStart = System.nanoTime();
                 List<RecordItem> recordItemList = bean.getDecodedContent(bibliographicRecordIdList, null, agencyId);
-                LOGGER.info("Got {} RecordItems", recordItemList.size());
+                metrics.stop(DumpStageMetrics.Stage.FETCH, fetchStart);
+                LOGGER.debug("Got {} RecordItems", recordItemList.size());
                 for (RecordItem item : recordItemList) {
                     if (item != null) {
                         result = item.getLocal();
@@ -49,6 +54,8 @@ public class MergerThreadLocal implements Callable<Boolean> {
             }
         } catch (IOException | MarcReaderException | MarcWriterException | JSONBException ex) {
             LOGGER.info("Caught exception while merging record: ", ex);
+        } finally {
+            metrics.sliceDone();
         }
 
         return true;
@@ -5,8 +5,6 @@ import dk.dbc.jsonb.JSONBException;
 import dk.dbc.marc.DanMarc2Charset;
 import dk.dbc.marc.binding.MarcRecord;
 import dk.dbc.marc.reader.MarcReaderException;
-import dk.dbc.marc.writer.DanMarc2LineFormatWriter;
-import dk.dbc.marc.writer.Iso2709MarcRecordWriter;
 import dk.dbc.marc.writer.JsonWriter;
 import dk.dbc.marc.writer.MarcWriterException;
 import dk.dbc.marc.writer.MarcXchangeV1Writer;
@@ -25,23 +23,31 @@ public class RecordByteWriter {
     private final OutputStream outputStream;
     private final OutputFormat outputFormat;
     private final Charset charset;
+    private final byte[] lineSeparator;
+    private final DumpStageMetrics metrics;
 
     private final JSONBContext jsonbContext = new JSONBContext();
-    private final DanMarc2LineFormatWriter danMarc2LineFormatWriter = new DanMarc2LineFormatWriter();
-    private final Iso2709MarcRecordWriter iso2709Writer = new Iso2709MarcRecordWriter();
     private final JsonWriter jsonWriter = new JsonWriter();
     private final MarcXchangeV1Writer marcXchangeV1Writer = new MarcXchangeV1Writer();
+    // ISO and LINE output is transcoded directly from the MarcXchange bytes. The transcoder reuses its buffers so each
+    // merger thread gets its own instance
+    private final ThreadLocal<MarcXchangeTranscoder> transcoder;
     private static final String COLLECTION_FOOTER_XML = "</collection>";
     private static final String COLLECTION_HEADER_XML = "<collection xmlns='info:lc/xmlns/marcxchange-v1' xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance' xsi:schemaLocation='info:lc/xmlns/marcxchange-v1 http://www.loc.gov/standards/iso25577/marcxchange-1-1.xsd'>";
 
-    public RecordByteWriter(OutputStream outputStream, Params params) {
+    public RecordByteWriter(OutputStream outputStream, Params params, DumpStageMetrics metrics) {
         this.outputStream = outputStream;
         this.outputFormat = OutputFormat.fromString(params.getOutputFormat());
         this.charset = "DANMARC2".equalsIgnoreCase(params.getOutputEncoding()) ? new DanMarc2Charset() : Charset.forName(params.getOutputEncoding());
+        this.lineSeparator = "\n".getBytes(charset);
+        this.metrics = metrics;
 
         // marcXchangeV1Writer is used for writing collections. This means the output already has XML declaration so
         // we don't want to write that in every record
         this.marcXchangeV1Writer.setProperty(ADD_XML_DECLARATION, false);
+
+        final Charset transcoderCharset = this.charset;
+        this.transcoder = ThreadLocal.withInitial(() -> new MarcXchangeTranscoder(transcoderCharset));
     }
 
     public void writeHeader() throws IOException {
@@ -60,8 +66,10 @@ public class RecordByteWriter {
     }
 
     public void write(byte[] data) throws IOException, MarcReaderException, JSONBException, MarcWriterException, SAXException {
+        final long serializeStart = System.nanoTime();
         final MarcRecord marcRecord;
         final byte[] recordBytes;
+        final boolean addLineSeparator;
 
         switch (outputFormat) {
             case JSON:
@@ -69,47 +77,46 @@ public class RecordByteWriter {
                 final MarcRecord recordJSON = RecordObjectMapper.contentToMarcRecord(data);
                 final ContentDTO contentDTO = RecordDTOMapper.contentToDTO(recordJSON);
                 recordBytes = jsonbContext.marshall(contentDTO).getBytes(charset);
-                synchronized (this) {
-                    outputStream.write(recordBytes);
-                    outputStream.write("\n".getBytes(charset));
-                }
+                addLineSeparator = true;
                 break;
             case MARC_JSON:
                 marcRecord = RecordObjectMapper.contentToMarcRecord(data);
                 recordBytes = jsonWriter.write(marcRecord, charset);
-                synchronized (this) {
-                    outputStream.write(recordBytes);
-                    outputStream.write("\n".getBytes(charset));
-                }
+                addLineSeparator = true;
                 break;
             case LINE:
-                marcRecord = RecordObjectMapper.contentToMarcRecord(data);
-                synchronized (this) {
-                    outputStream.write(danMarc2LineFormatWriter.write(marcRecord, charset));
-                }
+                recordBytes = transcoder.get().toLine(data);
+                addLineSeparator = false;
                 break;
             case LINE_XML:
-                synchronized (this) {
-                    outputStream.write(data);
-                    outputStream.write("\n".getBytes(charset));
-                }
+                recordBytes = data;
+                addLineSeparator = true;
                 break;
             case XML:
                 marcRecord = RecordObjectMapper.contentToMarcRecord(data);
                 recordBytes = marcXchangeV1Writer.write(marcRecord, charset);
-                synchronized (this) {
-                    outputStream.write(recordBytes);
-                    outputStream.write("\n".getBytes(charset));
-                }
+                addLineSeparator = true;
                 break;
             case ISO:
-                marcRecord = RecordObjectMapper.contentToMarcRecord(data);
-                recordBytes = iso2709Writer.write(marcRecord, charset);
-                synchronized (this) {
-                    outputStream.write(recordBytes);
-                }
+                recordBytes = transcoder.get().toIso2709(data);
+                addLineSeparator = false;
                 break;
+            default:
+                throw new IllegalStateException("Unhandled output format " + outputFormat);
+        }
+        metrics.stop(DumpStageMetrics.Stage.SERIALIZE, serializeStart);
+
+        final long waitStart = System.nanoTime();
+        synchronized (this) {
+            metrics.stop(DumpStageMetrics.Stage.WRITER_WAIT, waitStart);
+            final long writeStart = System.nanoTime();
+            outputStream.write(recordBytes);
+            if (addLineSeparator) {
+                outputStream.write(lineSeparator);
+            }
+            metrics.stop(DumpStageMetrics.Stage.WRITE, writeStart);
         }
+        metrics.recordWritten(recordBytes.length + (addLineSeparator ? lineSeparator.length : 0));
     }
 
 }
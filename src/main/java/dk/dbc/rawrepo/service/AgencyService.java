@@ -4,10 +4,11 @@ import dk.dbc.jsonb.JSONBContext;
 import dk.dbc.jsonb.JSONBException;
 import dk.dbc.rawrepo.RawRepoException;
 import dk.dbc.rawrepo.RecordBeanUtils;
+import dk.dbc.rawrepo.RecordHistoryBean;
 import dk.dbc.rawrepo.dao.RawRepoBean;
 import dk.dbc.rawrepo.dto.AgencyCollectionDTO;
-import dk.dbc.rawrepo.dto.RecordIdCollectionDTO;
 import dk.dbc.rawrepo.dto.RecordIdDTO;
+import dk.dbc.rawrepo.dto.RecordIdPageDTO;
 import dk.dbc.rawrepo.dump.RecordStatus;
 import dk.dbc.util.StopwatchInterceptor;
 import dk.dbc.util.Timed;
@@ -25,20 +26,26 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 @Interceptors({StopwatchInterceptor.class})
 @Stateless
 @Path("api")
 public class AgencyService {
     private static final XLogger LOGGER = XLoggerFactory.getXLogger(AgencyService.class);
+    private static final int MAX_RECORD_ID_PAGE_SIZE = 100000;
     private final JSONBContext jsonbContext = new JSONBContext();
 
     @EJB
     private RawRepoBean rawRepoBean;
 
+    @EJB
+    private RecordHistoryBean historyBean;
+
     @GET
     @Path("v1/agencies")
     @Produces({MediaType.APPLICATION_JSON})
@@ -74,38 +81,77 @@ public class AgencyService {
                                               @QueryParam("created-after") String createdAfter,
                                               @QueryParam("modified-before") String modifiedBefore,
                                               @QueryParam("modified-after") String modifiedAfter) {
-        String res;
+        // The created and modified fields are timestamps. So if only the date is set then add time
+        final String createdBeforeTimestamp = createdBefore != null && createdBefore.length() == 10 ? createdBefore + " 23:59:59" : createdBefore;
+        final String createdAfterTimestamp = createdAfter != null && createdAfter.length() == 10 ? createdAfter + " 00:00:00" : createdAfter;
+        final String modifiedBeforeTimestamp = modifiedBefore != null && modifiedBefore.length() == 10 ? modifiedBefore + " 23:59:59" : modifiedBefore;
+        final String modifiedAfterTimestamp = modifiedAfter != null && modifiedAfter.length() == 10 ? modifiedAfter + " 00:00:00" : modifiedAfter;
 
         try {
-            Map<String, String> bibliographicRecordIdList;
+            // The timestamps are validated before the response is started
+            for (String timestamp : Arrays.asList(createdBeforeTimestamp, createdAfterTimestamp, modifiedBeforeTimestamp, modifiedAfterTimestamp)) {
+                if (timestamp != null && !timestamp.isEmpty()) {
+                    Timestamp.valueOf(timestamp);
+                }
+            }
 
-            RecordStatus recordStatus = allowDeleted ? RecordStatus.ALL : RecordStatus.ACTIVE;
+            final RecordStatus recordStatus = allowDeleted ? RecordStatus.ALL : RecordStatus.ACTIVE;
 
-            if (createdBefore == null && createdAfter == null && modifiedBefore == null && modifiedAfter == null) {
-                bibliographicRecordIdList = rawRepoBean.getBibliographicRecordIdForAgency(agencyId, recordStatus);
-            } else {
-                // The created and modified fields are timestamps. So if only the date is set then add time
-                if (createdBefore != null && createdBefore.length() == 10) {
-                    createdBefore = createdBefore + " 23:59:59";
-                }
+            int returnAgencyId = agencyId;
 
-                if (createdAfter != null && createdAfter.length() == 10) {
-                    createdAfter = createdAfter + " 00:00:00";
-                }
+            // If internalAgencyHandling is true a list of bibliographicRecordId:191919 is returned instead of bibliographicRecordId:agencyId
+            if (internalAgencyHandling && RecordBeanUtils.DBC_AGENCIES.contains(agencyId)) {
+                returnAgencyId = RecordBeanUtils.DBC_ENRICHMENT_AGENCY;
+            }
 
-                if (modifiedBefore != null && modifiedBefore.length() == 10) {
-                    modifiedBefore = modifiedBefore + " 23:59:59";
-                }
+            LOGGER.info("Streaming record ids for agency {} ({} deleted records)", agencyId, allowDeleted ? "including" : "not including");
 
-                if (modifiedAfter != null && modifiedAfter.length() == 10) {
-                    modifiedAfter = modifiedAfter + " 00:00:00";
-                }
+            // The ids are read from the streaming output so the cursor lives in a transaction of its own
+            final StreamingOutput output = new RecordIdsOutput(jsonbContext.getObjectMapper(), returnAgencyId,
+                    consumer -> rawRepoBean.streamBibliographicRecordIds(agencyId, recordStatus,
+                            createdBeforeTimestamp, createdAfterTimestamp, modifiedBeforeTimestamp, modifiedAfterTimestamp, consumer));
+
+            return Response.ok(output, MediaType.APPLICATION_JSON).build();
+        } catch (IllegalArgumentException ex) {
+            LOGGER.error("Invalid input", ex);
+            return Response.status(400).entity("Invalid input").build();
+        } finally {
+            LOGGER.info("v1/agency/{agencyid}/recordids");
+        }
+    }
+
+    @GET
+    @Path("v1/agency/{agencyid}/recordids/page")
+    @Produces({MediaType.APPLICATION_JSON})
+    @Timed
+    public Response getBibliographicRecordIdPage(@PathParam("agencyid") int agencyId,
+                                                 @DefaultValue("false") @QueryParam("allow-deleted") boolean allowDeleted,
+                                                 @DefaultValue("false") @QueryParam("internal-agency-handling") boolean internalAgencyHandling,
+                                                 @QueryParam("created-before") String createdBefore,
+                                                 @QueryParam("created-after") String createdAfter,
+                                                 @QueryParam("modified-before") String modifiedBefore,
+                                                 @QueryParam("modified-after") String modifiedAfter,
+                                                 @QueryParam("after") String after,
+                                                 @DefaultValue("10000") @QueryParam("limit") int limit) {
+        if (limit < 1 || limit > MAX_RECORD_ID_PAGE_SIZE) {
+            return Response.status(400).entity("limit must be between 1 and " + MAX_RECORD_ID_PAGE_SIZE).build();
+        }
+
+        // The created and modified fields are timestamps. So if only the date is set then add time
+        final String createdBeforeTimestamp = createdBefore != null && createdBefore.length() == 10 ? createdBefore + " 23:59:59" : createdBefore;
+        final String createdAfterTimestamp = createdAfter != null && createdAfter.length() == 10 ? createdAfter + " 00:00:00" : createdAfter;
+        final String modifiedBeforeTimestamp = modifiedBefore != null && modifiedBefore.length() == 10 ? modifiedBefore + " 23:59:59" : modifiedBefore;
+        final String modifiedAfterTimestamp = modifiedAfter != null && modifiedAfter.length() == 10 ? modifiedAfter + " 00:00:00" : modifiedAfter;
 
-                bibliographicRecordIdList = rawRepoBean.getBibliographicRecordIdForAgencyInterval(agencyId, recordStatus, createdBefore, createdAfter, modifiedBefore, modifiedAfter);
+        try {
+            // The timestamps are validated before the response is started
+            for (String timestamp : Arrays.asList(createdBeforeTimestamp, createdAfterTimestamp, modifiedBeforeTimestamp, modifiedAfterTimestamp)) {
+                if (timestamp != null && !timestamp.isEmpty()) {
+                    Timestamp.valueOf(timestamp);
+                }
             }
 
-            final RecordIdCollectionDTO dto = new RecordIdCollectionDTO();
-            dto.setRecordIds(new ArrayList<>());
+            final RecordStatus recordStatus = allowDeleted ? RecordStatus.ALL : RecordStatus.ACTIVE;
 
             int returnAgencyId = agencyId;
 
@@ -114,21 +160,65 @@ public class AgencyService {
                 returnAgencyId = RecordBeanUtils.DBC_ENRICHMENT_AGENCY;
             }
 
-            for (String bibliographicRecordId : bibliographicRecordIdList.keySet()) {
+            // One extra id is fetched to find out whether there is a next page
+            final List<String> bibliographicRecordIds = rawRepoBean.getBibliographicRecordIdPage(agencyId, recordStatus,
+                    createdBeforeTimestamp, createdAfterTimestamp, modifiedBeforeTimestamp, modifiedAfterTimestamp, after, limit + 1);
+            final boolean hasNext = bibliographicRecordIds.size() > limit;
+            final List<String> page = hasNext ? bibliographicRecordIds.subList(0, limit) : bibliographicRecordIds;
+
+            final RecordIdPageDTO dto = new RecordIdPageDTO();
+            dto.setRecordIds(new ArrayList<>());
+            for (String bibliographicRecordId : page) {
                 dto.getRecordIds().add(new RecordIdDTO(bibliographicRecordId, returnAgencyId));
             }
+            // The next cursor is the last id of the page and null when there are no more pages
+            dto.setNext(hasNext ? page.get(page.size() - 1) : null);
 
-            LOGGER.info("Found {} record ids for agency {} ({} deleted records)", dto.getRecordIds().size(), agencyId, allowDeleted ? "including" : "not including");
-
-            res = jsonbContext.marshall(dto);
+            LOGGER.info("Found {} record ids for agency {} after '{}'", page.size(), agencyId, after);
 
-            return Response.ok(res, MediaType.APPLICATION_JSON).build();
+            return Response.ok(jsonbContext.marshall(dto), MediaType.APPLICATION_JSON).build();
+        } catch (IllegalArgumentException ex) {
+            LOGGER.error("Invalid input", ex);
+            return Response.status(400).entity("Invalid input").build();
         } catch (JSONBException | RawRepoException ex) {
-            LOGGER.error("Exception during getBibliographicRecordIds", ex);
+            LOGGER.error("Exception during getBibliographicRecordIdPage", ex);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
         } finally {
-            LOGGER.info("v1/agency/{agencyid}/recordids");
+            LOGGER.info("v1/agency/{agencyid}/recordids/page");
         }
     }
 
+    @GET
+    @Path("v1/agency/{agencyid}/history")
+    @Produces({NdjsonOutput.MEDIA_TYPE})
+    @Timed
+    public Response getHistory(@PathParam("agencyid") int agencyId,
+                               @DefaultValue("false") @QueryParam("include-content") boolean includeContent,
+                               @QueryParam("modified-before") String modifiedBefore,
+                               @QueryParam("modified-after") String modifiedAfter) {
+        // The modified field is a timestamp. So if only the date is set then add time
+        final String before = modifiedBefore != null && modifiedBefore.length() == 10 ? modifiedBefore + " 23:59:59" : modifiedBefore;
+        final String after = modifiedAfter != null && modifiedAfter.length() == 10 ? modifiedAfter + " 00:00:00" : modifiedAfter;
+
+        try {
+            // The timestamps are validated before the response is started
+            if (before != null) {
+                Timestamp.valueOf(before);
+            }
+            if (after != null) {
+                Timestamp.valueOf(after);
+            }
+
+            // The history bean is called from the streaming output so each page is read in a transaction of its own
+            final StreamingOutput output = new RecordHistoryOutput(jsonbContext.getObjectMapper(),
+                    (last, limit) -> historyBean.getHistoryPage(agencyId, after, before, includeContent, last, limit));
+
+            return Response.ok(output, NdjsonOutput.MEDIA_TYPE).build();
+        } catch (IllegalArgumentException ex) {
+            LOGGER.error("Invalid input", ex);
+            return Response.status(400).entity("Invalid input").build();
+        } finally {
+            LOGGER.info("v1/agency/{agencyid}/history");
+        }
+    }
 }
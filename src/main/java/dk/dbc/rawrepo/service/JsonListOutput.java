@@ -0,0 +1,65 @@
+package dk.dbc.rawrepo.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import dk.dbc.rawrepo.RawRepoException;
+import dk.dbc.rawrepo.exception.InternalServerException;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes an object with a single list field, e.g. {"recordIds":[...]}, while the values of the list are read from the
+ * database, so the list is never kept in memory.
+ * <p>
+ * If the values can't be read the status has already been sent, so the object is left unterminated instead of being
+ * closed as a truncated but well-formed list.
+ */
+abstract class JsonListOutput implements StreamingOutput {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(JsonListOutput.class);
+
+    @FunctionalInterface
+    interface ValueWriter {
+        void write(Object value) throws IOException;
+    }
+
+    private final ObjectMapper objectMapper;
+    private final String fieldName;
+
+    /**
+     * @param objectMapper The mapper to write the values with
+     * @param fieldName    The name of the list field
+     */
+    JsonListOutput(ObjectMapper objectMapper, String fieldName) {
+        this.objectMapper = objectMapper;
+        this.fieldName = fieldName;
+    }
+
+    /**
+     * Reads the values and hands each of them to the writer.
+     */
+    abstract void writeValues(ValueWriter writer) throws RawRepoException, InternalServerException, IOException;
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        // The values are collected in the buffer of the generator instead of being flushed to the client one by one
+        final ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+            generator.writeStartObject();
+            generator.writeArrayFieldStart(fieldName);
+            writeValues(value -> writer.writeValue(generator, value));
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } catch (RawRepoException | InternalServerException e) {
+            LOGGER.error("Caught exception during write", e);
+            throw new WebApplicationException("Caught exception during write", e);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package dk.dbc.rawrepo.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dk.dbc.rawrepo.exception.InternalServerException;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes NDJSON, i.e. one JSON object per line, while the lines are read from the database.
+ */
+abstract class NdjsonOutput implements StreamingOutput {
+    static final String MEDIA_TYPE = "application/x-ndjson";
+
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(NdjsonOutput.class);
+
+    @FunctionalInterface
+    interface LineWriter {
+        void write(ObjectNode line) throws IOException;
+    }
+
+    final ObjectMapper objectMapper;
+
+    /**
+     * @param objectMapper The mapper to build and write the lines with
+     */
+    NdjsonOutput(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Reads the lines and hands each of them to the writer.
+     */
+    abstract void writeLines(LineWriter writer) throws InternalServerException, IOException;
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        final BufferedOutputStream buffered = new BufferedOutputStream(out);
+        try {
+            writeLines(line -> {
+                buffered.write(objectMapper.writeValueAsBytes(line));
+                buffered.write('\n');
+            });
+        } catch (InternalServerException e) {
+            LOGGER.error("Caught exception during write", e);
+            throw new WebApplicationException("Caught exception during write", e);
+        }
+        buffered.flush();
+    }
+}
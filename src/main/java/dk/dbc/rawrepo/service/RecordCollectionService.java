@@ -1,5 +1,6 @@
 package dk.dbc.rawrepo.service;
 
+import com.fasterxml.jackson.core.JsonParser;
 import dk.dbc.jsonb.JSONBContext;
 import dk.dbc.jsonb.JSONBException;
 import dk.dbc.marc.binding.MarcRecord;
@@ -11,26 +12,28 @@ import dk.dbc.rawrepo.MarcRecordBean;
 import dk.dbc.rawrepo.Record;
 import dk.dbc.rawrepo.RecordBean;
 import dk.dbc.rawrepo.RecordCollectionBean;
+import dk.dbc.rawrepo.RecordHistoryBean;
 import dk.dbc.rawrepo.RecordId;
 import dk.dbc.rawrepo.RecordRelationsBean;
 import dk.dbc.rawrepo.RecordSimpleBean;
+import dk.dbc.rawrepo.dao.RawRepoBean;
 import dk.dbc.rawrepo.dto.RecordCollectionDTO;
-import dk.dbc.rawrepo.dto.RecordCollectionDTOv2;
 import dk.dbc.rawrepo.dto.RecordDTO;
 import dk.dbc.rawrepo.dto.RecordDTOMapper;
 import dk.dbc.rawrepo.dto.RecordIdCollectionDTO;
 import dk.dbc.rawrepo.dto.RecordIdDTO;
-import dk.dbc.rawrepo.dto.RecordRelationChildrenCollectionDTO;
+import dk.dbc.rawrepo.dump.DumpStageMetrics;
 import dk.dbc.rawrepo.dump.OutputFormat;
 import dk.dbc.rawrepo.exception.InternalServerException;
 import dk.dbc.rawrepo.exception.RecordNotFoundException;
-import dk.dbc.rawrepo.exception.WebApplicationInvalidInputException;
+import dk.dbc.rawrepo.output.CountingOutputStream;
 import dk.dbc.rawrepo.output.OutputStreamRecordWriter;
 import dk.dbc.rawrepo.output.OutputStreamWriterUtil;
 import dk.dbc.util.StopwatchInterceptor;
 import dk.dbc.util.Timed;
 import dk.dbc.vipcore.exception.VipCoreException;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
@@ -51,15 +54,22 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Deque;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
 
-import static dk.dbc.rawrepo.dto.RecordObjectMapper.recordIdCollectionDTOToObject;
+import static dk.dbc.rawrepo.dto.RecordObjectMapper.recordIdCollectionFromJson;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 @Interceptors({StopwatchInterceptor.class})
@@ -67,6 +77,9 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 @Path("api")
 public class RecordCollectionService {
     private static final XLogger LOGGER = XLoggerFactory.getXLogger(RecordCollectionService.class);
+    // Raw records are fetched with a single query per batch while merged records are handled one by one in a transaction
+    private static final int RAW_FETCH_BATCH_SIZE = 500;
+    private static final int MERGED_FETCH_BATCH_SIZE = 50;
     private final JSONBContext jsonbContext = new JSONBContext();
     private final JsonWriter jsonWriter = new JsonWriter();
 
@@ -85,6 +98,9 @@ public class RecordCollectionService {
     @Inject
     private RecordRelationsBean recordRelationsBean;
 
+    @Inject
+    private RecordHistoryBean historyBean;
+
     @Inject
     @ConfigProperty(name = "DUMP_THREAD_COUNT", defaultValue = "8")
     private int THREAD_COUNT;
@@ -92,6 +108,9 @@ public class RecordCollectionService {
     @Resource(lookup = "java:comp/DefaultManagedExecutorService")
     private ManagedExecutorService executor;
 
+    @Inject
+    private MetricRegistry metricRegistry;
+
     @GET
     @Path("v1/records/{agencyid}/{bibliographicrecordid}")
     @Produces({MediaType.APPLICATION_JSON})
@@ -267,46 +286,76 @@ public class RecordCollectionService {
     @Consumes({MediaType.APPLICATION_JSON})
     @Produces({MediaType.TEXT_PLAIN})
     @Timed
-    public Response getRecordsBulkv2(String request,
+    public Response getRecordsBulkv2(InputStream request,
                                      @DefaultValue("false") @QueryParam("allow-deleted") boolean allowDeleted,
                                      @DefaultValue("false") @QueryParam("exclude-dbc-fields") boolean excludeDBCFields,
                                      @DefaultValue("false") @QueryParam("use-parent-agency") boolean useParentAgency,
                                      @DefaultValue("LINE") @QueryParam("output-format") String outputFormat,
                                      @DefaultValue("UTF-8") @QueryParam("output-encoding") String outputEncoding,
                                      @DefaultValue("false") @QueryParam("expand") boolean doExpand,
-                                     @DefaultValue("false") @QueryParam("keep-aut-fields") boolean keepAutFields) {
+                                     @DefaultValue("false") @QueryParam("keep-aut-fields") boolean keepAutFields,
+                                     @DefaultValue("false") @QueryParam("preserve-order") boolean preserveOrder) {
         try {
-            final RecordIdCollectionDTO recordIdCollectionDTO = jsonbContext.unmarshall(request, RecordIdCollectionDTO.class);
+            final List<RecordId> recordIds;
+            try (JsonParser parser = jsonbContext.getObjectMapper().getFactory().createParser(request)) {
+                recordIds = recordIdCollectionFromJson(parser);
+            }
 
+            // The ids are merged in batches on the executor with at most THREAD_COUNT batches in progress. Each batch is
+            // written as soon as it is done, or in the requested order if preserve-order is set
             final StreamingOutput output = out -> {
+                final Deque<Future<List<MarcRecord>>> pending = new ArrayDeque<>();
                 try {
-                    final OutputStreamRecordWriter writer = OutputStreamWriterUtil.getWriter(outputFormat, out, outputEncoding);
-                    final List<Callable<Boolean>> threadList = new ArrayList<>();
-                    final Iterator<RecordIdDTO> iterator = recordIdCollectionDTO.getRecordIds().iterator();
-
-                    for (int i = 0; i < THREAD_COUNT; i++) {
-                        threadList.add(new BulkMergeThread(iterator,
-                                writer,
-                                allowDeleted,
-                                excludeDBCFields,
-                                useParentAgency,
-                                doExpand,
-                                keepAutFields));
+                    final CountingOutputStream countingOut = new CountingOutputStream(out);
+                    final OutputStreamRecordWriter writer = OutputStreamWriterUtil.getWriter(outputFormat, countingOut, outputEncoding);
+                    final CompletionService<List<MarcRecord>> completionService = new ExecutorCompletionService<>(executor);
+                    // The bulk endpoint isn't tied to a specific agency type
+                    final DumpStageMetrics metrics = new DumpStageMetrics(metricRegistry, "bulk", doExpand ? "expanded" : "merged");
+                    int index = 0;
+
+                    while (index < recordIds.size() || !pending.isEmpty()) {
+                        while (index < recordIds.size() && pending.size() < THREAD_COUNT) {
+                            final List<RecordId> batch = recordIds.subList(index, Math.min(index + MERGED_FETCH_BATCH_SIZE, recordIds.size()));
+                            final Callable<List<MarcRecord>> task = () -> mergeBatch(batch, metrics, allowDeleted, excludeDBCFields, useParentAgency, doExpand, keepAutFields);
+                            pending.add(preserveOrder ? executor.submit(task) : completionService.submit(task));
+                            index += batch.size();
+                        }
+
+                        final long waitStart = System.nanoTime();
+                        final Future<List<MarcRecord>> done = preserveOrder ? pending.peekFirst() : completionService.take();
+                        final List<MarcRecord> marcRecords = done.get();
+                        pending.remove(done);
+                        metrics.stop(DumpStageMetrics.Stage.BATCH, waitStart);
+
+                        for (MarcRecord marcRecord : marcRecords) {
+                            final long writeStart = System.nanoTime();
+                            final long countBefore = countingOut.getCount();
+                            writer.write(marcRecord);
+                            metrics.stop(DumpStageMetrics.Stage.WRITE, writeStart);
+                            metrics.recordWritten(countingOut.getCount() - countBefore);
+                        }
                     }
-
-                    LOGGER.info("{} MergerThreads has been started", THREAD_COUNT);
-                    executor.invokeAll(threadList);
                 } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                     LOGGER.error("Caught exception during write", e);
                     throw new WebApplicationException("Caught exception during write", e);
+                } catch (WebApplicationException e) {
+                    throw e;
+                } catch (Exception e) {
+                    LOGGER.error("Caught exception during write", e);
+                    throw new WebApplicationException("Caught exception during write", e);
+                } finally {
+                    for (Future<List<MarcRecord>> future : pending) {
+                        future.cancel(true);
+                    }
                 }
             };
 
             return Response.ok(output).build();
-        } catch (WebApplicationInvalidInputException ex) {
+        } catch (IOException ex) {
             LOGGER.error("Invalid input", ex);
             return Response.status(400).entity("Invalid input").build();
-        } catch (WebApplicationException | JSONBException ex) {
+        } catch (WebApplicationException ex) {
             LOGGER.error("Exception during getRecordsBulkv2", ex);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
         } finally {
@@ -314,6 +363,32 @@ public class RecordCollectionService {
         }
     }
 
+    @POST
+    @Path("v1/records/history")
+    @Consumes({MediaType.APPLICATION_JSON})
+    @Produces({NdjsonOutput.MEDIA_TYPE})
+    @Timed
+    public Response getRecordsHistory(InputStream request,
+                                      @DefaultValue("false") @QueryParam("include-content") boolean includeContent) {
+        try {
+            final List<RecordId> recordIds;
+            try (JsonParser parser = jsonbContext.getObjectMapper().getFactory().createParser(request)) {
+                recordIds = recordIdCollectionFromJson(parser);
+            }
+
+            // The history bean is called from the streaming output so each page is read in a transaction of its own
+            final StreamingOutput output = new RecordHistoryOutput(jsonbContext.getObjectMapper(),
+                    (after, limit) -> historyBean.getHistoryPage(recordIds, includeContent, after, limit));
+
+            return Response.ok(output, NdjsonOutput.MEDIA_TYPE).build();
+        } catch (IOException ex) {
+            LOGGER.error("Invalid input", ex);
+            return Response.status(400).entity("Invalid input").build();
+        } finally {
+            LOGGER.info("v1/records/history");
+        }
+    }
+
     @POST
     @Path("v1/records/fetch")
     @Consumes({MediaType.APPLICATION_JSON})
@@ -324,24 +399,18 @@ public class RecordCollectionService {
                                     @DefaultValue("false") @QueryParam("use-parent-agency") boolean useParentAgency,
                                     @DefaultValue("raw") @QueryParam("mode") RecordService.Mode mode,
                                     @QueryParam("exclude-attribute") List<String> excludeAttributes) {
-        final RecordCollectionDTOv2 dto = new RecordCollectionDTOv2();
-        final List<RecordDTO> found = new ArrayList<>();
-        final List<RecordIdDTO> missing = new ArrayList<>();
-        final String res;
         try {
             final RecordIdCollectionDTO recordIdCollectionDTO = jsonbContext.unmarshall(request, RecordIdCollectionDTO.class);
+            final List<RecordIdDTO> recordIds = recordIdCollectionDTO.getRecordIds();
+            final int batchSize = mode == RecordService.Mode.RAW ? RAW_FETCH_BATCH_SIZE : MERGED_FETCH_BATCH_SIZE;
 
-            for (RecordIdDTO recordId : recordIdCollectionDTO.getRecordIds()) {
-                fetchRecords(allowDeleted, useParentAgency, mode, excludeAttributes, found, missing, recordId);
-            }
-
-            dto.setFound(found);
-            dto.setMissing(missing);
-
-            res = jsonbContext.marshall(dto);
+            final RecordFetchOutput output = new RecordFetchOutput(jsonbContext, executor, THREAD_COUNT, recordIds, batchSize, excludeAttributes,
+                    batch -> fetchBatch(batch, mode, allowDeleted, useParentAgency));
+            // Waits for the first batch so a failure there is reported with the status code
+            output.start();
 
-            return Response.ok(res, MediaType.APPLICATION_JSON).build();
-        } catch (JSONBException | MarcReaderException | InternalServerException ex) {
+            return Response.ok(output, MediaType.APPLICATION_JSON).build();
+        } catch (JSONBException | InternalServerException ex) {
             LOGGER.error("Exception during fetchRecordList", ex);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
         } catch (VipCoreException e) {
@@ -356,124 +425,112 @@ public class RecordCollectionService {
     @Consumes({MediaType.APPLICATION_JSON})
     @Produces({MediaType.APPLICATION_JSON})
     @Timed
-    public Response getRelationsChildren(RecordIdCollectionDTO recordIdCollectionDTO) {
-        final String res;
-        try {
-            final Set<RecordId> recordIds = recordIdCollectionDTOToObject(recordIdCollectionDTO);
-            final Map<RecordId, Set<RecordId>> relationsChildren = recordRelationsBean.getRelationsChildren(recordIds);
+    public Response getRelationsChildren(InputStream request) {
+        return getRelations(request, recordRelationsBean::streamRelationsChildren, "v1/records/children");
+    }
 
-            final RecordRelationChildrenCollectionDTO dto = RecordDTOMapper.recordRelationChildrenCollectionToDTO(relationsChildren);
+    @POST
+    @Path("v1/records/siblingsToMe")
+    @Consumes({MediaType.APPLICATION_JSON})
+    @Produces({MediaType.APPLICATION_JSON})
+    @Timed
+    public Response getRelationsSiblings(InputStream request) {
+        return getRelations(request, recordRelationsBean::streamRelationsSiblingsToMe, "v1/records/siblingsToMe");
+    }
 
-            res = jsonbContext.marshall(dto);
+    @POST
+    @Path("v1/records/parents")
+    @Consumes({MediaType.APPLICATION_JSON})
+    @Produces({MediaType.APPLICATION_JSON})
+    @Timed
+    public Response getRelationsParents(InputStream request) {
+        return getRelations(request, recordRelationsBean::streamRelationsParents, "v1/records/parents");
+    }
 
-            return Response.ok(res, MediaType.APPLICATION_JSON).build();
-        } catch (JSONBException | InternalServerException e) {
-            LOGGER.error("Exception during getRelationsChildren", e);
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
-        } finally {
-            LOGGER.info("v1/records/children");
-        }
+    @POST
+    @Path("v1/records/siblingsFromMe")
+    @Consumes({MediaType.APPLICATION_JSON})
+    @Produces({MediaType.APPLICATION_JSON})
+    @Timed
+    public Response getRelationsSiblingsFromMe(InputStream request) {
+        return getRelations(request, recordRelationsBean::streamRelationsSiblingsFromMe, "v1/records/siblingsFromMe");
     }
 
     @POST
-    @Path("v1/records/siblingsToMe")
+    @Path("v1/records/relationsFrom")
     @Consumes({MediaType.APPLICATION_JSON})
     @Produces({MediaType.APPLICATION_JSON})
     @Timed
-    public Response getRelationsSiblings(RecordIdCollectionDTO recordIdCollectionDTO) {
-        final String res;
-        try {
-            final Set<RecordId> recordIds = recordIdCollectionDTOToObject(recordIdCollectionDTO);
-            final Map<RecordId, Set<RecordId>> relationsChildren = recordRelationsBean.getRelationsSiblingsToMe(recordIds);
+    public Response getRelationsFrom(InputStream request) {
+        return getRelations(request, recordRelationsBean::streamRelationsFrom, "v1/records/relationsFrom");
+    }
 
-            final RecordRelationChildrenCollectionDTO dto = RecordDTOMapper.recordRelationChildrenCollectionToDTO(relationsChildren);
+    @FunctionalInterface
+    private interface RelationsLookup {
+        void stream(Collection<RecordId> recordIds, RawRepoBean.RelationsConsumer consumer) throws InternalServerException, IOException;
+    }
 
-            res = jsonbContext.marshall(dto);
+    private Response getRelations(InputStream request, RelationsLookup lookup, String endpoint) {
+        try {
+            final Set<RecordId> recordIds = readRecordIdSet(request);
 
-            return Response.ok(res, MediaType.APPLICATION_JSON).build();
-        } catch (JSONBException | InternalServerException e) {
-            LOGGER.error("Exception during getRelationsChildren", e);
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+            // The relations bean is called from the streaming output so the lookup runs in a transaction of its own
+            final StreamingOutput output = new RecordRelationsOutput(jsonbContext.getObjectMapper(),
+                    consumer -> lookup.stream(recordIds, consumer));
+
+            return Response.ok(output, MediaType.APPLICATION_JSON).build();
+        } catch (IOException ex) {
+            LOGGER.error("Invalid input", ex);
+            return Response.status(400).entity("Invalid input").build();
         } finally {
-            LOGGER.info("v1/records/children");
+            LOGGER.info(endpoint);
         }
     }
 
-    private void fetchRecords(boolean allowDeleted, boolean useParentAgency, RecordService.Mode mode, List<String> excludeAttributes, List<RecordDTO> found, List<RecordIdDTO> missing, RecordIdDTO recordId) throws InternalServerException, MarcReaderException, VipCoreException {
-        Record marcRecord;
-        try {
-            if (mode == RecordService.Mode.EXPANDED) {
-                marcRecord = recordSimpleBean.fetchRecordExpanded(recordId.getBibliographicRecordId(), recordId.getAgencyId(), allowDeleted, useParentAgency);
-            } else if (mode == RecordService.Mode.MERGED) {
-                marcRecord = recordSimpleBean.fetchRecordMerged(recordId.getBibliographicRecordId(), recordId.getAgencyId(), allowDeleted, useParentAgency);
-            } else {
-                marcRecord = recordSimpleBean.fetchRecord(recordId.getBibliographicRecordId(), recordId.getAgencyId());
-            }
-
-            // fetchRecord will return a new empty record if the requested record is not found in the database.
-            // One solution would be to check if the record exists but that requires an extra request to the database
-            // In order to save a round trip we just check if the record has any content.
-            if (marcRecord.getContent() != null && marcRecord.getContent().length > 0) {
-                final RecordDTO recordDTO = RecordDTOMapper.recordToDTO(marcRecord, excludeAttributes);
-                found.add(recordDTO);
-            } else {
-                missing.add(recordId);
-            }
-        } catch (RecordNotFoundException e) {
-            missing.add(recordId);
+    private Set<RecordId> readRecordIdSet(InputStream request) throws IOException {
+        try (JsonParser parser = jsonbContext.getObjectMapper().getFactory().createParser(request)) {
+            return new LinkedHashSet<>(recordIdCollectionFromJson(parser));
         }
     }
 
-    private class BulkMergeThread implements Callable<Boolean> {
-        private final Iterator<RecordIdDTO> iterator;
-        private final OutputStreamRecordWriter writer;
-        private final boolean allowDeleted;
-        private final boolean excludeDBCFields;
-        private final boolean useParentAgency;
-        private final boolean doExpand;
-        private final boolean keepAutFields;
-
-        public BulkMergeThread(Iterator<RecordIdDTO> iterator,
-                               OutputStreamRecordWriter writer,
-                               boolean allowDeleted,
-                               boolean excludeDBCFields,
-                               boolean useParentAgency,
-                               boolean doExpand,
-                               boolean keepAutFields) {
-            this.iterator = iterator;
-            this.writer = writer;
-            this.allowDeleted = allowDeleted;
-            this.excludeDBCFields = excludeDBCFields;
-            this.useParentAgency = useParentAgency;
-            this.doExpand = doExpand;
-            this.keepAutFields = keepAutFields;
+    private Map<RecordId, Record> fetchBatch(List<RecordIdDTO> recordIdDTOs, RecordService.Mode mode, boolean allowDeleted, boolean useParentAgency) throws InternalServerException, VipCoreException {
+        final List<RecordId> recordIds = new ArrayList<>(recordIdDTOs.size());
+        for (RecordIdDTO recordIdDTO : recordIdDTOs) {
+            recordIds.add(new RecordId(recordIdDTO.getBibliographicRecordId(), recordIdDTO.getAgencyId()));
         }
 
-        @Override
-        public Boolean call() throws Exception {
-            RecordIdDTO idDTO;
+        if (mode == RecordService.Mode.RAW) {
+            return recordSimpleBean.fetchRecords(recordIds);
+        } else {
+            return recordSimpleBean.fetchRecordsMerged(recordIds, allowDeleted, useParentAgency, mode == RecordService.Mode.EXPANDED);
+        }
+    }
 
-            do {
-                synchronized (iterator) {
-                    if (iterator.hasNext()) {
-                        idDTO = iterator.next();
-                    } else {
-                        idDTO = null;
-                    }
-                }
 
-                if (idDTO != null) {
-                    MarcRecord marcRecord;
-                    if (doExpand) {
-                        marcRecord = marcRecordBean.getMarcRecordExpanded(idDTO.getBibliographicRecordId(), idDTO.getAgencyId(), allowDeleted, excludeDBCFields, useParentAgency, keepAutFields);
-                    } else {
-                        marcRecord = marcRecordBean.getMarcRecordMerged(idDTO.getBibliographicRecordId(), idDTO.getAgencyId(), allowDeleted, excludeDBCFields, useParentAgency);
-                    }
-                    writer.write(marcRecord);
+    private List<MarcRecord> mergeBatch(List<RecordId> recordIds,
+                                        DumpStageMetrics metrics,
+                                        boolean allowDeleted,
+                                        boolean excludeDBCFields,
+                                        boolean useParentAgency,
+                                        boolean doExpand,
+                                        boolean keepAutFields) throws InternalServerException, MarcReaderException {
+        metrics.sliceStarted();
+        try {
+            // RecordBean fetches, merges and expands in one go so it is all registered as the merge stage
+            final long mergeStart = System.nanoTime();
+            final Map<RecordId, Record> records = recordBean.getRawRepoRecordsMerged(recordIds, allowDeleted, excludeDBCFields, useParentAgency, doExpand, keepAutFields);
+            final List<MarcRecord> result = new ArrayList<>(records.size());
+            for (RecordId recordId : recordIds) {
+                final Record record = records.get(recordId);
+                if (record != null) {
+                    result.add(RecordObjectMapper.contentToMarcRecord(record.getContent()));
                 }
-            } while (idDTO != null);
+            }
+            metrics.stop(DumpStageMetrics.Stage.MERGE, mergeStart);
 
-            return true;
+            return result;
+        } finally {
+            metrics.sliceDone();
         }
     }
 
@@ -0,0 +1,197 @@
+package dk.dbc.rawrepo.service;
+
+import dk.dbc.jsonb.JSONBContext;
+import dk.dbc.jsonb.JSONBException;
+import dk.dbc.marc.reader.MarcReaderException;
+import dk.dbc.rawrepo.Record;
+import dk.dbc.rawrepo.RecordId;
+import dk.dbc.rawrepo.dto.RecordDTOMapper;
+import dk.dbc.rawrepo.dto.RecordIdDTO;
+import dk.dbc.rawrepo.exception.InternalServerException;
+import dk.dbc.vipcore.exception.VipCoreException;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes the records of v1/records/fetch while they are fetched in batches on the executor.
+ * <p>
+ * The output has the same structure as RecordCollectionDTOv2. The batches are fetched in parallel but written in the
+ * requested order, and at most threadCount batches are in progress at a time so the memory use doesn't depend on the
+ * size of the request.
+ * <p>
+ * {@link #start()} must be called before the response is returned. It waits for the first batch, so a failure there
+ * can still be reported with the status code. If a later batch fails the status has already been sent, so the found
+ * array is closed and the object is ended with an 'error' field instead of the 'missing' field:
+ * <pre>
+ * {"found":[...],"error":"..."}
+ * </pre>
+ * A response is only complete when it has the 'missing' field.
+ */
+class RecordFetchOutput implements StreamingOutput {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(RecordFetchOutput.class);
+
+    @FunctionalInterface
+    interface BatchFetcher {
+        Map<RecordId, Record> fetch(List<RecordIdDTO> recordIds) throws InternalServerException, VipCoreException;
+    }
+
+    private final JSONBContext jsonbContext;
+    private final ExecutorService executor;
+    private final int threadCount;
+    private final List<RecordIdDTO> recordIds;
+    private final int batchSize;
+    private final List<String> excludeAttributes;
+    private final BatchFetcher fetcher;
+
+    private final Deque<FetchBatch> batches = new ArrayDeque<>();
+    private int index = 0;
+    private FetchBatch firstBatch;
+    private Map<RecordId, Record> firstRecords = Collections.emptyMap();
+
+    /**
+     * @param jsonbContext      The context to write the records with
+     * @param executor          The executor to fetch the batches on
+     * @param threadCount       The max number of batches in progress
+     * @param recordIds         The requested ids
+     * @param batchSize         The max number of ids in a batch
+     * @param excludeAttributes The attributes to leave out of the written records
+     * @param fetcher           Fetches the records of a single batch
+     */
+    RecordFetchOutput(JSONBContext jsonbContext,
+                      ExecutorService executor,
+                      int threadCount,
+                      List<RecordIdDTO> recordIds,
+                      int batchSize,
+                      List<String> excludeAttributes,
+                      BatchFetcher fetcher) {
+        this.jsonbContext = jsonbContext;
+        this.executor = executor;
+        this.threadCount = threadCount;
+        this.recordIds = recordIds;
+        this.batchSize = batchSize;
+        this.excludeAttributes = excludeAttributes;
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Starts fetching the batches and waits for the first one.
+     *
+     * @throws VipCoreException        If the first batch failed on the agency lookup
+     * @throws InternalServerException If the first batch failed in any other way
+     */
+    void start() throws VipCoreException, InternalServerException {
+        submitBatches();
+        firstBatch = batches.poll();
+        if (firstBatch != null) {
+            try {
+                firstRecords = firstBatch.records.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelBatches();
+                throw new InternalServerException("Interrupted during fetchRecordList", e);
+            } catch (ExecutionException e) {
+                cancelBatches();
+                if (e.getCause() instanceof VipCoreException) {
+                    throw (VipCoreException) e.getCause();
+                }
+                if (e.getCause() instanceof InternalServerException) {
+                    throw (InternalServerException) e.getCause();
+                }
+                throw new InternalServerException(e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        final List<RecordIdDTO> missing = new ArrayList<>();
+        boolean first = true;
+        try {
+            out.write("{\"found\":[".getBytes(UTF_8));
+            if (firstBatch != null) {
+                first = writeBatch(out, firstBatch, firstRecords, missing, first);
+            }
+            while (index < recordIds.size() || !batches.isEmpty()) {
+                submitBatches();
+                final FetchBatch batch = batches.poll();
+                first = writeBatch(out, batch, batch.records.get(), missing, first);
+            }
+            out.write("],\"missing\":".getBytes(UTF_8));
+            out.write(jsonbContext.marshall(missing).getBytes(UTF_8));
+            out.write('}');
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.error("Interrupted during fetchRecordList", e);
+            writeError(out, "Interrupted during fetchRecordList");
+        } catch (ExecutionException | JSONBException | MarcReaderException e) {
+            LOGGER.error("Exception during fetchRecordList", e);
+            writeError(out, "Exception during fetchRecordList");
+        } finally {
+            cancelBatches();
+        }
+    }
+
+    private boolean writeBatch(OutputStream out, FetchBatch batch, Map<RecordId, Record> records, List<RecordIdDTO> missing, boolean first) throws IOException, JSONBException, MarcReaderException {
+        for (RecordIdDTO recordIdDTO : batch.recordIds) {
+            final Record record = records.get(new RecordId(recordIdDTO.getBibliographicRecordId(), recordIdDTO.getAgencyId()));
+            if (record != null && record.getContent() != null && record.getContent().length > 0) {
+                // The record is marshalled before anything is written so a failure never leaves half a record
+                final byte[] bytes = jsonbContext.marshall(RecordDTOMapper.recordToDTO(record, excludeAttributes)).getBytes(UTF_8);
+                if (!first) {
+                    out.write(',');
+                }
+                out.write(bytes);
+                first = false;
+            } else {
+                missing.add(recordIdDTO);
+            }
+        }
+        return first;
+    }
+
+    private void writeError(OutputStream out, String message) throws IOException {
+        out.write("],\"error\":".getBytes(UTF_8));
+        out.write(jsonbContext.getObjectMapper().writeValueAsBytes(message));
+        out.write('}');
+    }
+
+    private void submitBatches() {
+        while (index < recordIds.size() && batches.size() < threadCount) {
+            final List<RecordIdDTO> batch = recordIds.subList(index, Math.min(index + batchSize, recordIds.size()));
+            batches.add(new FetchBatch(batch, executor.submit(() -> fetcher.fetch(batch))));
+            index += batch.size();
+        }
+    }
+
+    private void cancelBatches() {
+        for (FetchBatch batch : batches) {
+            batch.records.cancel(true);
+        }
+        batches.clear();
+    }
+
+    private static class FetchBatch {
+        private final List<RecordIdDTO> recordIds;
+        private final Future<Map<RecordId, Record>> records;
+
+        private FetchBatch(List<RecordIdDTO> recordIds, Future<Map<RecordId, Record>> records) {
+            this.recordIds = recordIds;
+            this.records = records;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package dk.dbc.rawrepo.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dk.dbc.rawrepo.dao.RawRepoBean;
+import dk.dbc.rawrepo.dto.RecordDTOMapper;
+import dk.dbc.rawrepo.exception.InternalServerException;
+
+import java.io.IOException;
+
+/**
+ * Writes the records of a hierarchy as NDJSON while they are read from the database. Each line has the id of the
+ * record, the id of the record it was reached from and the depth, and the content as base64 if it is included.
+ */
+class RecordHierarchyOutput extends NdjsonOutput {
+
+    @FunctionalInterface
+    interface Source {
+        void stream(RawRepoBean.HierarchyConsumer consumer) throws InternalServerException, IOException;
+    }
+
+    private final Source source;
+
+    RecordHierarchyOutput(ObjectMapper objectMapper, Source source) {
+        super(objectMapper);
+        this.source = source;
+    }
+
+    @Override
+    void writeLines(LineWriter writer) throws InternalServerException, IOException {
+        source.stream((recordId, from, depth, content) -> {
+            final ObjectNode line = objectMapper.createObjectNode();
+            line.set("recordId", objectMapper.valueToTree(RecordDTOMapper.recordIdToDTO(recordId)));
+            line.set("from", objectMapper.valueToTree(RecordDTOMapper.recordIdToDTO(from)));
+            line.put("depth", depth);
+            if (content != null) {
+                line.put("content", content);
+            }
+            writer.write(line);
+        });
+    }
+}
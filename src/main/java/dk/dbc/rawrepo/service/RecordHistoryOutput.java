@@ -0,0 +1,56 @@
+package dk.dbc.rawrepo.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dk.dbc.rawrepo.RecordMetaDataHistory;
+import dk.dbc.rawrepo.dao.RawRepoBean;
+import dk.dbc.rawrepo.dto.RecordDTOMapper;
+import dk.dbc.rawrepo.exception.InternalServerException;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes record versions as NDJSON, i.e. one RecordHistoryDTO per line. If the content is included it is added to the
+ * line as a base64 encoded 'content' field.
+ * <p>
+ * The versions are read a page at a time, each page in a transaction of its own, so no transaction or cursor is kept
+ * open while the client reads the response. A version which is written while the export runs is included if it comes
+ * after the pages which have already been read.
+ */
+class RecordHistoryOutput extends NdjsonOutput {
+    private static final int PAGE_SIZE = 1000;
+
+    @FunctionalInterface
+    interface Source {
+        List<RawRepoBean.HistoryEntry> fetch(RecordMetaDataHistory after, int limit) throws InternalServerException;
+    }
+
+    private final Source source;
+
+    /**
+     * @param objectMapper The mapper to write the versions with
+     * @param source       Reads the page of versions after the given version
+     */
+    RecordHistoryOutput(ObjectMapper objectMapper, Source source) {
+        super(objectMapper);
+        this.source = source;
+    }
+
+    @Override
+    void writeLines(LineWriter writer) throws InternalServerException, IOException {
+        RecordMetaDataHistory after = null;
+        List<RawRepoBean.HistoryEntry> page;
+        do {
+            page = source.fetch(after, PAGE_SIZE);
+            for (RawRepoBean.HistoryEntry entry : page) {
+                final ObjectNode line = objectMapper.valueToTree(RecordDTOMapper.recordMetaDataHistoryToDTO(entry.getHistory()));
+                if (entry.getContent() != null) {
+                    line.put("content", entry.getContent());
+                }
+                writer.write(line);
+                after = entry.getHistory();
+            }
+        } while (page.size() == PAGE_SIZE);
+    }
+}
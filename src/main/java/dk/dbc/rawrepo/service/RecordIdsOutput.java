@@ -0,0 +1,42 @@
+package dk.dbc.rawrepo.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.dbc.rawrepo.RawRepoException;
+import dk.dbc.rawrepo.dao.RawRepoBean;
+import dk.dbc.rawrepo.dto.RecordIdDTO;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Writes a RecordIdCollectionDTO for a single agency while the bibliographic record ids are read from the database.
+ */
+class RecordIdsOutput extends JsonListOutput {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(RecordIdsOutput.class);
+
+    @FunctionalInterface
+    interface Source {
+        long stream(RawRepoBean.BibliographicRecordIdConsumer consumer) throws RawRepoException, IOException;
+    }
+
+    private final int agencyId;
+    private final Source source;
+
+    /**
+     * @param objectMapper The mapper to write the ids with
+     * @param agencyId     The agency id to write with every bibliographic record id
+     * @param source       The ids
+     */
+    RecordIdsOutput(ObjectMapper objectMapper, int agencyId, Source source) {
+        super(objectMapper, "recordIds");
+        this.agencyId = agencyId;
+        this.source = source;
+    }
+
+    @Override
+    void writeValues(ValueWriter writer) throws RawRepoException, IOException {
+        final long count = source.stream(bibliographicRecordId -> writer.write(new RecordIdDTO(bibliographicRecordId, agencyId)));
+        LOGGER.info("Wrote {} record ids with agency {}", count, agencyId);
+    }
+}
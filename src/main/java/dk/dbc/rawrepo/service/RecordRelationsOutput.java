@@ -0,0 +1,32 @@
+package dk.dbc.rawrepo.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.dbc.rawrepo.dao.RawRepoBean;
+import dk.dbc.rawrepo.dto.RecordDTOMapper;
+import dk.dbc.rawrepo.exception.InternalServerException;
+
+import java.io.IOException;
+
+/**
+ * Writes a RecordRelationChildrenCollectionDTO while the relations are read from the database, so only the relations
+ * of a single record are kept in memory.
+ */
+class RecordRelationsOutput extends JsonListOutput {
+
+    @FunctionalInterface
+    interface Source {
+        void stream(RawRepoBean.RelationsConsumer consumer) throws InternalServerException, IOException;
+    }
+
+    private final Source source;
+
+    RecordRelationsOutput(ObjectMapper objectMapper, Source source) {
+        super(objectMapper, "recordRelationChildrenList");
+        this.source = source;
+    }
+
+    @Override
+    void writeValues(ValueWriter writer) throws InternalServerException, IOException {
+        source.stream((recordId, relations) -> writer.write(RecordDTOMapper.recordRelationChildrenToDTO(recordId, relations)));
+    }
+}
@@ -4,8 +4,6 @@ import dk.dbc.jsonb.JSONBContext;
 import dk.dbc.jsonb.JSONBException;
 import dk.dbc.marc.binding.MarcRecord;
 import dk.dbc.marc.reader.MarcReaderException;
-import dk.dbc.marc.writer.DanMarc2LineFormatWriter;
-import dk.dbc.marc.writer.Iso2709MarcRecordWriter;
 import dk.dbc.marc.writer.JsonWriter;
 import dk.dbc.marc.writer.MarcWriterException;
 import dk.dbc.rawrepo.RawRepoException;
@@ -16,12 +14,14 @@ import dk.dbc.rawrepo.RecordId;
 import dk.dbc.rawrepo.RecordMetaDataHistory;
 import dk.dbc.rawrepo.RecordRelationsBean;
 import dk.dbc.rawrepo.RecordSimpleBean;
+import dk.dbc.rawrepo.dao.RawRepoBean;
 import dk.dbc.rawrepo.dto.AgencyCollectionDTO;
 import dk.dbc.rawrepo.dto.ContentDTO;
 import dk.dbc.rawrepo.dto.RecordDTO;
 import dk.dbc.rawrepo.dto.RecordDTOMapper;
 import dk.dbc.rawrepo.dto.RecordEntryDTO;
 import dk.dbc.rawrepo.dto.RecordExistsDTO;
+import dk.dbc.rawrepo.dump.MarcXchangeTranscoder;
 import dk.dbc.rawrepo.dump.OutputFormat;
 import dk.dbc.rawrepo.exception.InternalServerException;
 import dk.dbc.rawrepo.exception.RecordNotFoundException;
@@ -40,11 +40,19 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
@@ -53,9 +61,11 @@ import java.util.Set;
 @Path("api")
 public class RecordService {
     private static final XLogger LOGGER = XLoggerFactory.getXLogger(RecordService.class);
+    private static final String HISTORIC_RECORD_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    // Each level of a hierarchy is a query of its own, and the real hierarchies are only a few levels deep
+    private static final int MAX_HIERARCHY_DEPTH = 20;
     private final JSONBContext jsonbContext = new JSONBContext();
-    private final DanMarc2LineFormatWriter danMarc2LineFormatWriter = new DanMarc2LineFormatWriter();
-    private final Iso2709MarcRecordWriter iso2709Writer = new Iso2709MarcRecordWriter();
+    private final MarcXchangeTranscoder transcoder = new MarcXchangeTranscoder(StandardCharsets.UTF_8);
     private final JsonWriter jsonWriter = new JsonWriter();
 
     @EJB
@@ -81,10 +91,18 @@ public class RecordService {
                               @DefaultValue("false") @QueryParam("exclude-dbc-fields") boolean excludeDBCFields,
                               @DefaultValue("false") @QueryParam("use-parent-agency") boolean useParentAgency,
                               @DefaultValue("false") @QueryParam("keep-aut-fields") boolean keepAutFields,
-                              @QueryParam("exclude-attribute") List<String> excludeAttributes) {
+                              @QueryParam("exclude-attribute") List<String> excludeAttributes,
+                              @Context Request request) {
         String res;
 
         try {
+            final EntityTag entityTag = getEntityTag(bibliographicRecordId, mode,
+                    "record", agencyId, mode, allowDeleted, excludeDBCFields, useParentAgency, keepAutFields, excludeAttributes);
+            final Response.ResponseBuilder notModified = evaluatePreconditions(request, entityTag);
+            if (notModified != null) {
+                return notModified.build();
+            }
+
             final Record record = getRawRepoRecord(agencyId, bibliographicRecordId, mode, allowDeleted, excludeDBCFields, useParentAgency, keepAutFields);
 
             if (record == null) {
@@ -95,7 +113,7 @@ public class RecordService {
 
             res = jsonbContext.marshall(recordDTO);
 
-            return Response.ok(res, MediaType.APPLICATION_JSON).build();
+            return Response.ok(res, MediaType.APPLICATION_JSON).tag(entityTag).build();
         } catch (JSONBException | MarcReaderException | InternalServerException ex) {
             LOGGER.error("Exception during getRecord", ex);
             return Response.serverError().build();
@@ -177,8 +195,16 @@ public class RecordService {
                                @DefaultValue("false") @QueryParam("exclude-dbc-fields") boolean excludeDBCFields,
                                @DefaultValue("false") @QueryParam("use-parent-agency") boolean useParentAgency,
                                @DefaultValue("false") @QueryParam("keep-aut-fields") boolean keepAutFields,
-                               @DefaultValue("XML") @QueryParam("output-format") OutputFormat format) {
+                               @DefaultValue("XML") @QueryParam("output-format") OutputFormat format,
+                               @Context Request request) {
         try {
+            final EntityTag entityTag = getEntityTag(bibliographicRecordId, mode,
+                    "content", agencyId, mode, allowDeleted, excludeDBCFields, useParentAgency, keepAutFields, format);
+            final Response.ResponseBuilder notModified = evaluatePreconditions(request, entityTag);
+            if (notModified != null) {
+                return notModified.build();
+            }
+
             final Record record = getRawRepoRecord(agencyId, bibliographicRecordId, mode, allowDeleted, excludeDBCFields, useParentAgency, keepAutFields);
 
             if (record == null) {
@@ -193,22 +219,20 @@ public class RecordService {
                     marcRecord = RecordObjectMapper.contentToMarcRecord(record.getContent());
                     final ContentDTO contentDTO = RecordDTOMapper.contentToDTO(marcRecord);
                     res = new String(jsonbContext.marshall(contentDTO).getBytes(StandardCharsets.UTF_8));
-                    return Response.ok(res, MediaType.APPLICATION_JSON).build();
+                    return Response.ok(res, MediaType.APPLICATION_JSON).tag(entityTag).build();
                 case MARC_JSON:
                     marcRecord = RecordObjectMapper.contentToMarcRecord(record.getContent());
                     res = new String(jsonWriter.write(marcRecord, StandardCharsets.UTF_8), StandardCharsets.UTF_8);
-                    return Response.ok(res, MediaType.APPLICATION_JSON).build();
+                    return Response.ok(res, MediaType.APPLICATION_JSON).tag(entityTag).build();
                 case LINE:
-                    marcRecord = RecordObjectMapper.contentToMarcRecord(record.getContent());
-                    res = new String(danMarc2LineFormatWriter.write(marcRecord, StandardCharsets.UTF_8));
-                    return Response.ok(res, MediaType.TEXT_PLAIN).build();
+                    res = new String(transcoder.toLine(record.getContent()));
+                    return Response.ok(res, MediaType.TEXT_PLAIN).tag(entityTag).build();
                 case ISO:
-                    marcRecord = RecordObjectMapper.contentToMarcRecord(record.getContent());
-                    res = new String(iso2709Writer.write(marcRecord, StandardCharsets.UTF_8), StandardCharsets.UTF_8);
-                    return Response.ok(res, MediaType.APPLICATION_OCTET_STREAM).build();
+                    res = new String(transcoder.toIso2709(record.getContent()), StandardCharsets.UTF_8);
+                    return Response.ok(res, MediaType.APPLICATION_OCTET_STREAM).tag(entityTag).build();
                 default: // XML and LINE_XML
                     res = new String(record.getContent());
-                    return Response.ok(res, MediaType.APPLICATION_XML).build();
+                    return Response.ok(res, MediaType.APPLICATION_XML).tag(entityTag).build();
             }
         } catch (InternalServerException ex) {
             LOGGER.error("Exception during GetContent", ex);
@@ -394,6 +418,52 @@ public class RecordService {
         }
     }
 
+    @GET
+    @Path("v1/record/{agencyid}/{bibliographicrecordid}/descendants")
+    @Produces({NdjsonOutput.MEDIA_TYPE})
+    @Timed
+    public Response getDescendants(@PathParam("agencyid") int agencyId,
+                                   @PathParam("bibliographicrecordid") String bibliographicRecordId,
+                                   @DefaultValue("10") @QueryParam("max-depth") int maxDepth,
+                                   @DefaultValue("false") @QueryParam("include-content") boolean includeContent) {
+        try {
+            if (maxDepth < 1 || maxDepth > MAX_HIERARCHY_DEPTH) {
+                return Response.status(400).entity("max-depth must be between 1 and " + MAX_HIERARCHY_DEPTH).build();
+            }
+
+            final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
+            final StreamingOutput output = new RecordHierarchyOutput(jsonbContext.getObjectMapper(),
+                    consumer -> recordRelationsBean.streamDescendants(recordId, maxDepth, includeContent, consumer));
+
+            return Response.ok(output, NdjsonOutput.MEDIA_TYPE).build();
+        } finally {
+            LOGGER.info("v1/record/{}/{}/descendants", agencyId, bibliographicRecordId);
+        }
+    }
+
+    @GET
+    @Path("v1/record/{agencyid}/{bibliographicrecordid}/ancestors")
+    @Produces({NdjsonOutput.MEDIA_TYPE})
+    @Timed
+    public Response getAncestors(@PathParam("agencyid") int agencyId,
+                                 @PathParam("bibliographicrecordid") String bibliographicRecordId,
+                                 @DefaultValue("10") @QueryParam("max-depth") int maxDepth,
+                                 @DefaultValue("false") @QueryParam("include-content") boolean includeContent) {
+        try {
+            if (maxDepth < 1 || maxDepth > MAX_HIERARCHY_DEPTH) {
+                return Response.status(400).entity("max-depth must be between 1 and " + MAX_HIERARCHY_DEPTH).build();
+            }
+
+            final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
+            final StreamingOutput output = new RecordHierarchyOutput(jsonbContext.getObjectMapper(),
+                    consumer -> recordRelationsBean.streamAncestors(recordId, maxDepth, includeContent, consumer));
+
+            return Response.ok(output, NdjsonOutput.MEDIA_TYPE).build();
+        } finally {
+            LOGGER.info("v1/record/{}/{}/ancestors", agencyId, bibliographicRecordId);
+        }
+    }
+
     @GET
     @Path("v1/record/{bibliographicrecordid}/all-agencies-for")
     @Produces({MediaType.APPLICATION_JSON})
@@ -453,25 +523,28 @@ public class RecordService {
         String res;
 
         try {
-            final List<RecordMetaDataHistory> recordMetaDataHistoryList = historyBean.getRecordHistory(bibliographicRecordId, agencyId);
-            RecordMetaDataHistory selectedMetaDataHistory = null;
-
-            for (RecordMetaDataHistory recordMetaDataHistory : recordMetaDataHistoryList) {
-                // Instead of converting the input date to an Instant or Date it is easier and "safer" to convert the
-                // modified date to a String and then compare the strings
-                if (historicDate.equals(recordMetaDataHistory.getModified().toString())) {
-                    selectedMetaDataHistory = recordMetaDataHistory;
-                }
+            final Instant modified;
+            try {
+                modified = Instant.parse(historicDate);
+            } catch (DateTimeParseException ex) {
+                return Response.status(Response.Status.BAD_REQUEST.getStatusCode(),
+                        String.format("The date '%s' is invalid", historicDate)).build();
             }
 
-            if (selectedMetaDataHistory != null) {
-                Record record = historyBean.getHistoricRecord(selectedMetaDataHistory);
+            final RawRepoBean.HistoricRecord historicRecord = historyBean.getHistoricRecord(bibliographicRecordId, agencyId, modified);
 
-                RecordDTO recordDTO = RecordDTOMapper.recordToDTO(record, excludeAttributes);
+            if (historicRecord != null) {
+                RecordDTO recordDTO = RecordDTOMapper.recordToDTO(historicRecord.getRecord(), excludeAttributes);
 
                 res = jsonbContext.marshall(recordDTO);
 
-                return Response.ok(res, MediaType.APPLICATION_JSON).build();
+                final Response.ResponseBuilder builder = Response.ok(res, MediaType.APPLICATION_JSON);
+                // An archived version never changes again. The current version can still be deleted or replaced, and
+                // the same timestamp can end up on an archived version with other content, so it mustn't be cached
+                if (historicRecord.isArchived()) {
+                    builder.header(HttpHeaders.CACHE_CONTROL, HISTORIC_RECORD_CACHE_CONTROL);
+                }
+                return builder.build();
             } else {
                 return Response.status(Response.Status.NO_CONTENT).build();
             }
@@ -483,6 +556,27 @@ public class RecordService {
         }
     }
 
+    /**
+     * @param variant The request parameters which affect the response
+     * @return Tag for the current version of the record or null if the record doesn't exist
+     */
+    private EntityTag getEntityTag(String bibliographicRecordId, Mode mode, Object... variant) throws InternalServerException {
+        final String tag = recordBean.getRecordVersionTag(bibliographicRecordId, Mode.EXPANDED.equals(mode), Arrays.toString(variant));
+
+        return tag == null ? null : new EntityTag(tag);
+    }
+
+    /**
+     * @return A 304 response builder if the client already has the current version, otherwise null
+     */
+    private static Response.ResponseBuilder evaluatePreconditions(Request request, EntityTag entityTag) {
+        if (entityTag == null) {
+            return null;
+        }
+
+        return request.evaluatePreconditions(entityTag);
+    }
+
     private Record getRawRepoRecord(int agencyId,
                                     String bibliographicRecordId,
                                     Mode mode,
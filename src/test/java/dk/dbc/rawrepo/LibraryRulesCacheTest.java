@@ -0,0 +1,87 @@
+package dk.dbc.rawrepo;
+
+import dk.dbc.vipcore.exception.VipCoreException;
+import dk.dbc.vipcore.libraryrules.VipCoreLibraryRulesConnector;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LibraryRulesCacheTest {
+
+    @Mock
+    private VipCoreLibraryRulesConnector vipCoreLibraryRulesConnector;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+    }
+
+    @Test
+    public void testFeatureIsLoadedOnce() throws Exception {
+        final LibraryRulesCache cache = new LibraryRulesCache(vipCoreLibraryRulesConnector);
+        when(vipCoreLibraryRulesConnector.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS)).thenReturn(true);
+
+        assertThat(cache.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS), is(true));
+        assertThat(cache.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS), is(true));
+        assertThat(cache.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS), is(true));
+
+        verify(vipCoreLibraryRulesConnector, times(1)).hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS);
+    }
+
+    @Test
+    public void testStaleValueIsServedWhileRefreshing() throws Exception {
+        final LibraryRulesCache cache = new LibraryRulesCache(vipCoreLibraryRulesConnector);
+        cache.refreshSeconds = -1; // Every value is due for refresh
+        when(vipCoreLibraryRulesConnector.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS)).thenReturn(true, false);
+
+        assertThat(cache.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS), is(true));
+        // The old value is returned and the refresh is started
+        assertThat(cache.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS), is(true));
+        assertThat(cache.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS), is(false));
+    }
+
+    @Test
+    public void testGenerationChangesWhenRefreshedValueDiffers() throws Exception {
+        final LibraryRulesCache cache = new LibraryRulesCache(vipCoreLibraryRulesConnector);
+        cache.refreshSeconds = -1;
+        when(vipCoreLibraryRulesConnector.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS)).thenReturn(true, true, false);
+
+        assertThat(cache.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS), is(true));
+        final long generation = cache.getGeneration();
+        // Refreshed with the same value
+        assertThat(cache.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS), is(true));
+        assertThat(cache.getGeneration(), is(generation));
+        // Refreshed with a new value
+        assertThat(cache.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS), is(true));
+        assertThat(cache.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS), is(false));
+        assertThat(cache.getGeneration(), is(generation + 1));
+    }
+
+    @Test
+    public void testFailedRefreshKeepsValue() throws Exception {
+        final LibraryRulesCache cache = new LibraryRulesCache(vipCoreLibraryRulesConnector);
+        cache.refreshSeconds = -1;
+        when(vipCoreLibraryRulesConnector.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS))
+                .thenReturn(true)
+                .thenThrow(VipCoreException.class);
+
+        assertThat(cache.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS), is(true));
+        assertThat(cache.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS), is(true));
+        assertThat(cache.hasFeature(710100, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS), is(true));
+    }
+
+    @Test
+    public void testRelationHintsAreShared() {
+        final LibraryRulesCache cache = new LibraryRulesCache(vipCoreLibraryRulesConnector);
+
+        assertThat(cache.getRelationHints(), sameInstance(cache.getRelationHints()));
+    }
+}
@@ -0,0 +1,67 @@
+package dk.dbc.rawrepo;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class LruCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        final LruCache<String, String> cache = new LruCache<>(2);
+
+        cache.put("a", "1");
+        cache.put("b", "2");
+        // Reading "a" makes "b" the least recently used entry
+        assertThat(cache.get("a"), is("1"));
+        cache.put("c", "3");
+
+        assertThat(cache.size(), is(2));
+        assertThat(cache.get("a"), is("1"));
+        assertThat(cache.get("b"), nullValue());
+        assertThat(cache.get("c"), is("3"));
+    }
+
+    @Test
+    public void testEvictedByWeight() {
+        final LruCache<String, String> cache = new LruCache<>(10, 5, value -> value.length());
+
+        cache.put("a", "111");
+        cache.put("b", "22");
+        assertThat(cache.weight(), is(5L));
+
+        cache.put("c", "3");
+        assertThat(cache.size(), is(2));
+        assertThat(cache.weight(), is(3L));
+        assertThat(cache.get("a"), nullValue());
+
+        // Replacing a value only counts the weight of the new value
+        cache.put("b", "2");
+        assertThat(cache.weight(), is(2L));
+    }
+
+    @Test
+    public void testRemoveOnlyIfValueIsUnchanged() {
+        final LruCache<String, String> cache = new LruCache<>(10, 100, value -> value.length());
+
+        cache.put("a", "111");
+        cache.remove("a", "222");
+        assertThat(cache.get("a"), is("111"));
+
+        cache.remove("a", "111");
+        assertThat(cache.get("a"), nullValue());
+        assertThat(cache.weight(), is(0L));
+    }
+
+    @Test
+    public void testNothingIsCachedWithoutMaxEntries() {
+        final LruCache<String, String> cache = new LruCache<>(0);
+
+        cache.put("a", "1");
+
+        assertThat(cache.size(), is(0));
+        assertThat(cache.get("a"), nullValue());
+    }
+}
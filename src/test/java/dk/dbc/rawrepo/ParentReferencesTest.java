@@ -0,0 +1,120 @@
+package dk.dbc.rawrepo;
+
+import dk.dbc.common.records.ExpandCommonMarcRecord;
+import dk.dbc.marc.binding.DataField;
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.binding.SubField;
+import dk.dbc.marc.reader.MarcReaderException;
+import dk.dbc.marc.writer.MarcXchangeV1Writer;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static dk.dbc.rawrepo.BeanTestHelper.loadMarcRecord;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ParentReferencesTest {
+    private final MarcXchangeV1Writer marcXchangeV1Writer = new MarcXchangeV1Writer();
+
+    private static String record(String fields) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<marcx:record xmlns:marcx=\"info:lc/xmlns/marcxchange-v1\">" +
+                "<marcx:leader>00000n    2200000   4500</marcx:leader>" +
+                fields +
+                "</marcx:record>";
+    }
+
+    private static ParentReferences scan(String content, int agencyId) throws MarcReaderException {
+        return ParentReferences.scan(content.getBytes(StandardCharsets.UTF_8), agencyId);
+    }
+
+    // The authority references found by looping through the fields of the MarcRecord
+    private static Set<RecordId> authorityReferences(MarcRecord marcRecord) {
+        final Set<RecordId> result = new HashSet<>();
+        for (DataField dataField : marcRecord.getFields(DataField.class)) {
+            if (ExpandCommonMarcRecord.AUTHORITY_FIELD_LIST.contains(dataField.getTag())) {
+                String value5 = null;
+                String value6 = null;
+                for (SubField subField : dataField.getSubFields()) {
+                    if ('5' == subField.getCode()) {
+                        value5 = subField.getData();
+                    } else if ('6' == subField.getCode()) {
+                        value6 = subField.getData();
+                    }
+                }
+                if (value5 != null && value6 != null) {
+                    result.add(new RecordId(value6, Integer.parseInt(value5)));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    @Test
+    public void testAuthorityReferences() throws Exception {
+        final MarcRecord marcRecord = loadMarcRecord("merged-deleted/common-dbc.xml");
+
+        final ParentReferences references = ParentReferences.scan(marcXchangeV1Writer.write(marcRecord, StandardCharsets.UTF_8), 870970);
+
+        assertTrue(references.hasAuthorityParents());
+        assertThat(references.getParents(true), is(authorityReferences(marcRecord)));
+        assertThat(references.getParents(false), is(new HashSet<>()));
+    }
+
+    @Test
+    public void testHeadReference() throws Exception {
+        final MarcRecord marcRecord = loadMarcRecord("deleted-870970.xml");
+
+        final ParentReferences references = ParentReferences.scan(marcXchangeV1Writer.write(marcRecord, StandardCharsets.UTF_8), 870970);
+
+        assertTrue(references.getParents(false).contains(new RecordId("50443337", 870970)));
+    }
+
+    @Test
+    public void test014() throws Exception {
+        final String content = record("<marcx:datafield ind1=\"0\" ind2=\"0\" tag=\"014\">" +
+                "<marcx:subfield code=\"a\">11111111</marcx:subfield><marcx:subfield code=\"x\">ANM</marcx:subfield>" +
+                "</marcx:datafield>");
+
+        assertThat(scan(content, 191919).getParents(false), is(new HashSet<>(Collections.singletonList(new RecordId("11111111", 870970)))));
+        assertThat(scan(content.replace("ANM", "DEB"), 191919).getParents(false), is(new HashSet<>(Collections.singletonList(new RecordId("11111111", 191919)))));
+        assertThat(scan(content.replace("ANM", "XYZ"), 191919).getParents(false), is(new HashSet<>()));
+    }
+
+    @Test
+    public void testLittolk() throws Exception {
+        final String content = record("<marcx:datafield ind1=\"0\" ind2=\"0\" tag=\"016\">" +
+                "<marcx:subfield code=\"a\">11111111</marcx:subfield><marcx:subfield code=\"5\">870970</marcx:subfield>" +
+                "</marcx:datafield>" +
+                "<marcx:datafield ind1=\"0\" ind2=\"0\" tag=\"018\">" +
+                "<marcx:subfield code=\"a\"><![CDATA[2222]]>&#50;222</marcx:subfield>" +
+                "</marcx:datafield>");
+
+        assertThat(scan(content, 870974).getParents(false), is(new HashSet<>(Arrays.asList(
+                new RecordId("11111111", 870970),
+                new RecordId("22222222", 870974)))));
+        assertThat(scan(content, 870970).getParents(false), is(new HashSet<>()));
+    }
+
+    @Test
+    public void testNoReferences() throws Exception {
+        final ParentReferences references = scan(record(""), 870970);
+
+        assertFalse(references.hasAuthorityParents());
+        assertThat(references.getParents(true), is(new HashSet<>()));
+    }
+
+    @Test
+    public void testMalformed() {
+        assertThrows(MarcReaderException.class, () -> scan("<record><datafield tag=\"014\">", 870970));
+    }
+}
@@ -0,0 +1,59 @@
+package dk.dbc.rawrepo;
+
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.writer.MarcXchangeV1Writer;
+import dk.dbc.marcxmerge.MarcXChangeMimeType;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static dk.dbc.rawrepo.BeanTestHelper.createRecordMock;
+import static dk.dbc.rawrepo.BeanTestHelper.getInstant;
+import static dk.dbc.rawrepo.BeanTestHelper.loadMarcRecord;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ParsedRecordTest {
+    private final MarcXchangeV1Writer marcXchangeV1Writer = new MarcXchangeV1Writer();
+
+    private Record createRecord() throws Exception {
+        final MarcRecord marcRecord = loadMarcRecord("merged-deleted/common-dbc.xml");
+        final Record record = createRecordMock("50938409", 870970, MarcXChangeMimeType.MARCXCHANGE,
+                marcXchangeV1Writer.write(marcRecord, StandardCharsets.UTF_8));
+        record.setModified(getInstant("2019-09-11"));
+
+        return record;
+    }
+
+    @Test
+    public void testParsedOnce() throws Exception {
+        final ParsedRecord parsedRecord = ParsedRecord.of(createRecord());
+
+        assertThat(parsedRecord.getMarcRecord(), sameInstance(parsedRecord.getMarcRecord()));
+        assertThat(ParsedRecord.of(parsedRecord), sameInstance(parsedRecord));
+    }
+
+    @Test
+    public void testContentIsUnchanged() throws Exception {
+        final Record record = createRecord();
+        final ParsedRecord parsedRecord = ParsedRecord.of(record);
+
+        parsedRecord.getMarcRecord();
+
+        assertThat(parsedRecord.getContent(), sameInstance(record.getContent()));
+    }
+
+    @Test
+    public void testSetContentIsParsedAgain() throws Exception {
+        final ParsedRecord parsedRecord = ParsedRecord.of(createRecord());
+        final MarcRecord marcRecord = loadMarcRecord("merged-deleted/common-enrichment.xml");
+        final MarcRecord previous = parsedRecord.getMarcRecord();
+
+        parsedRecord.setContent(marcXchangeV1Writer.write(marcRecord, StandardCharsets.UTF_8));
+
+        assertThat(parsedRecord.getMarcRecord(), not(sameInstance(previous)));
+        assertThat(parsedRecord.getMarcRecord().getSubFieldValues("001", 'a'), is(marcRecord.getSubFieldValues("001", 'a')));
+    }
+}
@@ -0,0 +1,73 @@
+package dk.dbc.rawrepo;
+
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.reader.MarcReaderException;
+import dk.dbc.marc.writer.MarcXchangeV1Writer;
+import dk.dbc.rawrepo.service.RecordObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static dk.dbc.rawrepo.BeanTestHelper.loadMarcRecord;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PrivateFieldFilterTest {
+    private final MarcXchangeV1Writer marcXchangeV1Writer = new MarcXchangeV1Writer();
+
+    @Test
+    public void testSameFieldsAsMarcRecordFilter() throws Exception {
+        final MarcRecord marcRecord = loadMarcRecord("deleted-merged.xml");
+        final byte[] content = marcXchangeV1Writer.write(marcRecord, StandardCharsets.UTF_8);
+
+        final byte[] filtered = PrivateFieldFilter.removePrivateFields(content);
+
+        // Compare through the writer as the filter keeps the original formatting of the content
+        final byte[] actual = marcXchangeV1Writer.write(RecordObjectMapper.contentToMarcRecord(filtered), StandardCharsets.UTF_8);
+
+        assertThat(new String(actual, StandardCharsets.UTF_8),
+                is(new String(marcXchangeV1Writer.write(RecordBeanUtils.removePrivateFields(marcRecord), StandardCharsets.UTF_8), StandardCharsets.UTF_8)));
+        assertThat(new String(actual, StandardCharsets.UTF_8),
+                is(new String(marcXchangeV1Writer.write(loadMarcRecord("deleted-merged-stripped.xml"), StandardCharsets.UTF_8), StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testMarkup() throws Exception {
+        final String content = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<!-- <datafield tag=\"s10\"> -->" +
+                "<marcx:record xmlns:marcx=\"info:lc/xmlns/marcxchange-v1\">" +
+                "<marcx:leader>00000n    2200000   4500</marcx:leader>" +
+                "<marcx:datafield ind1=\">\" ind2=\"0\" tag='s10'>" +
+                "<marcx:subfield code=\"a\"><![CDATA[</marcx:datafield>]]></marcx:subfield>" +
+                "</marcx:datafield>" +
+                "<marcx:datafield ind1=\"0\" ind2=\"0\" tag=\"245\"><marcx:subfield code=\"a\">Title</marcx:subfield></marcx:datafield>" +
+                "<marcx:datafield ind1=\"0\" ind2=\"0\" tag=\"z98\"/>" +
+                "</marcx:record>";
+        final String expected = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<!-- <datafield tag=\"s10\"> -->" +
+                "<marcx:record xmlns:marcx=\"info:lc/xmlns/marcxchange-v1\">" +
+                "<marcx:leader>00000n    2200000   4500</marcx:leader>" +
+                "<marcx:datafield ind1=\"0\" ind2=\"0\" tag=\"245\"><marcx:subfield code=\"a\">Title</marcx:subfield></marcx:datafield>" +
+                "</marcx:record>";
+
+        final byte[] filtered = PrivateFieldFilter.removePrivateFields(content.getBytes(StandardCharsets.UTF_8));
+
+        assertThat(new String(filtered, StandardCharsets.UTF_8), is(expected));
+    }
+
+    @Test
+    public void testNothingToRemove() throws Exception {
+        final byte[] content = marcXchangeV1Writer.write(loadMarcRecord("deleted-merged-stripped.xml"), StandardCharsets.UTF_8);
+
+        assertThat(PrivateFieldFilter.removePrivateFields(content), sameInstance(content));
+    }
+
+    @Test
+    public void testUnterminatedField() {
+        final String content = "<record><datafield ind1=\"0\" ind2=\"0\" tag=\"s10\"><subfield code=\"a\">x</subfield></record>";
+
+        assertThrows(MarcReaderException.class, () -> PrivateFieldFilter.removePrivateFields(content.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,153 @@
+package dk.dbc.rawrepo;
+
+import dk.dbc.rawrepo.dao.RawRepoBean;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RawRepoDAOContextTest {
+
+    @Mock
+    private DataSource globalDataSource;
+
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private RawRepoBean rawRepoBean;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        MockitoAnnotations.openMocks(this);
+        when(globalDataSource.getConnection()).thenReturn(connection);
+    }
+
+    @Test
+    public void testDAOIsSharedWithinContext() throws Exception {
+        final RawRepoDAOContext context = new RawRepoDAOContext(globalDataSource);
+        final RawRepoDAO dao = mock(RawRepoDAO.class);
+        final int[] created = {0};
+        final RawRepoDAOContext.DAOFactory factory = conn -> {
+            created[0]++;
+            return dao;
+        };
+
+        assertThat(context.getDAO(factory), sameInstance(dao));
+        assertThat(context.getDAO(factory), sameInstance(dao));
+        assertThat(context.getDAO(factory), sameInstance(dao));
+
+        assertThat(created[0], is(1));
+        verify(globalDataSource, times(1)).getConnection();
+    }
+
+    @Test
+    public void testRecordStateIsRemembered() throws Exception {
+        final RawRepoDAOContext context = new RawRepoDAOContext(globalDataSource, rawRepoBean);
+        when(rawRepoBean.getRecordState("12345678", 870970)).thenReturn(RecordState.ACTIVE);
+
+        assertThat(context.getRecordState("12345678", 870970), is(RecordState.ACTIVE));
+        assertThat(context.getRecordState("12345678", 870970), is(RecordState.ACTIVE));
+
+        verify(rawRepoBean, times(1)).getRecordState("12345678", 870970);
+    }
+
+    @Test
+    public void testLoadRecordStates() throws Exception {
+        final RawRepoDAOContext context = new RawRepoDAOContext(globalDataSource, rawRepoBean);
+        final Map<RecordId, RecordState> states = new HashMap<>();
+        states.put(new RecordId("12345678", 870970), RecordState.ACTIVE);
+        states.put(new RecordId("12345678", 191919), RecordState.DELETED);
+        when(rawRepoBean.getRecordStates(Collections.singletonList("12345678"))).thenReturn(states);
+
+        context.loadRecordStates(Collections.singletonList("12345678"));
+
+        assertThat(context.getRecordState("12345678", 870970), is(RecordState.ACTIVE));
+        assertThat(context.getRecordState("12345678", 191919), is(RecordState.DELETED));
+        assertThat(context.getRecordState("12345678", 710100), is(RecordState.NOT_FOUND));
+        verify(rawRepoBean, never()).getRecordState(anyString(), anyInt());
+    }
+
+    @Test
+    public void testRecordVersionsAreRememberedWithTheStates() throws Exception {
+        final RawRepoDAOContext context = new RawRepoDAOContext(globalDataSource, rawRepoBean);
+        final String versions = "12345678:870970:false:2021-03-01T10:00:00Z:tracking-1\n";
+        when(rawRepoBean.getRecordVersions("12345678", true)).thenReturn(new RawRepoBean.RecordVersions(versions,
+                Collections.singletonMap(new RecordId("12345678", 870970), RecordState.ACTIVE)));
+
+        assertThat(context.getRecordVersions("12345678", true), is(versions));
+        assertThat(context.getRecordVersions("12345678", true), is(versions));
+        assertThat(context.getRecordState("12345678", 870970), is(RecordState.ACTIVE));
+        assertThat(context.getRecordState("12345678", 191919), is(RecordState.NOT_FOUND));
+
+        verify(rawRepoBean, times(1)).getRecordVersions("12345678", true);
+        verify(rawRepoBean, never()).getRecordState(anyString(), anyInt());
+    }
+
+    @Test
+    public void testRecordVersionsNotFound() throws Exception {
+        final RawRepoDAOContext context = new RawRepoDAOContext(globalDataSource, rawRepoBean);
+        when(rawRepoBean.getRecordVersions("12345678", false)).thenReturn(new RawRepoBean.RecordVersions(null, Collections.emptyMap()));
+
+        assertThat(context.getRecordVersions("12345678", false), nullValue());
+        assertThat(context.getRecordState("12345678", 870970), is(RecordState.NOT_FOUND));
+        verify(rawRepoBean, never()).getRecordState(anyString(), anyInt());
+    }
+
+    @Test
+    public void testLoadAncestorRelations() throws Exception {
+        final RawRepoDAOContext context = new RawRepoDAOContext(globalDataSource, rawRepoBean);
+        // volume -> section -> head
+        final Map<String, Map<RecordId, Set<RecordId>>> relations = new HashMap<>();
+        relations.put("33333333", Collections.singletonMap(new RecordId("33333333", 870970), Collections.singleton(new RecordId("22222222", 870970))));
+        relations.put("22222222", Collections.singletonMap(new RecordId("22222222", 870970), Collections.singleton(new RecordId("11111111", 870970))));
+        relations.put("11111111", Collections.emptyMap());
+        when(rawRepoBean.getAncestorRelations(Collections.singletonList("33333333"))).thenReturn(relations);
+        when(rawRepoBean.getRecordStates(any())).thenReturn(Collections.emptyMap());
+
+        context.loadAncestorRelations("33333333");
+        context.loadAncestorRelations("33333333");
+
+        assertThat(context.getParentRelations(new RecordId("33333333", 870970)), is(Collections.singleton(new RecordId("22222222", 870970))));
+        assertThat(context.getParentRelations(new RecordId("22222222", 870970)), is(Collections.singleton(new RecordId("11111111", 870970))));
+        assertThat(context.getParentRelations(new RecordId("11111111", 870970)), is(Collections.emptySet()));
+        assertThat(context.getParentRelations(new RecordId("44444444", 870970)), nullValue());
+        // The relations are only loaded once, and the states of the whole hierarchy are loaded with them
+        verify(rawRepoBean, times(1)).getAncestorRelations(any());
+        verify(rawRepoBean, times(1)).getRecordStates(any());
+    }
+
+    @Test
+    public void testCloseReleasesConnection() throws Exception {
+        final RawRepoDAOContext context = new RawRepoDAOContext(globalDataSource);
+        final RawRepoDAO dao = mock(RawRepoDAO.class);
+
+        context.getDAO(conn -> dao);
+        context.close();
+
+        verify(connection, times(1)).close();
+
+        context.getDAO(conn -> dao);
+        verify(globalDataSource, times(2)).getConnection();
+    }
+}
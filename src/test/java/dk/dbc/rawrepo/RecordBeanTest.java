@@ -4,7 +4,10 @@ import dk.dbc.marc.binding.MarcRecord;
 import dk.dbc.marc.reader.MarcXchangeV1Reader;
 import dk.dbc.marc.writer.MarcXchangeV1Writer;
 import dk.dbc.marcxmerge.MarcXChangeMimeType;
+import dk.dbc.rawrepo.dao.RawRepoBean;
 import dk.dbc.rawrepo.exception.RecordNotFoundException;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -19,15 +22,29 @@ import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import static dk.dbc.rawrepo.BeanTestHelper.createRecordMock;
 import static dk.dbc.rawrepo.BeanTestHelper.getInstant;
 import static dk.dbc.rawrepo.BeanTestHelper.loadMarcRecord;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class RecordBeanTest {
@@ -44,6 +61,18 @@ public class RecordBeanTest {
     @Mock
     private RecordRelationsBean recordRelationsBean;
 
+    @Mock
+    private RawRepoBean rawRepoBean;
+
+    @Mock
+    private LibraryRulesCache libraryRulesCache;
+
+    @Mock
+    private MetricRegistry metricRegistry;
+
+    @Mock
+    private Counter counter;
+
     @Mock
     private static RelationHintsVipCore relationHints;
 
@@ -55,12 +84,13 @@ public class RecordBeanTest {
     }
 
     private class RecordBeanMock extends RecordBean {
-        RecordBeanMock(DataSource globalDataSource, RecordSimpleBean recordSimpleBean, RecordRelationsBean recordRelationsBean) {
+        RecordBeanMock(DataSource globalDataSource, RecordSimpleBean recordSimpleBean, RecordRelationsBean recordRelationsBean, RawRepoBean rawRepoBean) {
             super(globalDataSource);
 
             this.relationHints = RecordBeanTest.relationHints;
             this.recordSimpleBean = recordSimpleBean;
             this.recordRelationsBean = recordRelationsBean;
+            this.rawRepoBean = rawRepoBean;
         }
 
         @Override
@@ -72,7 +102,7 @@ public class RecordBeanTest {
     }
 
     private RecordBeanMock initRecordBeanMock() {
-        return new RecordBeanMock(globalDataSource, recordSimpleBean, recordRelationsBean);
+        return new RecordBeanMock(globalDataSource, recordSimpleBean, recordRelationsBean, rawRepoBean);
     }
 
     @Test
@@ -150,14 +180,12 @@ public class RecordBeanTest {
 
         when(recordSimpleBean.recordIsActive(bibliographicRecordId, 191919)).thenReturn(false);
         when(recordSimpleBean.recordIsActive(bibliographicRecordId, 870970)).thenReturn(false);
-        when(recordRelationsBean.getRelationsSiblingsFromMe(bibliographicRecordId, 191919)).thenReturn(Collections.singleton(new RecordId(bibliographicRecordId, 870970)));
         when(recordRelationsBean.getRelationsSiblingsFromMe("69208045", 191919)).thenReturn(Collections.singleton(new RecordId("69208045", 870979)));
         when(recordRelationsBean.getRelationsParents(bibliographicRecordId, 870970)).thenReturn(Collections.singleton(new RecordId("69208045", 870979)));
         when(rawRepoDAO.allAgenciesForBibliographicRecordId(eq(bibliographicRecordId))).thenReturn(agenciesFound);
         when(rawRepoDAO.agencyFor(bibliographicRecordId, 191919, false)).thenThrow(new RawRepoExceptionRecordNotFound());
         when(rawRepoDAO.agencyFor(bibliographicRecordId, 191919, true)).thenReturn(191919);
-        when(recordSimpleBean.fetchRecord(bibliographicRecordId, 191919)).thenReturn(deletedEnrichmentRecord);
-        when(recordSimpleBean.fetchRecord(bibliographicRecordId, 870970)).thenReturn(deletedCommonRecord);
+        when(recordSimpleBean.fetchRecordChain(bibliographicRecordId, 191919)).thenReturn(Arrays.asList(deletedCommonRecord, deletedEnrichmentRecord));
 
         final Record mergedDeletedRecord = bean.getRawRepoRecordMerged(bibliographicRecordId, 191919, true, false, true);
 
@@ -210,14 +238,12 @@ public class RecordBeanTest {
 
         when(recordSimpleBean.recordIsActive(bibliographicRecordId, 191919)).thenReturn(false);
         when(recordSimpleBean.recordIsActive(bibliographicRecordId, 870970)).thenReturn(false);
-        when(recordRelationsBean.getRelationsSiblingsFromMe(bibliographicRecordId, 191919)).thenReturn(Collections.singleton(new RecordId(bibliographicRecordId, 870970)));
         when(recordRelationsBean.getRelationsSiblingsFromMe("69208045", 191919)).thenReturn(Collections.singleton(new RecordId("69208045", 870979)));
         when(recordRelationsBean.getRelationsParents(bibliographicRecordId, 870970)).thenReturn(Collections.singleton(new RecordId("69208045", 870979)));
         when(rawRepoDAO.allAgenciesForBibliographicRecordId(eq(bibliographicRecordId))).thenReturn(agenciesFound);
         when(rawRepoDAO.agencyFor(bibliographicRecordId, 191919, false)).thenThrow(new RawRepoExceptionRecordNotFound());
         when(rawRepoDAO.agencyFor(bibliographicRecordId, 191919, true)).thenReturn(191919);
-        when(recordSimpleBean.fetchRecord(bibliographicRecordId, 191919)).thenReturn(deletedEnrichmentRecord);
-        when(recordSimpleBean.fetchRecord(bibliographicRecordId, 870970)).thenReturn(deletedCommonRecord);
+        when(recordSimpleBean.fetchRecordChain(bibliographicRecordId, 191919)).thenReturn(Arrays.asList(deletedCommonRecord, deletedEnrichmentRecord));
 
         final Record mergedDeletedRecord = bean.getRawRepoRecordMerged(bibliographicRecordId, 191919, true, true, true);
 
@@ -312,11 +338,12 @@ public class RecordBeanTest {
         when(rawRepoDAO.allAgenciesForBibliographicRecordId(eq(bibliographicRecordId))).thenReturn(agenciesFound);
         when(rawRepoDAO.agencyFor(bibliographicRecordId, 191919, false)).thenThrow(new RawRepoExceptionRecordNotFound());
         when(rawRepoDAO.agencyFor(bibliographicRecordId, 191919, true)).thenReturn(191919);
-        when(recordSimpleBean.fetchRecord(bibliographicRecordId, 191919)).thenReturn(deletedEnrichmentRecord);
-        when(recordSimpleBean.fetchRecord(bibliographicRecordId, 870970)).thenReturn(deletedCommonRecord);
-        when(recordSimpleBean.fetchRecord("69208045", 870979)).thenReturn(authorityRecord);
-        when(recordSimpleBean.fetchRecord("133990054", 870979)).thenReturn(authoritySeriesRecord);
-        when(recordSimpleBean.fetchRecord("133990119", 870979)).thenReturn(authorityUniverseRecord);
+        when(recordSimpleBean.fetchRecordChain(bibliographicRecordId, 191919)).thenReturn(Arrays.asList(deletedCommonRecord, deletedEnrichmentRecord));
+        final Map<String, byte[]> autRecords = new HashMap<>();
+        autRecords.put("69208045", authorityRecord.getContent());
+        autRecords.put("133990054", authoritySeriesRecord.getContent());
+        autRecords.put("133990119", authorityUniverseRecord.getContent());
+        when(rawRepoBean.fetchRecordContents(new HashSet<>(Arrays.asList("69208045", "133990054", "133990119")), 870979)).thenReturn(autRecords);
 
         final Record actualRecord = bean.getRawRepoRecordExpanded(bibliographicRecordId, 191919, true, false, true, false);
 
@@ -339,4 +366,211 @@ public class RecordBeanTest {
         // TODO delete its this ass that is bad
     }
 
+    @Test
+    public void testCachedExpandedRecordIsInvalidatedByAuthorityEnrichment() throws Exception {
+        final RecordBean bean = initRecordBeanMock();
+        when(metricRegistry.counter(anyString())).thenReturn(counter);
+        bean.recordResultCache.enabled = true;
+        bean.recordResultCache.maxEntries = 10;
+        bean.recordResultCache.maxBytes = 1024 * 1024;
+        bean.recordResultCache.maxAgeSeconds = 3600;
+        bean.recordResultCache.metricRegistry = metricRegistry;
+        bean.recordResultCache.init();
+        bean.libraryRulesCache = libraryRulesCache;
+        bean.daoContext = new RawRepoDAOContext(globalDataSource, rawRepoBean);
+
+        final String bibliographicRecordId = "12345678";
+        final Map<RecordId, RecordState> states = Collections.singletonMap(new RecordId(bibliographicRecordId, 870970), RecordState.ACTIVE);
+        final String versions = "12345678:870970:false:2021-03-01T00:00:00Z:tracking-1\n" +
+                "68000000:191919:false:2021-01-01T00:00:00Z:tracking-2\n" +
+                "68000000:870979:false:2021-01-01T00:00:00Z:tracking-3\n";
+        final String updatedVersions = "12345678:870970:false:2021-03-01T00:00:00Z:tracking-1\n" +
+                "68000000:191919:false:2021-03-02T00:00:00Z:tracking-4\n" +
+                "68000000:870979:false:2021-01-01T00:00:00Z:tracking-3\n";
+        final Record record = createRecordMock(bibliographicRecordId, 870970, MarcXChangeMimeType.MARCXCHANGE,
+                "<record/>".getBytes(StandardCharsets.UTF_8));
+        record.setCreated(getInstant("2021-03-01"));
+        record.setModified(getInstant("2021-03-01"));
+
+        when(libraryRulesCache.getGeneration()).thenReturn(0L);
+        when(rawRepoBean.getRecordVersions(bibliographicRecordId, true)).thenReturn(
+                new RawRepoBean.RecordVersions(versions, states),
+                new RawRepoBean.RecordVersions(versions, states),
+                new RawRepoBean.RecordVersions(updatedVersions, states));
+        when(rawRepoDAO.agencyFor(bibliographicRecordId, 870970, false)).thenReturn(870970);
+        when(recordSimpleBean.recordIsActive(bibliographicRecordId, 870970)).thenReturn(true);
+        when(rawRepoDAO.fetchMergedRecordExpanded(eq(bibliographicRecordId), eq(870970), any(), eq(false), eq(false))).thenReturn(record);
+
+        // Every request has its own transaction
+        bean.getRawRepoRecordExpanded(bibliographicRecordId, 870970, false, false, false, false);
+        bean.daoContext.close();
+        // Served from the cache
+        bean.getRawRepoRecordExpanded(bibliographicRecordId, 870970, false, false, false, false);
+        bean.daoContext.close();
+        // The enrichment of the authority parent has changed
+        final Record expanded = bean.getRawRepoRecordExpanded(bibliographicRecordId, 870970, false, false, false, false);
+
+        assertThat(expanded.getContent(), is(record.getContent()));
+        verify(rawRepoDAO, times(2)).fetchMergedRecordExpanded(eq(bibliographicRecordId), eq(870970), any(), eq(false), eq(false));
+    }
+
+    @Test
+    public void testRecordVersionTagChangesWithLibraryRules() throws Exception {
+        final RecordBean bean = initRecordBeanMock();
+        bean.libraryRulesCache = libraryRulesCache;
+        bean.daoContext = new RawRepoDAOContext(globalDataSource, rawRepoBean);
+
+        final String bibliographicRecordId = "12345678";
+        final Map<RecordId, RecordState> states = Collections.singletonMap(new RecordId(bibliographicRecordId, 870970), RecordState.ACTIVE);
+        final String versions = "12345678:870970:false:2021-03-01T00:00:00Z:tracking-1\n";
+
+        when(rawRepoBean.getRecordVersions(bibliographicRecordId, false)).thenReturn(new RawRepoBean.RecordVersions(versions, states));
+        when(libraryRulesCache.getGeneration()).thenReturn(0L, 0L, 1L);
+
+        final String tag = bean.getRecordVersionTag(bibliographicRecordId, false, "merged");
+        assertThat(bean.getRecordVersionTag(bibliographicRecordId, false, "merged"), is(tag));
+        // A library rule has changed, which can change the merged record
+        assertThat(bean.getRecordVersionTag(bibliographicRecordId, false, "merged"), not(tag));
+    }
+
+    @Test
+    public void testRecordVersionTagOfDeletedRecord() throws Exception {
+        final RecordBean bean = initRecordBeanMock();
+        bean.libraryRulesCache = libraryRulesCache;
+        bean.daoContext = new RawRepoDAOContext(globalDataSource, rawRepoBean);
+
+        final String bibliographicRecordId = "12345678";
+        final Map<RecordId, RecordState> states = new HashMap<>();
+        states.put(new RecordId(bibliographicRecordId, 191919), RecordState.DELETED);
+        states.put(new RecordId(bibliographicRecordId, 870970), RecordState.ACTIVE);
+        final String versions = "12345678:191919:true:2021-03-01T00:00:00Z:tracking-1\n" +
+                "12345678:870970:false:2021-03-01T00:00:00Z:tracking-2\n";
+
+        when(rawRepoBean.getRecordVersions(eq(bibliographicRecordId), anyBoolean())).thenReturn(new RawRepoBean.RecordVersions(versions, states));
+        when(libraryRulesCache.getGeneration()).thenReturn(0L);
+
+        assertThat(bean.getRecordVersionTag(bibliographicRecordId, false, "merged"), notNullValue());
+        // The authority parents of a deleted record are found in the content, so they aren't part of the versions
+        assertThat(bean.getRecordVersionTag(bibliographicRecordId, true, "expanded"), nullValue());
+    }
+
+    @Test
+    public void testRecordsMergedFromOneFetchOfAllAgencies() throws Exception {
+        final RecordBean bean = initRecordBeanMock();
+        bean.daoContext = new RawRepoDAOContext(globalDataSource, rawRepoBean);
+
+        final MarcRecord deletedEnrichment = loadMarcRecord("deleted-191919.xml");
+        final MarcRecord deletedCommon = loadMarcRecord("deleted-870970.xml");
+        final MarcRecord deletedMerged = loadMarcRecord("deleted-merged.xml");
+        final String deletedBibliographicRecordId = "00199087";
+        final String activeBibliographicRecordId = "12345678";
+
+        final Record deletedEnrichmentRecord = createRecordMock(deletedBibliographicRecordId, 191919, MarcXChangeMimeType.ENRICHMENT,
+                marcXchangeV1Writer.write(deletedEnrichment, StandardCharsets.UTF_8));
+        deletedEnrichmentRecord.setDeleted(true);
+        deletedEnrichmentRecord.setCreated(getInstant("2016-01-01"));
+        deletedEnrichmentRecord.setModified(getInstant("2017-01-01"));
+
+        final Record deletedCommonRecord = createRecordMock(deletedBibliographicRecordId, 870970, MarcXChangeMimeType.MARCXCHANGE,
+                marcXchangeV1Writer.write(deletedCommon, StandardCharsets.UTF_8));
+        deletedCommonRecord.setDeleted(true);
+        deletedCommonRecord.setCreated(getInstant("2016-01-01"));
+        deletedCommonRecord.setModified(getInstant("2017-01-01"));
+
+        final Record activeRecord = createRecordMock(activeBibliographicRecordId, 870970, MarcXChangeMimeType.MARCXCHANGE,
+                "<record/>".getBytes(StandardCharsets.UTF_8));
+        activeRecord.setCreated(getInstant("2021-03-01"));
+        activeRecord.setModified(getInstant("2021-03-01"));
+
+        final Map<RecordId, Record> rows = new HashMap<>();
+        rows.put(deletedEnrichmentRecord.getId(), deletedEnrichmentRecord);
+        rows.put(deletedCommonRecord.getId(), deletedCommonRecord);
+        rows.put(activeRecord.getId(), activeRecord);
+
+        when(rawRepoBean.fetchRecordsForAllAgencies(anyCollection())).thenReturn(rows);
+        when(relationHints.usesCommonAgency(191919)).thenReturn(true);
+        when(relationHints.get(191919)).thenReturn(Collections.singletonList(870970));
+        when(relationHints.getAgencyPriority(191919)).thenReturn(Arrays.asList(191919, 870970));
+
+        final RecordId deletedRecordId = new RecordId(deletedBibliographicRecordId, 191919);
+        final RecordId activeRecordId = new RecordId(activeBibliographicRecordId, 870970);
+        final RecordId missingRecordId = new RecordId("87654321", 870970);
+        final Map<RecordId, Record> records = bean.getRawRepoRecordsMerged(Arrays.asList(deletedRecordId, activeRecordId, missingRecordId),
+                true, false, true, false, false);
+
+        assertThat(records.size(), is(2));
+        final Record mergedDeletedRecord = records.get(deletedRecordId);
+        assertThat(mergedDeletedRecord.getId(), is(deletedRecordId));
+        assertThat(mergedDeletedRecord.isDeleted(), is(true));
+        assertThat(mergedDeletedRecord.getMimeType(), is(MarcXChangeMimeType.MARCXCHANGE));
+        assertThat(mergedDeletedRecord.getEnrichmentTrail(), is("870970,191919"));
+        final MarcXchangeV1Reader reader = new MarcXchangeV1Reader(new BufferedInputStream(new ByteArrayInputStream(mergedDeletedRecord.getContent())), StandardCharsets.UTF_8);
+        assertThat(marcXchangeV1Writer.write(reader.read(), StandardCharsets.UTF_8), is(marcXchangeV1Writer.write(deletedMerged, StandardCharsets.UTF_8)));
+
+        final Record mergedActiveRecord = records.get(activeRecordId);
+        assertThat(mergedActiveRecord.getId(), is(activeRecordId));
+        assertThat(mergedActiveRecord.getContent(), is(activeRecord.getContent()));
+        assertThat(mergedActiveRecord.getEnrichmentTrail(), is("870970"));
+
+        verify(rawRepoBean, times(1)).fetchRecordsForAllAgencies(anyCollection());
+        verify(rawRepoBean, never()).fetchRecords(anyCollection());
+        verify(recordSimpleBean, never()).fetchRecordChain(anyString(), anyInt());
+    }
+
+    @Test
+    public void testRecordsExpandedWithOneFetchOfAuthorityRecords() throws Exception {
+        final RecordBean bean = initRecordBeanMock();
+        bean.daoContext = new RawRepoDAOContext(globalDataSource, rawRepoBean);
+
+        final MarcRecord deletedEnrichmentMarcRecord = loadMarcRecord("merged-deleted/common-enrichment.xml");
+        final MarcRecord deletedCommonMarcRecord = loadMarcRecord("merged-deleted/common-dbc.xml");
+        final MarcRecord expectedExpandedMarcRecord = loadMarcRecord("merged-deleted/expected-expanded.xml");
+        final String bibliographicRecordId = "50938409";
+
+        final Record deletedEnrichmentRecord = createRecordMock(bibliographicRecordId, 191919, MarcXChangeMimeType.ENRICHMENT,
+                marcXchangeV1Writer.write(deletedEnrichmentMarcRecord, StandardCharsets.UTF_8));
+        deletedEnrichmentRecord.setDeleted(true);
+        deletedEnrichmentRecord.setCreated(getInstant("2018-09-11"));
+        deletedEnrichmentRecord.setModified(getInstant("2019-09-11"));
+
+        final Record deletedCommonRecord = createRecordMock(bibliographicRecordId, 870970, MarcXChangeMimeType.MARCXCHANGE,
+                marcXchangeV1Writer.write(deletedCommonMarcRecord, StandardCharsets.UTF_8));
+        deletedCommonRecord.setDeleted(true);
+        deletedCommonRecord.setCreated(getInstant("2018-09-11"));
+        deletedCommonRecord.setModified(getInstant("2019-09-11"));
+
+        final Map<RecordId, Record> rows = new HashMap<>();
+        rows.put(deletedEnrichmentRecord.getId(), deletedEnrichmentRecord);
+        rows.put(deletedCommonRecord.getId(), deletedCommonRecord);
+
+        final Set<RecordId> parents = new HashSet<>();
+        parents.add(new RecordId("69208045", 870979));
+        parents.add(new RecordId("133990054", 870979));
+        parents.add(new RecordId("133990119", 870979));
+
+        final Map<String, byte[]> autRecords = new HashMap<>();
+        autRecords.put("69208045", marcXchangeV1Writer.write(loadMarcRecord("merged-deleted/aut-dbc.xml"), StandardCharsets.UTF_8));
+        autRecords.put("133990054", marcXchangeV1Writer.write(loadMarcRecord("merged-deleted/aut-ringenes-herre.xml"), StandardCharsets.UTF_8));
+        autRecords.put("133990119", marcXchangeV1Writer.write(loadMarcRecord("merged-deleted/aut-middle-earth.xml"), StandardCharsets.UTF_8));
+
+        when(rawRepoBean.fetchRecordsForAllAgencies(anyCollection())).thenReturn(rows);
+        when(relationHints.usesCommonAgency(191919)).thenReturn(true);
+        when(relationHints.get(191919)).thenReturn(Collections.singletonList(870970));
+        when(relationHints.getAgencyPriority(191919)).thenReturn(Arrays.asList(191919, 870970));
+        // The expandable record is deleted, so the parents are found from the content
+        when(recordRelationsBean.getRelationsParents(bibliographicRecordId, 870970)).thenReturn(parents);
+        when(rawRepoBean.fetchRecordContents(new HashSet<>(Arrays.asList("69208045", "133990054", "133990119")), 870979)).thenReturn(autRecords);
+
+        final RecordId recordId = new RecordId(bibliographicRecordId, 191919);
+        final Map<RecordId, Record> records = bean.getRawRepoRecordsMerged(Collections.singletonList(recordId), true, false, true, true, false);
+
+        final Record actualRecord = records.get(recordId);
+        assertThat(actualRecord.getId(), is(recordId));
+        assertThat(actualRecord.getEnrichmentTrail(), is("870970,191919"));
+        final MarcXchangeV1Reader reader = new MarcXchangeV1Reader(new BufferedInputStream(new ByteArrayInputStream(actualRecord.getContent())), StandardCharsets.UTF_8);
+        assertThat(new String(marcXchangeV1Writer.write(reader.read(), StandardCharsets.UTF_8)),
+                is(new String(marcXchangeV1Writer.write(expectedExpandedMarcRecord, StandardCharsets.UTF_8))));
+
+        verify(rawRepoBean, times(1)).fetchRecordContents(anySet(), eq(870979));
+    }
 }
@@ -4,6 +4,8 @@ import dk.dbc.marc.binding.MarcRecord;
 import dk.dbc.marc.reader.MarcXchangeV1Reader;
 import dk.dbc.marc.writer.MarcXchangeV1Writer;
 import dk.dbc.marcxmerge.MarcXChangeMimeType;
+import dk.dbc.rawrepo.exception.RecordNotFoundException;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
@@ -14,8 +16,10 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 
 import static dk.dbc.rawrepo.BeanTestHelper.createRecordMock;
@@ -24,9 +28,13 @@ import static dk.dbc.rawrepo.BeanTestHelper.loadMarcRecord;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class RecordCollectionBeanTest {
@@ -40,22 +48,26 @@ public class RecordCollectionBeanTest {
     @Mock
     private RecordRelationsBean recordRelationsBean;
 
+    @Mock
+    private RecordSimpleBean recordSimpleBean;
+
     @Mock
     private static RelationHintsVipCore relationHints;
 
     private final MarcXchangeV1Writer marcXchangeV1Writer = new MarcXchangeV1Writer();
 
     private static class RecordCollectionBeanMock extends RecordCollectionBean {
-        RecordCollectionBeanMock(DataSource globalDataSource, RecordBean recordBean, RecordRelationsBean recordRelationsBean) {
+        RecordCollectionBeanMock(DataSource globalDataSource, RecordBean recordBean, RecordRelationsBean recordRelationsBean, RecordSimpleBean recordSimpleBean) {
             super(globalDataSource);
 
             this.recordBean = recordBean;
             this.recordRelationsBean = recordRelationsBean;
+            this.recordSimpleBean = recordSimpleBean;
         }
     }
 
     private RecordCollectionBeanMock initRecordCollectionBeanMock() {
-        return new RecordCollectionBeanMock(globalDataSource, recordBean, recordRelationsBean);
+        return new RecordCollectionBeanMock(globalDataSource, recordBean, recordRelationsBean, recordSimpleBean);
     }
 
     @BeforeEach
@@ -79,7 +91,7 @@ public class RecordCollectionBeanTest {
      */
     @Test
     public void testFetchRecordCollectionExpandedExistingPHRecord() throws Exception {
-        final RecordCollectionBean bean = new RecordCollectionBeanMock(globalDataSource, recordBean, recordRelationsBean);
+        final RecordCollectionBean bean = new RecordCollectionBeanMock(globalDataSource, recordBean, recordRelationsBean, recordSimpleBean);
 
         final String bibliographicRecordId = "90004158";
         final int originalAgencyId = 700300;
@@ -97,7 +109,8 @@ public class RecordCollectionBeanTest {
 
         when(recordRelationsBean.findParentRelationAgency(bibliographicRecordId, originalAgencyId)).thenReturn(agencyId);
         when(recordRelationsBean.getRelationsParents(bibliographicRecordId, agencyId)).thenReturn(Collections.EMPTY_SET);
-        when(recordBean.getRawRepoRecordMerged(bibliographicRecordId, originalAgencyId, true, false, true)).thenReturn(record);
+        when(recordBean.getRawRepoRecordsMerged(Collections.singletonList(new RecordId(bibliographicRecordId, originalAgencyId)), true, false, true, false, false))
+                .thenReturn(Collections.singletonMap(new RecordId(bibliographicRecordId, originalAgencyId), record));
 
         assertThat(bean.getRawRepoRecordCollection(bibliographicRecordId, originalAgencyId, true, false, true, false, false, false), is(collection));
     }
@@ -124,7 +137,8 @@ public class RecordCollectionBeanTest {
 
         when(recordRelationsBean.findParentRelationAgency(bibliographicRecordId, agencyId)).thenReturn(agencyId);
         when(recordRelationsBean.getRelationsParents(bibliographicRecordId, agencyId)).thenReturn(Collections.EMPTY_SET);
-        when(recordBean.getRawRepoRecordMerged(bibliographicRecordId, agencyId, true, false, true)).thenReturn(record);
+        when(recordBean.getRawRepoRecordsMerged(Collections.singletonList(new RecordId(bibliographicRecordId, agencyId)), true, false, true, false, true))
+                .thenReturn(Collections.singletonMap(new RecordId(bibliographicRecordId, agencyId), record));
 
         assertThat(bean.getRawRepoRecordCollection(bibliographicRecordId, agencyId, true, false, true, false, true, false), is(collection));
     }
@@ -152,7 +166,8 @@ public class RecordCollectionBeanTest {
         collection.put(bibliographicRecordId, record);
         when(recordRelationsBean.findParentRelationAgency(bibliographicRecordId, agencyId)).thenReturn(agencyId);
         when(recordRelationsBean.getRelationsParents(bibliographicRecordId, agencyId)).thenReturn(Collections.EMPTY_SET);
-        when(recordBean.getRawRepoRecordMerged(bibliographicRecordId, agencyId, true, false, false)).thenReturn(record);
+        when(recordBean.getRawRepoRecordsMerged(Collections.singletonList(new RecordId(bibliographicRecordId, agencyId)), true, false, false, false, false))
+                .thenReturn(Collections.singletonMap(new RecordId(bibliographicRecordId, agencyId), record));
 
         assertThat(bean.getRawRepoRecordCollection(bibliographicRecordId, agencyId, true, false, false, false, false, false), is(collection));
     }
@@ -196,8 +211,12 @@ public class RecordCollectionBeanTest {
         authorityRecord.setCreated(getInstant("2018-09-11"));
         authorityRecord.setModified(getInstant("2019-09-11"));
 
-        when(recordBean.getRawRepoRecordMerged(bibliographicRecordId, 191919, true, false, false)).thenReturn(expectedMergedRecord);
-        when(recordBean.getRawRepoRecordMerged(autBibliographicRecordId, 191919, true, false, false)).thenReturn(authorityRecord);
+        final Map<RecordId, Record> records = new HashMap<>();
+        records.put(new RecordId(bibliographicRecordId, 191919), expectedMergedRecord);
+        records.put(new RecordId(autBibliographicRecordId, 191919), authorityRecord);
+        // The whole hierarchy is merged in one batch
+        when(recordBean.getRawRepoRecordsMerged(Arrays.asList(new RecordId(bibliographicRecordId, 191919), new RecordId(autBibliographicRecordId, 191919)),
+                true, false, false, false, false)).thenReturn(records);
         when(recordRelationsBean.findParentRelationAgency(bibliographicRecordId, 191919)).thenReturn(870970);
         when(recordRelationsBean.findParentRelationAgency(autBibliographicRecordId, 191919)).thenReturn(870979);
         // this is kind of rotten and mostly check the mocking
@@ -281,8 +300,12 @@ public class RecordCollectionBeanTest {
         authorityRecord.setCreated(getInstant("2018-09-11"));
         authorityRecord.setModified(getInstant("2019-09-11"));
 
-        when(recordBean.getRawRepoRecordExpanded(bibliographicRecordId, 191919, true, false, true, false)).thenReturn(expectedExpandedRecord);
-        when(recordBean.getRawRepoRecordExpanded(autBibliographicRecordId, 191919, true, false, true, false)).thenReturn(authorityRecord);
+        final Map<RecordId, Record> records = new HashMap<>();
+        records.put(new RecordId(bibliographicRecordId, 191919), expectedExpandedRecord);
+        records.put(new RecordId(autBibliographicRecordId, 191919), authorityRecord);
+        // The whole hierarchy is expanded in one batch
+        when(recordBean.getRawRepoRecordsMerged(Arrays.asList(new RecordId(bibliographicRecordId, 191919), new RecordId(autBibliographicRecordId, 191919)),
+                true, false, true, true, false)).thenReturn(records);
         when(recordRelationsBean.findParentRelationAgency(bibliographicRecordId, 191919)).thenReturn(870970);
         when(recordRelationsBean.findParentRelationAgency(autBibliographicRecordId, 191919)).thenReturn(870979);
         when(recordRelationsBean.getRelationsParents(bibliographicRecordId, 191919)).thenReturn(Collections.singleton(new RecordId(autBibliographicRecordId, 870979)));
@@ -328,4 +351,111 @@ public class RecordCollectionBeanTest {
 
         assertThat(mergedContent, is(authorityRecord.getContent()));
     }
+
+    @Test
+    public void testFetchRecordCollectionMissingParent() throws Exception {
+        final RecordCollectionBean bean = initRecordCollectionBeanMock();
+
+        final String bibliographicRecordId = "50938409";
+        final String parentBibliographicRecordId = "50938395";
+        final Record record = createRecordMock(bibliographicRecordId, 870970, MarcXChangeMimeType.MARCXCHANGE,
+                "<record/>".getBytes(StandardCharsets.UTF_8));
+
+        when(recordRelationsBean.findParentRelationAgency(bibliographicRecordId, 870970)).thenReturn(870970);
+        when(recordRelationsBean.findParentRelationAgency(parentBibliographicRecordId, 870970)).thenReturn(870970);
+        when(recordRelationsBean.getRelationsParents(bibliographicRecordId, 870970)).thenReturn(Collections.singleton(new RecordId(parentBibliographicRecordId, 870970)));
+        when(recordBean.getRawRepoRecordsMerged(Arrays.asList(new RecordId(bibliographicRecordId, 870970), new RecordId(parentBibliographicRecordId, 870970)),
+                false, false, false, false, false)).thenReturn(Collections.singletonMap(new RecordId(bibliographicRecordId, 870970), record));
+
+        Assertions.assertThrows(RecordNotFoundException.class,
+                () -> bean.getRawRepoRecordCollection(bibliographicRecordId, 870970, false, false, false, false, false, false));
+    }
+
+    private static byte[] controlRecordContent(String bibliographicRecordId, String... controlRecordIds) {
+        final StringBuilder content = new StringBuilder();
+        content.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<record xmlns=\"info:lc/xmlns/marcxchange-v1\"><leader>00000n    2200000   4500</leader>")
+                .append("<datafield tag=\"001\" ind1=\"0\" ind2=\"0\"><subfield code=\"a\">").append(bibliographicRecordId)
+                .append("</subfield><subfield code=\"b\">191919</subfield></datafield>");
+        for (int i = 0; i < controlRecordIds.length; i++) {
+            content.append("<datafield tag=\"").append(i % 2 == 0 ? "520" : "526").append("\" ind1=\"0\" ind2=\"0\">")
+                    .append("<subfield code=\"n\">").append(controlRecordIds[i]).append("</subfield></datafield>");
+        }
+        content.append("</record>");
+
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testDataIOCollectionRootOfLocalRecord() throws Exception {
+        final RecordCollectionBean bean = initRecordCollectionBeanMock();
+
+        final String bibliographicRecordId = "90004158";
+        final Record record = createRecordMock(bibliographicRecordId, 191919, MarcXChangeMimeType.MARCXCHANGE,
+                controlRecordContent(bibliographicRecordId));
+
+        when(recordRelationsBean.parentIsActive(bibliographicRecordId, 191919)).thenReturn(true);
+        // There is no common record, so the record is local and a deleted record may be used
+        when(recordSimpleBean.recordExists(bibliographicRecordId, 870970, true)).thenReturn(false);
+        when(recordBean.getDataIORawRepoRecord(bibliographicRecordId, 191919, false, false, true)).thenReturn(record);
+
+        final Map<String, Record> actual = bean.getDataIORecordCollection(bibliographicRecordId, 191919, false, false, false);
+
+        assertThat(actual.size(), is(1));
+        assertThat(actual.get(bibliographicRecordId).getContent(), is(record.getContent()));
+        verify(recordRelationsBean).loadAncestorRelations(bibliographicRecordId);
+        verify(recordSimpleBean).recordExists(bibliographicRecordId, 870970, true);
+        verify(recordBean, never()).getDataIORawRepoRecord(bibliographicRecordId, 191919, false, false, false);
+    }
+
+    @Test
+    public void testDataIOCollectionRootOfCommonRecord() throws Exception {
+        final RecordCollectionBean bean = initRecordCollectionBeanMock();
+
+        final String bibliographicRecordId = "90004158";
+        final Record record = createRecordMock(bibliographicRecordId, 191919, MarcXChangeMimeType.MARCXCHANGE,
+                controlRecordContent(bibliographicRecordId));
+
+        when(recordRelationsBean.parentIsActive(bibliographicRecordId, 191919)).thenReturn(true);
+        when(recordSimpleBean.recordExists(bibliographicRecordId, 870970, true)).thenReturn(true);
+        when(recordBean.getDataIORawRepoRecord(bibliographicRecordId, 191919, false, false, false)).thenReturn(record);
+
+        final Map<String, Record> actual = bean.getDataIORecordCollection(bibliographicRecordId, 191919, false, false, false);
+
+        assertThat(actual.size(), is(1));
+        verify(recordBean, never()).getDataIORawRepoRecord(bibliographicRecordId, 191919, false, false, true);
+    }
+
+    @Test
+    public void testDataIOCollectionControlRecordsAreLookedUpTogether() throws Exception {
+        final RecordCollectionBean bean = initRecordCollectionBeanMock();
+
+        final String bibliographicRecordId = "50938409";
+        final Record record = createRecordMock(bibliographicRecordId, 191919, MarcXChangeMimeType.MARCXCHANGE,
+                controlRecordContent(bibliographicRecordId, "11111111", "22222222", "33333333"));
+        final Record firstControlRecord = createRecordMock("11111111", 191919, MarcXChangeMimeType.MARCXCHANGE,
+                controlRecordContent("11111111"));
+        final Record secondControlRecord = createRecordMock("22222222", 191919, MarcXChangeMimeType.MARCXCHANGE,
+                controlRecordContent("22222222"));
+
+        when(recordRelationsBean.parentIsActive(bibliographicRecordId, 191919)).thenReturn(false);
+        when(recordBean.getDataIORawRepoRecord(bibliographicRecordId, 191919, false, false, true)).thenReturn(record);
+        when(recordRelationsBean.findParentRelationAgency(bibliographicRecordId, 191919)).thenReturn(870970);
+        when(recordRelationsBean.getRelationsParents(bibliographicRecordId, 870970)).thenReturn(Collections.emptySet());
+        when(recordSimpleBean.recordExists("11111111", 191919, false)).thenReturn(true);
+        when(recordSimpleBean.recordExists("22222222", 191919, false)).thenReturn(true);
+        when(recordSimpleBean.recordExists("33333333", 191919, false)).thenReturn(false);
+        when(recordBean.getDataIORawRepoRecord("11111111", 191919, false, false, false)).thenReturn(firstControlRecord);
+        when(recordBean.getDataIORawRepoRecord("22222222", 191919, false, false, false)).thenReturn(secondControlRecord);
+
+        final Map<String, Record> actual = bean.getDataIORecordCollection(bibliographicRecordId, 191919, false, false, true);
+
+        assertThat(actual.size(), is(3));
+        assertTrue(actual.containsKey("11111111"));
+        assertTrue(actual.containsKey("22222222"));
+        // The states of all the control records are loaded with one query, and the hierarchies of the existing ones together
+        verify(recordSimpleBean, times(1)).loadRecordStates(new LinkedHashSet<>(Arrays.asList("11111111", "22222222", "33333333")));
+        verify(recordRelationsBean, times(1)).loadAncestorRelations(new LinkedHashSet<>(Arrays.asList("11111111", "22222222")));
+        verify(recordBean, never()).getDataIORawRepoRecord(eq("33333333"), anyInt(), anyBoolean(), anyBoolean(), anyBoolean());
+    }
 }
@@ -3,6 +3,7 @@ package dk.dbc.rawrepo;
 import dk.dbc.marc.binding.MarcRecord;
 import dk.dbc.marc.writer.MarcXchangeV1Writer;
 import dk.dbc.marcxmerge.MarcXChangeMimeType;
+import dk.dbc.rawrepo.dao.RawRepoBean;
 import dk.dbc.vipcore.libraryrules.VipCoreLibraryRulesConnector;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -12,6 +13,7 @@ import org.mockito.MockitoAnnotations;
 import javax.sql.DataSource;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -28,6 +30,8 @@ import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class RecordRelationsBeanTest {
@@ -41,6 +45,9 @@ public class RecordRelationsBeanTest {
     @Mock
     RecordSimpleBean recordSimpleBean;
 
+    @Mock
+    RawRepoBean rawRepoBean;
+
     @Mock
     private static VipCoreLibraryRulesConnector vipCoreLibraryRulesConnector;
 
@@ -52,6 +59,7 @@ public class RecordRelationsBeanTest {
     private final String ARTICLE = "article";
     private final String AUTHORITY = "authority";
     private final String LITTOLK = "littolk";
+    private static final Instant MODIFIED = Instant.parse("2021-01-01T10:00:00Z");
 
     private class RecordRelationsBeanMock extends RecordRelationsBean {
         RecordRelationsBeanMock(DataSource globalDataSource, RecordSimpleBean recordSimpleBean) {
@@ -59,7 +67,10 @@ public class RecordRelationsBeanTest {
 
             this.relationHints = RecordRelationsBeanTest.relationHints;
             this.recordSimpleBean = recordSimpleBean;
-            this.vipCoreLibraryRulesConnector = RecordRelationsBeanTest.vipCoreLibraryRulesConnector;
+            this.rawRepoBean = RecordRelationsBeanTest.this.rawRepoBean;
+            this.parentReferencesCache.maxEntries = 10;
+            this.parentReferencesCache.init();
+            this.libraryRulesCache = new LibraryRulesCache(RecordRelationsBeanTest.vipCoreLibraryRulesConnector);
         }
 
         @Override
@@ -192,7 +203,7 @@ public class RecordRelationsBeanTest {
         final Record record = createRecordMock(bibliographicRecordId, 820010, MarcXChangeMimeType.MARCXCHANGE,
                 marcXchangeV1Writer.write(marcRecord, StandardCharsets.UTF_8));
 
-        when(recordSimpleBean.fetchRecord(bibliographicRecordId, 820010)).thenReturn(record);
+        when(rawRepoBean.fetchContentIfModified(bibliographicRecordId, 820010, null)).thenReturn(new RawRepoBean.ContentVersion(MODIFIED, record.getContent()));
         when(rawRepoDAO.fetchRecord(bibliographicRecordId, 820010)).thenReturn(record);
         when(vipCoreLibraryRulesConnector.hasFeature(820010, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS)).thenReturn(true);
 
@@ -214,7 +225,7 @@ public class RecordRelationsBeanTest {
         final Record record = createRecordMock(bibliographicRecordId, 870970, MarcXChangeMimeType.MARCXCHANGE,
                 marcXchangeV1Writer.write(marcRecord, StandardCharsets.UTF_8));
 
-        when(recordSimpleBean.fetchRecord(bibliographicRecordId, 870970)).thenReturn(record);
+        when(rawRepoBean.fetchContentIfModified(bibliographicRecordId, 870970, null)).thenReturn(new RawRepoBean.ContentVersion(MODIFIED, record.getContent()));
         when(rawRepoDAO.fetchRecord(bibliographicRecordId, 870970)).thenReturn(record);
 
         Set<RecordId> actual = bean.getRelationsParents(bibliographicRecordId, 870970);
@@ -236,7 +247,7 @@ public class RecordRelationsBeanTest {
         when(rawRepoDAO.fetchRecord(bibliographicRecordId, 870970)).thenReturn(record);
         when(vipCoreLibraryRulesConnector.hasFeature(870970, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS)).thenReturn(true);
         when(recordSimpleBean.recordIsActive(bibliographicRecordId, 870970)).thenReturn(false);
-        when(recordSimpleBean.fetchRecord(bibliographicRecordId, 870970)).thenReturn(record);
+        when(rawRepoBean.fetchContentIfModified(bibliographicRecordId, 870970, null)).thenReturn(new RawRepoBean.ContentVersion(MODIFIED, record.getContent()));
 
         Set<RecordId> actual = bean.getRelationsParents(bibliographicRecordId, 870970);
 
@@ -256,7 +267,7 @@ public class RecordRelationsBeanTest {
         Record record = createRecordMock(bibliographicRecordId, 870970, MarcXChangeMimeType.MARCXCHANGE,
                 marcXchangeV1Writer.write(marcRecord, StandardCharsets.UTF_8));
 
-        when(recordSimpleBean.fetchRecord(bibliographicRecordId, 870970)).thenReturn(record);
+        when(rawRepoBean.fetchContentIfModified(bibliographicRecordId, 870970, null)).thenReturn(new RawRepoBean.ContentVersion(MODIFIED, record.getContent()));
         when(rawRepoDAO.fetchRecord(bibliographicRecordId, 870970)).thenReturn(record);
         when(vipCoreLibraryRulesConnector.hasFeature(870970, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS)).thenReturn(true);
 
@@ -284,7 +295,7 @@ public class RecordRelationsBeanTest {
         Record record = createRecordMock(bibliographicRecordId, 870971, MarcXChangeMimeType.MARCXCHANGE,
                 marcXchangeV1Writer.write(marcRecord, StandardCharsets.UTF_8));
 
-        when(recordSimpleBean.fetchRecord(bibliographicRecordId, 870971)).thenReturn(record);
+        when(rawRepoBean.fetchContentIfModified(bibliographicRecordId, 870971, null)).thenReturn(new RawRepoBean.ContentVersion(MODIFIED, record.getContent()));
         when(rawRepoDAO.fetchRecord(bibliographicRecordId, 870971)).thenReturn(record);
         when(vipCoreLibraryRulesConnector.hasFeature(870971, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS)).thenReturn(true);
 
@@ -307,7 +318,7 @@ public class RecordRelationsBeanTest {
         Record record = createRecordMock(bibliographicRecordId, 870970, MarcXChangeMimeType.MARCXCHANGE,
                 marcXchangeV1Writer.write(marcRecord, StandardCharsets.UTF_8));
 
-        when(recordSimpleBean.fetchRecord(bibliographicRecordId, 870970)).thenReturn(record);
+        when(rawRepoBean.fetchContentIfModified(bibliographicRecordId, 870970, null)).thenReturn(new RawRepoBean.ContentVersion(MODIFIED, record.getContent()));
         when(rawRepoDAO.fetchRecord(bibliographicRecordId, 870970)).thenReturn(record);
         when(vipCoreLibraryRulesConnector.hasFeature(870970, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS)).thenReturn(true);
 
@@ -330,7 +341,7 @@ public class RecordRelationsBeanTest {
         Record record = createRecordMock(bibliographicRecordId, 870974, MarcXChangeMimeType.MARCXCHANGE,
                 marcXchangeV1Writer.write(marcRecord, StandardCharsets.UTF_8));
 
-        when(recordSimpleBean.fetchRecord(bibliographicRecordId, 870974)).thenReturn(record);
+        when(rawRepoBean.fetchContentIfModified(bibliographicRecordId, 870974, null)).thenReturn(new RawRepoBean.ContentVersion(MODIFIED, record.getContent()));
         when(rawRepoDAO.fetchRecord(bibliographicRecordId, 870974)).thenReturn(record);
         when(vipCoreLibraryRulesConnector.hasFeature(870974, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS)).thenReturn(true);
 
@@ -355,7 +366,7 @@ public class RecordRelationsBeanTest {
         final Record record = createRecordMock(bibliographicRecordId, agencyId, MarcXChangeMimeType.MARCXCHANGE,
                 marcXchangeV1Writer.write(marcRecord, StandardCharsets.UTF_8));
 
-        when(recordSimpleBean.fetchRecord(bibliographicRecordId, agencyId)).thenReturn(record);
+        when(rawRepoBean.fetchContentIfModified(bibliographicRecordId, agencyId, null)).thenReturn(new RawRepoBean.ContentVersion(MODIFIED, record.getContent()));
         when(rawRepoDAO.fetchRecord(bibliographicRecordId, agencyId)).thenReturn(record);
         when(vipCoreLibraryRulesConnector.hasFeature(agencyId, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS)).thenReturn(false);
 
@@ -364,6 +375,45 @@ public class RecordRelationsBeanTest {
         assertThat(actual.size(), is(0));
     }
 
+    @Test
+    void testGetRelationsParentsDeletedRecordIsCached() throws Exception {
+        final RecordRelationsBean bean = new RecordRelationsBeanMock(globalDataSource, recordSimpleBean);
+        final String bibliographicRecordId = "22723715";
+
+        final MarcRecord marcRecord = loadMarcRecord("getRelationsParents/common-volume.xml");
+        final byte[] content = marcXchangeV1Writer.write(marcRecord, StandardCharsets.UTF_8);
+
+        when(recordSimpleBean.recordIsActive(bibliographicRecordId, 870970)).thenReturn(false);
+        when(rawRepoBean.fetchContentIfModified(bibliographicRecordId, 870970, null)).thenReturn(new RawRepoBean.ContentVersion(MODIFIED, content));
+        // The second lookup knows the modified timestamp, so the unchanged content isn't returned
+        when(rawRepoBean.fetchContentIfModified(bibliographicRecordId, 870970, MODIFIED)).thenReturn(new RawRepoBean.ContentVersion(MODIFIED, null));
+
+        final Set<RecordId> expected = Collections.singleton(new RecordId("50434990", 870970));
+        assertThat(bean.getRelationsParents(bibliographicRecordId, 870970), is(expected));
+        assertThat(bean.getRelationsParents(bibliographicRecordId, 870970), is(expected));
+
+        verify(rawRepoBean).fetchContentIfModified(bibliographicRecordId, 870970, null);
+        verify(rawRepoBean).fetchContentIfModified(bibliographicRecordId, 870970, MODIFIED);
+        verify(recordSimpleBean, never()).fetchRecord(anyString(), anyInt());
+    }
+
+    @Test
+    void testGetRelationsParentsDeletedRecordModifiedSinceCached() throws Exception {
+        final RecordRelationsBean bean = new RecordRelationsBeanMock(globalDataSource, recordSimpleBean);
+        final String bibliographicRecordId = "22723715";
+        final Instant modifiedLater = MODIFIED.plusSeconds(60);
+
+        final byte[] volume = marcXchangeV1Writer.write(loadMarcRecord("getRelationsParents/common-volume.xml"), StandardCharsets.UTF_8);
+        final byte[] noRelations = marcXchangeV1Writer.write(loadMarcRecord("getRelationsParents/common-no-relations.xml"), StandardCharsets.UTF_8);
+
+        when(recordSimpleBean.recordIsActive(bibliographicRecordId, 870970)).thenReturn(false);
+        when(rawRepoBean.fetchContentIfModified(bibliographicRecordId, 870970, null)).thenReturn(new RawRepoBean.ContentVersion(MODIFIED, volume));
+        when(rawRepoBean.fetchContentIfModified(bibliographicRecordId, 870970, MODIFIED)).thenReturn(new RawRepoBean.ContentVersion(modifiedLater, noRelations));
+
+        assertThat(bean.getRelationsParents(bibliographicRecordId, 870970).size(), is(1));
+        assertThat(bean.getRelationsParents(bibliographicRecordId, 870970).size(), is(0));
+    }
+
     @Test
     public void testGetRelationsSiblingsFromMeActiveRecord191919() throws Exception {
         final RecordRelationsBean bean = new RecordRelationsBeanMock(globalDataSource, recordSimpleBean);
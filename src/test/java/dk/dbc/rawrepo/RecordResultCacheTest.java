@@ -0,0 +1,140 @@
+package dk.dbc.rawrepo;
+
+import dk.dbc.marcxmerge.MarcXChangeMimeType;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import static dk.dbc.rawrepo.BeanTestHelper.createRecordMock;
+import static dk.dbc.rawrepo.BeanTestHelper.getInstant;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+public class RecordResultCacheTest {
+    private static final Instant MODIFIED = getInstant("2021-03-01");
+    private static final RecordResultCache.Key KEY = new RecordResultCache.Key("12345678", 870970, false, false, false, false, false);
+    private static final String VERSIONS = "12345678:870970:false:2021-03-01T00:00:00Z:tracking-1\n";
+
+    @Mock
+    private MetricRegistry metricRegistry;
+
+    @Mock
+    private Counter counter;
+
+    private RecordResultCache cache;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        when(metricRegistry.counter(anyString())).thenReturn(counter);
+
+        cache = new RecordResultCache();
+        cache.enabled = true;
+        cache.maxEntries = 2;
+        cache.maxBytes = 1024 * 1024;
+        cache.maxAgeSeconds = 3600;
+        cache.metricRegistry = metricRegistry;
+        cache.init();
+    }
+
+    private Record createRecord(String bibliographicRecordId, Instant modified) {
+        final Record record = createRecordMock(bibliographicRecordId, 870970, MarcXChangeMimeType.MARCXCHANGE,
+                "<record/>".getBytes(StandardCharsets.UTF_8));
+        record.setCreated(modified);
+        record.setModified(modified);
+
+        return record;
+    }
+
+    @Test
+    public void testHit() {
+        final Record record = createRecord("12345678", MODIFIED);
+
+        assertThat(cache.get(KEY, VERSIONS, 0), nullValue());
+
+        cache.put(KEY, record, VERSIONS, 0);
+        final Record cached = cache.get(KEY, VERSIONS, 0);
+
+        assertThat(cached, notNullValue());
+        assertThat(cached, not(sameInstance(record)));
+        assertThat(cached.getContent(), is(record.getContent()));
+        assertThat(cached.getModified(), is(MODIFIED));
+    }
+
+    @Test
+    public void testModifiedRowInvalidates() {
+        cache.put(KEY, createRecord("12345678", MODIFIED), VERSIONS, 0);
+
+        assertThat(cache.get(KEY, "12345678:870970:false:2021-03-01T00:00:01Z:tracking-2\n", 0), nullValue());
+        // The entry is removed, so it isn't used even if the versions should match again
+        assertThat(cache.get(KEY, VERSIONS, 0), nullValue());
+    }
+
+    @Test
+    public void testDeletedRecordInvalidates() {
+        cache.put(KEY, createRecord("12345678", MODIFIED), VERSIONS, 0);
+
+        assertThat(cache.get(KEY, null, 0), nullValue());
+    }
+
+    @Test
+    public void testAuthorityEnrichmentInvalidatesExpandedRecord() {
+        final RecordResultCache.Key expandedKey = new RecordResultCache.Key("12345678", 870970, false, false, false, true, false);
+        final String versions = VERSIONS +
+                "68000000:191919:false:2021-01-01T00:00:00Z:tracking-3\n" +
+                "68000000:870979:false:2021-01-01T00:00:00Z:tracking-4\n";
+        cache.put(expandedKey, createRecord("12345678", MODIFIED), versions, 0);
+        assertThat(cache.get(expandedKey, versions, 0), notNullValue());
+
+        // The enrichment of the authority parent is updated
+        final String updatedVersions = VERSIONS +
+                "68000000:191919:false:2021-03-02T00:00:00Z:tracking-5\n" +
+                "68000000:870979:false:2021-01-01T00:00:00Z:tracking-4\n";
+
+        assertThat(cache.get(expandedKey, updatedVersions, 0), nullValue());
+    }
+
+    @Test
+    public void testChangedLibraryRulesInvalidate() {
+        cache.put(KEY, createRecord("12345678", MODIFIED), VERSIONS, 0);
+
+        assertThat(cache.get(KEY, VERSIONS, 1), nullValue());
+    }
+
+    @Test
+    public void testDeletedRecordIsNotCached() {
+        final Record record = createRecord("12345678", MODIFIED);
+        record.setDeleted(true);
+
+        cache.put(KEY, record, VERSIONS, 0);
+
+        assertThat(cache.get(KEY, VERSIONS, 0), nullValue());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        final RecordResultCache.Key key2 = new RecordResultCache.Key("22222222", 870970, false, false, false, false, false);
+        final RecordResultCache.Key key3 = new RecordResultCache.Key("33333333", 870970, false, false, false, false, false);
+
+        cache.put(KEY, createRecord("12345678", MODIFIED), VERSIONS, 0);
+        cache.put(key2, createRecord("22222222", MODIFIED), VERSIONS, 0);
+        assertThat(cache.get(KEY, VERSIONS, 0), notNullValue());
+        cache.put(key3, createRecord("33333333", MODIFIED), VERSIONS, 0);
+
+        assertThat(cache.get(KEY, VERSIONS, 0), notNullValue());
+        assertThat(cache.get(key2, VERSIONS, 0), nullValue());
+        assertThat(cache.get(key3, VERSIONS, 0), notNullValue());
+    }
+}
@@ -9,9 +9,22 @@ import org.mockito.MockitoAnnotations;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class RecordSimpleBeanTest {
@@ -22,6 +35,15 @@ public class RecordSimpleBeanTest {
     @Mock
     private RawRepoDAO rawRepoDAO;
 
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private PreparedStatement preparedStatement;
+
+    @Mock
+    private ResultSet resultSet;
+
     @Mock
     private static RelationHintsVipCore relationHints;
 
@@ -41,8 +63,17 @@ public class RecordSimpleBeanTest {
     }
 
     @BeforeEach
-    public void setUp() {
+    public void setUp() throws Exception {
         MockitoAnnotations.openMocks(this);
+        when(globalDataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.executeQuery()).thenReturn(resultSet);
+    }
+
+    // deleted == null means the record doesn't exist
+    private void mockRecordState(Boolean deleted) throws Exception {
+        when(resultSet.next()).thenReturn(deleted != null);
+        when(resultSet.getBoolean(1)).thenReturn(deleted != null && deleted);
     }
 
     @Test
@@ -51,8 +82,7 @@ public class RecordSimpleBeanTest {
         final String bibliographicRecordId = "12345678";
         final int agencyId = 870970;
 
-        when(rawRepoDAO.recordExistsMaybeDeleted(bibliographicRecordId, agencyId)).thenReturn(true);
-        when(rawRepoDAO.recordExists(bibliographicRecordId, agencyId)).thenReturn(true);
+        mockRecordState(false);
 
         assertThat(bean.recordIsActive(bibliographicRecordId, agencyId), is(true));
     }
@@ -63,8 +93,7 @@ public class RecordSimpleBeanTest {
         final String bibliographicRecordId = "12345678";
         final int agencyId = 870970;
 
-        when(rawRepoDAO.recordExistsMaybeDeleted(bibliographicRecordId, agencyId)).thenReturn(true);
-        when(rawRepoDAO.recordExists(bibliographicRecordId, agencyId)).thenReturn(false);
+        mockRecordState(true);
 
         assertThat(bean.recordIsActive(bibliographicRecordId, agencyId), is(false));
     }
@@ -75,8 +104,136 @@ public class RecordSimpleBeanTest {
         final String bibliographicRecordId = "12345678";
         final int agencyId = 870970;
 
-        when(rawRepoDAO.recordExistsMaybeDeleted(bibliographicRecordId, agencyId)).thenReturn(false);
+        mockRecordState(null);
 
         Assertions.assertThrows(RecordNotFoundException.class, () -> assertThat(bean.recordIsActive(bibliographicRecordId, agencyId), is(true)));
     }
+
+    @Test
+    public void recordExistsTest() throws Exception {
+        final RecordSimpleBean bean = new RecordSimpleBeanMock(globalDataSource);
+        final String bibliographicRecordId = "12345678";
+        final int agencyId = 870970;
+
+        mockRecordState(true);
+
+        assertThat(bean.recordExists(bibliographicRecordId, agencyId, true), is(true));
+        assertThat(bean.recordExists(bibliographicRecordId, agencyId, false), is(false));
+    }
+
+    @Test
+    public void recordStateIsLookedUpOnce() throws Exception {
+        final RecordSimpleBean bean = new RecordSimpleBeanMock(globalDataSource);
+        final String bibliographicRecordId = "12345678";
+        final int agencyId = 870970;
+
+        mockRecordState(false);
+
+        assertThat(bean.recordIsActive(bibliographicRecordId, agencyId), is(true));
+        assertThat(bean.recordExists(bibliographicRecordId, agencyId, false), is(true));
+        assertThat(bean.recordState(bibliographicRecordId, agencyId), is(RecordState.ACTIVE));
+
+        verify(preparedStatement, times(1)).executeQuery();
+    }
+
+    @Test
+    public void fetchRecordChainTest() throws Exception {
+        final RecordSimpleBean bean = new RecordSimpleBeanMock(globalDataSource);
+        final String bibliographicRecordId = "12345678";
+        final Timestamp timestamp = Timestamp.valueOf("2021-03-01 12:00:00");
+
+        when(resultSet.next()).thenReturn(true, true, true, false);
+        when(resultSet.getInt(1)).thenReturn(191919, 870970, 710100);
+        when(resultSet.getBoolean(2)).thenReturn(true);
+        when(resultSet.getString(3)).thenReturn("text/enrichment+marcxchange", "text/marcxchange", "text/marcxchange");
+        when(resultSet.getBytes(4)).thenReturn("<record/>".getBytes());
+        when(resultSet.getTimestamp(5)).thenReturn(timestamp);
+        when(resultSet.getTimestamp(6)).thenReturn(timestamp);
+        when(relationHints.getAgencyPriority(191919)).thenReturn(Arrays.asList(191919, 870970, 870971));
+        when(relationHints.getAgencyPriority(870970)).thenReturn(Collections.singletonList(870970));
+
+        final List<Record> chain = bean.fetchRecordChain(bibliographicRecordId, 191919);
+
+        assertThat(chain.size(), is(2));
+        assertThat(chain.get(0).getId(), is(new RecordId(bibliographicRecordId, 870970)));
+        assertThat(chain.get(1).getId(), is(new RecordId(bibliographicRecordId, 191919)));
+        verify(preparedStatement, times(1)).executeQuery();
+    }
+
+    @Test
+    public void fetchRecordChainUsesAgencyPriorityOrder() throws Exception {
+        final RecordSimpleBean bean = new RecordSimpleBeanMock(globalDataSource);
+        final String bibliographicRecordId = "12345678";
+        final Timestamp timestamp = Timestamp.valueOf("2021-03-01 12:00:00");
+
+        when(resultSet.next()).thenReturn(true, true, true, false);
+        when(resultSet.getInt(1)).thenReturn(191919, 870970, 870971);
+        when(resultSet.getBoolean(2)).thenReturn(true);
+        when(resultSet.getString(3)).thenReturn("text/enrichment+marcxchange", "text/marcxchange", "text/marcxchange");
+        when(resultSet.getBytes(4)).thenReturn("<record/>".getBytes());
+        when(resultSet.getTimestamp(5)).thenReturn(timestamp);
+        when(resultSet.getTimestamp(6)).thenReturn(timestamp);
+        when(relationHints.getAgencyPriority(191919)).thenReturn(Arrays.asList(191919, 870971, 870970));
+        when(relationHints.getAgencyPriority(870971)).thenReturn(Collections.singletonList(870971));
+
+        final List<Record> chain = bean.fetchRecordChain(bibliographicRecordId, 191919);
+
+        assertThat(chain.size(), is(2));
+        assertThat(chain.get(0).getId(), is(new RecordId(bibliographicRecordId, 870971)));
+        assertThat(chain.get(1).getId(), is(new RecordId(bibliographicRecordId, 191919)));
+    }
+
+    @Test
+    public void fetchRecordChainFollowsRelationsOfActiveRecords() throws Exception {
+        final RecordSimpleBean bean = new RecordSimpleBeanMock(globalDataSource);
+        final String bibliographicRecordId = "12345678";
+        final Timestamp timestamp = Timestamp.valueOf("2021-03-01 12:00:00");
+
+        when(resultSet.next()).thenReturn(true, true, true, false);
+        when(resultSet.getInt(1)).thenReturn(191919, 870974, 870970);
+        when(resultSet.getBoolean(2)).thenReturn(true, false, false);
+        when(resultSet.getString(3)).thenReturn("text/enrichment+marcxchange", "text/enrichment+marcxchange", "text/marcxchange");
+        when(resultSet.getBytes(4)).thenReturn("<record/>".getBytes());
+        when(resultSet.getTimestamp(5)).thenReturn(timestamp);
+        when(resultSet.getTimestamp(6)).thenReturn(timestamp);
+        when(relationHints.getAgencyPriority(191919)).thenReturn(Arrays.asList(191919, 870974, 870970));
+        when(rawRepoDAO.getRelationsSiblingsFromMe(new RecordId(bibliographicRecordId, 870974)))
+                .thenReturn(Collections.singleton(new RecordId(bibliographicRecordId, 870970)));
+        when(rawRepoDAO.getRelationsSiblingsFromMe(new RecordId(bibliographicRecordId, 870970))).thenReturn(Collections.emptySet());
+
+        final List<Record> chain = bean.fetchRecordChain(bibliographicRecordId, 191919);
+
+        assertThat(chain.size(), is(3));
+        assertThat(chain.get(0).getId(), is(new RecordId(bibliographicRecordId, 870970)));
+        assertThat(chain.get(1).getId(), is(new RecordId(bibliographicRecordId, 870974)));
+        assertThat(chain.get(2).getId(), is(new RecordId(bibliographicRecordId, 191919)));
+        verify(relationHints, never()).getAgencyPriority(870974);
+        verify(relationHints, never()).getAgencyPriority(870970);
+    }
+
+    @Test
+    public void fetchRecordChainNotFound() throws Exception {
+        final RecordSimpleBean bean = new RecordSimpleBeanMock(globalDataSource);
+
+        when(resultSet.next()).thenReturn(false);
+
+        Assertions.assertThrows(RecordNotFoundException.class, () -> bean.fetchRecordChain("12345678", 191919));
+    }
+
+    @Test
+    public void fetchRecordsMergedSkipsMissingRecords() throws Exception {
+        final RecordSimpleBean bean = new RecordSimpleBeanMock(globalDataSource);
+        final RecordId found = new RecordId("12345678", 191919);
+        final RecordId missing = new RecordId("87654321", 191919);
+        final Record record = BeanTestHelper.createRecordMock("12345678", 191919, "text/marcxchange", "<record/>".getBytes());
+
+        when(rawRepoDAO.fetchMergedRecord(eq("12345678"), eq(191919), any(), eq(false))).thenReturn(record);
+        when(rawRepoDAO.fetchMergedRecord(eq("87654321"), eq(191919), any(), eq(false))).thenThrow(new RawRepoExceptionRecordNotFound());
+
+        final Map<RecordId, Record> records = bean.fetchRecordsMerged(Arrays.asList(found, missing), false, false, false);
+
+        assertThat(records.size(), is(1));
+        assertThat(records.get(found), is(record));
+        verify(globalDataSource, times(1)).getConnection();
+    }
 }
@@ -0,0 +1,82 @@
+package dk.dbc.rawrepo;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class RelationGraphTest {
+    private static final RecordId HEAD = new RecordId("11111111", 870970);
+    private static final RecordId SECTION = new RecordId("22222222", 870970);
+    private static final RecordId VOLUME = new RecordId("33333333", 870970);
+    private static final RecordId ENRICHMENT = new RecordId("33333333", 191919);
+    private static final RecordId AUTHORITY = new RecordId("44444444", 870979);
+
+    private RelationGraph createGraph() {
+        final RelationGraph graph = new RelationGraph();
+        graph.add(SECTION, HEAD);
+        graph.add(VOLUME, SECTION);
+        graph.add(VOLUME, AUTHORITY);
+        graph.add(ENRICHMENT, VOLUME);
+
+        return graph;
+    }
+
+    @Test
+    public void testLoaded() {
+        final RelationGraph graph = createGraph();
+
+        assertThat(graph.getRelationsFrom(VOLUME), is(new HashSet<>(Arrays.asList(SECTION, AUTHORITY))));
+        assertThat(graph.getRelationsTo(VOLUME), is(new HashSet<>(Collections.singletonList(ENRICHMENT))));
+        assertThat(graph.getRelationsTo(AUTHORITY), is(new HashSet<>(Collections.singletonList(VOLUME))));
+        assertThat(graph.getRelationsFrom(HEAD), is(new HashSet<>()));
+        assertThat(graph.getRelationsTo(new RecordId("55555555", 870970)), is(new HashSet<>()));
+        assertThat(graph.recordCount(), is(5));
+        assertThat(graph.relationCount(), is(4L));
+    }
+
+    @Test
+    public void testSetRelationsFrom() {
+        final RelationGraph graph = createGraph();
+
+        graph.setRelationsFrom(VOLUME, Collections.singletonList(HEAD));
+
+        assertThat(graph.getRelationsFrom(VOLUME), is(new HashSet<>(Collections.singletonList(HEAD))));
+        assertThat(graph.getRelationsTo(HEAD), is(new HashSet<>(Arrays.asList(SECTION, VOLUME))));
+        assertThat(graph.getRelationsTo(SECTION), is(new HashSet<>()));
+        assertThat(graph.getRelationsTo(AUTHORITY), is(new HashSet<>()));
+        assertThat(graph.getRelationsTo(VOLUME), is(new HashSet<>(Collections.singletonList(ENRICHMENT))));
+        assertThat(graph.relationCount(), is(3L));
+    }
+
+    @Test
+    public void testSetRelationsFromEmpty() {
+        final RelationGraph graph = createGraph();
+
+        graph.setRelationsFrom(ENRICHMENT, Collections.emptyList());
+        graph.setRelationsFrom(new RecordId("55555555", 870970), Collections.emptyList());
+
+        assertThat(graph.getRelationsFrom(ENRICHMENT), is(new HashSet<>()));
+        assertThat(graph.getRelationsTo(VOLUME), is(new HashSet<>()));
+        assertThat(graph.recordCount(), is(5));
+        assertThat(graph.relationCount(), is(3L));
+    }
+
+    @Test
+    public void testManyRelations() {
+        final RelationGraph graph = new RelationGraph();
+        for (int i = 0; i < 5000; i++) {
+            graph.add(new RecordId(String.format("%08d", i), 870970), AUTHORITY);
+        }
+
+        graph.setRelationsFrom(new RecordId("00000042", 870970), Collections.singletonList(HEAD));
+
+        assertThat(graph.getRelationsTo(AUTHORITY).size(), is(4999));
+        assertThat(graph.getRelationsTo(HEAD), is(new HashSet<>(Collections.singletonList(new RecordId("00000042", 870970)))));
+        assertThat(graph.recordCount(), is(5002));
+    }
+}
@@ -0,0 +1,51 @@
+package dk.dbc.rawrepo.dto;
+
+import com.fasterxml.jackson.core.JsonParser;
+import dk.dbc.jsonb.JSONBContext;
+import dk.dbc.rawrepo.RecordId;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class RecordObjectMapperTest {
+    private final JSONBContext jsonbContext = new JSONBContext();
+
+    private List<RecordId> parse(String json) throws IOException {
+        try (JsonParser parser = jsonbContext.getObjectMapper().getFactory().createParser(json)) {
+            return RecordObjectMapper.recordIdCollectionFromJson(parser);
+        }
+    }
+
+    @Test
+    public void testRecordIdCollectionFromJson() throws Exception {
+        final String json = "{\"recordIds\":[" +
+                "{\"bibliographicRecordId\":\"50938409\",\"agencyId\":870970}," +
+                "{\"bibliographicRecordId\":\"12345678\",\"agencyId\":191919}," +
+                "{\"bibliographicRecordId\":\"50938409\",\"agencyId\":870970}]}";
+
+        assertThat(parse(json), is(Arrays.asList(
+                new RecordId("50938409", 870970),
+                new RecordId("12345678", 191919),
+                new RecordId("50938409", 870970))));
+    }
+
+    @Test
+    public void testRecordIdCollectionFromJsonUnknownField() throws Exception {
+        final String json = "{\"comment\":{\"text\":\"x\"},\"recordIds\":[{\"bibliographicRecordId\":\"50938409\",\"agencyId\":870970}]}";
+
+        assertThat(parse(json), is(Arrays.asList(new RecordId("50938409", 870970))));
+    }
+
+    @Test
+    public void testRecordIdCollectionFromJsonInvalid() {
+        assertThrows(IOException.class, () -> parse("[]"));
+        assertThrows(IOException.class, () -> parse("{\"recordIds\":[\"50938409\"]}"));
+        assertThrows(IOException.class, () -> parse("{\"recordIds\":[{\"bibliographicRecordId\":\"50938409\",\"agencyId\":870970}]"));
+    }
+}
@@ -0,0 +1,120 @@
+package dk.dbc.rawrepo.dump;
+
+import org.eclipse.microprofile.metrics.ConcurrentGauge;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.eclipse.microprofile.metrics.Timer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DumpStageMetricsTest {
+
+    @Mock
+    private MetricRegistry metricRegistry;
+
+    @Mock
+    private Counter records;
+
+    @Mock
+    private Counter bytes;
+
+    @Mock
+    private ConcurrentGauge activeSlices;
+
+    private final Timer fetchTimer = mock(Timer.class);
+    private final Timer otherTimer = mock(Timer.class);
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        when(metricRegistry.timer(eq("dump_stage"), any(Tag.class), any(Tag.class), any(Tag.class))).thenReturn(otherTimer);
+        when(metricRegistry.timer("dump_stage", new Tag("agency_type", "fbs"), new Tag("mode", "merged"), new Tag("stage", "fetch"))).thenReturn(fetchTimer);
+        when(metricRegistry.counter("dump_records", new Tag("agency_type", "fbs"), new Tag("mode", "merged"))).thenReturn(records);
+        when(metricRegistry.counter("dump_bytes", new Tag("agency_type", "fbs"), new Tag("mode", "merged"))).thenReturn(bytes);
+        when(metricRegistry.concurrentGauge("dump_active_slices", new Tag("agency_type", "fbs"), new Tag("mode", "merged"))).thenReturn(activeSlices);
+    }
+
+    @Test
+    void testTimerPerStageIsRegisteredWithLowerCaseTags() {
+        new DumpStageMetrics(metricRegistry, "FBS", "MERGED");
+
+        final ArgumentCaptor<Tag> stageTag = ArgumentCaptor.forClass(Tag.class);
+        verify(metricRegistry, times(DumpStageMetrics.Stage.values().length))
+                .timer(eq("dump_stage"), eq(new Tag("agency_type", "fbs")), eq(new Tag("mode", "merged")), stageTag.capture());
+        assertThat(stageTag.getAllValues(), hasItems(
+                new Tag("stage", "id_enumeration"),
+                new Tag("stage", "fetch"),
+                new Tag("stage", "merge"),
+                new Tag("stage", "expand"),
+                new Tag("stage", "serialize"),
+                new Tag("stage", "writer_wait"),
+                new Tag("stage", "write"),
+                new Tag("stage", "batch")));
+    }
+
+    @Test
+    void testStopUpdatesTheStageTimer() {
+        final DumpStageMetrics metrics = new DumpStageMetrics(metricRegistry, "FBS", "MERGED");
+        final long start = System.nanoTime();
+
+        metrics.stop(DumpStageMetrics.Stage.FETCH, start);
+
+        final ArgumentCaptor<Long> duration = ArgumentCaptor.forClass(Long.class);
+        verify(fetchTimer).update(duration.capture(), eq(TimeUnit.NANOSECONDS));
+        assertThat(duration.getValue(), is(greaterThanOrEqualTo(0L)));
+        verify(otherTimer, never()).update(anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    void testRecordWrittenCountsRecordsAndBytes() {
+        final DumpStageMetrics metrics = new DumpStageMetrics(metricRegistry, "FBS", "MERGED");
+
+        metrics.recordWritten(1234);
+        metrics.recordWritten(10);
+
+        verify(records, times(2)).inc();
+        verify(bytes).inc(1234);
+        verify(bytes).inc(10);
+    }
+
+    @Test
+    void testRecordWrittenWithoutByteCount() {
+        final DumpStageMetrics metrics = new DumpStageMetrics(metricRegistry, "FBS", "MERGED");
+
+        metrics.recordWritten(0);
+
+        verify(records).inc();
+        verify(bytes, never()).inc(anyLong());
+    }
+
+    @Test
+    void testActiveSlices() {
+        final DumpStageMetrics metrics = new DumpStageMetrics(metricRegistry, "FBS", "MERGED");
+
+        metrics.sliceStarted();
+        metrics.sliceStarted();
+        metrics.sliceDone();
+
+        verify(activeSlices, times(2)).inc();
+        verify(activeSlices).dec();
+    }
+}
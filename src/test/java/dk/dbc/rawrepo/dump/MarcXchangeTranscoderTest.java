@@ -0,0 +1,90 @@
+package dk.dbc.rawrepo.dump;
+
+import dk.dbc.marc.DanMarc2Charset;
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.writer.DanMarc2LineFormatWriter;
+import dk.dbc.marc.writer.Iso2709MarcRecordWriter;
+import dk.dbc.rawrepo.service.RecordObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class MarcXchangeTranscoderTest {
+    private static final String ESCAPE_RECORD = "<?xml version='1.0' encoding='UTF-8'?>" +
+            "<record xmlns='info:lc/xmlns/marcxchange-v1'>" +
+            "<leader>00000n    2200000   4500</leader>" +
+            "<datafield ind1='0' ind2='0' tag='001'><subfield code='a'>12345678</subfield><subfield code='b'>870970</subfield></datafield>" +
+            "<datafield ind1='0' ind2='0' tag='245'><subfield code='a'>Stars * and @ signs &amp; entities</subfield></datafield>" +
+            "</record>";
+
+    private final DanMarc2LineFormatWriter danMarc2LineFormatWriter = new DanMarc2LineFormatWriter();
+    private final Iso2709MarcRecordWriter iso2709Writer = new Iso2709MarcRecordWriter();
+
+    @Test
+    void lineFormatUTF8() throws Exception {
+        assertLine(loadContent("/dk/dbc/rawrepo/service/mconv/62451157.xml"), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void lineFormatDanMarc2() throws Exception {
+        assertLine(loadContent("/dk/dbc/rawrepo/service/mconv/62451157.xml"), new DanMarc2Charset());
+    }
+
+    @Test
+    void lineFormatEscaping() throws Exception {
+        assertLine(ESCAPE_RECORD.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void iso2709UTF8() throws Exception {
+        assertIso2709(loadContent("/dk/dbc/rawrepo/service/mconv/62451157.xml"), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void iso2709DanMarc2() throws Exception {
+        assertIso2709(loadContent("/dk/dbc/rawrepo/service/mconv/62451157.xml"), new DanMarc2Charset());
+    }
+
+    @Test
+    void iso2709Escaping() throws Exception {
+        assertIso2709(ESCAPE_RECORD.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void reuseBetweenRecords() throws Exception {
+        final byte[] large = loadContent("/dk/dbc/rawrepo/service/mconv/62451157.xml");
+        final byte[] small = ESCAPE_RECORD.getBytes(StandardCharsets.UTF_8);
+        final MarcXchangeTranscoder transcoder = new MarcXchangeTranscoder(StandardCharsets.UTF_8);
+
+        transcoder.toIso2709(large);
+        transcoder.toLine(large);
+
+        assertThat("iso", transcoder.toIso2709(small), is(new MarcXchangeTranscoder(StandardCharsets.UTF_8).toIso2709(small)));
+        assertThat("line", transcoder.toLine(small), is(new MarcXchangeTranscoder(StandardCharsets.UTF_8).toLine(small)));
+    }
+
+    private void assertLine(byte[] content, Charset charset) throws Exception {
+        final MarcRecord marcRecord = RecordObjectMapper.contentToMarcRecord(content);
+        final byte[] expected = danMarc2LineFormatWriter.write(marcRecord, charset);
+
+        assertThat(new String(new MarcXchangeTranscoder(charset).toLine(content), charset), is(new String(expected, charset)));
+    }
+
+    private void assertIso2709(byte[] content, Charset charset) throws Exception {
+        final MarcRecord marcRecord = RecordObjectMapper.contentToMarcRecord(content);
+        final byte[] expected = iso2709Writer.write(marcRecord, charset);
+
+        assertThat(new MarcXchangeTranscoder(charset).toIso2709(content), is(expected));
+    }
+
+    private static byte[] loadContent(String fileName) throws Exception {
+        try (InputStream inputStream = MarcXchangeTranscoderTest.class.getResourceAsStream(fileName)) {
+            return inputStream.readAllBytes();
+        }
+    }
+}
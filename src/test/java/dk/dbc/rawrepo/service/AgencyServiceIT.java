@@ -0,0 +1,235 @@
+package dk.dbc.rawrepo.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import dk.dbc.httpclient.HttpGet;
+import dk.dbc.httpclient.PathBuilder;
+import dk.dbc.jsonb.JSONBContext;
+import dk.dbc.rawrepo.dto.RecordIdCollectionDTO;
+import dk.dbc.rawrepo.dto.RecordIdDTO;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.Response;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class AgencyServiceIT extends AbstractRecordServiceContainerTest {
+    private final JSONBContext jsonbContext = new JSONBContext();
+
+    @BeforeAll
+    static void initDB() {
+        try {
+            Connection rawrepoConnection = connectToRawrepoDb();
+            resetRawrepoDb(rawrepoConnection);
+
+            // The first version is moved to the archive when the second is saved
+            saveRecord(rawrepoConnection, "sql/50129691-870970.xml", MIMETYPE_MARCXCHANGE, "2021-01-01T10:00:00Z", "2021-01-01T10:00:00Z");
+            saveRecord(rawrepoConnection, "sql/50129691-870970.xml", MIMETYPE_MARCXCHANGE, "2021-01-01T10:00:00Z", "2021-02-01T10:00:00Z");
+            saveRecord(rawrepoConnection, "sql/50129691-191919.xml", MIMETYPE_ENRICHMENT, "2021-01-01T10:00:00Z", "2021-01-01T10:00:00Z");
+            saveRelations(rawrepoConnection, "50129691", 191919, "50129691", 870970);
+            saveRecord(rawrepoConnection, "sql/collection/05395721-191919.xml", MIMETYPE_ENRICHMENT); // Deleted
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    void getBibliographicRecordIds() {
+        final RecordIdCollectionDTO actual = getRecordIds(191919, false);
+
+        assertThat("record ids", actual.getRecordIds(), is(Collections.singletonList(new RecordIdDTO("50129691", 191919))));
+    }
+
+    @Test
+    void getBibliographicRecordIds_AllowDeleted() {
+        final RecordIdCollectionDTO actual = getRecordIds(191919, true);
+
+        assertThat("record ids", new HashSet<>(actual.getRecordIds()), is(new HashSet<>(Arrays.asList(
+                new RecordIdDTO("50129691", 191919),
+                new RecordIdDTO("05395721", 191919)))));
+    }
+
+    @Test
+    void getBibliographicRecordIds_UnknownAgency() {
+        final RecordIdCollectionDTO actual = getRecordIds(123456, true);
+
+        assertThat("record ids", actual.getRecordIds().size(), is(0));
+    }
+
+    @Test
+    void getBibliographicRecordIds_InvalidTimestamp() {
+        final Response response = httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(new PathBuilder("/api/v1/agency/{agencyId}/recordids")
+                        .bind("agencyId", 191919)
+                        .build())
+                .withQueryParameter("created-after", "yesterday"));
+
+        assertThat("Response code", response.getStatus(), is(Response.Status.BAD_REQUEST.getStatusCode()));
+    }
+
+    private RecordIdCollectionDTO getRecordIds(int agencyId, boolean allowDeleted) {
+        final Response response = httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(new PathBuilder("/api/v1/agency/{agencyId}/recordids")
+                        .bind("agencyId", agencyId)
+                        .build())
+                .withQueryParameter("allow-deleted", allowDeleted));
+        assertThat("Response code", response.getStatus(), is(200));
+
+        return response.readEntity(RecordIdCollectionDTO.class);
+    }
+
+    @Test
+    void getBibliographicRecordIdPage() throws Exception {
+        final JsonNode first = getRecordIdPage(new HttpGet(httpClient)
+                .withQueryParameter("allow-deleted", true)
+                .withQueryParameter("limit", 1));
+
+        assertThat("first page", first.get("recordIds").size(), is(1));
+        assertThat("first id", first.get("recordIds").get(0).get("bibliographicRecordId").asText(), is("05395721"));
+        assertThat("agency", first.get("recordIds").get(0).get("agencyId").asInt(), is(191919));
+        assertThat("next", first.get("next").asText(), is("05395721"));
+
+        final JsonNode last = getRecordIdPage(new HttpGet(httpClient)
+                .withQueryParameter("allow-deleted", true)
+                .withQueryParameter("limit", 1)
+                .withQueryParameter("after", first.get("next").asText()));
+
+        assertThat("last page", last.get("recordIds").size(), is(1));
+        assertThat("last id", last.get("recordIds").get(0).get("bibliographicRecordId").asText(), is("50129691"));
+        assertThat("no next", last.hasNonNull("next"), is(false));
+    }
+
+    @Test
+    void getBibliographicRecordIdPage_Active() throws Exception {
+        final JsonNode actual = getRecordIdPage(new HttpGet(httpClient));
+
+        assertThat("record ids", actual.get("recordIds").size(), is(1));
+        assertThat("id", actual.get("recordIds").get(0).get("bibliographicRecordId").asText(), is("50129691"));
+        assertThat("no next", actual.hasNonNull("next"), is(false));
+    }
+
+    @Test
+    void getBibliographicRecordIdPage_InvalidInput() {
+        for (String limit : Arrays.asList("0", "100001")) {
+            final Response response = httpClient.execute(new HttpGet(httpClient)
+                    .withBaseUrl(recordServiceBaseUrl)
+                    .withPathElements(new PathBuilder("/api/v1/agency/{agencyId}/recordids/page")
+                            .bind("agencyId", 191919)
+                            .build())
+                    .withQueryParameter("limit", limit));
+
+            assertThat("Response code for limit " + limit, response.getStatus(), is(Response.Status.BAD_REQUEST.getStatusCode()));
+        }
+
+        final Response response = httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(new PathBuilder("/api/v1/agency/{agencyId}/recordids/page")
+                        .bind("agencyId", 191919)
+                        .build())
+                .withQueryParameter("created-after", "yesterday"));
+
+        assertThat("Response code", response.getStatus(), is(Response.Status.BAD_REQUEST.getStatusCode()));
+    }
+
+    @Test
+    void getBibliographicRecordIdPage_AgencyIndex() throws Exception {
+        // Each page is a range scan, which needs an index on the records table starting with agencyid, bibliographicrecordid
+        final List<String> indexes = new ArrayList<>();
+        try (Connection connection = connectToRawrepoDb();
+             PreparedStatement stmt = connection.prepareStatement("SELECT indexdef FROM pg_indexes WHERE tablename = 'records'");
+             ResultSet resultSet = stmt.executeQuery()) {
+            while (resultSet.next()) {
+                indexes.add(resultSet.getString(1));
+            }
+        }
+
+        assertThat("agency index in " + indexes, indexes.stream()
+                .anyMatch(index -> index.matches(".*\\(agencyid, bibliographicrecordid[,)].*")), is(true));
+    }
+
+    private JsonNode getRecordIdPage(HttpGet httpGet) throws Exception {
+        final Response response = httpClient.execute(httpGet
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(new PathBuilder("/api/v1/agency/{agencyId}/recordids/page")
+                        .bind("agencyId", 191919)
+                        .build()));
+        assertThat("Response code", response.getStatus(), is(200));
+
+        return jsonbContext.getObjectMapper().readTree(response.readEntity(String.class));
+    }
+
+    @Test
+    void getHistory() throws Exception {
+        final List<JsonNode> lines = readLines(getHistory(new HttpGet(httpClient)));
+
+        assertThat("versions", lines.size(), is(2));
+        assertThat("newest first", lines.get(0).get("modified").asText(), is("2021-02-01T10:00:00Z"));
+        assertThat("archived version", lines.get(1).get("modified").asText(), is("2021-01-01T10:00:00Z"));
+        assertThat("agency", lines.get(1).get("id").get("agencyId").asInt(), is(870970));
+        assertThat("no content", lines.get(0).has("content"), is(false));
+    }
+
+    @Test
+    void getHistory_IncludeContent() throws Exception {
+        final List<JsonNode> lines = readLines(getHistory(new HttpGet(httpClient)
+                .withQueryParameter("include-content", true)));
+
+        assertThat("versions", lines.size(), is(2));
+        assertThat("content", lines.get(0).get("content").binaryValue().length > 0, is(true));
+        assertThat("content", lines.get(1).get("content").binaryValue().length > 0, is(true));
+    }
+
+    @Test
+    void getHistory_ModifiedAfter() throws Exception {
+        final List<JsonNode> lines = readLines(getHistory(new HttpGet(httpClient)
+                .withQueryParameter("modified-after", "2021-01-15")));
+
+        assertThat("versions", lines.size(), is(1));
+        assertThat("modified", lines.get(0).get("modified").asText(), is("2021-02-01T10:00:00Z"));
+    }
+
+    @Test
+    void getHistory_InvalidTimestamp() {
+        final Response response = httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(new PathBuilder("/api/v1/agency/{agencyId}/history")
+                        .bind("agencyId", 870970)
+                        .build())
+                .withQueryParameter("modified-before", "yesterday"));
+
+        assertThat("Response code", response.getStatus(), is(Response.Status.BAD_REQUEST.getStatusCode()));
+    }
+
+    private Response getHistory(HttpGet httpGet) {
+        final Response response = httpClient.execute(httpGet
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(new PathBuilder("/api/v1/agency/{agencyId}/history")
+                        .bind("agencyId", 870970)
+                        .build()));
+        assertThat("Response code", response.getStatus(), is(200));
+
+        return response;
+    }
+
+    private List<JsonNode> readLines(Response response) throws Exception {
+        final List<JsonNode> lines = new ArrayList<>();
+        for (String line : response.readEntity(String.class).split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(jsonbContext.getObjectMapper().readTree(line));
+            }
+        }
+
+        return lines;
+    }
+}
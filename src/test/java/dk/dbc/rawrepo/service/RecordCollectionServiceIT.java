@@ -1,8 +1,10 @@
 package dk.dbc.rawrepo.service;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import dk.dbc.httpclient.HttpGet;
 import dk.dbc.httpclient.HttpPost;
 import dk.dbc.httpclient.PathBuilder;
+import dk.dbc.jsonb.JSONBContext;
 import dk.dbc.marc.binding.MarcRecord;
 import dk.dbc.marc.reader.MarcReaderException;
 import dk.dbc.marc.reader.MarcXchangeV1Reader;
@@ -35,6 +37,7 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 
 class RecordCollectionServiceIT extends AbstractRecordServiceContainerTest {
+    private final JSONBContext jsonbContext = new JSONBContext();
 
     @BeforeAll
     static void initDB() {
@@ -610,6 +613,123 @@ class RecordCollectionServiceIT extends AbstractRecordServiceContainerTest {
         assertThat(actual, is(expected));
     }
 
+    @Test
+    void testRelationsParents_EmptyInput() {
+        final RecordIdCollectionDTO recordIdCollectionDTO = new RecordIdCollectionDTO();
+        recordIdCollectionDTO.setRecordIds(new ArrayList<>());
+
+        final RecordRelationChildrenCollectionDTO actual = postRelations("/api/v1/records/parents", recordIdCollectionDTO);
+        assertThat(actual.getRecordRelationChildrenList().size(), is(0));
+    }
+
+    @Test
+    void testRelationsParents_UnknownAndDeleted() {
+        final RecordIdCollectionDTO recordIdCollectionDTO = new RecordIdCollectionDTO();
+        final List<RecordIdDTO> recordIdDTOList = new ArrayList<>();
+        recordIdDTOList.add(new RecordIdDTO("NOTFOUND", 870970));
+        recordIdDTOList.add(new RecordIdDTO("52451302", 870970)); // Deleted
+        recordIdDTOList.add(new RecordIdDTO("05395720", 870970));
+        recordIdCollectionDTO.setRecordIds(recordIdDTOList);
+
+        final RecordRelationChildrenCollectionDTO actual = postRelations("/api/v1/records/parents", recordIdCollectionDTO);
+
+        // Unknown records are left out, and the parents of deleted records are found from the content after the active ones
+        final List<RecordRelationChildrenDTO> entries = actual.getRecordRelationChildrenList();
+        assertThat(entries.size(), is(2));
+        assertThat(entries.get(0).getRecordIdDTO(), is(new RecordIdDTO("05395720", 870970)));
+        assertThat(entries.get(0).getChildren().size(), is(1));
+        assertThat(entries.get(0).getChildren().get(0).getBibliographicRecordId(), is("50129691"));
+        assertThat(entries.get(1).getRecordIdDTO(), is(new RecordIdDTO("52451302", 870970)));
+        assertThat(entries.get(1).getChildren().size(), is(1));
+        assertThat(entries.get(1).getChildren().get(0).getBibliographicRecordId(), is("51080157"));
+    }
+
+    @Test
+    void testRelationsFrom_UnknownAndDeleted() {
+        final RecordIdCollectionDTO recordIdCollectionDTO = new RecordIdCollectionDTO();
+        final List<RecordIdDTO> recordIdDTOList = new ArrayList<>();
+        recordIdDTOList.add(new RecordIdDTO("NOTFOUND", 191919));
+        recordIdDTOList.add(new RecordIdDTO("05395721", 191919)); // Deleted
+        recordIdDTOList.add(new RecordIdDTO("05395720", 191919));
+        recordIdCollectionDTO.setRecordIds(recordIdDTOList);
+
+        final RecordRelationChildrenCollectionDTO actual = postRelations("/api/v1/records/relationsFrom", recordIdCollectionDTO);
+
+        // The relations are read as they are, and deleted records don't have any
+        final List<RecordRelationChildrenDTO> entries = actual.getRecordRelationChildrenList();
+        assertThat(entries.size(), is(1));
+        assertThat(entries.get(0).getRecordIdDTO(), is(new RecordIdDTO("05395720", 191919)));
+        assertThat(entries.get(0).getChildren().get(0), is(new RecordIdDTO("05395720", 870970)));
+    }
+
+    @Test
+    void testRelationsChildren_InvalidInput() {
+        final HttpPost httpPost = new HttpPost(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(new PathBuilder("/api/v1/records/children").build())
+                .withData("{\"recordIds\":", MediaType.APPLICATION_JSON);
+
+        final Response response = httpClient.execute(httpPost);
+        assertThat("Response code", response.getStatus(), is(Response.Status.BAD_REQUEST.getStatusCode()));
+    }
+
+    private RecordRelationChildrenCollectionDTO postRelations(String path, RecordIdCollectionDTO recordIdCollectionDTO) {
+        final HttpPost httpPost = new HttpPost(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(new PathBuilder(path).build())
+                .withData(recordIdCollectionDTO, MediaType.APPLICATION_JSON);
+
+        final Response response = httpClient.execute(httpPost);
+        assertThat("Response code", response.getStatus(), is(200));
+
+        return response.readEntity(RecordRelationChildrenCollectionDTO.class);
+    }
+
+    @Test
+    void getRecordsHistory() throws Exception {
+        final RecordIdCollectionDTO recordIdCollectionDTO = new RecordIdCollectionDTO();
+        final List<RecordIdDTO> recordIdDTOList = new ArrayList<>();
+        recordIdDTOList.add(new RecordIdDTO("30707605", 870976));
+        recordIdDTOList.add(new RecordIdDTO("NOTFOUND", 870970));
+        recordIdDTOList.add(new RecordIdDTO("30707605", 191919));
+        recordIdCollectionDTO.setRecordIds(recordIdDTOList);
+
+        final HttpPost httpPost = new HttpPost(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(new PathBuilder("/api/v1/records/history").build())
+                .withQueryParameter("include-content", true)
+                .withData(recordIdCollectionDTO, MediaType.APPLICATION_JSON);
+
+        final Response response = httpClient.execute(httpPost);
+        assertThat("Response code", response.getStatus(), is(200));
+
+        final List<JsonNode> lines = new ArrayList<>();
+        for (String line : response.readEntity(String.class).split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(jsonbContext.getObjectMapper().readTree(line));
+            }
+        }
+
+        // The versions are ordered by record, and the unknown record has no versions
+        assertThat("versions", lines.size(), is(2));
+        assertThat("first agency", lines.get(0).get("id").get("agencyId").asInt(), is(191919));
+        assertThat("first modified", lines.get(0).get("modified").asText(), is("2020-10-19T09:43:42Z"));
+        assertThat("second agency", lines.get(1).get("id").get("agencyId").asInt(), is(870976));
+        assertThat("second modified", lines.get(1).get("modified").asText(), is("2020-10-19T09:45:42Z"));
+        assertThat("content", byteArrayToRecord(lines.get(1).get("content").binaryValue()).getSubFieldValue("001", 'a').get(), is("30707605"));
+    }
+
+    @Test
+    void getRecordsHistory_InvalidInput() {
+        final HttpPost httpPost = new HttpPost(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(new PathBuilder("/api/v1/records/history").build())
+                .withData("{\"recordIds\":", MediaType.APPLICATION_JSON);
+
+        final Response response = httpClient.execute(httpPost);
+        assertThat("Response code", response.getStatus(), is(Response.Status.BAD_REQUEST.getStatusCode()));
+    }
+
     private MarcRecord byteArrayToRecord(byte[] content) throws MarcReaderException {
         final InputStream inputStream = new ByteArrayInputStream(content);
         final BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
@@ -0,0 +1,141 @@
+package dk.dbc.rawrepo.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import dk.dbc.jsonb.JSONBContext;
+import dk.dbc.rawrepo.RawRepoRecordMock;
+import dk.dbc.rawrepo.Record;
+import dk.dbc.rawrepo.RecordId;
+import dk.dbc.rawrepo.dto.RecordIdDTO;
+import dk.dbc.rawrepo.exception.InternalServerException;
+import dk.dbc.vipcore.exception.VipCoreException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+
+class RecordFetchOutputTest {
+    private static final List<String> EXCLUDE_CONTENT = Arrays.asList("content", "contentJSON");
+
+    private final JSONBContext jsonbContext = new JSONBContext();
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static RecordIdDTO recordIdDTO(String bibliographicRecordId) {
+        final RecordIdDTO recordIdDTO = new RecordIdDTO();
+        recordIdDTO.setBibliographicRecordId(bibliographicRecordId);
+        recordIdDTO.setAgencyId(870970);
+
+        return recordIdDTO;
+    }
+
+    private static Map<RecordId, Record> found(List<RecordIdDTO> batch) {
+        final Map<RecordId, Record> records = new HashMap<>();
+        for (RecordIdDTO recordIdDTO : batch) {
+            final RawRepoRecordMock record = new RawRepoRecordMock(recordIdDTO.getBibliographicRecordId(), recordIdDTO.getAgencyId());
+            record.setContent("content".getBytes(StandardCharsets.UTF_8));
+            record.setMimeType("text/marcxchange");
+            record.setCreated(Instant.parse("2021-01-01T10:00:00Z"));
+            record.setModified(Instant.parse("2021-01-01T10:00:00Z"));
+            records.put(record.getId(), record);
+        }
+
+        return records;
+    }
+
+    private JsonNode write(RecordFetchOutput output) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        output.write(out);
+
+        return jsonbContext.getObjectMapper().readTree(out.toByteArray());
+    }
+
+    @Test
+    void testFoundAndMissingInRequestedOrder() throws Exception {
+        final List<RecordIdDTO> recordIds = Arrays.asList(recordIdDTO("a"), recordIdDTO("b"), recordIdDTO("c"));
+        final RecordFetchOutput output = new RecordFetchOutput(jsonbContext, executor, 2, recordIds, 1, EXCLUDE_CONTENT,
+                batch -> "b".equals(batch.get(0).getBibliographicRecordId()) ? new HashMap<>() : found(batch));
+        output.start();
+
+        final JsonNode result = write(output);
+        assertThat(result.get("found").size(), is(2));
+        assertThat(result.get("found").get(0).get("recordId").get("bibliographicRecordId").asText(), is("a"));
+        assertThat(result.get("found").get(1).get("recordId").get("bibliographicRecordId").asText(), is("c"));
+        assertThat(result.get("missing").size(), is(1));
+        assertThat(result.get("missing").get(0).get("bibliographicRecordId").asText(), is("b"));
+        assertThat(result.has("error"), is(false));
+    }
+
+    @Test
+    void testEmptyRequest() throws Exception {
+        final RecordFetchOutput output = new RecordFetchOutput(jsonbContext, executor, 2, Collections.emptyList(), 1, EXCLUDE_CONTENT,
+                RecordFetchOutputTest::found);
+        output.start();
+
+        final JsonNode result = write(output);
+        assertThat(result.get("found").size(), is(0));
+        assertThat(result.get("missing").size(), is(0));
+    }
+
+    @Test
+    void testFirstBatchVipCoreFailureIsThrownFromStart() {
+        final RecordFetchOutput output = new RecordFetchOutput(jsonbContext, executor, 2, Arrays.asList(recordIdDTO("a")), 1, EXCLUDE_CONTENT,
+                batch -> {
+                    throw mock(VipCoreException.class);
+                });
+
+        Assertions.assertThrows(VipCoreException.class, output::start);
+    }
+
+    @Test
+    void testFirstBatchFailureIsThrownFromStart() {
+        final RecordFetchOutput output = new RecordFetchOutput(jsonbContext, executor, 2, Arrays.asList(recordIdDTO("a")), 1, EXCLUDE_CONTENT,
+                batch -> {
+                    throw new InternalServerException("database", null);
+                });
+
+        Assertions.assertThrows(InternalServerException.class, output::start);
+    }
+
+    @Test
+    void testLaterBatchFailureEndsWithError() throws Exception {
+        final List<RecordIdDTO> recordIds = Arrays.asList(recordIdDTO("a"), recordIdDTO("b"), recordIdDTO("c"));
+        final RecordFetchOutput output = new RecordFetchOutput(jsonbContext, executor, 1, recordIds, 1, EXCLUDE_CONTENT,
+                batch -> {
+                    if ("b".equals(batch.get(0).getBibliographicRecordId())) {
+                        throw new InternalServerException("database", null);
+                    }
+                    return found(batch);
+                });
+        output.start();
+
+        final JsonNode result = write(output);
+        assertThat(result.get("found").size(), is(1));
+        assertThat(result.get("found").get(0).get("recordId").get("bibliographicRecordId").asText(), is("a"));
+        assertThat(result.has("missing"), is(false));
+        assertThat(result.get("error").asText(), is("Exception during fetchRecordList"));
+    }
+}
@@ -1,7 +1,9 @@
 package dk.dbc.rawrepo.service;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import dk.dbc.httpclient.HttpGet;
 import dk.dbc.httpclient.PathBuilder;
+import dk.dbc.jsonb.JSONBContext;
 import dk.dbc.rawrepo.dto.RecordDTO;
 import dk.dbc.rawrepo.dto.RecordEntryDTO;
 import dk.dbc.rawrepo.dto.RecordExistsDTO;
@@ -9,13 +11,21 @@ import dk.dbc.rawrepo.dto.RecordIdCollectionDTO;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.Response;
 import java.sql.Connection;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 class RecordServiceIT extends AbstractRecordServiceContainerTest {
+    private final JSONBContext jsonbContext = new JSONBContext();
 
     @BeforeAll
     static void initDB() {
@@ -26,6 +36,8 @@ class RecordServiceIT extends AbstractRecordServiceContainerTest {
             saveRecord(rawrepoConnection, "sql/50129691-191919.xml", MIMETYPE_ENRICHMENT);
             saveRecord(rawrepoConnection, "sql/50129691-870970.xml", MIMETYPE_MARCXCHANGE);
             saveRelations(rawrepoConnection, "50129691", 191919, "50129691", 870970);
+            saveRecord(rawrepoConnection, "sql/collection/05395720-870970.xml", MIMETYPE_MARCXCHANGE); // Volume
+            saveRelations(rawrepoConnection, "05395720", 870970, "50129691", 870970);
         } catch (Exception e) {
             throw new IllegalStateException(e);
         }
@@ -115,6 +127,124 @@ class RecordServiceIT extends AbstractRecordServiceContainerTest {
         assertThat("content", getMarcRecordFromString(content), is(getMarcRecordFromFile("sql/50129691-191919-merged.xml")));
     }
 
+    @Test
+    void getMarcRecord_Merged_NotModified() {
+        final PathBuilder path = new PathBuilder("/api/v1/record/{agencyId}/{bibliographicRecordId}/content")
+                .bind("bibliographicRecordId", "50129691")
+                .bind("agencyId", 191919);
+
+        final Response response = httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(path.build()));
+        assertThat("Response code", response.getStatus(), is(200));
+
+        final EntityTag entityTag = response.getEntityTag();
+        assertThat("entity tag", entityTag, notNullValue());
+
+        final Response notModifiedResponse = httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(path.build())
+                .withHeader("If-None-Match", entityTag.toString()));
+        assertThat("Response code", notModifiedResponse.getStatus(), is(Response.Status.NOT_MODIFIED.getStatusCode()));
+
+        final Response otherVariantResponse = httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(path.build())
+                .withQueryParameter("exclude-dbc-fields", true)
+                .withHeader("If-None-Match", entityTag.toString()));
+        assertThat("Response code", otherVariantResponse.getStatus(), is(200));
+    }
+
+    @Test
+    void getMarcRecord_Merged_EntityTagChangesWithEnrichment() throws Exception {
+        final PathBuilder path = new PathBuilder("/api/v1/record/{agencyId}/{bibliographicRecordId}/content")
+                .bind("bibliographicRecordId", "50129691")
+                .bind("agencyId", 191919);
+
+        final Response response = httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(path.build()));
+        assertThat("Response code", response.getStatus(), is(200));
+        final EntityTag entityTag = response.getEntityTag();
+
+        // Saving the enrichment again gives it a new modified timestamp
+        final Connection rawrepoConnection = connectToRawrepoDb();
+        saveRecord(rawrepoConnection, "sql/50129691-191919.xml", MIMETYPE_ENRICHMENT);
+
+        final Response modifiedResponse = httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(path.build())
+                .withHeader("If-None-Match", entityTag.toString()));
+        assertThat("Response code", modifiedResponse.getStatus(), is(200));
+        assertThat("entity tag", modifiedResponse.getEntityTag(), not(entityTag));
+    }
+
+    @Test
+    void getRecord_Raw_NotModified() {
+        final PathBuilder path = new PathBuilder("/api/v1/record/{agencyId}/{bibliographicRecordId}")
+                .bind("bibliographicRecordId", "50129691")
+                .bind("agencyId", 870970);
+
+        final Response response = httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(path.build()));
+        assertThat("Response code", response.getStatus(), is(200));
+
+        final EntityTag entityTag = response.getEntityTag();
+        assertThat("entity tag", entityTag, notNullValue());
+
+        final Response notModifiedResponse = httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(path.build())
+                .withHeader("If-None-Match", entityTag.toString()));
+        assertThat("Response code", notModifiedResponse.getStatus(), is(Response.Status.NOT_MODIFIED.getStatusCode()));
+    }
+
+    @Test
+    void getRecord_Raw_NotFoundHasNoEntityTag() {
+        final Response response = httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(new PathBuilder("/api/v1/record/{agencyId}/{bibliographicRecordId}")
+                        .bind("bibliographicRecordId", "NOTFOUND")
+                        .bind("agencyId", 870970)
+                        .build())
+                .withHeader("If-None-Match", "\"tag\""));
+        assertThat("Response code", response.getStatus(), is(Response.Status.NO_CONTENT.getStatusCode()));
+        assertThat("entity tag", response.getEntityTag(), nullValue());
+    }
+
+    @Test
+    void getHistoricRecord() throws Exception {
+        final Connection rawrepoConnection = connectToRawrepoDb();
+        // The first version is moved to the archive when the second is saved
+        saveRecord(rawrepoConnection, "sql/50129691-870970.xml", MIMETYPE_MARCXCHANGE, "2021-01-01T10:00:00Z", "2021-01-01T10:00:00Z");
+        saveRecord(rawrepoConnection, "sql/50129691-870970.xml", MIMETYPE_MARCXCHANGE, "2021-01-01T10:00:00Z", "2021-02-01T10:00:00.123Z");
+
+        final Response archived = getHistoricRecord("2021-01-01T10:00:00Z");
+        assertThat("Response code", archived.getStatus(), is(200));
+        assertThat("cache control", archived.getHeaderString("Cache-Control"), is("public, max-age=31536000, immutable"));
+        assertThat("get modified", Instant.parse(archived.readEntity(RecordDTO.class).getModified()), is(Instant.parse("2021-01-01T10:00:00Z")));
+
+        // The current version can still be replaced, so it isn't cached
+        final Response current = getHistoricRecord("2021-02-01T10:00:00.123Z");
+        assertThat("Response code", current.getStatus(), is(200));
+        assertThat("cache control", current.getHeaderString("Cache-Control"), nullValue());
+        assertThat("get modified", Instant.parse(current.readEntity(RecordDTO.class).getModified()), is(Instant.parse("2021-02-01T10:00:00.123Z")));
+
+        assertThat("Response code", getHistoricRecord("2021-01-15T10:00:00Z").getStatus(), is(Response.Status.NO_CONTENT.getStatusCode()));
+        assertThat("Response code", getHistoricRecord("2021-01-15").getStatus(), is(Response.Status.BAD_REQUEST.getStatusCode()));
+    }
+
+    private Response getHistoricRecord(String date) {
+        return httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(new PathBuilder("/api/v1/record/{agencyId}/{bibliographicRecordId}/{date}")
+                        .bind("bibliographicRecordId", "50129691")
+                        .bind("agencyId", 870970)
+                        .bind("date", date)
+                        .build()));
+    }
+
     @Test
     void getMarcRecord_Merged_ExcludeDBCFields() throws Exception {
         final HttpGet httpGet = new HttpGet(httpClient)
@@ -352,4 +482,72 @@ class RecordServiceIT extends AbstractRecordServiceContainerTest {
         assertThat("content", entity, is(""));
     }
 
+    @Test
+    void getDescendants() throws Exception {
+        final List<JsonNode> lines = getHierarchy("descendants", "50129691", 10, false);
+
+        // The enrichment has the same bibliographic record id, so it isn't a descendant
+        assertThat("records", lines.size(), is(1));
+        assertThat("record", lines.get(0).get("recordId").get("bibliographicRecordId").asText(), is("05395720"));
+        assertThat("from", lines.get(0).get("from").get("bibliographicRecordId").asText(), is("50129691"));
+        assertThat("depth", lines.get(0).get("depth").asInt(), is(1));
+        assertThat("content", lines.get(0).has("content"), is(false));
+    }
+
+    @Test
+    void getDescendants_IncludeContent() throws Exception {
+        final List<JsonNode> lines = getHierarchy("descendants", "50129691", 10, true);
+
+        assertThat("records", lines.size(), is(1));
+        assertThat("content", lines.get(0).get("content").binaryValue().length > 0, is(true));
+    }
+
+    @Test
+    void getDescendants_NotFound() throws Exception {
+        assertThat("records", getHierarchy("descendants", "NOTFOUND", 10, false).size(), is(0));
+    }
+
+    @Test
+    void getAncestors() throws Exception {
+        final List<JsonNode> lines = getHierarchy("ancestors", "05395720", 10, false);
+
+        assertThat("records", lines.size(), is(1));
+        assertThat("record", lines.get(0).get("recordId").get("bibliographicRecordId").asText(), is("50129691"));
+        assertThat("record", lines.get(0).get("recordId").get("agencyId").asInt(), is(870970));
+        assertThat("from", lines.get(0).get("from").get("bibliographicRecordId").asText(), is("05395720"));
+        assertThat("depth", lines.get(0).get("depth").asInt(), is(1));
+    }
+
+    @Test
+    void getAncestors_InvalidMaxDepth() {
+        final Response response = httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(new PathBuilder("/api/v1/record/{agencyId}/{bibliographicRecordId}/ancestors")
+                        .bind("bibliographicRecordId", "05395720")
+                        .bind("agencyId", 870970)
+                        .build())
+                .withQueryParameter("max-depth", 21));
+        assertThat("Response code", response.getStatus(), is(Response.Status.BAD_REQUEST.getStatusCode()));
+    }
+
+    private List<JsonNode> getHierarchy(String direction, String bibliographicRecordId, int maxDepth, boolean includeContent) throws Exception {
+        final Response response = httpClient.execute(new HttpGet(httpClient)
+                .withBaseUrl(recordServiceBaseUrl)
+                .withPathElements(new PathBuilder("/api/v1/record/{agencyId}/{bibliographicRecordId}/" + direction)
+                        .bind("bibliographicRecordId", bibliographicRecordId)
+                        .bind("agencyId", 870970)
+                        .build())
+                .withQueryParameter("max-depth", maxDepth)
+                .withQueryParameter("include-content", includeContent));
+        assertThat("Response code", response.getStatus(), is(200));
+
+        final List<JsonNode> lines = new ArrayList<>();
+        for (String line : response.readEntity(String.class).split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(jsonbContext.getObjectMapper().readTree(line));
+            }
+        }
+
+        return lines;
+    }
 }